@@ -0,0 +1,833 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking beanstalkd client.
+ *
+ * Every command returns immediately with a future that is completed when
+ * the response arrives. Error responses complete the future exceptionally
+ * with a {@link BeanstemcException}, connection failures with an IOException.
+ *
+ * <pre>
+ * EventLoop loop = new EventLoop();
+ * AsyncBeanstemc beanstemc = new AsyncBeanstemc(loop, "localhost", 11300);
+ * beanstemc.put(data).thenAccept(...);
+ * </pre>
+ *
+ * Commands may be submitted from any thread. They are encoded on the
+ * {@link EventLoop} thread, written as they fit into the socket, and kept in
+ * a FIFO queue until their response arrives; beanstalkd answers the commands
+ * of a connection in order, so responses are matched to commands by
+ * position. Commands submitted from several threads are therefore sent in
+ * the order they were submitted, but as for {@link Beanstemc} the connection
+ * state ("use", "watch") is shared by all of them.
+ *
+ * Futures are completed on the I/O thread, so dependent stages attached
+ * with the non-async methods of CompletableFuture run there too and must not
+ * block.
+ */
+public class AsyncBeanstemc {
+
+	private final EventLoop		loop;
+	private final SocketChannel	channel;
+
+	private final ConcurrentLinkedQueue<Op<?>>	submitted	= new ConcurrentLinkedQueue<Op<?>>();
+	private final AtomicBoolean					scheduled	= new AtomicBoolean();
+	private final AtomicInteger					outstanding	= new AtomicInteger();
+	private volatile IOException				failure;
+
+	// Owned by the loop thread
+	private final ArrayDeque<Op<?>>	inflight	= new ArrayDeque<Op<?>>();
+	private final ResponseReader	in			= new ResponseReader();
+	private final Outbound			outbound	= new Outbound();
+	private final CommandWriter		out			= new CommandWriter(outbound);
+	private SelectionKey			key;
+	private int						bodyBytes	= -1;
+
+	private final Runnable flush = new Runnable() {
+		public void run() {
+			flushSubmitted();
+		}
+	};
+
+	/**
+	 * Connect using the default event loop.
+	 *
+	 * @see EventLoop#getDefault()
+	 */
+	public AsyncBeanstemc(String host, int port) throws IOException {
+		this(EventLoop.getDefault(), host, port);
+	}
+
+	/**
+	 * Connect and hand the connection over to the given loop.
+	 *
+	 * The TCP connection is established before the constructor returns.
+	 *
+	 * @throws IOException Also when the loop has been closed.
+	 */
+	public AsyncBeanstemc(EventLoop loop, String host, int port) throws IOException {
+
+		this.loop		= loop;
+		this.channel	= SocketChannel.open(new InetSocketAddress(host, port));
+
+		channel.socket().setTcpNoDelay(true);
+		channel.configureBlocking(false);
+
+		boolean accepted = loop.execute(new Runnable() {
+			public void run() {
+				try {
+					key = AsyncBeanstemc.this.loop.register(channel, SelectionKey.OP_READ, new EventLoop.Handler() {
+						public void ready(SelectionKey key) {
+							handle(key);
+						}
+						public void closed() {
+							fail(new IOException("Event loop closed."));
+						}
+					});
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+		if (!accepted) {
+			channel.close();
+			throw new IOException("Event loop closed.");
+		}
+
+	}
+
+	/**
+	 * @return Number of commands sent or queued which have not been answered yet.
+	 */
+	public int pending() {
+		return outstanding.get();
+	}
+
+	/**
+	 * @see Beanstemc#put(byte[], long, int, int)
+	 */
+	public CompletableFuture<Long> put(final byte[] data, final long priority, final int delay, final int ttr) {
+
+		return submit(new Op<Long>() {
+			void encode(CommandWriter out) throws IOException {
+				out.put(priority, delay, ttr, data, 0, data.length);
+			}
+			Long decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				return Beanstemc.checkPut(in);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#put(byte[])
+	 */
+	public CompletableFuture<Long> put(byte[] data) {
+		return put(data, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * @see Beanstemc#use(String)
+	 */
+	public CompletableFuture<Void> use(final String tube) {
+
+		return submit(new Op<Void>() {
+			void encode(CommandWriter out) throws IOException {
+				out.use(tube);
+			}
+			Void decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				Beanstemc.checkUse(in);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#reserve(int)
+	 */
+	public CompletableFuture<Job> reserve(final int timeout) {
+
+		return submit(new Op<Job>() {
+			void encode(CommandWriter out) throws IOException {
+				if (timeout > 0) {
+					out.reserve(timeout);
+				} else {
+					out.reserve();
+				}
+			}
+			Job decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				return job(in, body);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#reserve()
+	 */
+	public CompletableFuture<Job> reserve() {
+		return reserve(0);
+	}
+
+	/**
+	 * @see Beanstemc#peek(long)
+	 */
+	public CompletableFuture<Job> peek(final long jobId) {
+
+		return submit(new Op<Job>() {
+			void encode(CommandWriter out) throws IOException {
+				out.peek(jobId);
+			}
+			Job decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				return job(in, body);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#peekReady()
+	 */
+	public CompletableFuture<Job> peekReady() {
+
+		return submit(new Op<Job>() {
+			void encode(CommandWriter out) throws IOException {
+				out.peekReady();
+			}
+			Job decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				return job(in, body);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#peekDelayed()
+	 */
+	public CompletableFuture<Job> peekDelayed() {
+
+		return submit(new Op<Job>() {
+			void encode(CommandWriter out) throws IOException {
+				out.peekDelayed();
+			}
+			Job decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				return job(in, body);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#peekBuried()
+	 */
+	public CompletableFuture<Job> peekBuried() {
+
+		return submit(new Op<Job>() {
+			void encode(CommandWriter out) throws IOException {
+				out.peekBuried();
+			}
+			Job decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				return job(in, body);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#delete(long)
+	 */
+	public CompletableFuture<Void> delete(final long jobId) {
+
+		return submit(new Op<Void>() {
+			void encode(CommandWriter out) throws IOException {
+				out.delete(jobId);
+			}
+			Void decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				Beanstemc.checkDelete(in, jobId);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#delete(Job)
+	 */
+	public CompletableFuture<Void> delete(Job job) {
+		return delete(job.getId());
+	}
+
+	/**
+	 * @see Beanstemc#release(long, long, int)
+	 */
+	public CompletableFuture<Void> release(final long jobId, final long priority, final int delay) {
+
+		return submit(new Op<Void>() {
+			void encode(CommandWriter out) throws IOException {
+				out.release(jobId, priority, delay);
+			}
+			Void decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				Beanstemc.checkRelease(in, jobId, priority, delay);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#release(Job)
+	 */
+	public CompletableFuture<Void> release(Job job) {
+		return release(job.getId(), Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY);
+	}
+
+	/**
+	 * @see Beanstemc#bury(long, long)
+	 */
+	public CompletableFuture<Void> bury(final long jobId, final long priority) {
+
+		return submit(new Op<Void>() {
+			void encode(CommandWriter out) throws IOException {
+				out.bury(jobId, priority);
+			}
+			Void decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				Beanstemc.checkBury(in, jobId, priority);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#bury(long)
+	 */
+	public CompletableFuture<Void> bury(long jobId) {
+		return bury(jobId, Beanstemc.DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * @see Beanstemc#touch(long)
+	 */
+	public CompletableFuture<Void> touch(final long jobId) {
+
+		return submit(new Op<Void>() {
+			void encode(CommandWriter out) throws IOException {
+				out.touch(jobId);
+			}
+			Void decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				Beanstemc.checkTouch(in, jobId);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#watch(String)
+	 */
+	public CompletableFuture<Integer> watch(final String tube) {
+
+		return submit(new Op<Integer>() {
+			void encode(CommandWriter out) throws IOException {
+				out.watch(tube);
+			}
+			Integer decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				return Beanstemc.checkWatch(in);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#ignore(String)
+	 */
+	public CompletableFuture<Integer> ignore(final String tube) {
+
+		return submit(new Op<Integer>() {
+			void encode(CommandWriter out) throws IOException {
+				out.ignore(tube);
+			}
+			Integer decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				return Beanstemc.checkIgnore(in, tube);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#kick(int)
+	 */
+	public CompletableFuture<Integer> kick(final int bound) {
+
+		return submit(new Op<Integer>() {
+			void encode(CommandWriter out) throws IOException {
+				out.kick(bound);
+			}
+			Integer decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				return Beanstemc.checkKick(in, bound);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#pauseTube(String, int)
+	 */
+	public CompletableFuture<Void> pauseTube(final String tube, final int delay) {
+
+		return submit(new Op<Void>() {
+			void encode(CommandWriter out) throws IOException {
+				out.pauseTube(tube, delay);
+			}
+			Void decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				Beanstemc.checkPauseTube(in, tube, delay);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#stats()
+	 */
+	public CompletableFuture<HashMap<String, String>> stats() {
+
+		return submit(new Op<HashMap<String, String>>() {
+			void encode(CommandWriter out) throws IOException {
+				out.stats();
+			}
+			HashMap<String, String> decode(ResponseReader in, byte[] body) throws IOException, BeanstemcException {
+				return Beanstemc.parseYamlMap(yaml(in, body));
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#statsJob(long)
+	 */
+	public CompletableFuture<HashMap<String, String>> statsJob(final long jobId) {
+
+		return submit(new Op<HashMap<String, String>>() {
+			void encode(CommandWriter out) throws IOException {
+				out.statsJob(jobId);
+			}
+			HashMap<String, String> decode(ResponseReader in, byte[] body) throws IOException, BeanstemcException {
+				return Beanstemc.parseYamlMap(yaml(in, body));
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#statsTube(String)
+	 */
+	public CompletableFuture<HashMap<String, String>> statsTube(final String tube) {
+
+		return submit(new Op<HashMap<String, String>>() {
+			void encode(CommandWriter out) throws IOException {
+				out.statsTube(tube);
+			}
+			HashMap<String, String> decode(ResponseReader in, byte[] body) throws IOException, BeanstemcException {
+				return Beanstemc.parseYamlMap(yaml(in, body));
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#listTubes()
+	 */
+	public CompletableFuture<List<String>> listTubes() {
+
+		return submit(new Op<List<String>>() {
+			void encode(CommandWriter out) throws IOException {
+				out.listTubes();
+			}
+			List<String> decode(ResponseReader in, byte[] body) throws IOException, BeanstemcException {
+				return Beanstemc.parseYamlList(yaml(in, body));
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#listTubeUsed()
+	 */
+	public CompletableFuture<String> listTubeUsed() {
+
+		return submit(new Op<String>() {
+			void encode(CommandWriter out) throws IOException {
+				out.listTubeUsed();
+			}
+			String decode(ResponseReader in, byte[] body) throws BeanstemcException {
+				return Beanstemc.checkListTubeUsed(in);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#listTubesWatched()
+	 */
+	public CompletableFuture<List<String>> listTubesWatched() {
+
+		return submit(new Op<List<String>>() {
+			void encode(CommandWriter out) throws IOException {
+				out.listTubesWatched();
+			}
+			List<String> decode(ResponseReader in, byte[] body) throws IOException, BeanstemcException {
+				return Beanstemc.parseYamlList(yaml(in, body));
+			}
+		});
+
+	}
+
+	/**
+	 * Close the connection after sending "quit".
+	 *
+	 * Commands which have not been answered yet fail with an IOException.
+	 */
+	public void close() {
+
+		boolean accepted = loop.execute(new Runnable() {
+			public void run() {
+
+				if (failure == null) {
+					try {
+						flushSubmitted();
+						out.quit();
+						out.flush();
+						outbound.writeTo(channel);
+					} catch (IOException e) {
+						// Closing anyway
+					}
+				}
+				fail(new IOException("Connection closed."));
+
+			}
+		});
+		if (!accepted) {
+			fail(new IOException("Connection closed."));		// The loop thread is gone
+		}
+
+	}
+
+	private static Job job(ResponseReader in, byte[] body) throws BeanstemcException {
+
+		Beanstemc.checkJob(in);
+		return new Job(in.arg(0), body);
+
+	}
+
+	private static String yaml(ResponseReader in, byte[] body) throws BeanstemcException {
+
+		Beanstemc.checkYaml(in);
+		return new String(body);
+
+	}
+
+	private <T> CompletableFuture<T> submit(Op<T> op) {
+
+		IOException failed = failure;
+		if (failed != null) {
+			op.future.completeExceptionally(failed);
+			return op.future;
+		}
+
+		outstanding.incrementAndGet();
+		submitted.add(op);
+
+		// The connection may have failed meanwhile, after the submitted commands were failed
+		failed = failure;
+		if (failed != null) {
+			failSubmitted(failed);
+		} else if (scheduled.compareAndSet(false, true) && !loop.execute(flush)) {
+			failure = new IOException("Event loop closed.");
+			failSubmitted(failure);
+		}
+
+		return op.future;
+
+	}
+
+	/**
+	 * Encode everything submitted since the last run and start writing it.
+	 */
+	private void flushSubmitted() {
+
+		scheduled.set(false);
+
+		Op<?> op;
+		while ((op = submitted.poll()) != null) {
+
+			if (failure != null) {
+				done(op).future.completeExceptionally(failure);
+				continue;
+			}
+
+			try {
+				op.encode(out);
+				inflight.add(op);
+			} catch (IOException e) {
+				done(op).future.completeExceptionally(e);
+			}
+
+		}
+
+		if (failure == null) {
+			try {
+				out.flush();
+				write();
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+	}
+
+	private void handle(SelectionKey key) {
+
+		try {
+
+			if (key.isWritable()) {
+				write();
+			}
+			if (key.isReadable()) {
+				read();
+			}
+
+		} catch (IOException e) {
+			fail(e);
+		}
+
+	}
+
+	private void write() throws IOException {
+
+		if (key == null || !key.isValid()) {
+			return;		// Not registered yet, written once it is
+		}
+
+		boolean drained = outbound.writeTo(channel);
+		key.interestOps(drained ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+	}
+
+	private void read() throws IOException {
+
+		int n;
+		while ((n = in.fill(channel)) > 0) {
+			decode();
+		}
+		if (n < 0) {
+			throw new IOException("Connection closed by server.");
+		}
+
+	}
+
+	/**
+	 * Complete commands, in order, for every full response received.
+	 */
+	private void decode() throws IOException {
+
+		while (!inflight.isEmpty()) {
+
+			if (bodyBytes < 0) {
+
+				if (!in.nextLine()) {
+					return;
+				}
+
+				Response resp = in.response();
+				if ((resp == Response.RESERVED || resp == Response.FOUND) && in.argCount() == 2) {
+					bodyBytes = (int)in.arg(1);
+				} else if (resp == Response.OK && in.argCount() == 1) {
+					bodyBytes = (int)in.arg(0);
+				} else {
+					done(inflight.poll()).complete(in, null);
+					continue;
+				}
+				in.require(bodyBytes);
+
+			}
+
+			if (in.buffered() < bodyBytes + 2) {
+				return;
+			}
+
+			byte[] body = in.takeData(bodyBytes);
+			bodyBytes = -1;
+			done(inflight.poll()).complete(in, body);
+
+		}
+
+	}
+
+	private void fail(IOException e) {
+
+		if (failure == null) {
+			failure = e;
+		}
+
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+			// Closing anyway
+		}
+
+		Op<?> op;
+		while ((op = inflight.poll()) != null) {
+			done(op).future.completeExceptionally(failure);
+		}
+		failSubmitted(failure);
+
+	}
+
+	/**
+	 * Fail the commands not yet encoded, safe from any thread.
+	 */
+	private void failSubmitted(IOException e) {
+
+		Op<?> op;
+		while ((op = submitted.poll()) != null) {
+			done(op).future.completeExceptionally(e);
+		}
+
+	}
+
+	private <T> Op<T> done(Op<T> op) {
+
+		outstanding.decrementAndGet();
+		return op;
+
+	}
+
+	/**
+	 * A submitted command and the future of its result.
+	 */
+	private abstract static class Op<T> {
+
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		abstract void encode(CommandWriter out) throws IOException;
+
+		/**
+		 * Interpret the current response line, and its body if the response carried one.
+		 */
+		abstract T decode(ResponseReader in, byte[] body) throws IOException, BeanstemcException;
+
+		void complete(ResponseReader in, byte[] body) {
+
+			try {
+				future.complete(decode(in, body));
+			} catch (BeanstemcException e) {
+				future.completeExceptionally(e);
+			} catch (IOException e) {
+				future.completeExceptionally(e);
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Bytes encoded but not yet accepted by the non-blocking socket.
+	 */
+	private static class Outbound extends OutputStream {
+
+		private byte[]		buf = new byte[CommandWriter.DEFAULT_BUFFER_SIZE];
+		private int			pos;
+		private int			count;
+		private ByteBuffer	window = ByteBuffer.wrap(buf);
+
+		@Override
+		public void write(int b) {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+
+			if (buf.length - count < len) {
+
+				int remaining = count - pos;
+				byte[] target = buf;
+				if (remaining + len > buf.length) {
+					target = new byte[Math.max(buf.length * 2, remaining + len)];
+				}
+				System.arraycopy(buf, pos, target, 0, remaining);
+				buf		= target;
+				window	= ByteBuffer.wrap(buf);
+				pos		= 0;
+				count	= remaining;
+
+			}
+
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+
+		}
+
+		/**
+		 * @return true if everything buffered was written.
+		 */
+		boolean writeTo(SocketChannel channel) throws IOException {
+
+			if (pos < count) {
+				window.limit(count).position(pos);
+				pos += channel.write(window);
+			}
+			if (pos == count) {
+				pos		= 0;
+				count	= 0;
+				return true;
+			}
+			return false;
+
+		}
+
+	}
+
+}
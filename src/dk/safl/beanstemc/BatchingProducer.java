@@ -0,0 +1,408 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A producer which collects puts from many threads and sends them in batches.
+ *
+ * <pre>
+ * BatchingProducer producer = new BatchingProducer("localhost", 11300);
+ * producer.setLinger(1, TimeUnit.MILLISECONDS);
+ * // From any number of threads:
+ * CompletableFuture&lt;Long&gt; jobId = producer.put("emails", data);
+ * </pre>
+ *
+ * A batch is sent once it holds {@link #getBatchSize()} jobs or
+ * {@link #getBatchBytes()} bytes of payload, or once its first job has
+ * waited for the linger, whichever comes first. The batch is pipelined on
+ * one connection, with a "use" only where the tube changes, so its puts
+ * share a single flush and their responses are read back in one go. A put
+ * is thus delayed by at most the linger, for far fewer system calls and
+ * round trips per job.
+ *
+ * The future of each put is completed with the id of the job, or with the
+ * BeanstemcException of the server, such as "BURIED &lt;id&gt;", JOB_TOO_BIG or
+ * DRAINING; when the connection fails, the puts of the batch in flight fail
+ * with the IOException, as their state is unknown, and the next batch
+ * opens a new connection. Futures are completed on the sender thread, so
+ * dependent stages attached with the non-async methods of
+ * CompletableFuture run there too and must not block.
+ */
+public class BatchingProducer {
+
+	public static int	DEFAULT_BATCH_SIZE	= 512;
+	public static int	DEFAULT_BATCH_BYTES	= 1 << 20;
+	public static long	DEFAULT_LINGER		= TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * A put waiting to be sent.
+	 */
+	private static class Put {
+
+		final String					tube;
+		final byte[]					data;
+		final long						priority;
+		final int						delay;
+		final int						ttr;
+		final long						queued	= System.nanoTime();
+		final CompletableFuture<Long>	future	= new CompletableFuture<Long>();
+
+		Put(String tube, byte[] data, long priority, int delay, int ttr) {
+			this.tube		= tube;
+			this.data		= data;
+			this.priority	= priority;
+			this.delay		= delay;
+			this.ttr		= ttr;
+		}
+
+	}
+
+	private final String	host;
+	private final int		port;
+	private final Thread	sender;
+
+	private volatile int	batchSize	= DEFAULT_BATCH_SIZE;
+	private volatile int	batchBytes	= DEFAULT_BATCH_BYTES;
+	private volatile long	linger		= DEFAULT_LINGER;
+
+	private final ConcurrentLinkedQueue<Put>	queued		= new ConcurrentLinkedQueue<Put>();
+	private final AtomicInteger					queuedJobs	= new AtomicInteger();
+	private final AtomicLong					queuedBytes	= new AtomicLong();
+	private final AtomicBoolean					parked		= new AtomicBoolean();
+	private final AtomicLong					batches		= new AtomicLong();
+	private volatile boolean					quit;
+
+	// Owned by the sender thread
+	private Beanstemc beanstemc;
+
+	/**
+	 * Start the sender thread, the connection is opened with the first batch.
+	 */
+	public BatchingProducer(String host, int port) {
+
+		this.host = host;
+		this.port = port;
+
+		sender = new Thread(new Runnable() {
+			public void run() {
+				send();
+			}
+		}, "beanstemc-batcher");
+		sender.setDaemon(true);
+		sender.start();
+
+	}
+
+	/**
+	 * @param jobs Number of jobs which fill a batch.
+	 */
+	public void setBatchSize(int jobs) {
+		batchSize = jobs;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param bytes Bytes of payload which fill a batch.
+	 */
+	public void setBatchBytes(int bytes) {
+		batchBytes = bytes;
+	}
+
+	public int getBatchBytes() {
+		return batchBytes;
+	}
+
+	/**
+	 * @param time Longest time the first job of a batch waits for the batch to fill, 0 sends at once.
+	 */
+	public void setLinger(long time, TimeUnit unit) {
+		linger = unit.toNanos(time);
+	}
+
+	public long getLinger(TimeUnit unit) {
+		return unit.convert(linger, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Queue a job for the next batch.
+	 *
+	 * @param tube Tube the job is put into.
+	 * @return Completed with the id of the inserted job.
+	 * @throws IllegalArgumentException The tube name is invalid.
+	 */
+	public CompletableFuture<Long> put(String tube, byte[] data, long priority, int delay, int ttr) {
+
+		Beanstemc.checkTube(tube);
+
+		Put put = new Put(tube, data, priority, delay, ttr);
+		if (quit) {
+			put.future.completeExceptionally(new IOException("Producer closed."));
+			return put.future;
+		}
+
+		queued.add(put);
+		int jobs	= queuedJobs.incrementAndGet();
+		long bytes	= queuedBytes.addAndGet(data.length);
+
+		// The first job starts the linger, a full batch is sent at once
+		if (jobs == 1 || jobs >= batchSize || bytes >= batchBytes) {
+			wakeSender();
+		}
+		return put.future;
+
+	}
+
+	/**
+	 * @see #put(String, byte[], long, int, int)
+	 */
+	public CompletableFuture<Long> put(String tube, byte[] data) {
+		return put(tube, data, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * Put a job into the tube named "default".
+	 *
+	 * @see #put(String, byte[], long, int, int)
+	 */
+	public CompletableFuture<Long> put(byte[] data) {
+		return put("default", data);
+	}
+
+	/**
+	 * @return Number of jobs queued and not yet sent.
+	 */
+	public int pending() {
+		return queuedJobs.get();
+	}
+
+	/**
+	 * @return Number of batches sent.
+	 */
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	/**
+	 * Send the jobs already queued without waiting for the linger, then close the connection.
+	 *
+	 * Puts after close fail with an IOException.
+	 */
+	public void close() {
+
+		quit = true;
+		LockSupport.unpark(sender);
+		try {
+			sender.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// Raced with close, after the sender had stopped
+		Put put;
+		while ((put = queued.poll()) != null) {
+			put.future.completeExceptionally(new IOException("Producer closed."));
+		}
+
+	}
+
+	private void wakeSender() {
+
+		if (parked.compareAndSet(true, false)) {
+			LockSupport.unpark(sender);
+		}
+
+	}
+
+	/**
+	 * Wait for a batch to fill or its linger to pass, and send it.
+	 */
+	private void send() {
+
+		List<Put> batch = new ArrayList<Put>();
+
+		try {
+			while (true) {
+
+				Put first = queued.peek();
+				if (first == null) {
+					if (quit) {
+						return;
+					}
+					parked.set(true);
+					if (queued.isEmpty() && !quit) {
+						LockSupport.park(this);
+					}
+					parked.set(false);
+					continue;
+				}
+
+				long wait = first.queued + linger - System.nanoTime();
+				if (wait > 0 && !quit && queuedJobs.get() < batchSize && queuedBytes.get() < batchBytes) {
+					parked.set(true);
+					LockSupport.parkNanos(this, wait);
+					parked.set(false);
+					continue;
+				}
+
+				take(batch);
+				send(batch);
+				batch.clear();
+
+			}
+		} finally {
+			disconnect();
+		}
+
+	}
+
+	/**
+	 * Take the jobs of one batch off the queue.
+	 */
+	private void take(List<Put> batch) {
+
+		int bytes = 0;
+		Put put;
+		while (batch.size() < batchSize && bytes < batchBytes && (put = queued.poll()) != null) {
+			batch.add(put);
+			bytes += put.data.length;
+		}
+
+		queuedJobs.addAndGet(-batch.size());
+		queuedBytes.addAndGet(-bytes);
+
+	}
+
+	/**
+	 * Pipeline a batch and complete the futures of its puts.
+	 */
+	private void send(List<Put> batch) {
+
+		List<Pipeline.Result> results;
+		boolean[] uses = new boolean[2 * batch.size()];
+
+		try {
+
+			if (beanstemc == null) {
+				beanstemc = new Beanstemc(host, port);
+			}
+
+			Pipeline pipeline	= beanstemc.pipeline();
+			String tube			= beanstemc.listTubeUsed();		// Answered by the client
+			int commands		= 0;
+
+			pipeline.setMaxPending(uses.length + 1);
+			for (Put put : batch) {
+				if (!put.tube.equals(tube)) {
+					tube = put.tube;
+					pipeline.use(tube);
+					uses[commands++] = true;
+				}
+				pipeline.put(put.data, put.priority, put.delay, put.ttr);
+				commands++;
+			}
+
+			results = pipeline.execute();
+			batches.incrementAndGet();
+
+		} catch (IOException e) {
+			fail(batch, e);
+			disconnect();
+			return;
+		} catch (BeanstemcException e) {
+			fail(batch, e);
+			disconnect();
+			return;
+		}
+
+		// Results are in the order of the commands, a refused "use" fails the puts up to the next one
+		BeanstemcException useError = null;
+		List<Long> strays = new ArrayList<Long>();
+		int i = 0;
+		for (Put put : batch) {
+
+			if (uses[i]) {
+				useError = results.get(i++).getException();
+			}
+
+			Pipeline.Result result = results.get(i++);
+			if (useError != null) {
+				if (result.isSuccess()) {
+					strays.add((Long)result.getValue());	// Inserted into the previous tube
+				}
+				put.future.completeExceptionally(useError);
+			} else if (result.isSuccess()) {
+				put.future.complete((Long)result.getValue());
+			} else {
+				put.future.completeExceptionally(result.getException());
+			}
+
+		}
+
+		for (long jobId : strays) {
+			try {
+				beanstemc.delete(jobId);
+			} catch (IOException e) {
+				disconnect();
+				return;
+			} catch (BeanstemcException e) {
+				// Already gone
+			}
+		}
+
+	}
+
+	private void fail(List<Put> batch, Exception e) {
+
+		for (Put put : batch) {
+			put.future.completeExceptionally(e);
+		}
+
+	}
+
+	private void disconnect() {
+
+		if (beanstemc != null) {
+			try {
+				beanstemc.close();
+			} catch (IOException e) {
+				// Already broken
+			}
+			beanstemc = null;
+		}
+
+	}
+
+}
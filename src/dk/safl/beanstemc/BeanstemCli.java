@@ -21,23 +21,463 @@
  */
 package dk.safl.beanstemc;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command-line client.
+ *
+ * <pre>
+ * java -jar Beanstemc.jar &lt;host&gt; &lt;port&gt; put &lt;tube&gt; &lt;string&gt;
+ * java -jar Beanstemc.jar &lt;host&gt; &lt;port&gt; put -f &lt;file&gt; &lt;tube&gt;
+ * java -jar Beanstemc.jar &lt;host&gt; &lt;port&gt; load [options] &lt;tube&gt; [file|directory|-]
+ * java -jar Beanstemc.jar &lt;host&gt; &lt;port&gt; watch [options] &lt;tube1,tube2,...,tubeN&gt; &lt;prefix&gt;
+ * java -jar Beanstemc.jar &lt;host&gt; &lt;port&gt; bench [options] [tube]
+ * </pre>
+ *
+ * The original form, &lt;host&gt; &lt;port&gt; &lt;tube&gt; &lt;string&gt;, still puts one job.
+ */
 public class BeanstemCli {
 
+	private static final String USAGE =
+		"Usage: java -jar Beanstemc.jar <host> <port> <command> [options] <arguments>\n" +
+		"\n" +
+		"  put <tube> <string>\n" +
+		"  put -f <file> <tube>\n" +
+		"      Put one job, a file is streamed without loading it into memory.\n" +
+		"\n" +
+		"  load [options] <tube> [file|directory|-]\n" +
+		"      Put every job of a file, of stdin or one per file of a directory.\n" +
+		"      -f lines|length   Newline-delimited (default) or 4-byte length-prefixed jobs\n" +
+		"      -c <n>            Connections putting in parallel (default " + BulkLoader.DEFAULT_CONNECTIONS + ")\n" +
+		"      -b <n>            Jobs pipelined per batch (default " + BulkLoader.DEFAULT_BATCH_SIZE + ")\n" +
+		"      -o <offset>       Resume from the offset printed by a previous load\n" +
+		"      -p <priority> -d <delay> -t <ttr>\n" +
+		"\n" +
+		"  watch [options] <tube1,tube2,...,tubeN> <prefix>\n" +
+		"      Reserve jobs, write each to <prefix><id> and delete it.\n" +
+		"      -c <n>            Connections reserving in parallel (default " + BulkConsumer.DEFAULT_CONCURRENCY + ")\n" +
+		"      -b <n>            Jobs reserved, written and deleted per batch (default " + BulkConsumer.DEFAULT_BATCH_SIZE + ")\n" +
+		"      -n <jobs>         Stop after this many jobs\n" +
+		"      -i <seconds>      Stop when no job arrives for this long (default: wait forever)\n" +
+		"      -r <bytes>        Append length-prefixed jobs to <prefix>000001, ... rolled at this size\n" +
+		"      -s                Force the writes to disk before the jobs are deleted\n" +
+		"\n" +
+		"  bench [options] [tube]\n" +
+		"      Put jobs at a fixed rate and reserve them, reporting throughput and latencies.\n" +
+		"      -p <n>            Producer connections (default 1)\n" +
+		"      -c <n>            Consumer connections (default 1)\n" +
+		"      -r <jobs/s>       Target put rate over all producers, 0 puts as fast as possible (default 0)\n" +
+		"      -s <bytes>        Payload size (default " + LoadGenerator.DEFAULT_PAYLOAD_SIZE + ")\n" +
+		"      -P <min>-<max>    Spread priorities uniformly over a range\n" +
+		"      -D <share>:<s>,.. Delay a share of the jobs, e.g. 0.1:5,0.01:60\n" +
+		"      -W <seconds>      Time to put for before measuring (default 1)\n" +
+		"      -T <seconds>      Time to put for and measure (default 10)\n";
+
+	/**
+	 * Options given as "-x value" before the positional arguments.
+	 */
+	private static class Options {
+
+		private final Map<String, String>	values		= new HashMap<String, String>();
+		private final List<String>			arguments	= new ArrayList<String>();
+
+		Options(String[] args) {
+			this(args, "");
+		}
+
+		/**
+		 * @param switches Letters of the options given without a value.
+		 */
+		Options(String[] args, String switches) {
+
+			int i = 0;
+			while (i < args.length && args[i].startsWith("-") && args[i].length() > 1) {
+				String name = args[i].substring(1);
+				if (switches.contains(name)) {
+					values.put(name, "true");
+					i++;
+					continue;
+				}
+				if (i + 1 == args.length) {
+					usage("Missing value of " + args[i]);
+				}
+				values.put(name, args[i + 1]);
+				i += 2;
+			}
+			arguments.addAll(Arrays.asList(args).subList(i, args.length));
+
+		}
+
+		boolean has(String name) {
+			return values.containsKey(name);
+		}
+
+		String get(String name, String otherwise) {
+			return values.containsKey(name) ? values.get(name) : otherwise;
+		}
+
+		long getLong(String name, long otherwise) {
+
+			try {
+				return values.containsKey(name) ? Long.parseLong(values.get(name)) : otherwise;
+			} catch (NumberFormatException e) {
+				usage("Not a number: -" + name + " " + values.get(name));
+				return otherwise;
+			}
+
+		}
+
+		int getInt(String name, int otherwise) {
+			return (int)getLong(name, otherwise);
+		}
+
+		/**
+		 * @return The positional arguments, exiting with the usage unless there are between min and max.
+		 */
+		List<String> arguments(int min, int max) {
+
+			if (arguments.size() < min || arguments.size() > max) {
+				usage(null);
+			}
+			return arguments;
+
+		}
+
+	}
+
+	/**
+	 * Prints a line to stderr every second until interrupted.
+	 */
+	private static abstract class Progress extends Thread {
+
+		final long		started		= System.nanoTime();
+		private long	previous;
+		private long	last		= started;
+
+		Progress() {
+			super("beanstemc-progress");
+			setDaemon(true);
+		}
+
+		/**
+		 * @return Jobs done so far.
+		 */
+		abstract long count();
+
+		/**
+		 * @param rate Jobs per second since the previous line.
+		 * @param seconds Time since the start.
+		 */
+		abstract String line(long count, double rate, double seconds);
+
+		public void run() {
+
+			try {
+				while (true) {
+
+					sleep(1000);
+					long now	= System.nanoTime();
+					long count	= count();
+					System.err.println(line(count, (count - previous) * 1e9 / (now - last), (now - started) / 1e9));
+					previous	= count;
+					last		= now;
+
+				}
+			} catch (InterruptedException e) {
+				// Done
+			}
+
+		}
+
+		double seconds() {
+			return (System.nanoTime() - started) / 1e9;
+		}
+
+	}
+
 	/**
 	 * @param args
 	 */
 	public static void main(String[] args) throws Exception {
-		
+
+		if (args.length < 3) {
+			usage(null);
+		}
+
 		String	host = args[0];
 		int		port = Integer.parseInt(args[1]);
-		
-		String tube = args[2];
-		String message = args[3];
-		
+
+		String command	= args[2];
+		String[] rest	= Arrays.copyOfRange(args, 3, args.length);
+
+		if (command.equals("put")) {
+			put(host, port, new Options(rest));
+		} else if (command.equals("load")) {
+			load(host, port, new Options(rest));
+		} else if (command.equals("watch")) {
+			watch(host, port, new Options(rest, "s"));
+		} else if (command.equals("bench")) {
+			bench(host, port, new Options(rest));
+		} else if (args.length == 4) {
+			put(host, port, new Options(Arrays.copyOfRange(args, 2, 4)));
+		} else {
+			usage("Unknown command " + command);
+		}
+
+	}
+
+	private static void usage(String error) {
+
+		if (error != null) {
+			System.err.println(error);
+		}
+		System.err.print(USAGE);
+		System.exit(2);
+
+	}
+
+	private static void put(String host, int port, Options options) throws Exception {
+
+		// A message is always put as given, a file only when asked for
+		String file				= options.get("f", null);
+		List<String> arguments	= file == null ? options.arguments(2, 2) : options.arguments(1, 1);
+		String tube				= arguments.get(0);
+
 		Beanstemc beanstemc = new Beanstemc(host, port);
-		
+
 		beanstemc.use(tube);
-		beanstemc.put(message.getBytes());
+
+		if (file != null) {
+
+			// Streamed from the file, it is never loaded into memory
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel channel = in.getChannel();
+				beanstemc.put(channel, channel.size());
+			} finally {
+				in.close();
+			}
+
+		} else {
+			beanstemc.put(arguments.get(1).getBytes());
+		}
+
+		beanstemc.close();
+
+	}
+
+	private static void load(String host, int port, Options options) throws Exception {
+
+		List<String> arguments	= options.arguments(1, 2);
+		String tube				= arguments.get(0);
+		String input			= arguments.size() > 1 ? arguments.get(1) : "-";
+
+		BulkLoader.Format format = BulkLoader.Format.LINES;
+		String name = options.get("f", "lines");
+		if (name.equals("length")) {
+			format = BulkLoader.Format.LENGTH_PREFIXED;
+		} else if (!name.equals("lines")) {
+			usage("Unknown format " + name);
+		}
+
+		final BulkLoader loader = new BulkLoader(host, port, tube);
+		loader.setConnections(options.getInt("c", BulkLoader.DEFAULT_CONNECTIONS));
+		loader.setBatchSize(options.getInt("b", BulkLoader.DEFAULT_BATCH_SIZE));
+		loader.setJobOptions(
+			options.getLong("p", Beanstemc.DEFAULT_PRIORITY),
+			options.getInt("d", Beanstemc.DEFAULT_DELAY),
+			options.getInt("t", Beanstemc.DEFAULT_TTR)
+		);
+		long offset = options.getLong("o", 0);
+
+		Progress progress = new Progress() {
+			long count() {
+				return loader.getLoaded();
+			}
+			String line(long count, double rate, double seconds) {
+				return String.format("%d jobs, %.0f jobs/s, %.1f MB/s, %d failed, offset %d",
+					count, rate, loader.getBytes() / seconds / 1e6, loader.getFailed(), loader.getOffset());
+			}
+		};
+		progress.start();
+
+		try {
+			offset = input.equals("-") ? loader.load(System.in, format, offset) : loader.load(new File(input), format, offset);
+		} catch (IOException e) {
+			progress.interrupt();
+			System.err.println(String.format("Load failed: %s, resume with -o %d", e.getMessage(), loader.getOffset()));
+			System.exit(1);
+		}
+		progress.interrupt();
+
+		double seconds = progress.seconds();
+		System.err.println(String.format("Loaded %d jobs in %.1f s, %.0f jobs/s, %d failed, offset %d",
+			loader.getLoaded(),
+			seconds,
+			loader.getLoaded() / seconds,
+			loader.getFailed(),
+			offset
+		));
+
+	}
+
+	private static void watch(String host, int port, Options options) throws Exception {
+
+		List<String> arguments	= options.arguments(2, 2);
+		String[] tubes			= arguments.get(0).split(",");
+		String prefix			= arguments.get(1);
+
+		final BulkConsumer consumer = new BulkConsumer(host, port, tubes);
+		consumer.setConcurrency(options.getInt("c", BulkConsumer.DEFAULT_CONCURRENCY));
+		consumer.setBatchSize(options.getInt("b", BulkConsumer.DEFAULT_BATCH_SIZE));
+		consumer.setMaxJobs(options.getLong("n", Long.MAX_VALUE));
+		consumer.setIdleTimeout(options.getInt("i", -1));
+		consumer.setRollSize(options.getLong("r", 0));
+		consumer.setSync(options.has("s"));
+
+		// On Ctrl-C, finish the batches reserved so far before exiting
+		final CountDownLatch done = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				consumer.stop();
+				try {
+					done.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// Exiting anyway
+				}
+			}
+		});
+
+		Progress progress = new Progress() {
+			long count() {
+				return consumer.getConsumed();
+			}
+			String line(long count, double rate, double seconds) {
+				return String.format("%d jobs, %.0f jobs/s, %.1f MB/s",
+					count, rate, consumer.getBytes() / seconds / 1e6);
+			}
+		};
+		progress.start();
+
+		String error = null;
+		try {
+			consumer.consume(prefix);
+		} catch (IOException e) {
+			error = e.getMessage();
+		} catch (BeanstemcException e) {
+			error = e.getMessage();
+		} finally {
+			progress.interrupt();
+			done.countDown();		// Before exiting, the shutdown hook waits for it
+		}
+
+		if (error != null) {
+			System.err.println("Watch failed: " + error);
+			System.exit(1);
+		}
+
+		double seconds = progress.seconds();
+		System.err.println(String.format("Consumed %d jobs in %.1f s, %.0f jobs/s",
+			consumer.getConsumed(),
+			seconds,
+			consumer.getConsumed() / seconds
+		));
+		if (consumer.getDuplicates() > 0) {
+			System.err.println(String.format("%d jobs ran out of TTR before their delete, they may be written again",
+				consumer.getDuplicates()
+			));
+		}
+
+	}
+
+	private static void bench(String host, int port, Options options) throws Exception {
+
+		List<String> arguments = options.arguments(0, 1);
+
+		final LoadGenerator load = new LoadGenerator(host, port);
+		if (!arguments.isEmpty()) {
+			load.setTube(arguments.get(0));
+		}
+		load.setProducers(options.getInt("p", 1));
+		load.setConsumers(options.getInt("c", 1));
+		load.setPayloadSize(options.getInt("s", LoadGenerator.DEFAULT_PAYLOAD_SIZE));
+		load.setWarmup(options.getLong("W", 1), TimeUnit.SECONDS);
+
+		try {
+			load.setRate(Double.parseDouble(options.get("r", "0")));
+			if (options.has("P")) {
+				String[] range = options.get("P", null).split("-");
+				load.setPriorities(Long.parseLong(range[0]), Long.parseLong(range[range.length - 1]));
+			}
+			if (options.has("D")) {
+				for (String delay : options.get("D", null).split(",")) {
+					String[] share = delay.split(":");
+					load.addDelay(Double.parseDouble(share[0]), Integer.parseInt(share[1]));
+				}
+			}
+		} catch (RuntimeException e) {
+			usage("Bad option: " + e.getMessage());
+		}
+
+		Progress progress = new Progress() {
+			long reserved;
+			long count() {
+				return load.getPutCount();
+			}
+			String line(long count, double rate, double seconds) {
+				long now = load.getReservedCount();
+				String line = String.format("%.0f put/s, %d reserved/s, put p99 %.3f ms, put-to-reserve p99 %.3f ms",
+					rate,
+					now - reserved,
+					load.getPutLatency().getValueAtPercentile(99) / 1e6,
+					load.getEndToEndLatency().getValueAtPercentile(99) / 1e6);
+				reserved = now;
+				return line;
+			}
+		};
+		progress.start();
+
+		long seconds = options.getLong("T", 10);
+		try {
+			load.run(seconds, TimeUnit.SECONDS);
+		} catch (IOException e) {
+			System.err.println("Bench failed: " + e.getMessage());
+			System.exit(1);
+		} catch (BeanstemcException e) {
+			System.err.println("Bench failed: " + e.getMessage());
+			System.exit(1);
+		} finally {
+			progress.interrupt();
+		}
+
+		System.out.println(String.format("Put       %d jobs, %.0f jobs/s, %d errors",
+			load.getPutCount(), load.getPutCount() / (double)seconds, load.getPutErrorCount()));
+		System.out.println(String.format("Reserved  %d jobs, %.0f jobs/s",
+			load.getReservedCount(), load.getReservedCount() / (double)seconds));
+		System.out.println(String.format("%-16s%10s%10s%10s%10s%10s  (ms)", "Latency", "p50", "p90", "p99", "p99.9", "max"));
+		System.out.println(latencies("put", load.getPutLatency()));
+		System.out.println(latencies("put-to-reserve", load.getEndToEndLatency()));
+
+	}
+
+	private static String latencies(String name, LatencyHistogram histogram) {
+
+		return String.format("%-16s%10.3f%10.3f%10.3f%10.3f%10.3f", name,
+			histogram.getValueAtPercentile(50) / 1e6,
+			histogram.getValueAtPercentile(90) / 1e6,
+			histogram.getValueAtPercentile(99) / 1e6,
+			histogram.getValueAtPercentile(99.9) / 1e6,
+			histogram.getMax() / 1e6);
 
 	}
 
@@ -21,14 +21,21 @@
  */
 package dk.safl.beanstemc;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.io.StringReader;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
  
@@ -55,19 +62,35 @@ public class Beanstemc {
 	public static int		DEFAULT_TTR			= 120;
 	public static int		DEFAULT_DELAY		= 0;
 	public static long		DEFAULT_PRIORITY	= 1024;
+
+	static final int		MAX_TUBE_NAME		= 200;
 	
 	public static long	MAX_PRIORITY = 4294967295L;
 	public final String	CRLF = "\r\n";
 	
 	private Socket	c;
-	private BufferedInputStream in;
-	private OutputStream out;
+	private ResponseReader in;
+	private CommandWriter out;
+	
+	// Session state as last confirmed by the server
+	private String			used	= "default";
+	private List<String>	watched	= new ArrayList<String>(Arrays.asList("default"));
+	
+	// When commands were written, in order, until their responses are read
+	private Metrics	metrics;
+	private long[]	issued = new long[16];
+	private int		issuedHead;
+	private int		issuedCount;
+	
+	private BufferPool	bufferPool;
+	
+	private WritableByteChannel	channel;
 
 	public Beanstemc(Socket connection) throws IOException {
 		
 		c	= connection;
-		in	= new BufferedInputStream(c.getInputStream());
-		out	= c.getOutputStream();		
+		in	= new ResponseReader(c.getInputStream());
+		out	= new CommandWriter(c.getOutputStream());
 		
 	}
 	
@@ -76,114 +99,115 @@ public class Beanstemc {
 	}
 	
 	public Beanstemc(String host) throws UnknownHostException, IOException {
-		this(new Socket(host, DEFAULT_DELAY));		
+		this(host, DEFAULT_PORT);
 	}
 	
+	/**
+	 * The connection is opened through a SocketChannel, so file bodies can be
+	 * sent with {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+	 */
 	public Beanstemc(String host, int port) throws UnknownHostException, IOException {
-		this(new Socket(host, port));		
+		this(open(host, port));		
+	}
+	
+	private static Socket open(String host, int port) throws IOException {
+		
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		if (address.isUnresolved()) {
+			throw new UnknownHostException(host);
+		}
+		
+		return SocketChannel.open(address).socket();
+		
 	}
 
 		
 	/**
-	 * A helper function for reading a response line from the current connection.
+	 * A helper function for retrieving a job.
 	 * 
-	 * @return Examples: {"WATCHING", "10"}, {"NOT_FOUND"}. 
+	 * @return The next job in-bound on the current connection.
 	 * @throws IOException
+	 * @throws BeanstemcException 
 	 */
-	private String[] readResponseLine() throws IOException {
+	Job readJob() throws IOException, BeanstemcException {
+		return readJob(Command.RESERVE);
+	}
+	
+	private Job readJob(Command command) throws IOException, BeanstemcException {
 		
-		StringBuilder buf = new StringBuilder();
+		readLine(command);
+		int bytes = checkJob(in);
 		
-		char cur = ' ';
-		char prev;
+		if (bufferPool == null) {
+			return new Job(in.arg(0), in.readData(bytes));
+		}
 		
-		do {
-			
-			prev	= cur;
-			cur		= (char)in.read();
-			buf.append(cur);
-			
-		} while(prev != '\r' && cur != '\n');
+		long jobId = in.arg(0);
+		ByteBuffer buffer = bufferPool.acquire(bytes);
+		in.readData(buffer.array(), buffer.arrayOffset(), bytes);
 		
-		return buf.substring(0, buf.length()-2).split(" ");
+		return new PooledJob(jobId, buffer, bufferPool);
 		
 	}
 	
 	/**
-	 * Read a beanstalkd blob from the current connection.
+	 * Check that the current response line announces a job.
 	 * 
-	 * @param bytes Size of the blob.
-	 * @return The blob.
-	 * @throws IOException
+	 * @return Size of the job body following the line.
 	 * @throws BeanstemcException
 	 */
-	private byte[] readData(int bytes) throws IOException, BeanstemcException {
-		
-		byte[] data = new byte[bytes];
-		int bytes_read	= 0;
-		int cur_bytes	= 0;
+	static int checkJob(ResponseReader in) throws BeanstemcException {
 		
-		// Read the blob
-		while(bytes_read < bytes) {
-			
-			cur_bytes = in.read(data);				
-			if (cur_bytes > 0) {
-				bytes_read += cur_bytes;
-			} else {
-				throw new IOException("Premature end-of-line when reading job data.");
-			}
+		Response resp = in.response();
+		if ((in.argCount() == 2) && (resp == Response.RESERVED || resp == Response.FOUND)) {
+			return (int)in.arg(1);
+		} else {
+			throw new BeanstemcException(in.token());
 		}
 		
-		// Read the CRLF
-		in.read();
-		in.read();
+	}
+	
+	private byte[] readYaml(Command command) throws IOException, BeanstemcException {
+		
+		readLine(command);
 		
-		return data;
+		return in.readData(checkYaml(in));
 		
 	}
 	
 	/**
-	 * A helper function for retrieving a job.
+	 * Check that the current response line announces a YAML body.
 	 * 
-	 * @return The next job in-bound on the current connection.
-	 * @throws IOException
-	 * @throws BeanstemcException 
+	 * @return Size of the YAML body following the line.
+	 * @throws BeanstemcException
 	 */
-	private Job readJob() throws IOException, BeanstemcException {
-		
-		String [] resp = readResponseLine();		
+	static int checkYaml(ResponseReader in) throws BeanstemcException {
 		
-		if ((resp.length == 3) && (resp[0].equals("RESERVED") || resp[0].equals("FOUND"))) {
-			
-			long jobId	= Long.valueOf(resp[1]);
-			int bytes	= Long.valueOf(resp[2]).intValue();
-			
-			return new Job(jobId, readData(bytes));
-			
+		Response resp = in.response();
+		if (in.argCount() == 1 && resp == Response.OK) {
+			return (int)in.arg(0);
 		} else {
-			throw new BeanstemcException(String.format("%s", resp[0]));
+			throw new BeanstemcException(in.token());
 		}
 		
-		
 	}
 	
-	private byte[] readYaml() throws IOException, BeanstemcException {
+	/**
+	 * Parse a YAML dictionary in place in the read buffer.
+	 */
+	private <T extends Stats> T readStats(Command command, T stats) throws IOException, BeanstemcException {
 		
-		String [] resp = readResponseLine();
-		if (resp.length == 2 && resp[0].equals("OK")) {
-			
-			int bytes	= Long.valueOf(resp[1]).intValue();
-			
-			return readData(bytes);			
-			
-		} else {
-			throw new BeanstemcException(resp[0]);
-		}
+		readLine(command);
+		int bytes	= checkYaml(in);
+		int offset	= in.fillData(bytes);
+		stats.parse(in.buffer(), offset, bytes);
+		in.skipData(bytes);
 		
+		return stats;
 		
 	}
 	
-	private HashMap<String, String> parseYamlMap(String yaml) throws IOException {
+	static HashMap<String, String> parseYamlMap(String yaml) throws IOException {
 		
 		HashMap<String, String> map = new HashMap<String, String>();
 		
@@ -202,7 +226,7 @@ public class Beanstemc {
 		
 	}
 	
-	private List<String> parseYamlList(String yaml) throws IOException {
+	static List<String> parseYamlList(String yaml) throws IOException {
 		
 		List<String> list = new ArrayList<String>();
 		
@@ -244,22 +268,110 @@ public class Beanstemc {
 	 */	
 	public long put(byte[] data, long priority, int delay, int ttr) throws IOException, BeanstemcException {
 		
-		long bytes = data.length;
+		writePut(data, priority, delay, ttr);
+		out.flush();
+		
+		return readPut();
+		
+	}
+	
+	/**
+	 * Insert a job into the given tube, switching tubes only when it is not the one in use.
+	 * 
+	 * A switch is sent together with the put in a single write, so putting
+	 * to many tubes costs one round trip per job either way.
+	 * 
+	 * @param tube Name of the tube, checked before anything is sent: had the
+	 * 				server refused the "use", the put would go to the previous tube.
+	 * @return Id of the job.
+	 * @throws IllegalArgumentException The tube name is invalid.
+	 * @see #put(byte[], long, int, int)
+	 */
+	public long put(String tube, byte[] data, long priority, int delay, int ttr) throws IOException, BeanstemcException {
+		
+		if (tube.equals(used)) {
+			return put(data, priority, delay, ttr);
+		}
 		
-		out.write(String.format("put %d %d %d %d%s", priority, delay, ttr, bytes, CRLF).getBytes());
-		out.write(data);
-		out.write(CRLF.getBytes());
+		checkTube(tube);
+		writeUse(tube);
+		writePut(data, priority, delay, ttr);
 		out.flush();
 		
+		try {
+			readUse();
+		} catch (BeanstemcException e) {
+			// The job went to the previous tube, if anywhere
+			try {
+				delete(readPut());
+			} catch (BeanstemcException ignored) {
+				// Not inserted
+			}
+			throw e;
+		}
+		
+		return readPut();
+		
+	}
+	
+	/**
+	 * @see #put(String, byte[], long, int, int)
+	 */
+	public long put(String tube, byte[] data) throws IOException, BeanstemcException {
+		return put(tube, data, DEFAULT_PRIORITY, DEFAULT_DELAY, DEFAULT_TTR);
+	}
+	
+	/**
+	 * Reject tube names which the server would refuse, a refused "use" would
+	 * silently send the following puts to the previous tube.
+	 */
+	static void checkTube(String tube) {
+
+		int length = tube.length();
+		if (length == 0 || length > MAX_TUBE_NAME || tube.charAt(0) == '-') {
+			throw new IllegalArgumentException(String.format("Invalid tube name [TUBE=%s]", tube));
+		}
+		for (int i = 0; i < length; i++) {
+			char ch = tube.charAt(i);
+			if (!((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || "-+/;.$_()".indexOf(ch) >= 0)) {
+				throw new IllegalArgumentException(String.format("Invalid tube name [TUBE=%s]", tube));
+			}
+		}
+
+	}
+	
+	void writePut(byte[] data, long priority, int delay, int ttr) throws IOException {
+		
+		long mark = out.written();
+		out.put(priority, delay, ttr, data, 0, data.length);
+		sent(Command.PUT, mark);
+		
+	}
+	
+	void writePut(ByteBuffer data, long priority, int delay, int ttr) throws IOException {
+		
+		long mark = out.written();
+		out.put(priority, delay, ttr, data);
+		sent(Command.PUT, mark);
+		
+	}
+	
+	long readPut() throws IOException, BeanstemcException {
+		readLine(Command.PUT);
+		return checkPut(in);
+	}
+	
+	static long checkPut(ResponseReader in) throws BeanstemcException {
+		
 		long jobId;
-		String [] resp = readResponseLine();
+		Response resp = in.response();
 		
-		if (resp[0].equals("INSERTED") && (resp.length == 2)) {
-			jobId = Long.valueOf(resp[1]);
-		} else if (resp[0].equals("BURIED") && (resp.length == 2)) {
-			throw new BeanstemcException(String.format("%s %d", resp[0], Long.valueOf(resp[1])));
+		if (resp == Response.INSERTED && (in.argCount() == 1)) {
+			jobId = in.arg(0);
+		} else if (resp == Response.BURIED && (in.argCount() == 1)) {
+			throw new BeanstemcException(String.format("%s %d", in.token(), in.arg(0)));
 		} else {
-			throw new BeanstemcException(resp[0]);
+			throw new BeanstemcException(in.token());
 		}
 		
 		return jobId;
@@ -287,10 +399,132 @@ public class Beanstemc {
 		return put(data, priority, delay, DEFAULT_TTR);		
 	}
 	
+	/**
+	 * Put the remaining bytes of a buffer, heap or direct, without copying them to an array.
+	 * 
+	 * The position of the buffer is left unchanged.
+	 * 
+	 * @see #put(byte[], long, int, int)
+	 */
+	public long put(ByteBuffer data, long priority, int delay, int ttr) throws IOException, BeanstemcException {
+		
+		writePut(data, priority, delay, ttr);
+		out.flush();
+		
+		return readPut();
+		
+	}
+	
+	/**
+	 * @see #put(ByteBuffer, long, int, int)
+	 */
+	public long put(ByteBuffer data) throws IOException, BeanstemcException {
+		return put(data, DEFAULT_PRIORITY, DEFAULT_DELAY, DEFAULT_TTR);
+	}
+	
+	/**
+	 * Put the next length bytes of a stream, without holding them in memory.
+	 * 
+	 * The body is copied to the connection through its output buffer as it is read.
+	 * 
+	 * @param length Size of the job body, which the stream must be able to supply.
+	 * @throws IOException Also when the stream ends before length bytes,
+	 * 			the connection is then in the middle of a command and must be closed.
+	 * @see #put(byte[], long, int, int)
+	 */
+	public long put(InputStream data, long length, long priority, int delay, int ttr) throws IOException, BeanstemcException {
+		
+		long mark = out.written();
+		out.putHeader(priority, delay, ttr, length).transfer(data, length).crlf();
+		sent(Command.PUT, mark);
+		out.flush();
+		
+		return readPut();
+		
+	}
+	
+	/**
+	 * @see #put(InputStream, long, long, int, int)
+	 */
+	public long put(InputStream data, long length) throws IOException, BeanstemcException {
+		return put(data, length, DEFAULT_PRIORITY, DEFAULT_DELAY, DEFAULT_TTR);
+	}
+	
+	/**
+	 * Put the next length bytes of a channel, without holding them in memory.
+	 * 
+	 * A FileChannel is sent from its current position with
+	 * {@link #put(FileChannel, long, long, long, int, int)}, and its position
+	 * is advanced past the body afterwards.
+	 * 
+	 * @see #put(InputStream, long, long, int, int)
+	 */
+	public long put(ReadableByteChannel data, long length, long priority, int delay, int ttr) throws IOException, BeanstemcException {
+		
+		if (data instanceof FileChannel) {
+			
+			FileChannel file	= (FileChannel)data;
+			long position		= file.position();
+			file.position(position + length);
+			
+			return put(file, position, length, priority, delay, ttr);
+			
+		}
+		
+		long mark = out.written();
+		out.putHeader(priority, delay, ttr, length).transfer(data, length).crlf();
+		sent(Command.PUT, mark);
+		out.flush();
+		
+		return readPut();
+		
+	}
+	
+	/**
+	 * @see #put(ReadableByteChannel, long, long, int, int)
+	 */
+	public long put(ReadableByteChannel data, long length) throws IOException, BeanstemcException {
+		return put(data, length, DEFAULT_PRIORITY, DEFAULT_DELAY, DEFAULT_TTR);
+	}
+	
+	/**
+	 * Put a region of a file, sent to the socket with
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)} so it
+	 * is not copied through the heap. The position of the channel is not used nor changed.
+	 * 
+	 * @param position Offset of the job body in the file.
+	 * @param length Size of the job body.
+	 * @see #put(InputStream, long, long, int, int)
+	 */
+	public long put(FileChannel file, long position, long length, long priority, int delay, int ttr) throws IOException, BeanstemcException {
+		
+		long mark = out.written();
+		out.putHeader(priority, delay, ttr, length).transfer(file, position, length, channel()).crlf();
+		sent(Command.PUT, mark);
+		out.flush();
+		
+		return readPut();
+		
+	}
+	
+	/**
+	 * @return The channel of the socket, or one wrapping its stream when it was not opened through a channel.
+	 */
+	private WritableByteChannel channel() throws IOException {
+		
+		if (channel == null) {
+			channel = c.getChannel() != null ? c.getChannel() : Channels.newChannel(c.getOutputStream());
+		}
+		return channel;
+		
+	}
+	
 	/**
 	 * The "use" command is for producers. Subsequent "put" commands will put jobs into the tube specified by this command.
 	 * If no use command has been issued, jobs will be put into the tube named "default".
 	 * 
+	 * The tube in use is kept by the client, using it again sends nothing.
+	 * 
 	 * @param tube Name of tube. If the tube does not exist, it will be created. 
 	 * 				<em>The name must no greater than 200 bytes</em>.
 	 * 
@@ -299,12 +533,36 @@ public class Beanstemc {
 	 */
 	public void use(String tube) throws IOException, BeanstemcException {
 		
-		out.write(String.format("use %s%s", tube, CRLF).getBytes());
+		if (tube.equals(used)) {
+			return;
+		}
+		
+		writeUse(tube);
 		out.flush();
 		
-		String [] resp = readResponseLine();		
-		if (!resp[0].equals("USING")) {
-			throw new BeanstemcException(String.format("%s", resp[0]));
+		readUse();
+		
+	}
+	
+	void writeUse(String tube) throws IOException {
+		
+		long mark = out.written();
+		out.use(tube);
+		sent(Command.USE, mark);
+		
+	}
+	
+	void readUse() throws IOException, BeanstemcException {
+		readLine(Command.USE);
+		checkUse(in);
+		used = in.text();
+	}
+	
+	static void checkUse(ResponseReader in) throws BeanstemcException {
+		
+		Response resp = in.response();
+		if (resp != Response.USING) {
+			throw new BeanstemcException(in.token());
 		}
 		
 	}
@@ -335,17 +593,50 @@ public class Beanstemc {
 	 */
 	public Job reserve(int timeout) throws IOException, BeanstemcException {
 		
+		long mark = out.written();
 		if (timeout > 0) {
-			out.write(String.format("reserve-with-timeout %d%s", timeout, CRLF).getBytes());
+			out.reserve(timeout);
 		} else {
-			out.write(String.format("reserve%s", CRLF).getBytes());
+			out.reserve();
 		}
+		sent(Command.RESERVE, mark);
 		out.flush();
 		
 		return readJob();
 		
 	}
 	
+	/**
+	 * Reserve a job and write its body to a channel instead of memory.
+	 * 
+	 * The body is passed on piece by piece through the read buffer, so jobs
+	 * of any size can be reserved, e.g. straight into a file.
+	 * 
+	 * @param body Receives the job body; when writing to it fails the
+	 * 			connection is left in the middle of a response and must be closed.
+	 * @return Id of the reserved job.
+	 * @see #reserve(int)
+	 */
+	public long reserve(int timeout, WritableByteChannel body) throws IOException, BeanstemcException {
+		
+		long mark = out.written();
+		if (timeout > 0) {
+			out.reserve(timeout);
+		} else {
+			out.reserve();
+		}
+		sent(Command.RESERVE, mark);
+		out.flush();
+		
+		readLine(Command.RESERVE);
+		int bytes = checkJob(in);
+		long jobId = in.arg(0);
+		in.readData(body, bytes);
+		
+		return jobId;
+		
+	}
+	
 	/**
 	 * Get a job with non-exclusive access.
 	 * 
@@ -356,10 +647,12 @@ public class Beanstemc {
 	 */
 	public Job peek(long jobId) throws IOException, BeanstemcException {
 		
-		out.write(String.format("peek %d%s", jobId, CRLF).getBytes());
+		long mark = out.written();
+		out.peek(jobId);
+		sent(Command.PEEK, mark);
 		out.flush();
 		
-		return readJob();
+		return readJob(Command.PEEK);
 		
 	}
 	
@@ -372,10 +665,12 @@ public class Beanstemc {
 	 */
 	public Job peekReady() throws IOException, BeanstemcException {
 		
-		out.write(String.format("peek-ready%s", CRLF).getBytes());
+		long mark = out.written();
+		out.peekReady();
+		sent(Command.PEEK, mark);
 		out.flush();
 		
-		return readJob();
+		return readJob(Command.PEEK);
 		
 	}
 	
@@ -388,10 +683,12 @@ public class Beanstemc {
 	 */
 	public Job peekDelayed() throws IOException, BeanstemcException {
 		
-		out.write(String.format("peek-delayed%s", CRLF).getBytes());
+		long mark = out.written();
+		out.peekDelayed();
+		sent(Command.PEEK, mark);
 		out.flush();
 		
-		return readJob();
+		return readJob(Command.PEEK);
 		
 	}
 	
@@ -404,10 +701,12 @@ public class Beanstemc {
 	 */
 	public Job peekBuried() throws IOException, BeanstemcException {
 		
-		out.write(String.format("peek-buried%s", CRLF).getBytes());
+		long mark = out.written();
+		out.peekBuried();
+		sent(Command.PEEK, mark);
 		out.flush();
 		
-		return readJob();
+		return readJob(Command.PEEK);
 		
 	}
 	
@@ -418,6 +717,17 @@ public class Beanstemc {
 		return reserve(0);
 	}
 	
+	/**
+	 * Write a "reserve-with-timeout", also for a timeout of 0, which polls.
+	 */
+	void writeReserve(int timeout) throws IOException {
+		
+		long mark = out.written();
+		out.reserve(timeout);
+		sent(Command.RESERVE, mark);
+		
+	}
+	
 	/**
 	 * Removes a job from the server entirely.
 	 * It is normally used by the client when the job has successfully run to completion.
@@ -429,12 +739,31 @@ public class Beanstemc {
 	 */
 	public void delete(long jobId) throws IOException, BeanstemcException {
 		
-		out.write(String.format("delete %d%s", jobId, CRLF).getBytes());
+		writeDelete(jobId);
 		out.flush();
 		
-		String [] resp = readResponseLine();
-		if (!resp[0].equals("DELETED")) {
-			throw new BeanstemcException(String.format("%s, JOBID=[%d]", resp[0], jobId));
+		readDelete(jobId);
+		
+	}
+	
+	void writeDelete(long jobId) throws IOException {
+		
+		long mark = out.written();
+		out.delete(jobId);
+		sent(Command.DELETE, mark);
+		
+	}
+	
+	void readDelete(long jobId) throws IOException, BeanstemcException {
+		readLine(Command.DELETE);
+		checkDelete(in, jobId);
+	}
+	
+	static void checkDelete(ResponseReader in, long jobId) throws BeanstemcException {
+		
+		Response resp = in.response();
+		if (resp != Response.DELETED) {
+			throw new BeanstemcException(String.format("%s, JOBID=[%d]", in.token(), jobId));
 		}
 		
 	}
@@ -446,7 +775,10 @@ public class Beanstemc {
 	 * @see #delete(long) 
 	 */
 	public void delete(Job job) throws IOException, BeanstemcException {
+		
 		delete(job.getId());
+		job.recycle();
+		
 	}
 	
 	/**
@@ -461,15 +793,31 @@ public class Beanstemc {
 	 */
 	public void release(long jobId, long priority, int delay) throws IOException, BeanstemcException {
 		
-		// Request
-		out.write(String.format("release %d %d %d%s", jobId, priority, delay, CRLF).getBytes());
+		writeRelease(jobId, priority, delay);
 		out.flush();
 		
-		// Response	
-		String [] resp = readResponseLine();
-
-		if (!resp[0].equals("RELEASED")) {
-			throw new BeanstemcException(String.format("%s, [JOBID=%d, PRIORITY=%d, DELAY=%d]", resp[0], jobId, priority, delay));
+		readRelease(jobId, priority, delay);
+		
+	}
+	
+	void writeRelease(long jobId, long priority, int delay) throws IOException {
+		
+		long mark = out.written();
+		out.release(jobId, priority, delay);
+		sent(Command.RELEASE, mark);
+		
+	}
+	
+	void readRelease(long jobId, long priority, int delay) throws IOException, BeanstemcException {
+		readLine(Command.RELEASE);
+		checkRelease(in, jobId, priority, delay);
+	}
+	
+	static void checkRelease(ResponseReader in, long jobId, long priority, int delay) throws BeanstemcException {
+		
+		Response resp = in.response();
+		if (resp != Response.RELEASED) {
+			throw new BeanstemcException(String.format("%s, [JOBID=%d, PRIORITY=%d, DELAY=%d]", in.token(), jobId, priority, delay));
 		}
 		
 	}
@@ -492,21 +840,24 @@ public class Beanstemc {
 	 * @see #release(long, long, int)
 	 */	
 	public void release(Job job, long priority, int delay) throws IOException, BeanstemcException {
+		
 		release(job.getId(), priority, delay);
+		job.recycle();
+		
 	}
 	
 	/** 
 	 * @see #release(long, long, int)
 	 */	
 	public void release(Job job, long priority) throws IOException, BeanstemcException {
-		release(job.getId(), priority, DEFAULT_DELAY);
+		release(job, priority, DEFAULT_DELAY);
 	}
 	
 	/** 
 	 * @see #release(long, long, int)
 	 */	
 	public void release(Job job) throws IOException, BeanstemcException {
-		release(job.getId(), DEFAULT_PRIORITY, DEFAULT_DELAY);
+		release(job, DEFAULT_PRIORITY, DEFAULT_DELAY);
 	}
 	
 	/** 
@@ -522,12 +873,31 @@ public class Beanstemc {
 	 */
 	public void bury(long jobId, long priority) throws IOException, BeanstemcException {
 		
-		out.write(String.format("bury %d %d%s", jobId, priority, CRLF).getBytes());
+		writeBury(jobId, priority);
 		out.flush();
 		
-		String [] resp = readResponseLine();
-		if (!resp[0].equals("BURIED")) {
-			throw new BeanstemcException(String.format("%s, JOBID=[%d, PRIORITY=%d]", resp[0], jobId, priority));
+		readBury(jobId, priority);
+		
+	}
+	
+	void writeBury(long jobId, long priority) throws IOException {
+		
+		long mark = out.written();
+		out.bury(jobId, priority);
+		sent(Command.BURY, mark);
+		
+	}
+	
+	void readBury(long jobId, long priority) throws IOException, BeanstemcException {
+		readLine(Command.BURY);
+		checkBury(in, jobId, priority);
+	}
+	
+	static void checkBury(ResponseReader in, long jobId, long priority) throws BeanstemcException {
+		
+		Response resp = in.response();
+		if (resp != Response.BURIED) {
+			throw new BeanstemcException(String.format("%s, JOBID=[%d, PRIORITY=%d]", in.token(), jobId, priority));
 		}
 		
 	}
@@ -539,6 +909,23 @@ public class Beanstemc {
 		bury(jobId, DEFAULT_PRIORITY);
 	}
 	
+	/**
+	 * @see #bury(long, long)
+	 */
+	public void bury(Job job, long priority) throws IOException, BeanstemcException {
+		
+		bury(job.getId(), priority);
+		job.recycle();
+		
+	}
+	
+	/**
+	 * @see #bury(long, long)
+	 */
+	public void bury(Job job) throws IOException, BeanstemcException {
+		bury(job, DEFAULT_PRIORITY);
+	}
+	
 	/** 
 	 * Add the named tube to the watch list for the current connection.
 	 * 
@@ -546,6 +933,8 @@ public class Beanstemc {
 	 * watch list. For each new connection, the watch list initially 
 	 * consists of one tube, named "default".
 	 * 
+	 * The watch list is kept by the client, watching a tube already in it sends nothing.
+	 * 
 	 * @param tube Name of the tube to watch, the name can be no longer than 200 bytes. The tube will be created if it does not already exist.
 	 * @return The number of tubes currently in the watch list.
 	 * @throws IOException
@@ -553,14 +942,43 @@ public class Beanstemc {
 	 */
 	public int watch(String tube) throws IOException, BeanstemcException {
 		
-		out.write(String.format("watch %s%s", tube, CRLF).getBytes());
+		if (watched.contains(tube)) {
+			return watched.size();
+		}
+		
+		writeWatch(tube);
 		out.flush();
-			
-		String [] resp = readResponseLine();
-		if (resp[0].equals("WATCHING")) {
-			return Integer.valueOf(resp[1]);
+		
+		return readWatch(tube);
+		
+	}
+	
+	void writeWatch(String tube) throws IOException {
+		
+		long mark = out.written();
+		out.watch(tube);
+		sent(Command.WATCH, mark);
+		
+	}
+	
+	int readWatch(String tube) throws IOException, BeanstemcException {
+		
+		readLine(Command.WATCH);
+		int count = checkWatch(in);
+		if (!watched.contains(tube)) {
+			watched.add(tube);
+		}
+		return count;
+		
+	}
+	
+	static int checkWatch(ResponseReader in) throws BeanstemcException {
+		
+		Response resp = in.response();
+		if (resp == Response.WATCHING) {
+			return (int)in.arg(0);
 		} else {
-			throw new BeanstemcException(String.format("%s", resp[0]));
+			throw new BeanstemcException(in.token());
 		}
 		
 	}
@@ -568,6 +986,8 @@ public class Beanstemc {
 	/**
 	 * Remove the named tube from the watch list for the current connection.
 	 * 
+	 * Ignoring a tube which is not in the watch list sends nothing.
+	 * 
 	 * @param tube
 	 * @return The number of tubes currently in the watch list.
 	 * @throws IOException
@@ -575,14 +995,41 @@ public class Beanstemc {
 	 */
 	public int ignore(String tube) throws IOException, BeanstemcException {
 		
-		out.write(String.format("ignore %s%s", tube, CRLF).getBytes());
+		if (!watched.contains(tube)) {
+			return watched.size();
+		}
+		
+		writeIgnore(tube);
 		out.flush();
-			
-		String [] resp = readResponseLine();
-		if (resp[0].equals("WATCHING")) {
-			return Integer.valueOf(resp[1]);
+		
+		return readIgnore(tube);
+		
+	}
+	
+	void writeIgnore(String tube) throws IOException {
+		
+		long mark = out.written();
+		out.ignore(tube);
+		sent(Command.IGNORE, mark);
+		
+	}
+	
+	int readIgnore(String tube) throws IOException, BeanstemcException {
+		
+		readLine(Command.IGNORE);
+		int count = checkIgnore(in, tube);
+		watched.remove(tube);
+		return count;
+		
+	}
+	
+	static int checkIgnore(ResponseReader in, String tube) throws BeanstemcException {
+		
+		Response resp = in.response();
+		if (resp == Response.WATCHING) {
+			return (int)in.arg(0);
 		} else {
-			throw new BeanstemcException(String.format("%s [TUBE=%s]", resp[0], tube));
+			throw new BeanstemcException(String.format("%s [TUBE=%s]", in.token(), tube));
 		}
 		
 	}
@@ -603,14 +1050,33 @@ public class Beanstemc {
 	 */
 	public int kick(int bound) throws IOException, BeanstemcException {
 		
-		out.write(String.format("kick %d%s", bound, CRLF).getBytes());
+		writeKick(bound);
 		out.flush();
-			
-		String [] resp = readResponseLine();
-		if (resp[0].equals("KICKED")) {
-			return Integer.valueOf(resp[1]);
+		
+		return readKick(bound);
+		
+	}
+	
+	void writeKick(int bound) throws IOException {
+		
+		long mark = out.written();
+		out.kick(bound);
+		sent(Command.KICK, mark);
+		
+	}
+	
+	int readKick(int bound) throws IOException, BeanstemcException {
+		readLine(Command.KICK);
+		return checkKick(in, bound);
+	}
+	
+	static int checkKick(ResponseReader in, int bound) throws BeanstemcException {
+		
+		Response resp = in.response();
+		if (resp == Response.KICKED) {
+			return (int)in.arg(0);
 		} else {
-			throw new BeanstemcException(String.format("%s [BOUND=%d]", resp[0], bound));
+			throw new BeanstemcException(String.format("%s [BOUND=%d]", in.token(), bound));
 		}
 		
 	}
@@ -628,12 +1094,31 @@ public class Beanstemc {
 	 */
 	public void touch(long jobId) throws IOException, BeanstemcException {
 		
-		out.write(String.format("touch %d%s", jobId, CRLF).getBytes());
+		writeTouch(jobId);
 		out.flush();
-			
-		String [] resp = readResponseLine();
-		if (!resp[0].equals("TOUCHED")) {
-			throw new BeanstemcException(String.format("%s [JOBID=%d]", resp[0], jobId));
+		
+		readTouch(jobId);
+		
+	}
+	
+	void writeTouch(long jobId) throws IOException {
+		
+		long mark = out.written();
+		out.touch(jobId);
+		sent(Command.TOUCH, mark);
+		
+	}
+	
+	void readTouch(long jobId) throws IOException, BeanstemcException {
+		readLine(Command.TOUCH);
+		checkTouch(in, jobId);
+	}
+	
+	static void checkTouch(ResponseReader in, long jobId) throws BeanstemcException {
+		
+		Response resp = in.response();
+		if (resp != Response.TOUCHED) {
+			throw new BeanstemcException(String.format("%s [JOBID=%d]", in.token(), jobId));
 		}
 		
 	}	
@@ -648,16 +1133,155 @@ public class Beanstemc {
 	 */
 	public void pauseTube(String tube, int delay) throws IOException, BeanstemcException  {
 		
-		out.write(String.format("pause-tube %s%d%s", tube, delay, CRLF).getBytes());
+		long mark = out.written();
+		out.pauseTube(tube, delay);
+		sent(Command.PAUSE_TUBE, mark);
 		out.flush();
-			
-		String [] resp = readResponseLine();
-		if (!resp[0].equals("PAUSED")) {
-			throw new BeanstemcException(String.format("%s [TUBE=%s,DELAY=%d]", resp[0], tube, delay));
+		
+		readLine(Command.PAUSE_TUBE);
+		checkPauseTube(in, tube, delay);
+		
+	}
+	
+	static void checkPauseTube(ResponseReader in, String tube, int delay) throws BeanstemcException {
+		
+		Response resp = in.response();
+		if (resp != Response.PAUSED) {
+			throw new BeanstemcException(String.format("%s [TUBE=%s,DELAY=%d]", in.token(), tube, delay));
 		}
 		
 	}
 	
+	/**
+	 * Start a batch of commands which are sent to the server in a single write.
+	 * 
+	 * Commands queued on the returned pipeline are buffered instead of being
+	 * flushed one by one, and all responses are read back, in order, when
+	 * {@link Pipeline#execute()} is invoked. This removes the network round trip
+	 * between each command, which is what limits throughput for producers 
+	 * inserting many small jobs.
+	 * 
+	 * The connection must not be used for anything else while commands are queued.
+	 * 
+	 * @return A new and empty pipeline on the current connection.
+	 */
+	public Pipeline pipeline() {
+		return new Pipeline(this);
+	}
+	
+	/**
+	 * @return The tube in use, as confirmed by the server, without a round trip.
+	 */
+	String usedTube() {
+		return used;
+	}
+	
+	/**
+	 * @return The watch list, as confirmed by the server, without a round trip.
+	 */
+	List<String> watchedTubes() {
+		return watched;
+	}
+	
+	/**
+	 * @return true when the socket has been closed locally.
+	 */
+	boolean isClosed() {
+		return c.isClosed();
+	}
+	
+	/**
+	 * Record per-command counts, errors, bytes and latencies into the given metrics.
+	 * 
+	 * Set it before any command is sent, the same Metrics can be shared by many connections.
+	 * 
+	 * @param metrics null to stop recording.
+	 */
+	public void setMetrics(Metrics metrics) {
+		
+		this.metrics	= metrics;
+		issuedCount		= 0;
+		
+	}
+	
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Read the payloads of reserved and peeked jobs into buffers of the given pool.
+	 * 
+	 * The jobs returned are {@link PooledJob}s, their buffers are returned
+	 * to the pool when the jobs are deleted, released or buried.
+	 * 
+	 * @param bufferPool null to allocate a byte[] per job.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	/**
+	 * Count a command which has just been encoded, starting at the given position of the writer,
+	 * and remember when, for the latency of its response.
+	 */
+	private void sent(Command command, long mark) {
+		
+		if (metrics == null) {
+			return;
+		}
+		metrics.sent(command, (int)(out.written() - mark));
+		
+		if (issuedCount == issued.length) {
+			long[] grown = new long[issued.length * 2];
+			for (int i = 0; i < issuedCount; i++) {
+				grown[i] = issued[(issuedHead + i) % issued.length];
+			}
+			issued		= grown;
+			issuedHead	= 0;
+		}
+		issued[(issuedHead + issuedCount++) % issued.length] = System.nanoTime();
+		
+	}
+	
+	/**
+	 * Read a response line, counting it for the command it answers.
+	 */
+	private void readLine(Command command) throws IOException {
+		
+		in.readLine();
+		if (metrics == null || issuedCount == 0) {
+			return;
+		}
+		
+		long began	= issued[issuedHead];
+		issuedHead	= (issuedHead + 1) % issued.length;
+		issuedCount--;
+		
+		Response resp	= in.response();
+		int bytes		= in.lineLength() + 2;
+		if ((resp == Response.RESERVED || resp == Response.FOUND) && in.argCount() == 2) {
+			bytes += (int)in.arg(1) + 2;
+		} else if (resp == Response.OK && in.argCount() == 1) {
+			bytes += (int)in.arg(0) + 2;
+		}
+		
+		metrics.received(command, resp, System.nanoTime() - began, bytes);
+		
+	}
+	
+	/**
+	 * Send whatever has been written to the connection but not yet flushed.
+	 * 
+	 * @throws IOException
+	 */
+	void flush() throws IOException {
+		out.flush();
+	}
+	
 	/**
 	 * Close the connection.
 	 * 
@@ -667,9 +1291,12 @@ public class Beanstemc {
 	 */
 	public void quit() throws IOException {
 		
-		out.write(String.format("quit%s", CRLF).getBytes());
-		out.flush();
-		c.close();
+		try {
+			out.quit();
+			out.flush();
+		} finally {
+			c.close();
+		}
 		
 	}
 	
@@ -689,14 +1316,45 @@ public class Beanstemc {
 	 * @throws BeanstemcException
 	 */
 	public HashMap<String,String> stats() throws IOException, BeanstemcException {
+		return serverStats().toMap();
+	}
+	
+	/**
+	 * Statistical information about the system as a whole.
+	 * 
+	 * @return The values of the server, parsed into longs.
+	 * @throws IOException
+	 * @throws BeanstemcException
+	 */
+	public ServerStats serverStats() throws IOException, BeanstemcException {
+		return serverStats(new ServerStats());
+	}
+	
+	/**
+	 * @param stats Refilled with the values of the server, to poll without allocating.
+	 * @see #serverStats()
+	 */
+	public ServerStats serverStats(ServerStats stats) throws IOException, BeanstemcException {
 		
-		out.write(String.format("stats%s", CRLF).getBytes());
+		writeStats();
 		out.flush();
 		
-		return parseYamlMap(new String(readYaml()));
+		return readServerStats(stats);
+		
+	}
+	
+	void writeStats() throws IOException {
+		
+		long mark = out.written();
+		out.stats();
+		sent(Command.STATS, mark);
 		
 	}
 	
+	ServerStats readServerStats(ServerStats stats) throws IOException, BeanstemcException {
+		return readStats(Command.STATS, stats);
+	}
+	
 	/**
 	 * Statistical information about the specified job; if it exists.
 	 * 
@@ -706,12 +1364,40 @@ public class Beanstemc {
 	 * @throws BeanstemcException
 	 */
 	public HashMap<String,String> statsJob(long jobId) throws IOException, BeanstemcException {
+		return jobStats(jobId).toMap();
+	}
+	
+	/**
+	 * Statistical information about the specified job; if it exists.
+	 * 
+	 * @param jobId
+	 * @return The values of the job, parsed into longs.
+	 * @throws IOException
+	 * @throws BeanstemcException
+	 */
+	public JobStats jobStats(long jobId) throws IOException, BeanstemcException {
 		
-		out.write(String.format("stats-job %d%s", jobId, CRLF).getBytes());
+		writeStatsJob(jobId);
 		out.flush();
 		
-		return parseYamlMap(new String(readYaml()));
+		return readJobStats(new JobStats());
+		
+	}
+	
+	void writeStatsJob(long jobId) throws IOException {
 		
+		long mark = out.written();
+		out.statsJob(jobId);
+		sent(Command.STATS_JOB, mark);
+		
+	}
+	
+	HashMap<String,String> readStatsJob() throws IOException, BeanstemcException {
+		return readJobStats(new JobStats()).toMap();
+	}
+	
+	JobStats readJobStats(JobStats stats) throws IOException, BeanstemcException {
+		return readStats(Command.STATS_JOB, stats);
 	}
 	
 	/**
@@ -723,12 +1409,44 @@ public class Beanstemc {
 	 * @throws BeanstemcException
 	 */
 	public HashMap<String,String> statsTube(String tube) throws IOException, BeanstemcException {
+		return tubeStats(tube).toMap();
+	}
+	
+	/**
+	 * Statistical information about the specified tube; if it exists.
+	 * 
+	 * @param tube
+	 * @return The values of the tube, parsed into longs.
+	 * @throws IOException
+	 * @throws BeanstemcException
+	 */
+	public TubeStats tubeStats(String tube) throws IOException, BeanstemcException {
+		return tubeStats(tube, new TubeStats());
+	}
+	
+	/**
+	 * @param stats Refilled with the values of the tube, to poll without allocating.
+	 * @see #tubeStats(String)
+	 */
+	public TubeStats tubeStats(String tube, TubeStats stats) throws IOException, BeanstemcException {
 		
-		out.write(String.format("stats-tube %s%s", tube, CRLF).getBytes());
+		writeStatsTube(tube);
 		out.flush();
-				
-		return parseYamlMap(new String(readYaml()));
 		
+		return readTubeStats(stats);
+		
+	}
+	
+	void writeStatsTube(String tube) throws IOException {
+		
+		long mark = out.written();
+		out.statsTube(tube);
+		sent(Command.STATS_TUBE, mark);
+		
+	}
+	
+	TubeStats readTubeStats(TubeStats stats) throws IOException, BeanstemcException {
+		return readStats(Command.STATS_TUBE, stats);
 	}
 	
 	/**
@@ -740,10 +1458,12 @@ public class Beanstemc {
 	 */
 	public List<String> listTubes() throws IOException, BeanstemcException {
 				
-		out.write(String.format("list-tubes%s", CRLF).getBytes());
+		long mark = out.written();
+		out.listTubes();
+		sent(Command.LIST_TUBES, mark);
 		out.flush();
 		
-		return parseYamlList(new String(readYaml()));
+		return parseYamlList(new String(readYaml(Command.LIST_TUBES)));
 		
 	}
 	
@@ -752,22 +1472,58 @@ public class Beanstemc {
 	 * 
 	 * Only one tube can be in use at a time, changing tube is done by invoking: {@link #use(String)}.
 	 * 
-	 * @return List of tube names.
+	 * Answered from the tube the server last confirmed, without a round trip.
+	 * 
+	 * @return Name of the tube.
 	 * @throws IOException
 	 * @throws BeanstemcException
 	 */
 	public String listTubeUsed() throws IOException, BeanstemcException {
+		return used;
+	}
+	
+	/**
+	 * Check that the connection works with a round trip, "list-tube-used",
+	 * whose answer must be the tube in use.
+	 * 
+	 * @throws IOException When the connection is broken or out of step.
+	 */
+	void ping() throws IOException {
 		
-		out.write(String.format("list-tube-used%s", CRLF).getBytes());
+		long mark = out.written();
+		out.listTubeUsed();
+		sent(Command.LIST_TUBE_USED, mark);
 		out.flush();
 		
-		return parseYamlList(new String(readYaml())).get(0);
+		readLine(Command.LIST_TUBE_USED);
+		try {
+			String tube = checkListTubeUsed(in);
+			if (!tube.equals(used)) {
+				throw new IOException(String.format("Connection out of step [USED=%s, SERVER=%s]", used, tube));
+			}
+		} catch (BeanstemcException e) {
+			throw new IOException("Connection out of step: " + e.getMessage(), e);
+		}
+		
+	}
 	
+	static String checkListTubeUsed(ResponseReader in) throws BeanstemcException {
+		
+		// Answered with "USING <tube>", not with a YAML list
+		Response resp = in.response();
+		if (resp == Response.USING) {
+			return in.text();
+		} else {
+			throw new BeanstemcException(in.token());
+		}
+		
 	}
 	
 	/**
 	 * List all <em>watched</em> tubes.
 	 * 
+	 * Answered from the watch list the server last confirmed, without a round trip.
+	 * 
 	 * @see #watch(String)
 	 * 
 	 * @return List of tube names.
@@ -775,12 +1531,7 @@ public class Beanstemc {
 	 * @throws BeanstemcException
 	 */
 	public List<String> listTubesWatched() throws IOException, BeanstemcException {
-		
-		out.write(String.format("list-tubes-watched%s", CRLF).getBytes());
-		out.flush();
-		
-		return parseYamlList(new String(readYaml()));
-		
+		return new ArrayList<String>(watched);
 	}	
 
 }
@@ -0,0 +1,616 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A client of several beanstalkd servers, spreading jobs over all of them.
+ *
+ * <pre>
+ * BeanstemcCluster cluster = new BeanstemcCluster("queue-1:11300", "queue-2:11300", "queue-3:11300");
+ * cluster.use("emails");
+ * long jobId = cluster.put("customer-4711", data);
+ * ...
+ * cluster.watch("emails");
+ * Job job = cluster.reserve();
+ * cluster.delete(job);
+ * </pre>
+ *
+ * A put with a key goes to the server the key hashes to on a ring of
+ * {@link #VIRTUAL_NODES} points per server, so the jobs of a key keep
+ * their order on one server and adding a server moves only the keys
+ * falling on its points. A put without a key is routed round-robin or to
+ * the server with the fewest ready jobs, see {@link Routing}.
+ *
+ * Job ids are namespaced by the server owning the job, the index of the
+ * server in the list it was created with is kept in the bits above
+ * {@link #ID_BITS}, so delete, release, bury and touch reach the owning
+ * server without a lookup. The list of servers must therefore keep its
+ * order for as long as ids are in use.
+ *
+ * Reserving polls the servers in turn with "reserve-with-timeout 0",
+ * starting at the server after the one which last had a job, and backs off
+ * up to {@link #getMaxPollDelay()} while all servers are empty.
+ *
+ * The cluster has one connection per server and, like {@link Beanstemc},
+ * is not thread-safe.
+ */
+public class BeanstemcCluster {
+
+	public static final int	ID_BITS				= 48;
+	public static final int	MAX_SERVERS			= 1 << (63 - ID_BITS);
+	public static int		VIRTUAL_NODES		= 160;
+	public static long		DEFAULT_MAX_POLL_DELAY	= 100;
+	public static long		DEFAULT_LOAD_REFRESH	= 1000;
+
+	private static final long		LOCAL_ID_MASK	= (1L << ID_BITS) - 1;
+	private static final Charset	UTF8			= Charset.forName("UTF-8");
+
+	/**
+	 * How puts without a key are spread over the servers.
+	 */
+	public enum Routing {
+
+		/**
+		 * Each server in turn.
+		 */
+		ROUND_ROBIN,
+
+		/**
+		 * The server with the fewest ready jobs in the used tube, as reported
+		 * by "stats-tube" every {@link BeanstemcCluster#getLoadRefresh()}
+		 * milliseconds and counted up by the puts in between.
+		 */
+		LEAST_LOADED
+
+	}
+
+	private final List<String>		servers;
+	private final List<Beanstemc>	connections;
+
+	// The ring, points sorted with the index of the server owning each
+	private final long[]	points;
+	private final int[]		owners;
+
+	private Routing	routing			= Routing.ROUND_ROBIN;
+	private int		nextPut;
+	private int		nextReserve;
+	private long	maxPollDelay	= DEFAULT_MAX_POLL_DELAY;
+
+	private String		tube		= "default";
+	private long		loadRefresh	= DEFAULT_LOAD_REFRESH;
+	private long		loadTime;
+	private final long[]		loads;
+	private final TubeStats		tubeStats	= new TubeStats();
+
+	/**
+	 * @param servers "host:port" of each server, or "host" for the default port.
+	 * @throws IOException When a server cannot be connected to, the other connections are closed.
+	 */
+	public BeanstemcCluster(String... servers) throws IOException {
+
+		if (servers.length == 0 || servers.length > MAX_SERVERS) {
+			throw new IllegalArgumentException("A cluster has 1 to " + MAX_SERVERS + " servers.");
+		}
+
+		this.servers		= Collections.unmodifiableList(Arrays.asList(servers.clone()));
+		this.connections	= new ArrayList<Beanstemc>(servers.length);
+		this.loads			= new long[servers.length];
+
+		try {
+			for (String server : servers) {
+				connections.add(connect(server));
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		points = new long[servers.length * VIRTUAL_NODES];
+		owners = new int[points.length];
+		ring();
+
+	}
+
+	private static Beanstemc connect(String server) throws IOException {
+
+		int colon = server.lastIndexOf(':');
+		if (colon < 0) {
+			return new Beanstemc(server, Beanstemc.DEFAULT_PORT);
+		}
+		return new Beanstemc(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+
+	}
+
+	/**
+	 * Place the virtual nodes of every server on the ring, by hashing the
+	 * server's address, so a server keeps its points when others are added.
+	 */
+	private void ring() {
+
+		long[] hashes = new long[points.length];
+		for (int i = 0; i < servers.size(); i++) {
+			for (int n = 0; n < VIRTUAL_NODES; n++) {
+				hashes[i * VIRTUAL_NODES + n] = (hash((servers.get(i) + "#" + n).getBytes(UTF8)) & ~0xffffL) | i;
+			}
+		}
+
+		// The server index rides along in the low bits while sorting
+		Arrays.sort(hashes);
+		for (int i = 0; i < hashes.length; i++) {
+			points[i] = hashes[i];
+			owners[i] = (int)(hashes[i] & 0xffff);
+		}
+
+	}
+
+	/**
+	 * 64-bit FNV-1a, finished with the MurmurHash3 mix so that similar keys spread over the ring.
+	 */
+	static long hash(byte[] key) {
+
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+
+		return hash;
+
+	}
+
+	/**
+	 * @return "host:port" of every server, in the order of their indexes.
+	 */
+	public List<String> getServers() {
+		return servers;
+	}
+
+	/**
+	 * @return The connection to the server at the given index, e.g. for stats or kicks.
+	 */
+	public Beanstemc getConnection(int server) {
+		return connections.get(server);
+	}
+
+	/**
+	 * @return Index of the server a key is routed to.
+	 */
+	public int getServerIndex(String key) {
+		return getServerIndex(key.getBytes(UTF8));
+	}
+
+	/**
+	 * @see #getServerIndex(String)
+	 */
+	public int getServerIndex(byte[] key) {
+
+		long hash = hash(key);
+
+		// First point at or after the hash, wrapping around the ring
+		int i = Arrays.binarySearch(points, hash);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return owners[i == points.length ? 0 : i];
+
+	}
+
+	/**
+	 * @return Index of the server owning a job id of the cluster.
+	 */
+	public static int getServerIndex(long jobId) {
+		return (int)(jobId >>> ID_BITS);
+	}
+
+	/**
+	 * @return The id of the job on its server.
+	 */
+	public static long getLocalId(long jobId) {
+		return jobId & LOCAL_ID_MASK;
+	}
+
+	/**
+	 * @return The id of a job in the cluster.
+	 * @throws BeanstemcException "ID_OVERFLOW" when the server's id does not fit in {@link #ID_BITS}.
+	 */
+	static long toClusterId(int server, long localId) throws BeanstemcException {
+
+		if ((localId & ~LOCAL_ID_MASK) != 0) {
+			throw new BeanstemcException("ID_OVERFLOW");
+		}
+		return ((long)server << ID_BITS) | localId;
+
+	}
+
+	public void setRouting(Routing routing) {
+		this.routing = routing;
+	}
+
+	public Routing getRouting() {
+		return routing;
+	}
+
+	/**
+	 * @param millis Longest pause between two rounds of polling empty servers.
+	 */
+	public void setMaxPollDelay(long millis) {
+		this.maxPollDelay = millis;
+	}
+
+	public long getMaxPollDelay() {
+		return maxPollDelay;
+	}
+
+	/**
+	 * @param millis Age after which the loads of {@link Routing#LEAST_LOADED} are read again.
+	 */
+	public void setLoadRefresh(long millis) {
+		this.loadRefresh = millis;
+	}
+
+	public long getLoadRefresh() {
+		return loadRefresh;
+	}
+
+	/**
+	 * Count the requests of every connection in the same metrics.
+	 *
+	 * @see Beanstemc#setMetrics(Metrics)
+	 */
+	public void setMetrics(Metrics metrics) {
+
+		for (Beanstemc connection : connections) {
+			connection.setMetrics(metrics);
+		}
+
+	}
+
+	/**
+	 * Use the tube on every server.
+	 *
+	 * @see Beanstemc#use(String)
+	 */
+	public void use(String tube) throws IOException, BeanstemcException {
+
+		for (Beanstemc connection : connections) {
+			connection.use(tube);
+		}
+		this.tube		= tube;
+		this.loadTime	= 0;
+
+	}
+
+	/**
+	 * Watch the tube on every server.
+	 *
+	 * @return Number of tubes watched.
+	 * @see Beanstemc#watch(String)
+	 */
+	public int watch(String tube) throws IOException, BeanstemcException {
+
+		int watched = 0;
+		for (Beanstemc connection : connections) {
+			watched = connection.watch(tube);
+		}
+		return watched;
+
+	}
+
+	/**
+	 * Ignore the tube on every server.
+	 *
+	 * @return Number of tubes watched.
+	 * @see Beanstemc#ignore(String)
+	 */
+	public int ignore(String tube) throws IOException, BeanstemcException {
+
+		int watched = 0;
+		for (Beanstemc connection : connections) {
+			watched = connection.ignore(tube);
+		}
+		return watched;
+
+	}
+
+	/**
+	 * Put a job on the server the key is routed to.
+	 *
+	 * @param key E.g. the customer or the entity the job is about.
+	 * @return The id of the job in the cluster.
+	 * @see Beanstemc#put(byte[], long, int, int)
+	 */
+	public long put(String key, byte[] data, long priority, int delay, int ttr) throws IOException, BeanstemcException {
+		return put(getServerIndex(key), data, priority, delay, ttr);
+	}
+
+	/**
+	 * @see #put(String, byte[], long, int, int)
+	 */
+	public long put(String key, byte[] data) throws IOException, BeanstemcException {
+		return put(key, data, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * Put a job on the server chosen by the {@link Routing}.
+	 *
+	 * @return The id of the job in the cluster.
+	 * @see Beanstemc#put(byte[], long, int, int)
+	 */
+	public long put(byte[] data, long priority, int delay, int ttr) throws IOException, BeanstemcException {
+		return put(route(), data, priority, delay, ttr);
+	}
+
+	/**
+	 * @see #put(byte[], long, int, int)
+	 */
+	public long put(byte[] data) throws IOException, BeanstemcException {
+		return put(data, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY, Beanstemc.DEFAULT_TTR);
+	}
+
+	private long put(int server, byte[] data, long priority, int delay, int ttr) throws IOException, BeanstemcException {
+
+		Beanstemc connection	= connections.get(server);
+		long jobId				= connection.put(data, priority, delay, ttr);
+		try {
+			jobId = toClusterId(server, jobId);
+		} catch (BeanstemcException e) {
+			connection.delete(jobId);		// It could never be addressed in the cluster
+			throw e;
+		}
+		loads[server]++;
+
+		return jobId;
+
+	}
+
+	private int route() throws IOException, BeanstemcException {
+
+		if (routing == Routing.ROUND_ROBIN) {
+			int server	= nextPut;
+			nextPut		= (nextPut + 1) % connections.size();
+			return server;
+		}
+
+		long now = System.nanoTime();
+		if (loadTime == 0 || now - loadTime > TimeUnit.MILLISECONDS.toNanos(loadRefresh)) {
+			refreshLoads();
+			loadTime = now;
+		}
+
+		int least = 0;
+		for (int i = 1; i < loads.length; i++) {
+			if (loads[i] < loads[least]) {
+				least = i;
+			}
+		}
+		return least;
+
+	}
+
+	private void refreshLoads() throws IOException, BeanstemcException {
+
+		for (int i = 0; i < connections.size(); i++) {
+			try {
+				loads[i] = connections.get(i).tubeStats(tube, tubeStats).getCurrentJobsReady();
+			} catch (BeanstemcException e) {
+				if (!"NOT_FOUND".equals(e.getMessage())) {
+					throw e;
+				}
+				loads[i] = 0;		// The tube is created by the first put
+			}
+		}
+
+	}
+
+	/**
+	 * Reserve a job from any server, waiting until one has a job.
+	 *
+	 * @return A job with the id of the cluster.
+	 * @see Beanstemc#reserve()
+	 */
+	public Job reserve() throws IOException, BeanstemcException {
+		return reserve(-1);
+	}
+
+	/**
+	 * Reserve a job from any server.
+	 *
+	 * @param timeout Seconds to wait for a job, 0 to poll each server once, negative to wait forever.
+	 * @return A job with the id of the cluster.
+	 * @throws BeanstemcException "TIMED_OUT" when no server had a job in time,
+	 * 			"DEADLINE_SOON" as answered by a server.
+	 * @see Beanstemc#reserve(int)
+	 */
+	public Job reserve(int timeout) throws IOException, BeanstemcException {
+
+		long deadline	= System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.max(0, timeout));
+		long delay		= 1;
+
+		while (true) {
+
+			Job job = poll();
+			if (job != null) {
+				return job;
+			}
+
+			long left = deadline - System.nanoTime();
+			if (timeout >= 0 && left <= 0) {
+				throw new BeanstemcException("TIMED_OUT");
+			}
+
+			long pause = TimeUnit.MILLISECONDS.toNanos(delay);
+			LockSupport.parkNanos(this, timeout >= 0 ? Math.min(pause, left) : pause);
+			delay = Math.min(delay * 2, maxPollDelay);
+
+		}
+
+	}
+
+	/**
+	 * Ask each server once for a job, starting after the server which last had one.
+	 *
+	 * @return null if none had a job.
+	 */
+	private Job poll() throws IOException, BeanstemcException {
+
+		for (int n = 0; n < connections.size(); n++) {
+
+			int server				= (nextReserve + n) % connections.size();
+			Beanstemc connection	= connections.get(server);
+
+			connection.writeReserve(0);
+			connection.flush();
+			Job job;
+			try {
+				job = connection.readJob();
+			} catch (BeanstemcException e) {
+				if (!"TIMED_OUT".equals(e.getMessage())) {
+					throw e;
+				}
+				continue;
+			}
+
+			// The payload is copied out, the pooled buffer goes back right away
+			try {
+				Job clusterJob	= new Job(toClusterId(server, job.getId()), job.getData());
+				nextReserve		= (server + 1) % connections.size();
+				return clusterJob;
+			} catch (BeanstemcException e) {
+				connection.release(job.getId());		// It could never be addressed in the cluster
+				throw e;
+			} finally {
+				job.recycle();
+			}
+
+		}
+
+		return null;
+
+	}
+
+	/**
+	 * @param jobId Id of the job in the cluster.
+	 * @see Beanstemc#delete(long)
+	 */
+	public void delete(long jobId) throws IOException, BeanstemcException {
+		owner(jobId).delete(getLocalId(jobId));
+	}
+
+	/**
+	 * @see #delete(long)
+	 */
+	public void delete(Job job) throws IOException, BeanstemcException {
+		delete(job.getId());
+	}
+
+	/**
+	 * @param jobId Id of the job in the cluster.
+	 * @see Beanstemc#release(long, long, int)
+	 */
+	public void release(long jobId, long priority, int delay) throws IOException, BeanstemcException {
+		owner(jobId).release(getLocalId(jobId), priority, delay);
+	}
+
+	/**
+	 * @see #release(long, long, int)
+	 */
+	public void release(Job job) throws IOException, BeanstemcException {
+		release(job.getId(), Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY);
+	}
+
+	/**
+	 * @param jobId Id of the job in the cluster.
+	 * @see Beanstemc#bury(long, long)
+	 */
+	public void bury(long jobId, long priority) throws IOException, BeanstemcException {
+		owner(jobId).bury(getLocalId(jobId), priority);
+	}
+
+	/**
+	 * @see #bury(long, long)
+	 */
+	public void bury(Job job) throws IOException, BeanstemcException {
+		bury(job.getId(), Beanstemc.DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * @param jobId Id of the job in the cluster.
+	 * @see Beanstemc#touch(long)
+	 */
+	public void touch(long jobId) throws IOException, BeanstemcException {
+		owner(jobId).touch(getLocalId(jobId));
+	}
+
+	/**
+	 * @param jobId Id of the job in the cluster.
+	 * @return The stats of the job, its "id" is the one on its server.
+	 * @see Beanstemc#jobStats(long)
+	 */
+	public JobStats jobStats(long jobId) throws IOException, BeanstemcException {
+		return owner(jobId).jobStats(getLocalId(jobId));
+	}
+
+	private Beanstemc owner(long jobId) throws BeanstemcException {
+
+		int server = getServerIndex(jobId);
+		if (server >= connections.size()) {
+			throw new BeanstemcException("NOT_FOUND");
+		}
+		return connections.get(server);
+
+	}
+
+	/**
+	 * Close the connections to all servers.
+	 */
+	public void close() throws IOException {
+
+		IOException failed = null;
+		for (Beanstemc connection : connections) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				failed = e;
+			}
+		}
+		if (failed != null) {
+			throw failed;
+		}
+
+	}
+
+}
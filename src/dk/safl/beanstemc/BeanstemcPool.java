@@ -0,0 +1,454 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of connections shared by many threads.
+ *
+ * <pre>
+ * BeanstemcPool pool = new BeanstemcPool("localhost", 11300, 8);
+ * pool.setTube("emails");
+ *
+ * Beanstemc beanstemc = pool.borrow();
+ * try {
+ *     beanstemc.put(data);
+ * } catch (IOException e) {
+ *     pool.invalidate(beanstemc);
+ *     beanstemc = null;
+ *     throw e;
+ * } finally {
+ *     if (beanstemc != null) {
+ *         pool.release(beanstemc);
+ *     }
+ * }
+ * </pre>
+ *
+ * A {@link Beanstemc} is not thread-safe, so a connection is used by one
+ * thread at a time, from {@link #borrow()} until {@link #release(Beanstemc)}.
+ * The number of connections is bounded by a semaphore; idle connections are
+ * kept on a lock-free stack, so borrowing and releasing take no locks and the
+ * most recently used, warm, connection is handed out first.
+ *
+ * A borrowed connection is reset to the tube and watch list configured on
+ * the pool, whatever the previous borrower did with it. The connection tracks
+ * what the server has confirmed, so nothing is sent when it is already in the
+ * right state; otherwise the difference is sent as one pipelined batch.
+ *
+ * A connection which has been idle for longer than the validation interval is
+ * checked with a round trip before it is handed out, and connections found
+ * closed or broken are evicted and replaced. A borrower which sees an
+ * IOException should hand the connection back with {@link #invalidate(Beanstemc)}.
+ */
+public class BeanstemcPool {
+
+	public static int	DEFAULT_MAX_SIZE		= 8;
+	public static long	DEFAULT_VALIDATE_IDLE	= 30000;
+
+	private final String	host;
+	private final int		port;
+	private final int		maxSize;
+
+	private final Semaphore						permits;
+	private final ConcurrentLinkedDeque<Idle>	idle = new ConcurrentLinkedDeque<Idle>();
+
+	private volatile String			tube	= "default";
+	private volatile List<String>	watch	= Collections.singletonList("default");
+	private volatile long			validateIdleNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_VALIDATE_IDLE);
+	private volatile boolean		closed;
+	private volatile Metrics		metrics;
+
+	// Metrics
+	private final AtomicInteger	open		= new AtomicInteger();
+	private final AtomicLong	borrows		= new AtomicLong();
+	private final AtomicLong	waitNanos	= new AtomicLong();
+	private final AtomicLong	maxWaitNanos = new AtomicLong();
+	private final AtomicLong	timeouts	= new AtomicLong();
+	private final AtomicLong	created		= new AtomicLong();
+	private final AtomicLong	evicted		= new AtomicLong();
+
+	/**
+	 * An idle connection and the time it was released.
+	 */
+	private static class Idle {
+
+		final Beanstemc	beanstemc;
+		final long		since;
+
+		Idle(Beanstemc beanstemc, long since) {
+			this.beanstemc	= beanstemc;
+			this.since		= since;
+		}
+
+	}
+
+	public BeanstemcPool(String host, int port) {
+		this(host, port, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Connections are opened on demand, none are opened by the constructor.
+	 *
+	 * @param host
+	 * @param port
+	 * @param maxSize Maximum number of connections open at a time.
+	 */
+	public BeanstemcPool(String host, int port, int maxSize) {
+
+		this.host		= host;
+		this.port		= port;
+		this.maxSize	= maxSize;
+		this.permits	= new Semaphore(maxSize);
+
+	}
+
+	/**
+	 * @param tube The tube borrowed connections "use".
+	 */
+	public void setTube(String tube) {
+		this.tube = tube;
+	}
+
+	public String getTube() {
+		return tube;
+	}
+
+	/**
+	 * @param tubes The watch list of borrowed connections, at least one tube.
+	 */
+	public void setWatch(String... tubes) {
+
+		if (tubes.length == 0) {
+			throw new IllegalArgumentException("The watch list cannot be empty.");
+		}
+		this.watch = Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(tubes)));
+
+	}
+
+	public List<String> getWatch() {
+		return watch;
+	}
+
+	/**
+	 * @param millis Idle time after which a connection is checked with a round trip before it is borrowed.
+	 */
+	public void setValidateIdle(long millis) {
+		this.validateIdleNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * @param metrics Recorded into by every connection the pool opens from now on.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Borrow a connection, waiting as long as it takes for one to become available.
+	 *
+	 * @return A connection using and watching the tubes configured on the pool.
+	 * @throws IOException If a new connection cannot be opened.
+	 * @throws BeanstemcException If the tube state of the connection cannot be restored.
+	 * @throws InterruptedException
+	 */
+	public Beanstemc borrow() throws IOException, BeanstemcException, InterruptedException {
+		return borrow(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Borrow a connection, waiting at most the given time for one to become available.
+	 *
+	 * @return A connection using and watching the tubes configured on the pool.
+	 * @throws IOException If a new connection cannot be opened.
+	 * @throws BeanstemcException If no connection became available in time, or
+	 * 			if the tube state of the connection cannot be restored.
+	 * @throws InterruptedException
+	 */
+	public Beanstemc borrow(long timeout, TimeUnit unit) throws IOException, BeanstemcException, InterruptedException {
+
+		if (closed) {
+			throw new IOException("The pool is closed.");
+		}
+
+		long start = System.nanoTime();
+		if (!permits.tryAcquire() && !permits.tryAcquire(timeout, unit)) {
+			timeouts.incrementAndGet();
+			throw new BeanstemcException("POOL_EXHAUSTED");
+		}
+		waited(System.nanoTime() - start);
+
+		boolean borrowed = false;
+		try {
+
+			Beanstemc beanstemc = checkout();
+			borrowed = true;
+			return beanstemc;
+
+		} finally {
+			if (!borrowed) {
+				permits.release();
+			}
+		}
+
+	}
+
+	/**
+	 * Return a borrowed connection to the pool.
+	 *
+	 * The connection must not have unread responses, e.g. from a pipeline which
+	 * was not executed, and must not be used by the caller afterwards.
+	 */
+	public void release(Beanstemc beanstemc) {
+
+		if (closed || beanstemc.isClosed()) {
+			evict(beanstemc);
+		} else {
+			idle.offerFirst(new Idle(beanstemc, System.nanoTime()));
+		}
+		permits.release();
+
+	}
+
+	/**
+	 * Return a borrowed connection which failed; it is closed and replaced on demand.
+	 */
+	public void invalidate(Beanstemc beanstemc) {
+
+		evict(beanstemc);
+		permits.release();
+
+	}
+
+	/**
+	 * Close all idle connections, borrowed connections are closed when released.
+	 */
+	public void close() {
+
+		closed = true;
+
+		Idle entry;
+		while ((entry = idle.pollFirst()) != null) {
+			evict(entry.beanstemc);
+		}
+
+	}
+
+	/**
+	 * @return Maximum number of connections open at a time.
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return Number of connections currently open, idle or borrowed.
+	 */
+	public int getSize() {
+		return open.get();
+	}
+
+	/**
+	 * @return Number of idle connections.
+	 */
+	public int getIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * @return Number of threads waiting for a connection.
+	 */
+	public int getWaiting() {
+		return permits.getQueueLength();
+	}
+
+	/**
+	 * @return Number of successful calls to borrow.
+	 */
+	public long getBorrowCount() {
+		return borrows.get();
+	}
+
+	/**
+	 * @return Total time spent waiting for a connection by all successful borrowers, in nanoseconds.
+	 */
+	public long getWaitTimeNanos() {
+		return waitNanos.get();
+	}
+
+	/**
+	 * @return The longest time a borrower has waited for a connection, in nanoseconds.
+	 */
+	public long getMaxWaitTimeNanos() {
+		return maxWaitNanos.get();
+	}
+
+	/**
+	 * @return Average time spent waiting for a connection, in nanoseconds.
+	 */
+	public long getAverageWaitTimeNanos() {
+
+		long count = borrows.get();
+		return count == 0 ? 0 : waitNanos.get() / count;
+
+	}
+
+	/**
+	 * @return Number of borrowers which gave up waiting for a connection.
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * @return Number of connections opened by the pool.
+	 */
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * @return Number of connections closed because they were broken, invalidated or the pool was closed.
+	 */
+	public long getEvictedCount() {
+		return evicted.get();
+	}
+
+	/**
+	 * Take a usable idle connection or open a new one, the caller holds a permit.
+	 */
+	private Beanstemc checkout() throws IOException, BeanstemcException {
+
+		Idle entry;
+		while ((entry = idle.pollFirst()) != null) {
+
+			Beanstemc beanstemc = entry.beanstemc;
+			try {
+
+				if (beanstemc.isClosed()) {
+					throw new IOException("Connection closed while idle.");
+				}
+				if (System.nanoTime() - entry.since > validateIdleNanos) {
+					beanstemc.ping();
+				}
+				restore(beanstemc);
+				return beanstemc;
+
+			} catch (IOException e) {
+				evict(beanstemc);
+			} catch (BeanstemcException e) {
+				evict(beanstemc);		// Unexpected reply, the connection state is unknown
+			}
+
+		}
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		beanstemc.setMetrics(metrics);
+		open.incrementAndGet();
+		created.incrementAndGet();
+		try {
+			restore(beanstemc);
+		} catch (IOException e) {
+			evict(beanstemc);
+			throw e;
+		} catch (BeanstemcException e) {
+			evict(beanstemc);
+			throw e;
+		}
+
+		return beanstemc;
+
+	}
+
+	/**
+	 * Bring the tube and watch list of the connection in line with the pool.
+	 */
+	private void restore(Beanstemc beanstemc) throws IOException, BeanstemcException {
+
+		String			tube	= this.tube;
+		List<String>	watch	= this.watch;
+		List<String>	watched	= new ArrayList<String>(beanstemc.watchedTubes());		// Changed as the pipeline drains
+
+		Pipeline pipeline = beanstemc.pipeline();
+		if (!tube.equals(beanstemc.usedTube())) {
+			pipeline.use(tube);
+		}
+		for (String name : watch) {
+			if (!watched.contains(name)) {
+				pipeline.watch(name);
+			}
+		}
+		// Ignore after watching, the server refuses to ignore the last tube watched
+		for (String name : watched) {
+			if (!watch.contains(name)) {
+				pipeline.ignore(name);
+			}
+		}
+
+		if (pipeline.size() > 0) {
+			for (Pipeline.Result result : pipeline.execute()) {
+				if (!result.isSuccess()) {
+					throw result.getException();
+				}
+			}
+		}
+
+	}
+
+	private void waited(long nanos) {
+
+		borrows.incrementAndGet();
+		waitNanos.addAndGet(nanos);
+
+		long max;
+		while (nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos)) {
+			// Retry until the maximum sticks
+		}
+
+	}
+
+	private void evict(Beanstemc beanstemc) {
+
+		open.decrementAndGet();
+		evicted.incrementAndGet();
+		try {
+			beanstemc.close();
+		} catch (IOException e) {
+			// The connection is already broken
+		}
+
+	}
+
+}
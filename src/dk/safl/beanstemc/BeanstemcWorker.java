@@ -0,0 +1,596 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a {@link JobHandler} for the jobs of one or more tubes.
+ *
+ * <pre>
+ * BeanstemcWorker worker = new BeanstemcWorker("localhost", 11300, new JobHandler() {
+ *     public void handle(Job job) throws Exception {
+ *         ...
+ *     }
+ * }, "emails");
+ * worker.setConcurrency(64);
+ * worker.start();
+ * ...
+ * worker.shutdown();
+ * worker.awaitTermination(30, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * Reserving and processing are kept apart. Each reserving connection is
+ * driven by a thread of its own, which only reserves jobs and hands them
+ * over to the handler threads; a slow handler therefore never holds up the
+ * next reserve. A job is only reserved once there is room for one more
+ * job in processing, bounded by the concurrency, so jobs do not sit
+ * reserved, burning their TTR, behind busy handlers, and CPU-bound handlers
+ * are not given more jobs than there are threads to run them.
+ *
+ * When a handler returns the job is deleted, when it throws the job is
+ * released with a delay, or buried once it has been released
+ * {@link #setMaxReleases(int) too often}. A reserved job can only be deleted
+ * on the connection which reserved it, so the outcome is queued for the
+ * reserving thread, which sends the outcomes of all finished jobs as one
+ * pipelined batch before its next reserve.
+ *
+ * Jobs which may take longer than their TTR can be kept alive by a
+ * {@link #setLeaseManager(LeaseManager) lease manager}.
+ *
+ * Handlers run on virtual threads when the JVM provides them, and on a pool
+ * of platform threads otherwise; an executor of choice can be given with
+ * {@link #setExecutor(ExecutorService)}.
+ */
+public class BeanstemcWorker {
+
+	public static int DEFAULT_CONCURRENCY		= 16;
+	public static int DEFAULT_RESERVE_TIMEOUT	= 1;
+	public static int DEFAULT_MAX_RELEASES		= 3;
+	public static int DEFAULT_RELEASE_DELAY		= 10;
+	public static int RECONNECT_DELAY			= 1000;
+	public static int ACK_INTERVAL				= 100;
+
+	private static final int DELETE		= 0;
+	private static final int RELEASE	= 1;
+	private static final int TOUCH		= 2;
+
+	private final String		host;
+	private final int			port;
+	private final JobHandler	handler;
+	private final List<String>	tubes;
+
+	private int				concurrency		= DEFAULT_CONCURRENCY;
+	private int				connections		= 1;
+	private int				reserveTimeout	= DEFAULT_RESERVE_TIMEOUT;
+	private int				maxReleases		= DEFAULT_MAX_RELEASES;
+	private int				releaseDelay	= DEFAULT_RELEASE_DELAY;
+	private ExecutorService	executor;
+	private boolean			ownExecutor;
+	private LeaseManager	leases;
+
+	private Semaphore				permits;
+	private final List<Thread>		reservers = new ArrayList<Thread>();
+	private final AtomicInteger		live = new AtomicInteger();
+	private volatile boolean		running;
+
+	private final AtomicLong completed	= new AtomicLong();
+	private final AtomicLong failed		= new AtomicLong();
+	private final Errors errors			= new Errors();
+
+	/**
+	 * @param host
+	 * @param port
+	 * @param handler Invoked for every job, from several threads at once.
+	 * @param tubes The tubes to take jobs from.
+	 */
+	public BeanstemcWorker(String host, int port, JobHandler handler, String... tubes) {
+
+		if (tubes.length == 0) {
+			throw new IllegalArgumentException("At least one tube must be watched.");
+		}
+
+		this.host		= host;
+		this.port		= port;
+		this.handler	= handler;
+		this.tubes		= new ArrayList<String>(Arrays.asList(tubes));
+
+	}
+
+	/**
+	 * @param concurrency Maximum number of jobs processed at a time.
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * @param connections Number of reserving connections, one is usually enough
+	 * 			unless there are thousands of jobs per second.
+	 */
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * @param seconds Timeout of each reserve, which bounds how long a shutdown
+	 * 			and the outcome of a finished job may wait for a reserve to return.
+	 */
+	public void setReserveTimeout(int seconds) {
+		this.reserveTimeout = seconds;
+	}
+
+	/**
+	 * @param maxReleases Number of times a failing job is released before it is buried.
+	 */
+	public void setMaxReleases(int maxReleases) {
+		this.maxReleases = maxReleases;
+	}
+
+	/**
+	 * @param seconds Delay of a failed job before it is ready again.
+	 */
+	public void setReleaseDelay(int seconds) {
+		this.releaseDelay = seconds;
+	}
+
+	/**
+	 * @param executor Runs the handlers, it is not shut down by the worker.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Keep jobs alive while they are processed, with a touch every half TTR.
+	 *
+	 * The TTR of every job is read with stats-job when it is reserved. The
+	 * touches are sent between reserves, so the TTR should be well above
+	 * twice the reserve timeout.
+	 *
+	 * @param leases Shared by any number of workers and consumers.
+	 */
+	public void setLeaseManager(LeaseManager leases) {
+		this.leases = leases;
+	}
+
+	/**
+	 * @param listener Told about lost connections and failed reconnects of the reserving threads.
+	 */
+	public void setErrorListener(ErrorListener listener) {
+		errors.setListener(listener);
+	}
+
+	/**
+	 * Connect and start reserving.
+	 *
+	 * @throws IOException If a connection cannot be established.
+	 * @throws BeanstemcException If the tubes cannot be watched.
+	 */
+	public synchronized void start() throws IOException, BeanstemcException {
+
+		if (running) {
+			throw new IllegalStateException("The worker is already running.");
+		}
+
+		if (executor == null) {
+			executor	= newExecutor();
+			ownExecutor	= true;
+		}
+		permits	= new Semaphore(concurrency);
+		running	= true;
+
+		reservers.clear();
+		for (int i = 0; i < connections; i++) {
+			reservers.add(new Thread(new Reserver(connect()), "beanstemc-reserver-" + i));
+		}
+		live.set(reservers.size());
+		for (Thread thread : reservers) {
+			thread.start();
+		}
+
+	}
+
+	/**
+	 * Stop reserving, jobs already reserved are processed and acknowledged before the connections close.
+	 */
+	public void shutdown() {
+		running = false;
+	}
+
+	/**
+	 * Wait for a shutdown to complete.
+	 *
+	 * @return false if the timeout elapsed first.
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Thread thread : reservers) {
+
+			long left = deadline - System.nanoTime();
+			if (left > 0) {
+				TimeUnit.NANOSECONDS.timedJoin(thread, left);
+			}
+			if (thread.isAlive()) {
+				return false;
+			}
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * @return Number of jobs processed at the moment, including reserves in progress.
+	 */
+	public int getActive() {
+		return permits == null ? 0 : concurrency - permits.availablePermits();
+	}
+
+	/**
+	 * @return Number of jobs handled successfully.
+	 */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * @return Number of jobs for which the handler failed.
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return Number of lost connections and failed reconnects.
+	 */
+	public long getErrorCount() {
+		return errors.getCount();
+	}
+
+	/**
+	 * @return The last connection error, null if none.
+	 */
+	public Exception getLastError() {
+		return errors.getLast();
+	}
+
+	private Beanstemc connect() throws IOException, BeanstemcException {
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+
+		Pipeline pipeline = beanstemc.pipeline();
+		for (String tube : tubes) {
+			pipeline.watch(tube);
+		}
+		if (!tubes.contains("default")) {
+			pipeline.ignore("default");
+		}
+		for (Pipeline.Result result : pipeline.execute()) {
+			if (!result.isSuccess()) {
+				beanstemc.close();
+				throw result.getException();
+			}
+		}
+
+		return beanstemc;
+
+	}
+
+	/**
+	 * Virtual threads when the JVM has them, looked up by reflection to keep running on older JVMs.
+	 */
+	private static ExecutorService newExecutor() {
+
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)factory.invoke(null);
+		} catch (Exception e) {
+			// Not available, or not enabled
+		}
+
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+
+				Thread thread = new Thread(task, "beanstemc-handler-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+
+			}
+		});
+
+	}
+
+	/**
+	 * The outcome of a job, or a touch, to be sent by the connection which reserved it.
+	 */
+	private static class Ack {
+
+		final long	jobId;
+		final int	action;
+
+		Ack(long jobId, int action) {
+			this.jobId	= jobId;
+			this.action	= action;
+		}
+
+	}
+
+	/**
+	 * Reserves jobs on one connection and sends the outcome of the jobs it reserved.
+	 */
+	private class Reserver implements Runnable, LeaseManager.Owner {
+
+		private Beanstemc beanstemc;
+
+		private final ConcurrentLinkedQueue<Ack>	acks		= new ConcurrentLinkedQueue<Ack>();
+		private final AtomicInteger					processing	= new AtomicInteger();
+
+		Reserver(Beanstemc beanstemc) {
+			this.beanstemc = beanstemc;
+		}
+
+		public void run() {
+
+			try {
+
+				while (running) {
+
+					try {
+						reserve();
+					} catch (IOException e) {
+						reconnect(e);
+					}
+
+				}
+
+				// Shutting down, let the jobs in processing finish
+				while (processing.get() > 0 || !acks.isEmpty()) {
+					try {
+						acknowledge();
+						Thread.sleep(10);
+					} catch (IOException e) {
+						break;		// The server releases the jobs of a closed connection
+					}
+				}
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+
+				try {
+					beanstemc.close();
+				} catch (IOException e) {
+					// Closing anyway
+				}
+				if (live.decrementAndGet() == 0 && ownExecutor) {
+					executor.shutdown();
+				}
+
+			}
+
+		}
+
+		/**
+		 * Invoked by the lease manager, the touches go out with the next batch.
+		 */
+		public void touch(List<Long> jobIds) {
+			for (Long jobId : jobIds) {
+				acks.add(new Ack(jobId, TOUCH));
+			}
+		}
+
+		private void reserve() throws IOException, InterruptedException {
+
+			acknowledge();
+
+			// Only reserve what can be processed right away, meanwhile keep acknowledging
+			if (!permits.tryAcquire(ACK_INTERVAL, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+
+			final Job job;
+			final LeaseManager.Lease lease;
+			try {
+				acknowledge();
+				job		= beanstemc.reserve(reserveTimeout);
+				lease	= lease(job);
+			} catch (BeanstemcException e) {
+				permits.release();		// TIMED_OUT or DEADLINE_SOON, acknowledged on the next round
+				if ("DEADLINE_SOON".equals(e.getMessage())) {
+					Thread.sleep(ACK_INTERVAL);	// A job taken out is due, nothing will be reserved
+				}
+				return;
+			} catch (IOException e) {
+				permits.release();
+				throw e;
+			}
+
+			processing.incrementAndGet();
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						process(job, lease);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				if (lease != null) {
+					lease.cancel();
+				}
+				processing.decrementAndGet();
+				permits.release();
+				acks.add(new Ack(job.getId(), RELEASE));
+			}
+
+		}
+
+		/**
+		 * Have the lease manager, if any, keep the job alive while it is processed.
+		 */
+		private LeaseManager.Lease lease(Job job) throws IOException {
+
+			if (leases == null) {
+				return null;
+			}
+
+			int ttr			= Beanstemc.DEFAULT_TTR;
+			long timeLeft	= TimeUnit.SECONDS.toMillis(ttr);
+			try {
+				JobStats stats	= beanstemc.jobStats(job.getId());
+				ttr				= (int)stats.getTtr();
+				timeLeft		= TimeUnit.SECONDS.toMillis(stats.getTimeLeft());
+			} catch (BeanstemcException e) {
+				// Tracked with the default TTR
+			}
+
+			return leases.track(this, job.getId(), ttr, timeLeft);
+
+		}
+
+		private void process(Job job, LeaseManager.Lease lease) {
+
+			int action = RELEASE;		// Unless the handler returns, also when it throws an Error
+			try {
+				handler.handle(job);
+				action = DELETE;
+			} catch (Exception e) {
+				// Released, or buried once released too often
+			} finally {
+				if (action == DELETE) {
+					completed.incrementAndGet();
+				} else {
+					failed.incrementAndGet();
+				}
+				if (lease != null) {
+					lease.cancel();
+				}
+				acks.add(new Ack(job.getId(), action));
+				processing.decrementAndGet();
+				permits.release();
+			}
+
+		}
+
+		/**
+		 * Send the outcome of all finished jobs, and the touches due, in one batch.
+		 */
+		private void acknowledge() throws IOException {
+
+			if (acks.isEmpty()) {
+				return;
+			}
+
+			List<Ack> batch = new ArrayList<Ack>();
+			Ack ack;
+			while ((ack = acks.poll()) != null) {
+				batch.add(ack);
+			}
+
+			// How often the failed jobs have been released already decides between release and bury
+			Pipeline pipeline = beanstemc.pipeline();
+			for (Ack failed : batch) {
+				if (failed.action == RELEASE) {
+					pipeline.jobStats(failed.jobId);
+				}
+			}
+			Iterator<Pipeline.Result> stats = pipeline.execute().iterator();
+
+			for (Ack outcome : batch) {
+
+				switch (outcome.action) {
+				case DELETE:
+					pipeline.delete(outcome.jobId);
+					break;
+				case TOUCH:
+					pipeline.touch(outcome.jobId);
+					break;
+				default:
+					if (releases(stats.next()) >= maxReleases) {
+						pipeline.bury(outcome.jobId);
+					} else {
+						pipeline.release(outcome.jobId, Beanstemc.DEFAULT_PRIORITY, releaseDelay);
+					}
+				}
+
+			}
+
+			// NOT_FOUND means the TTR ran out, the job is someone else's now
+			pipeline.execute();
+
+		}
+
+		/**
+		 * @return Number of times the job has been released before, from its stats-job.
+		 */
+		private int releases(Pipeline.Result stats) {
+			return stats.isSuccess() ? (int)((JobStats)stats.getValue()).getReleases() : 0;
+		}
+
+		private void reconnect(IOException cause) throws InterruptedException {
+
+			errors.report(cause);
+
+			// Outcomes of jobs reserved on the broken connection cannot be sent any more
+			acks.clear();
+			try {
+				beanstemc.close();
+			} catch (IOException e) {
+				// Already broken
+			}
+
+			while (running) {
+
+				Thread.sleep(RECONNECT_DELAY);
+				try {
+					beanstemc = connect();
+					return;
+				} catch (IOException e) {
+					errors.report(e);
+				} catch (BeanstemcException e) {
+					errors.report(e);
+				}
+
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,141 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable buffers for job payloads.
+ *
+ * <pre>
+ * BufferPool pool = new BufferPool();
+ * beanstemc.setBufferPool(pool);
+ * Job job = beanstemc.reserve();
+ * ByteBuffer payload = job.getBuffer();
+ * ...
+ * beanstemc.delete(job);		// The buffer goes back to the pool
+ * </pre>
+ *
+ * Buffers come in power-of-two sizes, each size is kept in a bounded queue
+ * of its own. A request is served by the smallest size that fits, so a
+ * steady stream of similar payloads is read into the same few buffers and
+ * produces no garbage. Payloads larger than the largest pooled size are
+ * allocated for each job and left to the garbage collector.
+ *
+ * The pool is thread-safe and can be shared by many connections.
+ */
+public class BufferPool {
+
+	public static int DEFAULT_MAX_BUFFERS		= 64;
+	public static int DEFAULT_MAX_BUFFER_SIZE	= 1024 * 1024;
+
+	private static final int MIN_SHIFT = 6;
+
+	private final int maxBufferSize;
+	private final ArrayBlockingQueue<ByteBuffer>[] free;
+
+	private final AtomicLong allocated	= new AtomicLong();
+	private final AtomicLong reused		= new AtomicLong();
+
+	public BufferPool() {
+		this(DEFAULT_MAX_BUFFERS, DEFAULT_MAX_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param maxBuffers Number of free buffers kept per size.
+	 * @param maxBufferSize Largest buffer pooled, rounded up to a power of two.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(int maxBuffers, int maxBufferSize) {
+
+		this.maxBufferSize	= 1 << shift(maxBufferSize);
+		this.free			= new ArrayBlockingQueue[shift(maxBufferSize) - MIN_SHIFT + 1];
+		for (int i = 0; i < free.length; i++) {
+			free[i] = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
+		}
+
+	}
+
+	/**
+	 * @param size Number of bytes needed.
+	 * @return A heap buffer with position 0 and limit size, its capacity may be larger.
+	 */
+	public ByteBuffer acquire(int size) {
+
+		ByteBuffer buffer = null;
+		if (size <= maxBufferSize) {
+
+			buffer = free[shift(size) - MIN_SHIFT].poll();
+			if (buffer == null) {
+				buffer = ByteBuffer.allocate(1 << shift(size));
+				allocated.incrementAndGet();
+			} else {
+				reused.incrementAndGet();
+			}
+
+		} else {
+			buffer = ByteBuffer.allocate(size);
+			allocated.incrementAndGet();
+		}
+
+		buffer.clear().limit(size);
+		return buffer;
+
+	}
+
+	/**
+	 * Return a buffer obtained from {@link #acquire(int)}, it must not be used afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+
+		int capacity = buffer.capacity();
+		if (capacity > maxBufferSize || capacity != 1 << shift(capacity) || !buffer.hasArray()) {
+			return;		// Not one of ours
+		}
+		free[shift(capacity) - MIN_SHIFT].offer(buffer);
+
+	}
+
+	/**
+	 * @return Number of buffers allocated because none of the right size was free.
+	 */
+	public long getAllocatedCount() {
+		return allocated.get();
+	}
+
+	/**
+	 * @return Number of requests served with a buffer from the pool.
+	 */
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	/**
+	 * @return log2 of the smallest pooled size holding the given number of bytes, an empty payload included.
+	 */
+	private static int shift(int size) {
+		return Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+	}
+
+}
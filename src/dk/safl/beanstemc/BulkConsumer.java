@@ -0,0 +1,489 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reserves the jobs of some tubes over several connections, writes them to
+ * disk and deletes them.
+ *
+ * <pre>
+ * BulkConsumer consumer = new BulkConsumer("localhost", 11300, "emails");
+ * consumer.setConcurrency(4);
+ * consumer.setIdleTimeout(1);
+ * consumer.consume("/var/archive/emails-");
+ * </pre>
+ *
+ * Each connection reserves a batch of jobs with one pipelined round trip,
+ * writes the batch and only then deletes its jobs, again pipelined. A job
+ * is written to the file &lt;prefix&gt;&lt;id&gt;, or, with a rolling output, appended
+ * to &lt;prefix&gt;&lt;number&gt; with its length as a 4-byte big-endian integer
+ * before it, the format {@link BulkLoader} reads back. With sync, the
+ * writes of a batch are forced to disk before its jobs are deleted; without,
+ * a crash of the machine may lose jobs already deleted from the server.
+ *
+ * A batch which cannot be written is released, so its jobs are not held
+ * until their TTR runs out. A job may be written twice when a connection
+ * fails between the write and the delete, or when its TTR runs out during
+ * the write, so the server hands it out again; the latter are counted by
+ * {@link #getDuplicates()} and do not stop the consumer.
+ */
+public class BulkConsumer {
+
+	public static int	DEFAULT_CONCURRENCY	= 4;
+	public static int	DEFAULT_BATCH_SIZE	= 64;
+	public static long	DEFAULT_ROLL_SIZE	= 1L << 30;
+
+	private final String	host;
+	private final int		port;
+	private final String[]	tubes;
+
+	private int		concurrency	= DEFAULT_CONCURRENCY;
+	private int		batchSize	= DEFAULT_BATCH_SIZE;
+	private long	maxJobs		= Long.MAX_VALUE;
+	private int		idleTimeout	= -1;
+	private boolean	sync;
+	private long	rollSize;
+
+	private final AtomicLong	remaining	= new AtomicLong();
+	private final AtomicLong	consumed	= new AtomicLong();
+	private final AtomicLong	bytes		= new AtomicLong();
+	private final AtomicLong	duplicates	= new AtomicLong();
+	private volatile boolean	stopped;
+	private volatile Exception	failure;
+
+	// Rolling output shared by the connections, guarded by this
+	private String		prefix;
+	private FileChannel	output;
+	private int			outputNumber;
+
+	/**
+	 * @param tubes Tubes to watch, "default" is ignored unless given.
+	 */
+	public BulkConsumer(String host, int port, String... tubes) {
+
+		for (String tube : tubes) {
+			Beanstemc.checkTube(tube);
+		}
+		this.host	= host;
+		this.port	= port;
+		this.tubes	= tubes;
+
+	}
+
+	/**
+	 * @param concurrency Number of connections reserving in parallel.
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * @param batchSize Number of jobs reserved, written and deleted together.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param maxJobs Number of jobs after which to stop.
+	 */
+	public void setMaxJobs(long maxJobs) {
+		this.maxJobs = maxJobs;
+	}
+
+	/**
+	 * @param seconds Stop a connection when no job arrives for this long, 0 as soon as
+	 * 				no job is ready, -1 waits forever.
+	 */
+	public void setIdleTimeout(int seconds) {
+		this.idleTimeout = seconds;
+	}
+
+	/**
+	 * @param sync Force the writes of a batch to disk before its jobs are deleted.
+	 */
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * @param rollSize Append the jobs to numbered files of about this many bytes
+	 * 				instead of one file per job, 0 for one file per job.
+	 */
+	public void setRollSize(long rollSize) {
+		this.rollSize = rollSize;
+	}
+
+	/**
+	 * @return Number of jobs written and deleted.
+	 */
+	public long getConsumed() {
+		return consumed.get();
+	}
+
+	/**
+	 * @return Number of jobs written whose delete answered NOT_FOUND, as their TTR
+	 * 			ran out first; the server hands them out again, so they may be written twice.
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * @return Payload bytes of the jobs written.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Make {@link #consume(String)} return after the batches in progress.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Consume jobs until the maximum is reached, every connection has been idle
+	 * for the idle timeout, or {@link #stop()} is called.
+	 *
+	 * @param prefix Path and start of the name of the files written.
+	 * @return Number of jobs consumed.
+	 * @throws IOException When writing or a connection fails, the other connections stop too.
+	 */
+	public long consume(String prefix) throws IOException, BeanstemcException {
+
+		this.prefix	= prefix;
+		stopped		= false;
+		failure		= null;
+		remaining.set(maxJobs);
+		long start	= consumed.get();
+
+		File directory = new File(prefix).getAbsoluteFile().getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create the directory " + directory);
+		}
+
+		// Connect first, so an unreachable server fails at once
+		List<Thread>	threads		= new ArrayList<Thread>();
+		List<Beanstemc>	opened		= new ArrayList<Beanstemc>();
+		boolean			connected	= false;
+		try {
+
+			for (int i = 0; i < concurrency; i++) {
+
+				final Beanstemc beanstemc = connect();
+				opened.add(beanstemc);
+				threads.add(new Thread(new Runnable() {
+					public void run() {
+						reserve(beanstemc);
+					}
+				}, "beanstemc-consume-" + i));
+
+			}
+			connected = true;
+
+		} finally {
+			if (!connected) {
+				for (Beanstemc beanstemc : opened) {
+					close(beanstemc);
+				}
+			}
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				stopped = true;
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (this) {
+			if (output != null) {
+				output.close();
+				output = null;
+			}
+		}
+
+		if (failure instanceof IOException) {
+			throw (IOException)failure;
+		} else if (failure instanceof BeanstemcException) {
+			throw (BeanstemcException)failure;
+		}
+		return consumed.get() - start;
+
+	}
+
+	private Beanstemc connect() throws IOException, BeanstemcException {
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		try {
+
+			boolean watchDefault = false;
+			for (String tube : tubes) {
+				beanstemc.watch(tube);
+				watchDefault |= tube.equals("default");
+			}
+			if (!watchDefault && tubes.length > 0) {
+				beanstemc.ignore("default");
+			}
+
+		} catch (IOException e) {
+			close(beanstemc);
+			throw e;
+		} catch (BeanstemcException e) {
+			close(beanstemc);
+			throw e;
+		}
+		return beanstemc;
+
+	}
+
+	private static void close(Beanstemc beanstemc) {
+
+		try {
+			beanstemc.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+
+	}
+
+	/**
+	 * Reserve, write and delete batches on one connection.
+	 */
+	private void reserve(Beanstemc beanstemc) {
+
+		List<Job> batch	= new ArrayList<Job>(batchSize);
+		Pipeline pipeline	= beanstemc.pipeline();
+		int wait			= idleTimeout == 0 ? 0 : 1;
+		int idle			= 0;
+
+		pipeline.setMaxPending(batchSize + 1);
+		try {
+			while (!stopped && failure == null && (idleTimeout < 0 || idle < Math.max(idleTimeout, 1))) {
+
+				int claimed = claim();
+				if (claimed == 0) {
+					return;
+				}
+
+				// The first reserve waits for a job, one second at a time to notice a stop
+				pipeline.reserve(wait);
+				for (int i = 1; i < claimed; i++) {
+					pipeline.reserve(0);
+				}
+				for (Pipeline.Result result : pipeline.execute()) {
+					if (result.isSuccess()) {
+						batch.add((Job)result.getValue());
+					} else if (!result.getException().getMessage().equals("TIMED_OUT")
+							&& !result.getException().getMessage().equals("DEADLINE_SOON")) {
+						throw result.getException();
+					}
+				}
+				remaining.addAndGet(claimed - batch.size());
+
+				if (batch.isEmpty()) {
+					idle++;
+					continue;
+				}
+				idle = 0;
+
+				try {
+					write(batch);
+				} catch (IOException e) {
+					for (Job job : batch) {
+						pipeline.release(job);
+					}
+					pipeline.execute();
+					throw e;
+				}
+
+				for (Job job : batch) {
+					pipeline.delete(job);
+				}
+				int deleted = 0;
+				for (Pipeline.Result result : pipeline.execute()) {
+					if (result.isSuccess()) {
+						deleted++;
+					} else if (result.getException().getMessage().startsWith("NOT_FOUND")) {
+						duplicates.incrementAndGet();		// The TTR ran out during the write, it is already on disk
+					} else {
+						throw result.getException();
+					}
+				}
+
+				consumed.addAndGet(deleted);
+				batch.clear();
+
+			}
+		} catch (IOException e) {
+			fail(e);
+		} catch (BeanstemcException e) {
+			fail(e);
+		} finally {
+			try {
+				beanstemc.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+
+	}
+
+	/**
+	 * @return Number of jobs this connection may reserve without exceeding the maximum.
+	 */
+	private int claim() {
+
+		while (true) {
+			long left	= remaining.get();
+			int claimed	= (int)Math.min(left, batchSize);
+			if (claimed == 0 || remaining.compareAndSet(left, left - claimed)) {
+				return claimed;
+			}
+		}
+
+	}
+
+	private void fail(Exception e) {
+
+		synchronized (this) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+		stopped = true;
+
+	}
+
+	private void write(List<Job> batch) throws IOException {
+
+		long written = 0;
+		if (rollSize > 0) {
+			written = append(batch);
+		} else {
+			for (Job job : batch) {
+				written += write(job);
+			}
+		}
+		bytes.addAndGet(written);
+
+	}
+
+	/**
+	 * Write a job to a file of its own.
+	 */
+	private long write(Job job) throws IOException {
+
+		byte[] data = job.getData();
+
+		FileOutputStream out = new FileOutputStream(prefix + job.getId());
+		try {
+			FileChannel channel	= out.getChannel();
+			ByteBuffer buffer	= ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			if (sync) {
+				channel.force(false);
+			}
+		} finally {
+			out.close();
+		}
+
+		return data.length;
+
+	}
+
+	/**
+	 * Append a batch to the rolling output with one gathering write.
+	 */
+	private synchronized long append(List<Job> batch) throws IOException {
+
+		ByteBuffer[] buffers	= new ByteBuffer[2 * batch.size()];
+		ByteBuffer lengths		= ByteBuffer.allocate(4 * batch.size());
+		long size				= 0;
+		long data				= 0;
+
+		for (int i = 0; i < batch.size(); i++) {
+
+			byte[] job = batch.get(i).getData();
+			lengths.putInt(job.length);
+
+			ByteBuffer length = lengths.duplicate();
+			length.position(4 * i).limit(4 * i + 4);
+			buffers[2 * i]		= length;
+			buffers[2 * i + 1]	= ByteBuffer.wrap(job);
+
+			size += 4 + job.length;
+			data += job.length;
+
+		}
+
+		if (output == null || (output.position() > 0 && output.position() + size > rollSize)) {
+			roll();
+		}
+
+		while (size > 0) {
+			size -= output.write(buffers);
+		}
+		if (sync) {
+			output.force(false);
+		}
+
+		return data;
+
+	}
+
+	/**
+	 * Close the output and open the next numbered file, after those of earlier runs.
+	 */
+	private void roll() throws IOException {
+
+		if (output != null) {
+			output.close();
+		}
+
+		File file;
+		do {
+			file = new File(String.format("%s%06d", prefix, ++outputNumber));
+		} while (file.exists());
+
+		output = new FileOutputStream(file).getChannel();
+
+	}
+
+}
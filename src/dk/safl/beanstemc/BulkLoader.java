@@ -0,0 +1,628 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts every job of a file, a stream or a directory into one tube.
+ *
+ * <pre>
+ * BulkLoader loader = new BulkLoader("localhost", 11300, "emails");
+ * loader.setConnections(4);
+ * long offset = loader.load(new FileInputStream("emails.txt"), BulkLoader.Format.LINES, 0);
+ * </pre>
+ *
+ * The calling thread reads the jobs and cuts them into batches, which are
+ * pipelined by one thread per connection, so the jobs of one batch reach
+ * the tube in order, but batches may overtake each other unless one
+ * connection is used. Jobs refused by the server, e.g. with JOB_TOO_BIG,
+ * are counted and skipped.
+ *
+ * The offset is the position in the input up to which every job has been
+ * inserted: bytes of a stream, files of a directory. When a connection
+ * fails the load stops, and passing {@link #getOffset()} to the next load
+ * resumes it; jobs of the batches in flight beyond the offset may then be
+ * put twice, but none are lost.
+ */
+public class BulkLoader {
+
+	public static int DEFAULT_CONNECTIONS	= 4;
+	public static int DEFAULT_BATCH_SIZE	= 256;
+
+	/**
+	 * Layout of the jobs in the input.
+	 */
+	public enum Format {
+
+		/** One job per line, the line feed and a carriage return before it are not part of the job, empty lines are skipped. */
+		LINES,
+		/** Each job preceded by its length as a 4-byte big-endian integer. */
+		LENGTH_PREFIXED,
+		/** One job per file of a directory, in the order of the file names. */
+		DIRECTORY
+
+	}
+
+	/**
+	 * Jobs read from the input, with the offset after the last one.
+	 */
+	private static class Batch {
+
+		final long			sequence;
+		final List<byte[]>	jobs;
+		final long			end;
+
+		Batch(long sequence, List<byte[]> jobs, long end) {
+			this.sequence	= sequence;
+			this.jobs		= jobs;
+			this.end		= end;
+		}
+
+	}
+
+	private static final Batch END = new Batch(-1, null, 0);
+
+	private final String	host;
+	private final int		port;
+	private final String	tube;
+
+	private int		connections	= DEFAULT_CONNECTIONS;
+	private int		batchSize	= DEFAULT_BATCH_SIZE;
+	private long	priority	= Beanstemc.DEFAULT_PRIORITY;
+	private int		delay		= Beanstemc.DEFAULT_DELAY;
+	private int		ttr			= Beanstemc.DEFAULT_TTR;
+
+	private final AtomicLong	loaded	= new AtomicLong();
+	private final AtomicLong	failed	= new AtomicLong();
+	private final AtomicLong	bytes	= new AtomicLong();
+
+	// Batches completed out of order, guarded by this
+	private final Map<Long, Long>	completed	= new HashMap<Long, Long>();
+	private long					next;
+	private volatile long			offset;
+
+	private volatile IOException failure;
+
+	/**
+	 * @param tube Tube the jobs are put into.
+	 */
+	public BulkLoader(String host, int port, String tube) {
+
+		Beanstemc.checkTube(tube);
+		this.host	= host;
+		this.port	= port;
+		this.tube	= tube;
+
+	}
+
+	/**
+	 * @param connections Number of connections putting batches in parallel.
+	 */
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * @param batchSize Number of jobs pipelined before their responses are read.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Priority, delay and time-to-run of every job.
+	 *
+	 * @see Beanstemc#put(byte[], long, int, int)
+	 */
+	public void setJobOptions(long priority, int delay, int ttr) {
+
+		this.priority	= priority;
+		this.delay		= delay;
+		this.ttr		= ttr;
+
+	}
+
+	/**
+	 * @return Number of jobs inserted.
+	 */
+	public long getLoaded() {
+		return loaded.get();
+	}
+
+	/**
+	 * @return Number of jobs refused by the server.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return Payload bytes of the jobs inserted.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return Offset in the input up to which every job has been put, to resume a load from.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Load the jobs of a stream.
+	 *
+	 * @param format {@link Format#LINES} or {@link Format#LENGTH_PREFIXED}.
+	 * @param offset Bytes of the stream to skip, the offset of a previous load.
+	 * @return The offset after the last job, the end of the stream.
+	 * @throws IOException When reading the input or a connection fails, see {@link #getOffset()}.
+	 */
+	public long load(InputStream in, Format format, long offset) throws IOException {
+
+		Source source;
+		if (format == Format.LINES) {
+			source = new Lines(in);
+		} else if (format == Format.LENGTH_PREFIXED) {
+			source = new LengthPrefixed(in);
+		} else {
+			throw new IllegalArgumentException("A stream holds lines or length-prefixed jobs.");
+		}
+
+		source.skip(offset);
+		return run(source, offset);
+
+	}
+
+	/**
+	 * Load a file of jobs, or a directory with one job per file.
+	 *
+	 * @param format Layout of a file, ignored for a directory.
+	 * @param offset Bytes of a file or files of a directory to skip, the offset of a previous load.
+	 * @see #load(InputStream, Format, long)
+	 */
+	public long load(File file, Format format, long offset) throws IOException {
+
+		if (file.isDirectory()) {
+			return run(new Directory(file, (int)offset), offset);
+		}
+
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return load(in, format, offset);		// A file skips by seeking
+		} finally {
+			in.close();
+		}
+
+	}
+
+	/**
+	 * Read batches on the calling thread and put them on the connections.
+	 */
+	private long run(Source source, long start) throws IOException {
+
+		synchronized (this) {
+			completed.clear();
+			next	= 0;
+			offset	= start;
+			failure	= null;
+		}
+
+		final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(2 * connections);
+
+		// Connect first, so an unreachable server fails the load at once
+		List<Thread>	threads		= new ArrayList<Thread>();
+		List<Beanstemc>	opened		= new ArrayList<Beanstemc>();
+		boolean			connected	= false;
+		try {
+
+			for (int i = 0; i < connections; i++) {
+
+				final Beanstemc beanstemc = new Beanstemc(host, port);
+				opened.add(beanstemc);
+				threads.add(new Thread(new Runnable() {
+					public void run() {
+						put(beanstemc, queue);
+					}
+				}, "beanstemc-load-" + i));
+
+			}
+			connected = true;
+
+		} finally {
+			if (!connected) {
+				for (Beanstemc beanstemc : opened) {
+					close(beanstemc);
+				}
+			}
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		long sequence	= 0;
+		long end		= start;
+		try {
+
+			List<byte[]> jobs = new ArrayList<byte[]>(batchSize);
+			byte[] job;
+			while (failure == null && (job = source.next()) != null) {
+
+				jobs.add(job);
+				if (jobs.size() == batchSize) {
+					offer(queue, new Batch(sequence++, jobs, start + source.offset()));
+					jobs = new ArrayList<byte[]>(batchSize);
+				}
+
+			}
+			if (!jobs.isEmpty()) {
+				offer(queue, new Batch(sequence++, jobs, start + source.offset()));
+			}
+			end = start + source.offset();
+
+		} finally {
+
+			for (int i = 0; i < connections; i++) {
+				offer(queue, END);
+			}
+			for (Thread thread : threads) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+		return end;
+
+	}
+
+	/**
+	 * Queue a batch, unless a connection has failed and nobody is taking them.
+	 */
+	private void offer(BlockingQueue<Batch> queue, Batch batch) throws IOException {
+
+		try {
+			while (failure == null && !queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+				// Waiting for a connection to take one
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Load interrupted.");
+		}
+
+	}
+
+	private static void close(Beanstemc beanstemc) {
+
+		try {
+			beanstemc.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+
+	}
+
+	/**
+	 * Pipeline the batches of the queue on one connection.
+	 */
+	private void put(Beanstemc beanstemc, BlockingQueue<Batch> queue) {
+
+		try {
+
+			beanstemc.use(tube);
+			Pipeline pipeline = beanstemc.pipeline();
+			pipeline.setMaxPending(batchSize + 1);
+
+			Batch batch;
+			while (failure == null && (batch = queue.poll(100, TimeUnit.MILLISECONDS)) != END) {
+
+				if (batch == null) {
+					continue;
+				}
+
+				for (byte[] job : batch.jobs) {
+					pipeline.put(job, priority, delay, ttr);
+				}
+
+				int i = 0;
+				for (Pipeline.Result result : pipeline.execute()) {
+					if (result.isSuccess()) {
+						loaded.incrementAndGet();
+						bytes.addAndGet(batch.jobs.get(i).length);
+					} else {
+						failed.incrementAndGet();
+					}
+					i++;
+				}
+				complete(batch);
+
+			}
+
+		} catch (IOException e) {
+			fail(e);
+		} catch (BeanstemcException e) {
+			fail(new IOException(e.getMessage(), e));
+		} catch (InterruptedException e) {
+			fail(new IOException("Load interrupted."));
+		} finally {
+			try {
+				beanstemc.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+
+	}
+
+	/**
+	 * Advance the offset over the batches completed without a gap.
+	 */
+	private synchronized void complete(Batch batch) {
+
+		completed.put(batch.sequence, batch.end);
+
+		Long end;
+		while ((end = completed.remove(next)) != null) {
+			offset = end;
+			next++;
+		}
+
+	}
+
+	private synchronized void fail(IOException e) {
+
+		if (failure == null) {
+			failure = e;
+		}
+
+	}
+
+	/**
+	 * Jobs of the input, in order.
+	 */
+	private static abstract class Source {
+
+		/**
+		 * @return The next job, null at the end of the input.
+		 */
+		abstract byte[] next() throws IOException;
+
+		/**
+		 * @return Position in the input after the last job returned.
+		 */
+		abstract long offset();
+
+		abstract void skip(long offset) throws IOException;
+
+	}
+
+	private static class Lines extends Source {
+
+		private final InputStream	in;
+		private byte[]				buffer	= new byte[64 * 1024];
+		private int					position;		// Start of the next line
+		private int					scanned;		// Bytes after it known to hold no line feed
+		private int					limit;
+		private long				consumed;		// Bytes of the input before the buffer
+
+		Lines(InputStream in) {
+			this.in = in;
+		}
+
+		byte[] next() throws IOException {
+
+			while (true) {
+
+				int i = position + scanned;
+				while (i < limit && buffer[i] != '\n') {
+					i++;
+				}
+
+				if (i < limit) {
+					byte[] line	= line(position, i);
+					position	= i + 1;
+					scanned		= 0;
+					if (line.length > 0) {
+						return line;
+					}
+					continue;		// Empty line
+				}
+				scanned = i - position;
+
+				// Move the start of the line to the front, grow the buffer for a line which fills it
+				if (position > 0) {
+					System.arraycopy(buffer, position, buffer, 0, limit - position);
+					consumed	+= position;
+					limit		-= position;
+					position	= 0;
+				} else if (limit == buffer.length) {
+					buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+				}
+
+				int n = in.read(buffer, limit, buffer.length - limit);
+				if (n < 0) {
+					if (position == limit) {
+						return null;
+					}
+					byte[] line	= line(position, limit);		// Last line, without a line feed
+					position	= limit;
+					scanned		= 0;
+					return line.length > 0 ? line : null;
+				}
+				limit += n;
+
+			}
+
+		}
+
+		private byte[] line(int from, int to) {
+
+			if (to > from && buffer[to - 1] == '\r') {
+				to--;
+			}
+			return Arrays.copyOfRange(buffer, from, to);
+
+		}
+
+		long offset() {
+			return consumed + position;
+		}
+
+		void skip(long offset) throws IOException {
+			skipFully(in, offset);
+		}
+
+	}
+
+	private static class LengthPrefixed extends Source {
+
+		private final DataInputStream	in;
+		private long					offset;
+
+		LengthPrefixed(InputStream in) {
+			this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+		}
+
+		byte[] next() throws IOException {
+
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return null;
+			}
+			if (length < 0) {
+				throw new IOException(String.format("Bad job length at offset %d [LENGTH=%d]", offset, length));
+			}
+
+			byte[] job = new byte[length];
+			in.readFully(job);
+			offset += 4 + length;
+
+			return job;
+
+		}
+
+		long offset() {
+			return offset;
+		}
+
+		void skip(long offset) throws IOException {
+			skipFully(in, offset);
+		}
+
+	}
+
+	private static class Directory extends Source {
+
+		private final File[]	files;
+		private final int		skipped;
+		private int				index;
+
+		Directory(File directory, int skip) throws IOException {
+
+			File[] listed = directory.listFiles();
+			if (listed == null) {
+				throw new IOException("Cannot list " + directory);
+			}
+
+			List<File> jobs = new ArrayList<File>();
+			for (File file : listed) {
+				if (file.isFile()) {
+					jobs.add(file);
+				}
+			}
+			files = jobs.toArray(new File[jobs.size()]);
+			Arrays.sort(files);
+			skipped	= Math.min(skip, files.length);
+			index	= skipped;
+
+		}
+
+		byte[] next() throws IOException {
+
+			if (index == files.length) {
+				return null;
+			}
+
+			File file = files[index];
+			byte[] job = new byte[(int)file.length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				in.readFully(job);
+			} finally {
+				in.close();
+			}
+			index++;
+
+			return job;
+
+		}
+
+		long offset() {
+			return index - skipped;		// Counted from the offset, as for streams
+		}
+
+		void skip(long offset) {
+			// Done when listing
+		}
+
+	}
+
+	private static void skipFully(InputStream in, long bytes) throws IOException {
+
+		while (bytes > 0) {
+			long skipped = in.skip(bytes);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException("Offset beyond the end of the input.");
+				}
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+
+	}
+
+}
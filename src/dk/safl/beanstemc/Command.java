@@ -0,0 +1,66 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+/**
+ * The commands a {@link Beanstemc} keeps {@link Metrics} for.
+ *
+ * The peek variants are counted as one command, so are "reserve" and
+ * "reserve-with-timeout".
+ */
+public enum Command {
+
+	PUT("put", Response.INSERTED),
+	USE("use", Response.USING),
+	RESERVE("reserve", Response.RESERVED),
+	PEEK("peek", Response.FOUND),
+	DELETE("delete", Response.DELETED),
+	RELEASE("release", Response.RELEASED),
+	BURY("bury", Response.BURIED),
+	TOUCH("touch", Response.TOUCHED),
+	WATCH("watch", Response.WATCHING),
+	IGNORE("ignore", Response.WATCHING),
+	KICK("kick", Response.KICKED),
+	STATS("stats", Response.OK),
+	STATS_JOB("stats-job", Response.OK),
+	STATS_TUBE("stats-tube", Response.OK),
+	LIST_TUBES("list-tubes", Response.OK),
+	LIST_TUBE_USED("list-tube-used", Response.USING),
+	LIST_TUBES_WATCHED("list-tubes-watched", Response.OK),
+	PAUSE_TUBE("pause-tube", Response.PAUSED);
+
+	private final String	name;
+	final Response			success;
+
+	private Command(String name, Response success) {
+		this.name		= name;
+		this.success	= success;
+	}
+
+	/**
+	 * @return The command as it is named in the protocol, e.g. "stats-job".
+	 */
+	public String getName() {
+		return name;
+	}
+
+}
@@ -0,0 +1,144 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What a {@link Metrics} has recorded for one command.
+ *
+ * Counters only grow, an exporter which reports rates subtracts the values
+ * it read last time. The counters are read one by one while they may still
+ * be updated, so they are not a consistent snapshot of a single instant.
+ */
+public class CommandMetrics {
+
+	private static final Response[] RESPONSES = Response.values();
+
+	private final Command command;
+
+	private final AtomicLong		calls		= new AtomicLong();
+	private final AtomicLongArray	errors		= new AtomicLongArray(RESPONSES.length);
+	private final AtomicLong		bytesIn		= new AtomicLong();
+	private final AtomicLong		bytesOut	= new AtomicLong();
+	private final LatencyHistogram	latency		= new LatencyHistogram();
+
+	CommandMetrics(Command command) {
+		this.command = command;
+	}
+
+	void sent(int bytes) {
+		bytesOut.addAndGet(bytes);
+	}
+
+	void received(Response response, long nanos, int bytes) {
+
+		calls.incrementAndGet();
+		if (response != command.success) {
+			errors.incrementAndGet(response.ordinal());
+		}
+		bytesIn.addAndGet(bytes);
+		latency.record(nanos);
+
+	}
+
+	public Command getCommand() {
+		return command;
+	}
+
+	/**
+	 * @return Number of responses received, errors included.
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+
+	/**
+	 * @return Number of error responses received.
+	 */
+	public long getErrors() {
+
+		long total = 0;
+		for (int i = 0; i < RESPONSES.length; i++) {
+			total += errors.get(i);
+		}
+		return total;
+
+	}
+
+	/**
+	 * @param token The first word of the error response, e.g. "TIMED_OUT".
+	 * @return Number of times the command was answered with it.
+	 */
+	public long getErrors(String token) {
+
+		for (Response response : RESPONSES) {
+			if (response.name().equals(token)) {
+				return errors.get(response.ordinal());
+			}
+		}
+		return 0;
+
+	}
+
+	/**
+	 * @return The number of error responses by token, only tokens which have been received are included.
+	 */
+	public Map<String, Long> getErrorsByToken() {
+
+		Map<String, Long> byToken = new LinkedHashMap<String, Long>();
+		for (Response response : RESPONSES) {
+			long count = errors.get(response.ordinal());
+			if (count > 0) {
+				byToken.put(response.name(), count);
+			}
+		}
+		return byToken;
+
+	}
+
+	/**
+	 * @return Bytes received in responses, job bodies and YAML included.
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/**
+	 * @return Bytes sent in commands, job bodies included.
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * @return Latency from writing the command to reading its response line, in nanoseconds.
+	 * 			Pipelined commands include the time they waited in the pipeline.
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+}
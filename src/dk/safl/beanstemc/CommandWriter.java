@@ -0,0 +1,478 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Encodes commands into a reusable output buffer.
+ *
+ * There is one method per protocol command. Verbs are kept as pre-encoded
+ * byte arrays and numeric arguments are formatted digit by digit straight
+ * into the buffer, so encoding a command allocates nothing. The buffer is only written to the connection on
+ * {@link #flush()}, or when it runs full, which lets a "put" go out as one
+ * write of header, payload and CRLF, and a pipeline as one write of many
+ * commands.
+ *
+ * The buffer grows to hold a whole command with its payload, up to
+ * MAX_BUFFER_SIZE; payloads larger than that are written through to the
+ * connection directly instead of being copied.
+ */
+class CommandWriter {
+
+	public static int DEFAULT_BUFFER_SIZE	= 8192;
+	public static int MAX_BUFFER_SIZE		= 128 * 1024;
+
+	private static final byte[] PUT					= ascii("put ");
+	private static final byte[] USE					= ascii("use ");
+	private static final byte[] RESERVE				= ascii("reserve");
+	private static final byte[] RESERVE_WITH_TIMEOUT = ascii("reserve-with-timeout ");
+	private static final byte[] DELETE				= ascii("delete ");
+	private static final byte[] RELEASE				= ascii("release ");
+	private static final byte[] BURY				= ascii("bury ");
+	private static final byte[] TOUCH				= ascii("touch ");
+	private static final byte[] WATCH				= ascii("watch ");
+	private static final byte[] IGNORE				= ascii("ignore ");
+	private static final byte[] PEEK				= ascii("peek ");
+	private static final byte[] PEEK_READY			= ascii("peek-ready");
+	private static final byte[] PEEK_DELAYED		= ascii("peek-delayed");
+	private static final byte[] PEEK_BURIED			= ascii("peek-buried");
+	private static final byte[] KICK				= ascii("kick ");
+	private static final byte[] STATS				= ascii("stats");
+	private static final byte[] STATS_JOB			= ascii("stats-job ");
+	private static final byte[] STATS_TUBE			= ascii("stats-tube ");
+	private static final byte[] LIST_TUBES			= ascii("list-tubes");
+	private static final byte[] LIST_TUBE_USED		= ascii("list-tube-used");
+	private static final byte[] LIST_TUBES_WATCHED	= ascii("list-tubes-watched");
+	private static final byte[] PAUSE_TUBE			= ascii("pause-tube ");
+	private static final byte[] QUIT				= ascii("quit");
+
+	private static final byte[] CRLF = ascii("\r\n");
+
+	private OutputStream out;
+
+	private byte[]	buf;
+	private int		count;
+	private long	drained;
+
+	CommandWriter(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	CommandWriter(OutputStream out, int bufferSize) {
+		this.out	= out;
+		this.buf	= new byte[bufferSize];
+	}
+
+	/**
+	 * Append a pre-encoded verb.
+	 */
+	CommandWriter verb(byte[] verb) throws IOException {
+
+		ensure(verb.length);
+		System.arraycopy(verb, 0, buf, count, verb.length);
+		count += verb.length;
+
+		return this;
+
+	}
+
+	CommandWriter space() throws IOException {
+
+		ensure(1);
+		buf[count++] = ' ';
+
+		return this;
+
+	}
+
+	/**
+	 * Append a number in decimal.
+	 */
+	CommandWriter number(long value) throws IOException {
+
+		ensure(20);
+
+		if (value < 0) {
+			if (value == Long.MIN_VALUE) {
+				return verb(ascii(Long.toString(value)));
+			}
+			buf[count++] = '-';
+			value = -value;
+		}
+
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+
+		int i = count + digits;
+		do {
+			buf[--i] = (byte)('0' + (value % 10));
+			value /= 10;
+		} while (value > 0);
+		count += digits;
+
+		return this;
+
+	}
+
+	/**
+	 * Append a string argument such as a tube name, these are restricted to ASCII by the protocol.
+	 */
+	CommandWriter string(String value) throws IOException {
+
+		int length = value.length();
+		ensure(length);
+		for (int i = 0; i < length; i++) {
+			buf[count++] = (byte)value.charAt(i);
+		}
+
+		return this;
+
+	}
+
+	CommandWriter crlf() throws IOException {
+		return verb(CRLF);
+	}
+
+	/**
+	 * Append a job body.
+	 */
+	CommandWriter data(byte[] data, int offset, int length) throws IOException {
+
+		if (length > MAX_BUFFER_SIZE) {
+			drain();
+			out.write(data, offset, length);
+			drained += length;
+			return this;
+		}
+
+		ensure(length);
+		System.arraycopy(data, offset, buf, count, length);
+		count += length;
+
+		return this;
+
+	}
+
+	/**
+	 * Append the remaining bytes of a buffer, leaving its position as it is.
+	 *
+	 * Heap buffers are written like arrays, direct buffers are copied into
+	 * the output buffer piece by piece, so neither is copied to a new array.
+	 */
+	CommandWriter data(ByteBuffer data) throws IOException {
+
+		if (data.hasArray()) {
+			return data(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		}
+
+		int position	= data.position();
+		int remaining	= data.remaining();
+		try {
+
+			while (remaining > 0) {
+
+				int n = Math.min(remaining, MAX_BUFFER_SIZE);
+				ensure(n);
+				data.get(buf, count, n);
+				count		+= n;
+				remaining	-= n;
+
+			}
+
+		} finally {
+			data.position(position);
+		}
+
+		return this;
+
+	}
+
+	/**
+	 * The command line of a "put" whose body is streamed afterwards, see the transfer methods.
+	 */
+	CommandWriter putHeader(long priority, int delay, int ttr, long length) throws IOException {
+		return verb(PUT).number(priority).space().number(delay).space().number(ttr).space().number(length).crlf();
+	}
+
+	/**
+	 * Copy length bytes from a stream to the connection, through the output buffer.
+	 *
+	 * @throws IOException Also when the stream ends early, the command is then incomplete.
+	 */
+	CommandWriter transfer(InputStream data, long length) throws IOException {
+
+		drain();
+		long remaining = length;
+		while (remaining > 0) {
+
+			int n = data.read(buf, 0, (int)Math.min(remaining, buf.length));
+			if (n < 0) {
+				throw new IOException(String.format("Premature end-of-stream, %d of %d bytes of job data missing.", remaining, length));
+			}
+			out.write(buf, 0, n);
+			drained		+= n;
+			remaining	-= n;
+
+		}
+
+		return this;
+
+	}
+
+	/**
+	 * Copy length bytes from a channel to the connection, through the output buffer.
+	 *
+	 * @throws IOException Also when the channel ends early, the command is then incomplete.
+	 */
+	CommandWriter transfer(ReadableByteChannel data, long length) throws IOException {
+
+		drain();
+		ByteBuffer window	= ByteBuffer.wrap(buf);
+		long remaining		= length;
+		while (remaining > 0) {
+
+			window.clear().limit((int)Math.min(remaining, buf.length));
+			int n = data.read(window);
+			if (n < 0) {
+				throw new IOException(String.format("Premature end-of-stream, %d of %d bytes of job data missing.", remaining, length));
+			}
+			out.write(buf, 0, n);
+			drained		+= n;
+			remaining	-= n;
+
+		}
+
+		return this;
+
+	}
+
+	/**
+	 * Send a region of a file straight to the connection's channel with
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which
+	 * lets the operating system copy it without passing through the heap.
+	 *
+	 * @throws IOException Also when the file ends early, the command is then incomplete.
+	 */
+	CommandWriter transfer(FileChannel file, long position, long length, WritableByteChannel target) throws IOException {
+
+		flush();
+		long sent = 0;
+		while (sent < length) {
+
+			long n = file.transferTo(position + sent, length - sent, target);
+			if (n <= 0 && position + sent >= file.size()) {
+				throw new IOException(String.format("Premature end-of-file, %d of %d bytes of job data missing.", length - sent, length));
+			}
+			sent	+= n;
+			drained	+= n;
+
+		}
+
+		return this;
+
+	}
+
+	CommandWriter put(long priority, int delay, int ttr, ByteBuffer data) throws IOException {
+
+		verb(PUT).number(priority).space().number(delay).space().number(ttr).space().number(data.remaining()).crlf();
+		return data(data).crlf();
+
+	}
+
+	CommandWriter put(long priority, int delay, int ttr, byte[] data, int offset, int length) throws IOException {
+
+		verb(PUT).number(priority).space().number(delay).space().number(ttr).space().number(length).crlf();
+		return data(data, offset, length).crlf();
+
+	}
+
+	CommandWriter use(String tube) throws IOException {
+		return verb(USE).string(tube).crlf();
+	}
+
+	CommandWriter reserve() throws IOException {
+		return verb(RESERVE).crlf();
+	}
+
+	CommandWriter reserve(int timeout) throws IOException {
+		return verb(RESERVE_WITH_TIMEOUT).number(timeout).crlf();
+	}
+
+	CommandWriter delete(long jobId) throws IOException {
+		return verb(DELETE).number(jobId).crlf();
+	}
+
+	CommandWriter release(long jobId, long priority, int delay) throws IOException {
+		return verb(RELEASE).number(jobId).space().number(priority).space().number(delay).crlf();
+	}
+
+	CommandWriter bury(long jobId, long priority) throws IOException {
+		return verb(BURY).number(jobId).space().number(priority).crlf();
+	}
+
+	CommandWriter touch(long jobId) throws IOException {
+		return verb(TOUCH).number(jobId).crlf();
+	}
+
+	CommandWriter watch(String tube) throws IOException {
+		return verb(WATCH).string(tube).crlf();
+	}
+
+	CommandWriter ignore(String tube) throws IOException {
+		return verb(IGNORE).string(tube).crlf();
+	}
+
+	CommandWriter peek(long jobId) throws IOException {
+		return verb(PEEK).number(jobId).crlf();
+	}
+
+	CommandWriter peekReady() throws IOException {
+		return verb(PEEK_READY).crlf();
+	}
+
+	CommandWriter peekDelayed() throws IOException {
+		return verb(PEEK_DELAYED).crlf();
+	}
+
+	CommandWriter peekBuried() throws IOException {
+		return verb(PEEK_BURIED).crlf();
+	}
+
+	CommandWriter kick(int bound) throws IOException {
+		return verb(KICK).number(bound).crlf();
+	}
+
+	CommandWriter stats() throws IOException {
+		return verb(STATS).crlf();
+	}
+
+	CommandWriter statsJob(long jobId) throws IOException {
+		return verb(STATS_JOB).number(jobId).crlf();
+	}
+
+	CommandWriter statsTube(String tube) throws IOException {
+		return verb(STATS_TUBE).string(tube).crlf();
+	}
+
+	CommandWriter listTubes() throws IOException {
+		return verb(LIST_TUBES).crlf();
+	}
+
+	CommandWriter listTubeUsed() throws IOException {
+		return verb(LIST_TUBE_USED).crlf();
+	}
+
+	CommandWriter listTubesWatched() throws IOException {
+		return verb(LIST_TUBES_WATCHED).crlf();
+	}
+
+	CommandWriter pauseTube(String tube, int delay) throws IOException {
+		return verb(PAUSE_TUBE).string(tube).space().number(delay).crlf();
+	}
+
+	CommandWriter quit() throws IOException {
+		return verb(QUIT).crlf();
+	}
+
+	/**
+	 * Write everything buffered to the connection.
+	 *
+	 * @throws IOException
+	 */
+	void flush() throws IOException {
+
+		drain();
+		out.flush();
+
+	}
+
+	/**
+	 * @return Number of bytes buffered and not yet written.
+	 */
+	int buffered() {
+		return count;
+	}
+
+	/**
+	 * @return Number of bytes of all commands encoded so far, written or still buffered.
+	 */
+	long written() {
+		return drained + count;
+	}
+
+	/**
+	 * Make room for n more bytes, growing the buffer while a single write
+	 * of the buffered commands stays within MAX_BUFFER_SIZE.
+	 */
+	private void ensure(int n) throws IOException {
+
+		if (buf.length - count >= n) {
+			return;
+		}
+
+		if (count + n <= MAX_BUFFER_SIZE) {
+
+			byte[] grown = new byte[Math.min(MAX_BUFFER_SIZE, Math.max(buf.length * 2, count + n))];
+			System.arraycopy(buf, 0, grown, 0, count);
+			buf = grown;
+
+		} else {
+
+			drain();
+			if (n > buf.length) {
+				buf = new byte[n];
+			}
+
+		}
+
+	}
+
+	private void drain() throws IOException {
+
+		if (count > 0) {
+			out.write(buf, 0, count);
+			drained	+= count;
+			count	= 0;
+		}
+
+	}
+
+	static byte[] ascii(String value) {
+
+		byte[] bytes = new byte[value.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)value.charAt(i);
+		}
+		return bytes;
+
+	}
+
+}
@@ -0,0 +1,56 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+
+/**
+ * The connection broke while a command which must not be sent twice was
+ * outstanding, so whether the server carried it out is unknown.
+ *
+ * A "put" may have inserted the job, a "delete" may have deleted it. The
+ * connection is re-established, or will be on the next command, only the
+ * decision whether to send the command again is left to the caller.
+ *
+ * @see ResilientBeanstemc
+ */
+public class ConnectionLostException extends IOException {
+
+	private static final long serialVersionUID = 6310432265712208914L;
+
+	private final Command command;
+
+	public ConnectionLostException(Command command, IOException cause) {
+
+		super("Connection lost during " + command.getName() + ", its outcome is unknown.", cause);
+		this.command = command;
+
+	}
+
+	/**
+	 * @return The command whose outcome is unknown.
+	 */
+	public Command getCommand() {
+		return command;
+	}
+
+}
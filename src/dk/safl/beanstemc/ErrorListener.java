@@ -0,0 +1,38 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+/**
+ * Told about errors met on the background threads of the client, which have
+ * nobody to throw them to. The thread carries on, reconnecting or retrying
+ * as it would anyway.
+ */
+public interface ErrorListener {
+
+	/**
+	 * Invoked on the background thread, it should return quickly.
+	 *
+	 * @param e The error, an IOException when the connection was lost.
+	 */
+	void error(Exception e);
+
+}
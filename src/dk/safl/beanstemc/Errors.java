@@ -0,0 +1,63 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Errors met on a background thread, counted and handed to the {@link ErrorListener}, if any.
+ */
+class Errors {
+
+	private final AtomicLong			count	= new AtomicLong();
+	private volatile Exception		last;
+	private volatile ErrorListener	listener;
+
+	void setListener(ErrorListener listener) {
+		this.listener = listener;
+	}
+
+	long getCount() {
+		return count.get();
+	}
+
+	Exception getLast() {
+		return last;
+	}
+
+	void report(Exception e) {
+
+		count.incrementAndGet();
+		last = e;
+
+		ErrorListener listener = this.listener;
+		if (listener != null) {
+			try {
+				listener.error(e);
+			} catch (RuntimeException thrown) {
+				// Keep the background thread going
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,225 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single I/O thread driving any number of {@link AsyncBeanstemc} connections.
+ *
+ * The thread waits on a selector for the connections to become readable or
+ * writable. Work from other threads, such as newly submitted commands, is
+ * handed over through a queue of tasks and a selector wake-up; the wake-up is
+ * only issued when the loop may be sleeping, so a burst of submissions costs
+ * one wake-up.
+ *
+ * One or two loops are enough for hundreds of connections, as the thread
+ * does nothing but copy bytes between the sockets and the decoders.
+ */
+public class EventLoop {
+
+	private static EventLoop defaultLoop;
+
+	private final Selector	selector;
+	private final Thread	thread;
+
+	private final ConcurrentLinkedQueue<Runnable>	tasks	= new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean						wakeup	= new AtomicBoolean();
+
+	private final Errors errors = new Errors();
+
+	private volatile boolean running = true;
+
+	/**
+	 * Callback for a channel registered with the loop.
+	 */
+	interface Handler {
+
+		/**
+		 * Invoked on the loop thread when the channel is ready for the operations it is registered for.
+		 */
+		void ready(SelectionKey key);
+
+		/**
+		 * Invoked on the loop thread when the loop is closed.
+		 */
+		void closed();
+
+	}
+
+	public EventLoop() throws IOException {
+		this("beanstemc-io");
+	}
+
+	/**
+	 * @param name Name of the I/O thread.
+	 * @throws IOException If no selector can be opened.
+	 */
+	public EventLoop(String name) throws IOException {
+
+		selector	= Selector.open();
+		thread		= new Thread(new Runnable() {
+			public void run() {
+				loop();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+
+	}
+
+	/**
+	 * @return A loop shared by connections created without an explicit loop, started on first use.
+	 * @throws IOException
+	 */
+	public static synchronized EventLoop getDefault() throws IOException {
+
+		if (defaultLoop == null || !defaultLoop.running) {
+			defaultLoop = new EventLoop("beanstemc-io-default");
+		}
+		return defaultLoop;
+
+	}
+
+	/**
+	 * Run a task on the loop thread.
+	 *
+	 * @return false if the loop has stopped, the task will never run.
+	 */
+	boolean execute(Runnable task) {
+
+		tasks.add(task);
+
+		// Added after the last run of the tasks of a stopping loop, take it back
+		if (!running && tasks.remove(task)) {
+			return false;
+		}
+		if (Thread.currentThread() != thread && wakeup.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Register a channel, must be called on the loop thread.
+	 */
+	SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+		return channel.register(selector, ops, handler);
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * @param listener Told about a failing selector, which stops the loop, and about tasks throwing.
+	 */
+	public void setErrorListener(ErrorListener listener) {
+		errors.setListener(listener);
+	}
+
+	/**
+	 * @return Number of errors met on the I/O thread.
+	 */
+	public long getErrorCount() {
+		return errors.getCount();
+	}
+
+	/**
+	 * @return The last error met on the I/O thread, null if none.
+	 */
+	public Exception getLastError() {
+		return errors.getLast();
+	}
+
+	/**
+	 * Stop the I/O thread, connections still registered are closed.
+	 */
+	public void close() {
+
+		running = false;
+		selector.wakeup();
+
+	}
+
+	private void loop() {
+
+		while (running) {
+
+			try {
+				selector.select();
+			} catch (IOException e) {
+				errors.report(e);
+				break;
+			}
+
+			wakeup.set(false);
+			runTasks();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid()) {
+					((Handler)key.attachment()).ready(key);
+				}
+
+			}
+
+		}
+
+		running = false;
+		runTasks();
+		for (SelectionKey key : selector.keys()) {
+			((Handler)key.attachment()).closed();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+
+	}
+
+	private void runTasks() {
+
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				errors.report(e);
+			}
+		}
+
+	}
+
+}
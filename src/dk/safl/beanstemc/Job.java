@@ -21,6 +21,8 @@
  */
 package dk.safl.beanstemc;
 
+import java.nio.ByteBuffer;
+
 public class Job {
 
 	private long id;
@@ -39,4 +41,20 @@ public class Job {
 		return id;
 	}
 	
+	/**
+	 * @return A read-only view of the payload.
+	 */
+	public ByteBuffer getBuffer() {
+		return ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Hand the payload back to the pool it was read into, if any.
+	 * 
+	 * @see PooledJob
+	 */
+	public void recycle() {
+		// The payload is owned by the job
+	}
+	
 }
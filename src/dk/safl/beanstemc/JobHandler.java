@@ -0,0 +1,38 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+/**
+ * Processes jobs reserved by a {@link BeanstemcWorker}.
+ */
+public interface JobHandler {
+
+	/**
+	 * Process a job, it is deleted when this returns normally.
+	 *
+	 * @param job The reserved job.
+	 * @throws Exception To have the job released for a retry, or buried when
+	 * 			it has been released too many times already.
+	 */
+	void handle(Job job) throws Exception;
+
+}
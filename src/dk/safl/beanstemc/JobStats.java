@@ -0,0 +1,184 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+/**
+ * The answer to "stats-job", statistics of a single job.
+ *
+ * @see Beanstemc#jobStats(long)
+ */
+public class JobStats extends Stats {
+
+	/**
+	 * The numeric values, in the order the server sends them.
+	 */
+	public enum Field {
+
+		ID("id", NUMBER),
+		PRI("pri", NUMBER),
+		AGE("age", NUMBER),
+		DELAY("delay", NUMBER),
+		TTR("ttr", NUMBER),
+		TIME_LEFT("time-left", NUMBER),
+		FILE("file", NUMBER),
+		RESERVES("reserves", NUMBER),
+		TIMEOUTS("timeouts", NUMBER),
+		RELEASES("releases", NUMBER),
+		BURIES("buries", NUMBER),
+		KICKS("kicks", NUMBER);
+
+		private final String	key;
+		private final int		kind;
+
+		private Field(String key, int kind) {
+			this.key	= key;
+			this.kind	= kind;
+		}
+
+		/**
+		 * @return The name of the value in the YAML dictionary.
+		 */
+		public String getKey() {
+			return key;
+		}
+
+	}
+
+	// Indexes of the text values
+	private static final int TUBE = 0;
+	private static final int STATE = 1;
+
+	private static final Layout LAYOUT = layout();
+
+	private static Layout layout() {
+
+		Field[] fields	= Field.values();
+		String[] keys	= new String[fields.length];
+		int[] kinds		= new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			keys[i]		= fields[i].key;
+			kinds[i]	= fields[i].kind;
+		}
+
+		return new Layout(keys, kinds, new String[] {"tube", "state"});
+
+	}
+
+	public JobStats() {
+		super(LAYOUT);
+	}
+
+	/**
+	 * @return The value, 0 if the server did not send it.
+	 */
+	public long get(Field field) {
+		return number(field.ordinal());
+	}
+
+	/**
+	 * @return false if the server did not send the value, e.g. because it predates it.
+	 */
+	public boolean has(Field field) {
+		return has(field.ordinal());
+	}
+
+	/**
+	 * @return The tube holding the job.
+	 */
+	public String getTube() {
+		return text(TUBE);
+	}
+
+	/**
+	 * @return One of "ready", "delayed", "reserved" or "buried".
+	 */
+	public String getState() {
+		return text(STATE);
+	}
+
+	public long getId() {
+		return get(Field.ID);
+	}
+
+	/**
+	 * @return The priority of the job.
+	 */
+	public long getPriority() {
+		return get(Field.PRI);
+	}
+
+	/**
+	 * @return Seconds since the job was put.
+	 */
+	public long getAge() {
+		return get(Field.AGE);
+	}
+
+	/**
+	 * @return The delay of the job in seconds.
+	 */
+	public long getDelay() {
+		return get(Field.DELAY);
+	}
+
+	/**
+	 * @return The time-to-run of the job in seconds.
+	 */
+	public long getTtr() {
+		return get(Field.TTR);
+	}
+
+	/**
+	 * @return Seconds until the job leaves the reserved or delayed state.
+	 */
+	public long getTimeLeft() {
+		return get(Field.TIME_LEFT);
+	}
+
+	/**
+	 * @return The binlog file holding the job, 0 without a binlog.
+	 */
+	public long getFile() {
+		return get(Field.FILE);
+	}
+
+	public long getReserves() {
+		return get(Field.RESERVES);
+	}
+
+	public long getTimeouts() {
+		return get(Field.TIMEOUTS);
+	}
+
+	public long getReleases() {
+		return get(Field.RELEASES);
+	}
+
+	public long getBuries() {
+		return get(Field.BURIES);
+	}
+
+	public long getKicks() {
+		return get(Field.KICKS);
+	}
+
+}
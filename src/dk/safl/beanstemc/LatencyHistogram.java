@@ -0,0 +1,154 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, with a bounded relative error.
+ *
+ * Values are counted in buckets laid out like those of an HDR histogram:
+ * every power of two is split into SUB_BUCKETS linear buckets, so a value
+ * is reported at most 1/SUB_BUCKETS (about 3%) above what was recorded,
+ * from nanoseconds to the whole range of a long, in a fixed number of
+ * counters. Recording a value is a bucket lookup and an atomic increment,
+ * it takes no lock and allocates nothing, so many threads can record into
+ * one histogram while another reads it.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS	= 5;
+	private static final int SUB_BUCKETS		= 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS			= (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray	counts	= new AtomicLongArray(BUCKETS);
+	private final AtomicLong		count	= new AtomicLong();
+	private final AtomicLong		sum		= new AtomicLong();
+	private final AtomicLong		max		= new AtomicLong();
+
+	/**
+	 * @param nanos A latency, negative values are recorded as 0.
+	 */
+	public void record(long nanos) {
+
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		counts.incrementAndGet(index(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+			// Retry against the new maximum
+		}
+
+	}
+
+	/**
+	 * @return Number of values recorded.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return The largest value recorded, exactly.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return The mean of the values recorded, 0 if there are none.
+	 */
+	public double getMean() {
+
+		long n = count.get();
+		return n == 0 ? 0 : (double)sum.get() / n;
+
+	}
+
+	/**
+	 * @param percentile Between 0 and 100, e.g. 99.9.
+	 * @return The value below which the given percentage of the recorded
+	 * 			values fall, rounded up to the bucket boundary; 0 if nothing has been recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highest(i), max.get());
+			}
+		}
+
+		return max.get();
+
+	}
+
+	/**
+	 * Values below SUB_BUCKETS get a bucket each, above that a value is
+	 * bucketed by its highest bit and the SUB_BUCKET_BITS bits following it.
+	 */
+	static int index(long value) {
+
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+
+		int bit = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (bit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+		return (bit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+
+	}
+
+	/**
+	 * @return The largest value counted in the given bucket.
+	 */
+	static long highest(int index) {
+
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+
+		int shift	= index / SUB_BUCKETS - 1;
+		long lowest	= (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+
+		return lowest + (1L << shift) - 1;
+
+	}
+
+}
@@ -0,0 +1,308 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps reserved jobs alive by touching them before their TTR runs out.
+ *
+ * <pre>
+ * LeaseManager leases = new LeaseManager();
+ * worker.setLeaseManager(leases);
+ * </pre>
+ *
+ * Every tracked job is touched each time half of its TTR has passed, until
+ * its lease is cancelled, which the worker and the consumers do when the
+ * job is deleted, released or buried. Jobs can thus be given a short TTR, so
+ * the jobs of a crashed worker are back in the ready queue quickly, while
+ * jobs which take long are still kept.
+ *
+ * All leases are kept on one timer wheel, driven by a single thread which
+ * advances one slot per tick. The jobs due in a tick are grouped by the
+ * connection which reserved them, only that connection may touch them, and
+ * handed to its {@link Owner} in one call, which sends them as one batch.
+ * Tracking and cancelling a lease are lock-free and cost O(1).
+ */
+public class LeaseManager {
+
+	public static long	DEFAULT_TICK	= 100;
+	public static int	WHEEL_SIZE		= 1024;
+
+	/**
+	 * The connection which reserved a job, and is the only one which may touch it.
+	 */
+	public interface Owner {
+
+		/**
+		 * Touch the given jobs, invoked on the timer thread; it must not block
+		 * for long, but hand the touches to the thread which drives the connection.
+		 */
+		void touch(List<Long> jobIds);
+
+	}
+
+	/**
+	 * A tracked job.
+	 */
+	public static class Lease {
+
+		private final Owner		owner;
+		private final long		jobId;
+		private final long		interval;
+		private final long		firstDelay;
+
+		private volatile boolean	cancelled;
+		private long				dueTick;		// Owned by the timer thread
+
+		private Lease(Owner owner, long jobId, long interval, long firstDelay) {
+			this.owner		= owner;
+			this.jobId		= jobId;
+			this.interval	= interval;
+			this.firstDelay	= firstDelay;
+		}
+
+		public long getJobId() {
+			return jobId;
+		}
+
+		/**
+		 * Stop touching the job.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+	}
+
+	private final long		tickNanos;
+	private final Thread	thread;
+
+	private final ConcurrentLinkedQueue<Lease>	added	= new ConcurrentLinkedQueue<Lease>();
+	private final AtomicInteger					active	= new AtomicInteger();
+	private final Errors						errors	= new Errors();
+	private volatile boolean					running	= true;
+
+	// Owned by the timer thread
+	private final List<List<Lease>>	wheel;
+	private long					tick;
+
+	public LeaseManager() {
+		this(DEFAULT_TICK);
+	}
+
+	/**
+	 * @param tickMillis Resolution of the timer.
+	 */
+	public LeaseManager(long tickMillis) {
+
+		tickNanos	= TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		wheel		= new ArrayList<List<Lease>>(WHEEL_SIZE);
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			wheel.add(new ArrayList<Lease>());
+		}
+
+		thread = new Thread(new Runnable() {
+			public void run() {
+				loop();
+			}
+		}, "beanstemc-leases");
+		thread.setDaemon(true);
+		thread.start();
+
+	}
+
+	/**
+	 * Start touching a reserved job every TTR/2 seconds.
+	 *
+	 * @param owner The connection which reserved the job.
+	 * @param jobId
+	 * @param ttr The time-to-run of the job in seconds, as given to put or reported by stats-job.
+	 * @return The lease, to be cancelled when the job is deleted, released or buried.
+	 */
+	public Lease track(Owner owner, long jobId, int ttr) {
+		return track(owner, jobId, ttr, TimeUnit.SECONDS.toMillis(ttr));
+	}
+
+	/**
+	 * Start touching a reserved job which has less than its TTR left.
+	 *
+	 * @param timeLeft Milliseconds left before the job times out, e.g. "time-left" of stats-job.
+	 * @see #track(Owner, long, int)
+	 */
+	public Lease track(Owner owner, long jobId, int ttr, long timeLeft) {
+
+		long interval	= ticks(TimeUnit.SECONDS.toNanos(ttr) / 2);
+		long firstDelay	= ticks(TimeUnit.MILLISECONDS.toNanos(timeLeft) / 2);
+
+		Lease lease = new Lease(owner, jobId, interval, firstDelay);
+		active.incrementAndGet();
+		added.add(lease);
+
+		return lease;
+
+	}
+
+	/**
+	 * @return Number of leases tracked, cancelled leases are counted until their next due time.
+	 */
+	public int size() {
+		return active.get();
+	}
+
+	/**
+	 * @param listener Told about owners throwing from {@link Owner#touch(List)}.
+	 */
+	public void setErrorListener(ErrorListener listener) {
+		errors.setListener(listener);
+	}
+
+	/**
+	 * @return Number of touches an owner failed to take.
+	 */
+	public long getErrorCount() {
+		return errors.getCount();
+	}
+
+	/**
+	 * @return The last exception thrown by an owner, null if none.
+	 */
+	public Exception getLastError() {
+		return errors.getLast();
+	}
+
+	/**
+	 * Stop the timer thread, no more jobs are touched.
+	 */
+	public void close() {
+
+		running = false;
+		LockSupport.unpark(thread);
+
+	}
+
+	private long ticks(long nanos) {
+		return Math.max(1, nanos / tickNanos);
+	}
+
+	private void loop() {
+
+		long next = System.nanoTime() + tickNanos;
+
+		while (running) {
+
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			next += tickNanos;
+
+			Lease lease;
+			while ((lease = added.poll()) != null) {
+				lease.dueTick = tick + lease.firstDelay;
+				schedule(lease);
+			}
+
+			Map<Owner, List<Long>> due = expire();
+			for (Map.Entry<Owner, List<Long>> entry : due.entrySet()) {
+				try {
+					entry.getKey().touch(entry.getValue());
+				} catch (RuntimeException e) {
+					errors.report(e);
+				}
+			}
+
+			tick++;
+
+		}
+
+	}
+
+	/**
+	 * Collect the leases due in the current tick and schedule their next touch.
+	 */
+	private Map<Owner, List<Long>> expire() {
+
+		Map<Owner, List<Long>> due	= new HashMap<Owner, List<Long>>();
+		List<Lease> slot			= wheel.get((int)(tick % WHEEL_SIZE));
+		List<Lease> again			= null;
+
+		int i = 0;
+		while (i < slot.size()) {
+
+			Lease lease = slot.get(i);
+			if (!lease.cancelled && lease.dueTick > tick) {
+				i++;	// Due in a later round of the wheel
+				continue;
+			}
+
+			// Remove by swapping in the last lease
+			slot.set(i, slot.get(slot.size() - 1));
+			slot.remove(slot.size() - 1);
+
+			if (lease.cancelled) {
+				active.decrementAndGet();
+				continue;
+			}
+
+			List<Long> jobIds = due.get(lease.owner);
+			if (jobIds == null) {
+				jobIds = new ArrayList<Long>();
+				due.put(lease.owner, jobIds);
+			}
+			jobIds.add(lease.jobId);
+
+			lease.dueTick = tick + lease.interval;
+			if (again == null) {
+				again = new ArrayList<Lease>();
+			}
+			again.add(lease);
+
+		}
+
+		if (again != null) {
+			for (Lease lease : again) {
+				schedule(lease);
+			}
+		}
+
+		return due;
+
+	}
+
+	private void schedule(Lease lease) {
+		wheel.get((int)(lease.dueTick % WHEEL_SIZE)).add(lease);
+	}
+
+}
@@ -0,0 +1,452 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts jobs at a target rate and reserves them, measuring the latency of
+ * the puts and the time from each put until the job is reserved.
+ *
+ * <pre>
+ * LoadGenerator load = new LoadGenerator("localhost", 11300);
+ * load.setProducers(4);
+ * load.setConsumers(8);
+ * load.setRate(20000);
+ * load.run(60, TimeUnit.SECONDS);
+ * load.getEndToEndLatency().getValueAtPercentile(99.9);
+ * </pre>
+ *
+ * The load is open-loop: every producer puts its jobs on a fixed schedule,
+ * whether or not the server keeps up, and latencies are measured from the
+ * time at which a job was due to be put rather than from when it was sent.
+ * A server which stalls thus shows in the tail of the latencies, where a
+ * closed loop, which waits for each response before it sends the next job,
+ * would just send less during the stall and hide it.
+ *
+ * Each job carries the time it is due to become ready, its scheduled put
+ * plus its delay, and an id of the run, so jobs left in the tube by an
+ * earlier run, like those of the warm-up, are deleted without being
+ * measured. Producers and consumers each have a connection of their own.
+ */
+public class LoadGenerator {
+
+	public static int DEFAULT_PAYLOAD_SIZE = 64;
+
+	private static final int HEADER = 24;		// Run id, due time to be ready and scheduled put
+
+	private final String	host;
+	private final int		port;
+
+	private String		tube		= "bench";
+	private int			producers	= 1;
+	private int			consumers	= 1;
+	private int			payloadSize	= DEFAULT_PAYLOAD_SIZE;
+	private double		rate;
+	private long		minPriority	= Beanstemc.DEFAULT_PRIORITY;
+	private long		maxPriority	= Beanstemc.DEFAULT_PRIORITY;
+	private final List<Double>	delayShares	= new ArrayList<Double>();
+	private final List<Integer>	delays		= new ArrayList<Integer>();
+	private long				warmup;
+
+	private final LatencyHistogram	putLatency			= new LatencyHistogram();
+	private final LatencyHistogram	endToEndLatency		= new LatencyHistogram();
+	private final AtomicLong		put					= new AtomicLong();
+	private final AtomicLong		putErrors			= new AtomicLong();
+	private final AtomicLong		reserved			= new AtomicLong();
+
+	private final long				runId	= new Random().nextLong();
+	private volatile boolean		producing;
+	private volatile boolean		consuming;
+	private volatile Exception		failure;
+	private volatile long			measured;		// Jobs due before are not counted nor measured
+
+	public LoadGenerator(String host, int port) {
+
+		this.host = host;
+		this.port = port;
+
+	}
+
+	/**
+	 * @param tube Tube the jobs are put into and reserved from.
+	 */
+	public void setTube(String tube) {
+
+		Beanstemc.checkTube(tube);
+		this.tube = tube;
+
+	}
+
+	/**
+	 * @param producers Number of connections putting jobs.
+	 */
+	public void setProducers(int producers) {
+		this.producers = producers;
+	}
+
+	/**
+	 * @param consumers Number of connections reserving and deleting jobs, 0 to only put.
+	 */
+	public void setConsumers(int consumers) {
+		this.consumers = consumers;
+	}
+
+	/**
+	 * @param bytes Size of each job, at least 24.
+	 */
+	public void setPayloadSize(int bytes) {
+		this.payloadSize = Math.max(HEADER, bytes);
+	}
+
+	/**
+	 * @param jobsPerSecond Jobs put per second over all producers, 0 puts as fast as the server answers.
+	 */
+	public void setRate(double jobsPerSecond) {
+		this.rate = jobsPerSecond;
+	}
+
+	/**
+	 * Spread the priorities of the jobs uniformly over a range.
+	 */
+	public void setPriorities(long min, long max) {
+
+		this.minPriority = min;
+		this.maxPriority = max;
+
+	}
+
+	/**
+	 * Delay a share of the jobs, the others are ready at once.
+	 *
+	 * @param share Fraction of the jobs, e.g. 0.1; the shares of all delays add up to at most 1.
+	 * @param seconds Their delay.
+	 */
+	public void addDelay(double share, int seconds) {
+
+		delayShares.add(share);
+		delays.add(seconds);
+
+	}
+
+	/**
+	 * @param time Time to put jobs for before the measurements start, e.g. while the JIT compiles.
+	 */
+	public void setWarmup(long time, TimeUnit unit) {
+		this.warmup = unit.toNanos(time);
+	}
+
+	/**
+	 * @return Latencies of the puts, from when they were due until the server answered.
+	 */
+	public LatencyHistogram getPutLatency() {
+		return putLatency;
+	}
+
+	/**
+	 * @return Latencies from when a job was due to become ready until it was reserved.
+	 */
+	public LatencyHistogram getEndToEndLatency() {
+		return endToEndLatency;
+	}
+
+	/**
+	 * @return Number of jobs put.
+	 */
+	public long getPutCount() {
+		return put.get();
+	}
+
+	/**
+	 * @return Number of puts refused by the server.
+	 */
+	public long getPutErrorCount() {
+		return putErrors.get();
+	}
+
+	/**
+	 * @return Number of jobs of this run reserved.
+	 */
+	public long getReservedCount() {
+		return reserved.get();
+	}
+
+	/**
+	 * Put jobs for the warm-up and the given time, then wait for the consumers to reserve
+	 * them, at most as long as the longest delay and a few seconds more.
+	 *
+	 * @throws IOException When a connection fails, the run stops.
+	 */
+	public void run(long time, TimeUnit unit) throws IOException, BeanstemcException {
+
+		int maxDelay = 0;
+		for (int delay : delays) {
+			maxDelay = Math.max(maxDelay, delay);
+		}
+
+		// Connect first, so an unreachable server fails at once
+		List<Thread> producerThreads	= new ArrayList<Thread>();
+		List<Thread> consumerThreads	= new ArrayList<Thread>();
+		List<Beanstemc> opened			= new ArrayList<Beanstemc>();
+		final long[] schedule			= new long[2];		// Start and end, set once connected
+		boolean connected				= false;
+		try {
+
+			for (int i = 0; i < consumers; i++) {
+
+				final Beanstemc beanstemc = new Beanstemc(host, port);
+				opened.add(beanstemc);
+				beanstemc.watch(tube);
+				if (!tube.equals("default")) {
+					beanstemc.ignore("default");
+				}
+				consumerThreads.add(new Thread(new Runnable() {
+					public void run() {
+						consume(beanstemc);
+					}
+				}, "beanstemc-bench-consumer-" + i));
+
+			}
+			for (int i = 0; i < producers; i++) {
+
+				final Beanstemc beanstemc = new Beanstemc(host, port);
+				opened.add(beanstemc);
+				beanstemc.use(tube);
+				final int index = i;
+				producerThreads.add(new Thread(new Runnable() {
+					public void run() {
+						produce(beanstemc, index, schedule[0], schedule[1]);
+					}
+				}, "beanstemc-bench-producer-" + i));
+
+			}
+			connected = true;
+
+		} finally {
+			if (!connected) {
+				for (Beanstemc beanstemc : opened) {
+					close(beanstemc);
+				}
+			}
+		}
+
+		schedule[0]	= System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+		schedule[1]	= schedule[0] + warmup + unit.toNanos(time);
+		measured	= schedule[0] + warmup;
+		producing	= true;
+		consuming	= true;
+		for (Thread thread : consumerThreads) {
+			thread.start();
+		}
+		for (Thread thread : producerThreads) {
+			thread.start();
+		}
+
+		join(producerThreads);
+		producing = false;
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(maxDelay + 5);
+		while (consumers > 0 && failure == null && reserved.get() < put.get() && System.nanoTime() < deadline) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+		}
+		consuming = false;
+		join(consumerThreads);
+
+		if (failure instanceof IOException) {
+			throw (IOException)failure;
+		} else if (failure instanceof BeanstemcException) {
+			throw (BeanstemcException)failure;
+		}
+
+	}
+
+	private void join(List<Thread> threads) {
+
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				producing = false;
+				consuming = false;
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+	/**
+	 * Put jobs on this producer's share of the schedule.
+	 */
+	private void produce(Beanstemc beanstemc, int index, long start, long end) {
+
+		Random random	= new Random();
+		byte[] payload	= new byte[payloadSize];
+		putLong(payload, 0, runId);
+
+		// Producers are staggered, so together they put at an even pace
+		long interval	= rate > 0 ? (long)(1e9 * producers / rate) : 0;
+		long due		= start + index * interval / producers;
+
+		try {
+			while (producing && failure == null) {
+
+				long now = System.nanoTime();
+				if (rate > 0) {
+					if (due >= end) {
+						break;
+					}
+					if (due > now) {
+						LockSupport.parkNanos(due - now);
+						continue;
+					}
+				} else {
+					if (now >= end) {
+						break;
+					}
+					due = now;		// Closed loop, latency is the round trip
+				}
+
+				long priority	= minPriority + (maxPriority > minPriority ? (long)(random.nextDouble() * (maxPriority - minPriority + 1)) : 0);
+				int delay		= delay(random.nextDouble());
+				putLong(payload, 8, due + TimeUnit.SECONDS.toNanos(delay));
+				putLong(payload, 16, due);
+
+				boolean measure = due >= measured;
+				try {
+					beanstemc.put(payload, priority, delay, Beanstemc.DEFAULT_TTR);
+					if (measure) {
+						put.incrementAndGet();
+					}
+				} catch (BeanstemcException e) {
+					if (measure) {
+						putErrors.incrementAndGet();
+					}
+				}
+				if (measure) {
+					putLatency.record(System.nanoTime() - due);
+				}
+
+				due += interval;
+
+			}
+		} catch (IOException e) {
+			fail(e);
+		} finally {
+			close(beanstemc);
+		}
+
+	}
+
+	private int delay(double draw) {
+
+		double share = 0;
+		for (int i = 0; i < delays.size(); i++) {
+			share += delayShares.get(i);
+			if (draw < share) {
+				return delays.get(i);
+			}
+		}
+		return 0;
+
+	}
+
+	/**
+	 * Reserve and delete jobs, measuring those of this run.
+	 */
+	private void consume(Beanstemc beanstemc) {
+
+		try {
+			while (consuming && failure == null) {
+
+				Job job;
+				try {
+					job = beanstemc.reserve(1);
+				} catch (BeanstemcException e) {
+					if (e.getMessage().equals("TIMED_OUT") || e.getMessage().equals("DEADLINE_SOON")) {
+						continue;
+					}
+					throw e;
+				}
+
+				long now	= System.nanoTime();
+				byte[] data	= job.getData();
+				if (data.length >= HEADER && getLong(data, 0) == runId && getLong(data, 16) >= measured) {
+					endToEndLatency.record(now - getLong(data, 8));
+					reserved.incrementAndGet();
+				}
+				beanstemc.delete(job);
+
+			}
+		} catch (IOException e) {
+			fail(e);
+		} catch (BeanstemcException e) {
+			fail(e);
+		} finally {
+			close(beanstemc);
+		}
+
+	}
+
+	private synchronized void fail(Exception e) {
+
+		if (failure == null) {
+			failure = e;
+		}
+
+	}
+
+	private static void close(Beanstemc beanstemc) {
+
+		try {
+			beanstemc.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+
+	}
+
+	private static void putLong(byte[] bytes, int at, long value) {
+
+		for (int i = 7; i >= 0; i--) {
+			bytes[at + i]	= (byte)value;
+			value			>>>= 8;
+		}
+
+	}
+
+	private static long getLong(byte[] bytes, int at) {
+
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[at + i] & 0xff);
+		}
+		return value;
+
+	}
+
+}
@@ -0,0 +1,94 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts, errors, bytes and latencies per command, for one or more connections.
+ *
+ * <pre>
+ * Metrics metrics = new Metrics();
+ * beanstemc.setMetrics(metrics);
+ * ...
+ * metrics.get(Command.RESERVE).getErrors("TIMED_OUT");
+ * metrics.get(Command.PUT).getLatency().getValueAtPercentile(99);
+ * </pre>
+ *
+ * Recording takes no lock and allocates nothing, every counter is an
+ * atomic fixed when the Metrics is created, so it can be shared by all the
+ * connections of a pool and left on in production. To push the figures
+ * elsewhere, call {@link #export(MetricsExporter)} periodically, e.g. from a
+ * ScheduledExecutorService.
+ */
+public class Metrics {
+
+	private final CommandMetrics[] commands;
+
+	public Metrics() {
+
+		Command[] values = Command.values();
+		commands = new CommandMetrics[values.length];
+		for (int i = 0; i < values.length; i++) {
+			commands[i] = new CommandMetrics(values[i]);
+		}
+
+	}
+
+	/**
+	 * Count the bytes of a command written to the connection.
+	 */
+	void sent(Command command, int bytes) {
+		commands[command.ordinal()].sent(bytes);
+	}
+
+	/**
+	 * Count a response.
+	 *
+	 * @param nanos Time since the command was written.
+	 * @param bytes Size of the response line and its body, if any.
+	 */
+	void received(Command command, Response response, long nanos, int bytes) {
+		commands[command.ordinal()].received(response, nanos, bytes);
+	}
+
+	public CommandMetrics get(Command command) {
+		return commands[command.ordinal()];
+	}
+
+	/**
+	 * Hand the metrics of every command used so far to an exporter.
+	 */
+	public void export(MetricsExporter exporter) {
+
+		List<CommandMetrics> used = new ArrayList<CommandMetrics>();
+		for (CommandMetrics metrics : commands) {
+			if (metrics.getCalls() > 0) {
+				used.add(metrics);
+			}
+		}
+		exporter.export(used);
+
+	}
+
+}
@@ -0,0 +1,561 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of commands sent on a single connection without waiting for
+ * the response of each command before sending the next.
+ *
+ * <pre>
+ * Pipeline pipeline = beanstemc.pipeline();
+ * pipeline.use("emails");
+ * for (byte[] data : payloads) {
+ *     pipeline.put(data);
+ * }
+ * for (Pipeline.Result result : pipeline.execute()) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * Commands are written to the connection buffer as they are queued and sent
+ * with a single flush on {@link #execute()}, responses are then read back in
+ * the order the commands were queued. An error response only fails the command
+ * it belongs to, it is reported on the corresponding {@link Result} and the
+ * remaining responses are still read.
+ *
+ * To keep the server from blocking on a full socket buffer while the client
+ * is still writing, the pipeline reads the responses of the queued commands
+ * once more than {@link #getMaxPending()} commands are outstanding. Their
+ * results are still returned by the next call to {@link #execute()}.
+ *
+ * A pipeline is bound to the connection that created it and is not thread-safe.
+ */
+public class Pipeline {
+
+	public static int DEFAULT_MAX_PENDING = 1024;
+
+	private static final int PUT		= 0;
+	private static final int USE		= 1;
+	private static final int DELETE		= 2;
+	private static final int RELEASE	= 3;
+	private static final int BURY		= 4;
+	private static final int TOUCH		= 5;
+	private static final int WATCH		= 6;
+	private static final int IGNORE		= 7;
+	private static final int KICK		= 8;
+	private static final int RESERVE	= 9;
+	private static final int STATS_JOB	= 10;
+	private static final int JOB_STATS	= 11;
+	private static final int SERVER_STATS	= 12;
+	private static final int TUBE_STATS		= 13;
+
+	private Beanstemc beanstemc;
+	private int maxPending = DEFAULT_MAX_PENDING;
+
+	private List<Pending> pending	= new ArrayList<Pending>();
+	private List<Result> results	= new ArrayList<Result>();
+
+	Pipeline(Beanstemc beanstemc) {
+		this.beanstemc = beanstemc;
+	}
+
+	/**
+	 * @param maxPending Number of queued commands after which responses are read,
+	 * 					even if {@link #execute()} has not been called yet.
+	 */
+	public void setMaxPending(int maxPending) {
+		this.maxPending = maxPending;
+	}
+
+	public int getMaxPending() {
+		return maxPending;
+	}
+
+	/**
+	 * @return Number of commands queued but not yet executed.
+	 */
+	public int size() {
+		return pending.size() + results.size();
+	}
+
+	/**
+	 * Queue a "put", the result value is the id of the job.
+	 *
+	 * @see Beanstemc#put(byte[], long, int, int)
+	 */
+	public Pipeline put(byte[] data, long priority, int delay, int ttr) throws IOException {
+
+		beanstemc.writePut(data, priority, delay, ttr);
+		return queue(new Pending(PUT, 0, priority, delay, null));
+
+	}
+
+	/**
+	 * @see #put(byte[], long, int, int)
+	 */
+	public Pipeline put(byte[] data) throws IOException {
+		return put(data, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * @see #put(byte[], long, int, int)
+	 */
+	public Pipeline put(byte[] data, long priority) throws IOException {
+		return put(data, priority, Beanstemc.DEFAULT_DELAY, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * @see #put(byte[], long, int, int)
+	 */
+	public Pipeline put(byte[] data, long priority, int delay) throws IOException {
+		return put(data, priority, delay, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * Queue a "put" of the remaining bytes of a buffer, it is encoded right away
+	 * so the buffer can be reused as soon as this returns.
+	 *
+	 * @see Beanstemc#put(ByteBuffer, long, int, int)
+	 */
+	public Pipeline put(ByteBuffer data, long priority, int delay, int ttr) throws IOException {
+
+		beanstemc.writePut(data, priority, delay, ttr);
+		return queue(new Pending(PUT, 0, priority, delay, null));
+
+	}
+
+	/**
+	 * @see #put(ByteBuffer, long, int, int)
+	 */
+	public Pipeline put(ByteBuffer data) throws IOException {
+		return put(data, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * Queue a "use", subsequent puts in the pipeline go to the given tube.
+	 *
+	 * @see Beanstemc#use(String)
+	 */
+	public Pipeline use(String tube) throws IOException {
+
+		beanstemc.writeUse(tube);
+		return queue(new Pending(USE, 0, 0, 0, tube));
+
+	}
+
+	/**
+	 * @see Beanstemc#delete(long)
+	 */
+	public Pipeline delete(long jobId) throws IOException {
+
+		beanstemc.writeDelete(jobId);
+		return queue(new Pending(DELETE, jobId, 0, 0, null));
+
+	}
+
+	/**
+	 * @see Beanstemc#delete(Job)
+	 */
+	public Pipeline delete(Job job) throws IOException {
+
+		delete(job.getId());
+		return recycle(job);
+
+	}
+
+	/**
+	 * @see Beanstemc#release(long, long, int)
+	 */
+	public Pipeline release(long jobId, long priority, int delay) throws IOException {
+
+		beanstemc.writeRelease(jobId, priority, delay);
+		return queue(new Pending(RELEASE, jobId, priority, delay, null));
+
+	}
+
+	/**
+	 * @see Beanstemc#release(Job, long, int)
+	 */
+	public Pipeline release(Job job, long priority, int delay) throws IOException {
+
+		release(job.getId(), priority, delay);
+		return recycle(job);
+
+	}
+
+	/**
+	 * @see Beanstemc#release(Job)
+	 */
+	public Pipeline release(Job job) throws IOException {
+		return release(job, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY);
+	}
+
+	/**
+	 * @see Beanstemc#bury(long, long)
+	 */
+	public Pipeline bury(long jobId, long priority) throws IOException {
+
+		beanstemc.writeBury(jobId, priority);
+		return queue(new Pending(BURY, jobId, priority, 0, null));
+
+	}
+
+	/**
+	 * @see Beanstemc#bury(long)
+	 */
+	public Pipeline bury(long jobId) throws IOException {
+		return bury(jobId, Beanstemc.DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * @see Beanstemc#bury(Job, long)
+	 */
+	public Pipeline bury(Job job, long priority) throws IOException {
+
+		bury(job.getId(), priority);
+		return recycle(job);
+
+	}
+
+	/**
+	 * @see Beanstemc#bury(Job)
+	 */
+	public Pipeline bury(Job job) throws IOException {
+		return bury(job, Beanstemc.DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * @see Beanstemc#touch(long)
+	 */
+	public Pipeline touch(long jobId) throws IOException {
+
+		beanstemc.writeTouch(jobId);
+		return queue(new Pending(TOUCH, jobId, 0, 0, null));
+
+	}
+
+	/**
+	 * Queue a "watch", the result value is the number of watched tubes.
+	 *
+	 * @see Beanstemc#watch(String)
+	 */
+	public Pipeline watch(String tube) throws IOException {
+
+		beanstemc.writeWatch(tube);
+		return queue(new Pending(WATCH, 0, 0, 0, tube));
+
+	}
+
+	/**
+	 * Queue an "ignore", the result value is the number of watched tubes.
+	 *
+	 * @see Beanstemc#ignore(String)
+	 */
+	public Pipeline ignore(String tube) throws IOException {
+
+		beanstemc.writeIgnore(tube);
+		return queue(new Pending(IGNORE, 0, 0, 0, tube));
+
+	}
+
+	/**
+	 * Queue a "kick", the result value is the number of jobs kicked.
+	 *
+	 * @see Beanstemc#kick(int)
+	 */
+	public Pipeline kick(int bound) throws IOException {
+
+		beanstemc.writeKick(bound);
+		return queue(new Pending(KICK, 0, 0, bound, null));
+
+	}
+
+	/**
+	 * Queue a "reserve-with-timeout", the result value is the reserved {@link Job}.
+	 *
+	 * Only the last reserve of a pipeline should wait, i.e. have a timeout
+	 * above 0, as the responses behind it are held back while it waits.
+	 *
+	 * @see Beanstemc#reserve(int)
+	 */
+	public Pipeline reserve(int timeout) throws IOException {
+
+		beanstemc.writeReserve(timeout);
+		return queue(new Pending(RESERVE, 0, 0, timeout, null));
+
+	}
+
+	/**
+	 * Queue a "stats-job", the result value is the map of statistics.
+	 *
+	 * @see Beanstemc#statsJob(long)
+	 */
+	public Pipeline statsJob(long jobId) throws IOException {
+
+		beanstemc.writeStatsJob(jobId);
+		return queue(new Pending(STATS_JOB, jobId, 0, 0, null));
+
+	}
+
+	/**
+	 * Queue a "stats-job", the result value is the {@link JobStats}.
+	 *
+	 * @see Beanstemc#jobStats(long)
+	 */
+	public Pipeline jobStats(long jobId) throws IOException {
+
+		beanstemc.writeStatsJob(jobId);
+		return queue(new Pending(JOB_STATS, jobId, 0, 0, null));
+
+	}
+
+	/**
+	 * Queue a "stats", the result value is the given {@link ServerStats}, refilled.
+	 *
+	 * @see Beanstemc#serverStats(ServerStats)
+	 */
+	public Pipeline serverStats(ServerStats stats) throws IOException {
+
+		beanstemc.writeStats();
+		Pending command = new Pending(SERVER_STATS, 0, 0, 0, null);
+		command.stats = stats;
+		return queue(command);
+
+	}
+
+	/**
+	 * Queue a "stats-tube", the result value is the {@link TubeStats}.
+	 *
+	 * @see Beanstemc#tubeStats(String)
+	 */
+	public Pipeline tubeStats(String tube) throws IOException {
+		return tubeStats(tube, new TubeStats());
+	}
+
+	/**
+	 * Queue a "stats-tube", the result value is the given {@link TubeStats}, refilled.
+	 *
+	 * @see Beanstemc#tubeStats(String, TubeStats)
+	 */
+	public Pipeline tubeStats(String tube, TubeStats stats) throws IOException {
+
+		beanstemc.writeStatsTube(tube);
+		Pending command = new Pending(TUBE_STATS, 0, 0, 0, tube);
+		command.stats = stats;
+		return queue(command);
+
+	}
+
+	/**
+	 * Send all queued commands and read their responses.
+	 *
+	 * @return One result per queued command, in the order the commands were queued.
+	 * 			The pipeline is empty afterwards and can be reused.
+	 * @throws IOException When the connection fails, the state of the
+	 * 			commands in the pipeline is then unknown.
+	 */
+	public List<Result> execute() throws IOException {
+
+		drain();
+
+		List<Result> done = results;
+		results = new ArrayList<Result>();
+
+		return done;
+
+	}
+
+	/**
+	 * Recycle the payload of a job once the command just queued for it succeeds.
+	 */
+	private Pipeline recycle(Job job) {
+
+		// The command may have been drained already, its result is then the last one
+		if (pending.isEmpty()) {
+			if (results.get(results.size() - 1).isSuccess()) {
+				job.recycle();
+			}
+		} else {
+			pending.get(pending.size() - 1).job = job;
+		}
+
+		return this;
+
+	}
+
+	private Pipeline queue(Pending command) throws IOException {
+
+		pending.add(command);
+		if (pending.size() >= maxPending) {
+			drain();
+		}
+
+		return this;
+
+	}
+
+	/**
+	 * Flush the connection and read the responses of all pending commands.
+	 */
+	private void drain() throws IOException {
+
+		beanstemc.flush();
+
+		for (Pending command : pending) {
+
+			try {
+				results.add(new Result(read(command), null));
+				if (command.job != null) {
+					command.job.recycle();
+				}
+			} catch (BeanstemcException e) {
+				results.add(new Result(null, e));
+			}
+
+		}
+		pending.clear();
+
+	}
+
+	private Object read(Pending command) throws IOException, BeanstemcException {
+
+		switch (command.type) {
+		case PUT:
+			return beanstemc.readPut();
+		case USE:
+			beanstemc.readUse();
+			return null;
+		case DELETE:
+			beanstemc.readDelete(command.jobId);
+			return null;
+		case RELEASE:
+			beanstemc.readRelease(command.jobId, command.priority, command.delay);
+			return null;
+		case BURY:
+			beanstemc.readBury(command.jobId, command.priority);
+			return null;
+		case TOUCH:
+			beanstemc.readTouch(command.jobId);
+			return null;
+		case WATCH:
+			return beanstemc.readWatch(command.tube);
+		case IGNORE:
+			return beanstemc.readIgnore(command.tube);
+		case KICK:
+			return beanstemc.readKick(command.delay);
+		case RESERVE:
+			return beanstemc.readJob();
+		case STATS_JOB:
+			return beanstemc.readStatsJob();
+		case JOB_STATS:
+			return beanstemc.readJobStats(new JobStats());
+		case SERVER_STATS:
+			return beanstemc.readServerStats((ServerStats)command.stats);
+		case TUBE_STATS:
+			return beanstemc.readTubeStats((TubeStats)command.stats);
+		default:
+			throw new IllegalStateException("Unknown pipelined command.");
+		}
+
+	}
+
+	/**
+	 * A queued command, with the arguments needed to report an error response.
+	 */
+	private static class Pending {
+
+		private int		type;
+		private long	jobId;
+		private long	priority;
+		private int		delay;
+		private String	tube;
+		private Job		job;		// Recycled on success
+		private Stats	stats;		// Refilled with the response
+
+		Pending(int type, long jobId, long priority, int delay, String tube) {
+			this.type		= type;
+			this.jobId		= jobId;
+			this.priority	= priority;
+			this.delay		= delay;
+			this.tube		= tube;
+		}
+
+	}
+
+	/**
+	 * Outcome of a single pipelined command.
+	 */
+	public static class Result {
+
+		private Object value;
+		private BeanstemcException error;
+
+		Result(Object value, BeanstemcException error) {
+			this.value	= value;
+			this.error	= error;
+		}
+
+		/**
+		 * @return false if the server answered the command with an error.
+		 */
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * @return The job id of a "put", the count returned by "watch", "ignore" and "kick",
+		 * 			the {@link Job} of a "reserve", the map or {@link JobStats} of a "stats-job",
+		 * 			the {@link ServerStats} of a "stats", the {@link TubeStats} of a "stats-tube",
+		 * 			null for commands without a return value or on error.
+		 */
+		public Object getValue() {
+			return value;
+		}
+
+		/**
+		 * @return The value as a long, e.g. the id of a job inserted with "put".
+		 * @throws BeanstemcException The error the server answered the command with.
+		 */
+		public long longValue() throws BeanstemcException {
+
+			if (error != null) {
+				throw error;
+			}
+			return ((Number)value).longValue();
+
+		}
+
+		/**
+		 * @return The error the server answered the command with, null on success.
+		 */
+		public BeanstemcException getException() {
+			return error;
+		}
+
+	}
+
+}
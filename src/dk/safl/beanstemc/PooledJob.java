@@ -0,0 +1,85 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A job whose payload was read into a buffer of a {@link BufferPool}.
+ *
+ * The buffer is returned to the pool once the job has been deleted,
+ * released or buried through the connection or a pipeline, or by calling
+ * {@link #recycle()}, after which the payload must not be touched.
+ */
+public class PooledJob extends Job {
+
+	private final BufferPool	pool;
+	private ByteBuffer			buffer;
+
+	PooledJob(long id, ByteBuffer buffer, BufferPool pool) {
+
+		super(id, null);
+		this.buffer	= buffer;
+		this.pool	= pool;
+
+	}
+
+	/**
+	 * @return A copy of the payload, use {@link #getBuffer()} to avoid it.
+	 */
+	@Override
+	public byte[] getData() {
+
+		byte[] data = new byte[payload().remaining()];
+		buffer.duplicate().get(data);
+		return data;
+
+	}
+
+	/**
+	 * @return A read-only view of the pooled payload.
+	 */
+	@Override
+	public ByteBuffer getBuffer() {
+		return payload().asReadOnlyBuffer();
+	}
+
+	@Override
+	public void recycle() {
+
+		if (buffer != null) {
+			pool.release(buffer);
+			buffer = null;
+		}
+
+	}
+
+	private ByteBuffer payload() {
+
+		if (buffer == null) {
+			throw new IllegalStateException("The payload of job " + getId() + " has been recycled.");
+		}
+		return buffer;
+
+	}
+
+}
@@ -0,0 +1,656 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a number of jobs reserved ahead of time, so taking the next job
+ * costs no network round trip.
+ *
+ * <pre>
+ * PrefetchingConsumer consumer = new PrefetchingConsumer("localhost", 11300, 64, "emails");
+ * consumer.start();
+ * while (...) {
+ *     Job job = consumer.take();
+ *     ...
+ *     consumer.delete(job);
+ * }
+ * consumer.close();
+ * </pre>
+ *
+ * Each connection has a fetching thread which tops the local buffer up to
+ * its capacity. Free slots are filled with a pipelined batch of
+ * "reserve-with-timeout 0", which answers at once with a job or TIMED_OUT,
+ * so one round trip reserves as many jobs as are ready. Only when nothing is
+ * ready does the thread wait, with a single reserve, for the next job.
+ *
+ * A buffered job is running down its TTR while it waits to be taken. The
+ * remaining time of every job is read with "stats-job", pipelined for the
+ * whole batch, and a buffered job that comes within the expiry margin of its
+ * deadline is touched once, and released the next time, so it goes back to
+ * the server instead of timing out while nobody works on it.
+ *
+ * Jobs taken from the buffer must be acknowledged with {@link #delete(Job)},
+ * {@link #release(Job)} or {@link #bury(Job, long)}. As only the connection
+ * which reserved a job may do so, the acknowledgement is queued for that
+ * connection's thread and sent with its next batch. When that connection
+ * breaks, the server releases the jobs taken from it and their
+ * acknowledgements answer false instead.
+ */
+public class PrefetchingConsumer {
+
+	public static int	DEFAULT_CAPACITY		= 64;
+	public static long	DEFAULT_EXPIRY_MARGIN	= 1500;
+	public static int	POLL_TIMEOUT			= 1;
+	public static long	SWEEP_INTERVAL			= 100;
+	public static long	RECONNECT_DELAY			= 1000;
+
+	private static final int DELETE		= 0;
+	private static final int RELEASE	= 1;
+	private static final int BURY		= 2;
+	private static final int TOUCH		= 3;
+
+	private final String		host;
+	private final int			port;
+	private final int			capacity;
+	private final List<String>	tubes;
+
+	private int				connections		= 1;
+	private long			expiryMargin	= TimeUnit.MILLISECONDS.toNanos(DEFAULT_EXPIRY_MARGIN);
+	private LeaseManager	leases;
+
+	private final ArrayBlockingQueue<Reservation>			buffer;
+	private final Semaphore									space;
+	private final ConcurrentHashMap<Long, Reservation>		reservations = new ConcurrentHashMap<Long, Reservation>();
+
+	private final List<Thread>	fetchers = new ArrayList<Thread>();
+	private final Errors		errors = new Errors();
+	private volatile boolean	running;
+
+	/**
+	 * @param host
+	 * @param port
+	 * @param capacity Maximum number of jobs reserved ahead and buffered.
+	 * @param tubes The tubes to reserve from.
+	 */
+	public PrefetchingConsumer(String host, int port, int capacity, String... tubes) {
+
+		if (tubes.length == 0) {
+			throw new IllegalArgumentException("At least one tube must be watched.");
+		}
+
+		this.host		= host;
+		this.port		= port;
+		this.capacity	= capacity;
+		this.tubes		= new ArrayList<String>(Arrays.asList(tubes));
+		this.buffer		= new ArrayBlockingQueue<Reservation>(capacity);
+		this.space		= new Semaphore(capacity);
+
+	}
+
+	/**
+	 * @param connections Number of connections reserving into the buffer.
+	 */
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * @param millis Time before the deadline of a buffered job at which it is touched or released.
+	 */
+	public void setExpiryMargin(long millis) {
+		this.expiryMargin = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * Keep jobs alive once they are taken, with a touch every half TTR until they are acknowledged.
+	 *
+	 * @param leases Shared by any number of workers and consumers.
+	 */
+	public void setLeaseManager(LeaseManager leases) {
+		this.leases = leases;
+	}
+
+	/**
+	 * @param listener Told about lost connections and failed reconnects of the fetching threads.
+	 */
+	public void setErrorListener(ErrorListener listener) {
+		errors.setListener(listener);
+	}
+
+	/**
+	 * Connect and start filling the buffer.
+	 *
+	 * @throws IOException
+	 * @throws BeanstemcException If the tubes cannot be watched.
+	 */
+	public synchronized void start() throws IOException, BeanstemcException {
+
+		if (running) {
+			throw new IllegalStateException("The consumer is already running.");
+		}
+		running = true;
+
+		fetchers.clear();
+		for (int i = 0; i < connections; i++) {
+			fetchers.add(new Thread(new Fetcher(connect()), "beanstemc-prefetch-" + i));
+		}
+		for (Thread thread : fetchers) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+	}
+
+	/**
+	 * Take the next buffered job, waiting for one if the buffer is empty.
+	 *
+	 * @throws InterruptedException
+	 */
+	public Job take() throws InterruptedException {
+		return handOut(buffer.take());
+	}
+
+	/**
+	 * Take the next buffered job, waiting at most the given time.
+	 *
+	 * @return The job, or null if none arrived in time.
+	 * @throws InterruptedException
+	 */
+	public Job poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return handOut(buffer.poll(timeout, unit));
+	}
+
+	/**
+	 * @return Number of jobs reserved and waiting to be taken.
+	 */
+	public int buffered() {
+		return buffer.size();
+	}
+
+	/**
+	 * @return Maximum number of jobs buffered.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return Number of lost connections and failed reconnects.
+	 */
+	public long getErrorCount() {
+		return errors.getCount();
+	}
+
+	/**
+	 * @return The last connection error, null if none.
+	 */
+	public Exception getLastError() {
+		return errors.getLast();
+	}
+
+	/**
+	 * Delete a job which has been taken, sent with the next batch of its connection.
+	 *
+	 * @return false if the connection of the job broke since it was taken, the
+	 * 			server has released it and may hand it out again.
+	 * @throws IllegalArgumentException If the job was not taken from this consumer,
+	 * 			or has been acknowledged already.
+	 */
+	public boolean delete(Job job) {
+		return acknowledge(job, DELETE, 0, 0);
+	}
+
+	/**
+	 * Release a job which has been taken, sent with the next batch of its connection.
+	 *
+	 * @return false if the connection of the job broke since it was taken.
+	 * @see #delete(Job)
+	 */
+	public boolean release(Job job, long priority, int delay) {
+		return acknowledge(job, RELEASE, priority, delay);
+	}
+
+	/**
+	 * @see #release(Job, long, int)
+	 */
+	public boolean release(Job job) {
+		return release(job, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY);
+	}
+
+	/**
+	 * Bury a job which has been taken, sent with the next batch of its connection.
+	 *
+	 * @return false if the connection of the job broke since it was taken.
+	 * @see #delete(Job)
+	 */
+	public boolean bury(Job job, long priority) {
+		return acknowledge(job, BURY, priority, 0);
+	}
+
+	/**
+	 * Ask for more time for a job which has been taken, sent with the next batch of its connection.
+	 *
+	 * @return false if the connection of the job broke since it was taken.
+	 * @see #delete(Job)
+	 */
+	public boolean touch(Job job) {
+
+		Reservation reservation = reservations.get(job.getId());
+		if (reservation == null) {
+			throw new IllegalArgumentException(String.format("Job is not reserved by this consumer [JOBID=%d]", job.getId()));
+		}
+		if (reservation.lost) {
+			return false;
+		}
+		reservation.owner.acks.add(new Ack(job.getId(), TOUCH, 0, 0));
+
+		return true;
+
+	}
+
+	/**
+	 * Stop reserving, release the buffered jobs and close the connections.
+	 *
+	 * Acknowledgements queued before are sent first. Jobs taken but not yet
+	 * acknowledged are released by the server as the connections close.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+
+		running = false;
+		for (Thread thread : fetchers) {
+			thread.join();
+		}
+
+	}
+
+	private Job handOut(Reservation reservation) {
+
+		if (reservation == null) {
+			return null;
+		}
+		space.release();
+		if (leases != null) {
+			long timeLeft = TimeUnit.NANOSECONDS.toMillis(reservation.deadline - System.nanoTime());
+			reservation.lease = leases.track(reservation.owner, reservation.job.getId(), reservation.ttr, timeLeft);
+			if (reservation.lost) {
+				reservation.lease.cancel();		// Its connection broke meanwhile
+			}
+		}
+
+		return reservation.job;
+
+	}
+
+	private boolean acknowledge(Job job, int action, long priority, int delay) {
+
+		Reservation reservation = reservations.remove(job.getId());
+		if (reservation == null) {
+			throw new IllegalArgumentException(String.format("Job is not reserved by this consumer [JOBID=%d]", job.getId()));
+		}
+		if (reservation.lease != null) {
+			reservation.lease.cancel();
+		}
+		if (reservation.lost) {
+			return false;
+		}
+		reservation.owner.acks.add(new Ack(job.getId(), action, priority, delay));
+
+		return true;
+
+	}
+
+	private Beanstemc connect() throws IOException, BeanstemcException {
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+
+		Pipeline pipeline = beanstemc.pipeline();
+		for (String tube : tubes) {
+			pipeline.watch(tube);
+		}
+		if (!tubes.contains("default")) {
+			pipeline.ignore("default");
+		}
+		for (Pipeline.Result result : pipeline.execute()) {
+			if (!result.isSuccess()) {
+				beanstemc.close();
+				throw result.getException();
+			}
+		}
+
+		return beanstemc;
+
+	}
+
+	/**
+	 * A job reserved by this consumer and not yet acknowledged.
+	 */
+	private static class Reservation {
+
+		final Job		job;
+		final Fetcher	owner;
+
+		volatile long				deadline;
+		int							ttr;
+		boolean						touched;
+		volatile LeaseManager.Lease	lease;
+		volatile boolean			lost;		// Taken, then its connection broke
+
+		Reservation(Job job, Fetcher owner) {
+			this.job	= job;
+			this.owner	= owner;
+		}
+
+	}
+
+	/**
+	 * A command queued for the connection which reserved the job.
+	 */
+	private static class Ack {
+
+		final long	jobId;
+		final int	action;
+		final long	priority;
+		final int	delay;
+
+		Ack(long jobId, int action, long priority, int delay) {
+			this.jobId		= jobId;
+			this.action		= action;
+			this.priority	= priority;
+			this.delay		= delay;
+		}
+
+	}
+
+	/**
+	 * Fills the buffer from one connection.
+	 */
+	private class Fetcher implements Runnable, LeaseManager.Owner {
+
+		private Beanstemc beanstemc;
+
+		private final ConcurrentLinkedQueue<Ack> acks = new ConcurrentLinkedQueue<Ack>();
+
+		Fetcher(Beanstemc beanstemc) {
+			this.beanstemc = beanstemc;
+		}
+
+		public void run() {
+
+			try {
+
+				while (running) {
+					try {
+						step();
+					} catch (IOException e) {
+						errors.report(e);
+						reconnect();
+					}
+				}
+
+				// Closing, hand back what nobody has taken
+				Pipeline pipeline = beanstemc.pipeline();
+				for (Reservation reservation : buffer) {
+					if (reservation.owner == this && buffer.remove(reservation)) {
+						reservations.remove(reservation.job.getId());
+						pipeline.release(reservation.job);
+					}
+				}
+				queueAcks(pipeline);
+				pipeline.execute();
+
+			} catch (IOException e) {
+				// The server releases the jobs of a closed connection
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				try {
+					beanstemc.close();
+				} catch (IOException e) {
+					// Closing anyway
+				}
+			}
+
+		}
+
+		/**
+		 * Invoked by the lease manager, the touches go out with the next batch.
+		 */
+		public void touch(List<Long> jobIds) {
+			for (Long jobId : jobIds) {
+				acks.add(new Ack(jobId, TOUCH, 0, 0));
+			}
+		}
+
+		private void step() throws IOException, InterruptedException {
+
+			int room = space.drainPermits();
+			if (room == 0) {
+
+				// Buffer full, keep acknowledging and watching deadlines
+				Pipeline pipeline = beanstemc.pipeline();
+				queueAcks(pipeline);
+				pipeline.execute();
+				if (!space.tryAcquire(SWEEP_INTERVAL, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+				room = 1 + space.drainPermits();
+
+			}
+
+			fetch(room);
+
+		}
+
+		/**
+		 * The jobs reserved on a broken connection are back on the server, forget them and connect again.
+		 *
+		 * Buffered jobs are dropped, taken ones are marked lost until they are acknowledged.
+		 */
+		private void reconnect() throws InterruptedException {
+
+			for (Reservation reservation : reservations.values()) {
+
+				if (reservation.owner != this) {
+					continue;
+				}
+				if (buffer.remove(reservation)) {
+					reservations.remove(reservation.job.getId());
+					space.release();
+				} else {
+					reservation.lost = true;
+				}
+				if (reservation.lease != null) {
+					reservation.lease.cancel();
+				}
+
+			}
+			acks.clear();
+
+			try {
+				beanstemc.close();
+			} catch (IOException e) {
+				// Already broken
+			}
+
+			while (running) {
+
+				Thread.sleep(RECONNECT_DELAY);
+				try {
+					beanstemc = connect();
+					return;
+				} catch (IOException e) {
+					errors.report(e);
+				} catch (BeanstemcException e) {
+					errors.report(e);
+				}
+
+			}
+
+		}
+
+		/**
+		 * Reserve up to room jobs, with the pending acknowledgements in the same round trip.
+		 */
+		private void fetch(int room) throws IOException, InterruptedException {
+
+			long start		= System.nanoTime();
+			int buffered	= 0;
+
+			// The room not filled is given back, also when the connection fails
+			try {
+
+				Pipeline pipeline = beanstemc.pipeline();
+				int acked = queueAcks(pipeline);
+				for (int i = 0; i < room; i++) {
+					pipeline.reserve(0);
+				}
+
+				List<Job> jobs = new ArrayList<Job>(room);
+				List<Pipeline.Result> results = pipeline.execute();
+				for (Pipeline.Result result : results.subList(acked, results.size())) {
+					if (result.isSuccess()) {
+						jobs.add((Job)result.getValue());
+					}
+				}
+
+				if (jobs.isEmpty()) {
+
+					// Nothing ready, wait for the next job
+					try {
+						start = System.nanoTime();
+						jobs.add(beanstemc.reserve(POLL_TIMEOUT));
+					} catch (BeanstemcException e) {
+						if ("DEADLINE_SOON".equals(e.getMessage())) {
+							Thread.sleep(SWEEP_INTERVAL);	// A job taken out is due, nothing will be reserved
+						}
+					}
+
+				}
+
+				if (jobs.isEmpty()) {
+					return;
+				}
+
+				// The deadlines, measured from before the reserves were sent
+				pipeline = beanstemc.pipeline();
+				for (Job job : jobs) {
+					pipeline.jobStats(job.getId());
+				}
+				results = pipeline.execute();
+
+				for (int i = 0; i < jobs.size(); i++) {
+
+					Reservation reservation = new Reservation(jobs.get(i), this);
+					reservation.ttr			= Beanstemc.DEFAULT_TTR;
+					reservation.deadline	= start + TimeUnit.SECONDS.toNanos(reservation.ttr);
+
+					Pipeline.Result result = results.get(i);
+					if (result.isSuccess()) {
+						JobStats stats			= (JobStats)result.getValue();
+						reservation.ttr			= (int)stats.getTtr();
+						reservation.deadline	= start + TimeUnit.SECONDS.toNanos(stats.getTimeLeft());
+					}
+
+					reservations.put(reservation.job.getId(), reservation);
+					buffer.add(reservation);
+					buffered++;
+
+				}
+
+			} finally {
+				if (room > buffered) {
+					space.release(room - buffered);
+				}
+			}
+
+		}
+
+		/**
+		 * Queue the acknowledgements of taken jobs and the touches or releases of buffered jobs close to their deadline.
+		 *
+		 * @return Number of commands queued.
+		 */
+		private int queueAcks(Pipeline pipeline) throws IOException {
+
+			int queued = 0;
+
+			long now = System.nanoTime();
+			for (Reservation reservation : buffer) {
+
+				if (reservation.owner != this || reservation.deadline - now > expiryMargin) {
+					continue;
+				}
+
+				if (!reservation.touched) {
+					pipeline.touch(reservation.job.getId());
+					reservation.touched		= true;
+					reservation.deadline	= now + TimeUnit.SECONDS.toNanos(reservation.ttr);
+					queued++;
+				} else if (buffer.remove(reservation)) {
+					space.release();
+					reservations.remove(reservation.job.getId());
+					pipeline.release(reservation.job);
+					queued++;
+				}
+
+			}
+
+			Ack ack;
+			while ((ack = acks.poll()) != null) {
+
+				switch (ack.action) {
+				case DELETE:
+					pipeline.delete(ack.jobId);
+					break;
+				case RELEASE:
+					pipeline.release(ack.jobId, ack.priority, ack.delay);
+					break;
+				case BURY:
+					pipeline.bury(ack.jobId, ack.priority);
+					break;
+				case TOUCH:
+					pipeline.touch(ack.jobId);
+					break;
+				}
+				queued++;
+
+			}
+
+			return queued;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,754 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * A connection which is re-established when it breaks, with the tube in
+ * use and the watch list restored.
+ *
+ * <pre>
+ * ResilientBeanstemc beanstemc = new ResilientBeanstemc("host", 11300);
+ * beanstemc.watch("emails");
+ * Job job = beanstemc.reserve();
+ * try {
+ *     beanstemc.delete(job);
+ * } catch (ConnectionLostException e) {
+ *     // The job may or may not have been deleted
+ * }
+ * </pre>
+ *
+ * When a command fails with an IOException the connection is dropped and
+ * a new one opened, retrying with an exponential backoff between
+ * {@link #getMinBackoff()} and {@link #getMaxBackoff()} for at most
+ * {@link #getMaxAttempts()} attempts. The new connection is sent the "use"
+ * and the "watch" and "ignore" commands which recreate the session.
+ *
+ * Commands which can be sent twice without harm are retried on the new
+ * connection: the stats, peek and list commands, "use", "watch", "ignore"
+ * and "reserve", whose job is released by the server when the connection
+ * breaks before the job reaches the client. Every other command, such as
+ * "put" or "delete", fails with a {@link ConnectionLostException}, since
+ * the server may have carried it out before the connection broke.
+ *
+ * Jobs reserved on a broken connection are released by the server, so
+ * deleting, releasing, burying or touching them on the new connection
+ * answers NOT_FOUND.
+ *
+ * Like {@link Beanstemc}, a ResilientBeanstemc is not thread-safe.
+ */
+public class ResilientBeanstemc {
+
+	public static long	DEFAULT_MIN_BACKOFF		= 100;
+	public static long	DEFAULT_MAX_BACKOFF		= 10000;
+	public static int	DEFAULT_MAX_ATTEMPTS	= 10;
+
+	/**
+	 * A command sent on the current connection.
+	 */
+	private static abstract class Call<T> {
+
+		abstract T call(Beanstemc beanstemc) throws IOException, BeanstemcException;
+
+	}
+
+	/**
+	 * Attempts of one command, shared by its retries and the reconnects in between.
+	 */
+	private class Backoff {
+
+		private int		attempts;
+		private long	pause = minBackoff;
+
+		/**
+		 * Pause before the next attempt, or give up once maxAttempts have failed.
+		 */
+		void failed(IOException e) throws IOException {
+
+			if (++attempts >= maxAttempts) {
+				throw e;
+			}
+
+			try {
+				Thread.sleep(pause);
+			} catch (InterruptedException interrupted) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reconnecting.");
+			}
+			pause = Math.min(pause * 2, maxBackoff);
+
+		}
+
+	}
+
+	private final String	host;
+	private final int		port;
+
+	private Beanstemc	beanstemc;		// null while disconnected
+	private boolean		closed;
+	private long		reconnects;
+
+	private String							used	= "default";
+	private final LinkedHashSet<String>		watched	= new LinkedHashSet<String>();
+
+	private long		minBackoff	= DEFAULT_MIN_BACKOFF;
+	private long		maxBackoff	= DEFAULT_MAX_BACKOFF;
+	private int			maxAttempts	= DEFAULT_MAX_ATTEMPTS;
+	private Metrics		metrics;
+	private BufferPool	bufferPool;
+
+	/**
+	 * @throws IOException The first connection is not retried, so a wrong address fails at once.
+	 */
+	public ResilientBeanstemc(String host, int port) throws IOException {
+
+		this.host	= host;
+		this.port	= port;
+
+		watched.add("default");
+		beanstemc = new Beanstemc(host, port);
+
+	}
+
+	/**
+	 * @param millis Pause before the second attempt of a command, doubled for every further attempt.
+	 */
+	public void setMinBackoff(long millis) {
+		this.minBackoff = millis;
+	}
+
+	public long getMinBackoff() {
+		return minBackoff;
+	}
+
+	/**
+	 * @param millis Longest pause between two attempts.
+	 */
+	public void setMaxBackoff(long millis) {
+		this.maxBackoff = millis;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	/**
+	 * @param attempts Number of failed attempts of a command, sending it and connecting
+	 * 				alike, before the IOException is passed on.
+	 */
+	public void setMaxAttempts(int attempts) {
+		this.maxAttempts = attempts;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @return Number of times the connection was re-established.
+	 */
+	public long getReconnectCount() {
+		return reconnects;
+	}
+
+	/**
+	 * @see Beanstemc#setMetrics(Metrics)
+	 */
+	public void setMetrics(Metrics metrics) {
+
+		this.metrics = metrics;
+		if (beanstemc != null) {
+			beanstemc.setMetrics(metrics);
+		}
+
+	}
+
+	/**
+	 * @see Beanstemc#setBufferPool(BufferPool)
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+
+		this.bufferPool = bufferPool;
+		if (beanstemc != null) {
+			beanstemc.setBufferPool(bufferPool);
+		}
+
+	}
+
+	/**
+	 * @return The current connection, opening a new one if it broke.
+	 */
+	private Beanstemc connection(Backoff backoff) throws IOException {
+
+		if (closed) {
+			throw new IOException("Connection is closed.");
+		}
+		if (beanstemc != null) {
+			return beanstemc;
+		}
+
+		while (true) {
+
+			try {
+				beanstemc = restore(new Beanstemc(host, port));
+				reconnects++;
+				return beanstemc;
+			} catch (IOException e) {
+				backoff.failed(e);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Recreate the session on a new connection.
+	 */
+	private Beanstemc restore(Beanstemc connection) throws IOException {
+
+		connection.setMetrics(metrics);
+		connection.setBufferPool(bufferPool);
+
+		try {
+
+			if (!used.equals("default")) {
+				connection.use(used);
+			}
+			for (String tube : watched) {
+				if (!tube.equals("default")) {
+					connection.watch(tube);
+				}
+			}
+			if (!watched.contains("default")) {
+				connection.ignore("default");
+			}
+
+		} catch (BeanstemcException e) {
+			connection.close();
+			throw new IOException("Restoring the session failed: " + e.getMessage(), e);
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+
+		return connection;
+
+	}
+
+	/**
+	 * Drop a broken connection, the next command opens a new one.
+	 */
+	private void broken() {
+
+		try {
+			beanstemc.close();
+		} catch (IOException e) {
+			// Already broken
+		}
+		beanstemc = null;
+
+	}
+
+	/**
+	 * Send a command which may be sent again, on a new connection if the current one breaks.
+	 */
+	private <T> T retry(Call<T> call) throws IOException, BeanstemcException {
+
+		Backoff backoff = new Backoff();
+		while (true) {
+
+			Beanstemc connection = connection(backoff);
+			try {
+				return call.call(connection);
+			} catch (IOException e) {
+				broken();
+				backoff.failed(e);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Send a command which must not be sent twice.
+	 *
+	 * @throws ConnectionLostException When the connection broke, its outcome is unknown.
+	 */
+	private <T> T once(Command command, Call<T> call) throws IOException, BeanstemcException {
+
+		Beanstemc connection = connection(new Backoff());
+		try {
+			return call.call(connection);
+		} catch (IOException e) {
+			broken();
+			throw new ConnectionLostException(command, e);
+		}
+
+	}
+
+	/**
+	 * @see Beanstemc#put(byte[], long, int, int)
+	 * @throws ConnectionLostException The job may have been inserted.
+	 */
+	public long put(final byte[] data, final long priority, final int delay, final int ttr) throws IOException, BeanstemcException {
+
+		return once(Command.PUT, new Call<Long>() {
+			Long call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.put(data, priority, delay, ttr);
+			}
+		});
+
+	}
+
+	/**
+	 * @see #put(byte[], long, int, int)
+	 */
+	public long put(byte[] data) throws IOException, BeanstemcException {
+		return put(data, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * @see #put(byte[], long, int, int)
+	 */
+	public long put(byte[] data, long priority) throws IOException, BeanstemcException {
+		return put(data, priority, Beanstemc.DEFAULT_DELAY, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * @see #put(byte[], long, int, int)
+	 */
+	public long put(byte[] data, long priority, int delay) throws IOException, BeanstemcException {
+		return put(data, priority, delay, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * @see Beanstemc#put(ByteBuffer, long, int, int)
+	 * @throws ConnectionLostException The job may have been inserted.
+	 */
+	public long put(final ByteBuffer data, final long priority, final int delay, final int ttr) throws IOException, BeanstemcException {
+
+		return once(Command.PUT, new Call<Long>() {
+			Long call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.put(data, priority, delay, ttr);
+			}
+		});
+
+	}
+
+	/**
+	 * @see #put(ByteBuffer, long, int, int)
+	 */
+	public long put(ByteBuffer data) throws IOException, BeanstemcException {
+		return put(data, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * @see Beanstemc#use(String)
+	 */
+	public void use(final String tube) throws IOException, BeanstemcException {
+
+		retry(new Call<Void>() {
+			Void call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				beanstemc.use(tube);
+				return null;
+			}
+		});
+		used = tube;
+
+	}
+
+	/**
+	 * @see Beanstemc#watch(String)
+	 */
+	public int watch(final String tube) throws IOException, BeanstemcException {
+
+		int count = retry(new Call<Integer>() {
+			Integer call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.watch(tube);
+			}
+		});
+		watched.add(tube);
+
+		return count;
+
+	}
+
+	/**
+	 * @see Beanstemc#ignore(String)
+	 */
+	public int ignore(final String tube) throws IOException, BeanstemcException {
+
+		int count = retry(new Call<Integer>() {
+			Integer call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.ignore(tube);
+			}
+		});
+		watched.remove(tube);
+
+		return count;
+
+	}
+
+	/**
+	 * Reserve a job, the wait starts over on a new connection.
+	 *
+	 * @see Beanstemc#reserve(int)
+	 */
+	public Job reserve(final int timeout) throws IOException, BeanstemcException {
+
+		return retry(new Call<Job>() {
+			Job call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.reserve(timeout);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#reserve()
+	 */
+	public Job reserve() throws IOException, BeanstemcException {
+
+		return retry(new Call<Job>() {
+			Job call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.reserve();
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#peek(long)
+	 */
+	public Job peek(final long jobId) throws IOException, BeanstemcException {
+
+		return retry(new Call<Job>() {
+			Job call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.peek(jobId);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#peekReady()
+	 */
+	public Job peekReady() throws IOException, BeanstemcException {
+
+		return retry(new Call<Job>() {
+			Job call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.peekReady();
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#peekDelayed()
+	 */
+	public Job peekDelayed() throws IOException, BeanstemcException {
+
+		return retry(new Call<Job>() {
+			Job call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.peekDelayed();
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#peekBuried()
+	 */
+	public Job peekBuried() throws IOException, BeanstemcException {
+
+		return retry(new Call<Job>() {
+			Job call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.peekBuried();
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#delete(long)
+	 * @throws ConnectionLostException The job may have been deleted.
+	 */
+	public void delete(final long jobId) throws IOException, BeanstemcException {
+
+		once(Command.DELETE, new Call<Void>() {
+			Void call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				beanstemc.delete(jobId);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see #delete(long)
+	 */
+	public void delete(final Job job) throws IOException, BeanstemcException {
+
+		once(Command.DELETE, new Call<Void>() {
+			Void call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				beanstemc.delete(job);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#release(long, long, int)
+	 * @throws ConnectionLostException The job may have been released.
+	 */
+	public void release(final long jobId, final long priority, final int delay) throws IOException, BeanstemcException {
+
+		once(Command.RELEASE, new Call<Void>() {
+			Void call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				beanstemc.release(jobId, priority, delay);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see #release(long, long, int)
+	 */
+	public void release(final Job job, final long priority, final int delay) throws IOException, BeanstemcException {
+
+		once(Command.RELEASE, new Call<Void>() {
+			Void call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				beanstemc.release(job, priority, delay);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see #release(long, long, int)
+	 */
+	public void release(Job job) throws IOException, BeanstemcException {
+		release(job, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY);
+	}
+
+	/**
+	 * @see Beanstemc#bury(long, long)
+	 * @throws ConnectionLostException The job may have been buried.
+	 */
+	public void bury(final long jobId, final long priority) throws IOException, BeanstemcException {
+
+		once(Command.BURY, new Call<Void>() {
+			Void call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				beanstemc.bury(jobId, priority);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see #bury(long, long)
+	 */
+	public void bury(final Job job, final long priority) throws IOException, BeanstemcException {
+
+		once(Command.BURY, new Call<Void>() {
+			Void call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				beanstemc.bury(job, priority);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see #bury(long, long)
+	 */
+	public void bury(Job job) throws IOException, BeanstemcException {
+		bury(job, Beanstemc.DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * @see Beanstemc#touch(long)
+	 * @throws ConnectionLostException The job may have been touched.
+	 */
+	public void touch(final long jobId) throws IOException, BeanstemcException {
+
+		once(Command.TOUCH, new Call<Void>() {
+			Void call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				beanstemc.touch(jobId);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#kick(int)
+	 * @throws ConnectionLostException Jobs may have been kicked.
+	 */
+	public int kick(final int bound) throws IOException, BeanstemcException {
+
+		return once(Command.KICK, new Call<Integer>() {
+			Integer call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.kick(bound);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#pauseTube(String, int)
+	 * @throws ConnectionLostException The tube may have been paused.
+	 */
+	public void pauseTube(final String tube, final int delay) throws IOException, BeanstemcException {
+
+		once(Command.PAUSE_TUBE, new Call<Void>() {
+			Void call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				beanstemc.pauseTube(tube, delay);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#stats()
+	 */
+	public HashMap<String, String> stats() throws IOException, BeanstemcException {
+		return serverStats().toMap();
+	}
+
+	/**
+	 * @see Beanstemc#serverStats()
+	 */
+	public ServerStats serverStats() throws IOException, BeanstemcException {
+
+		return retry(new Call<ServerStats>() {
+			ServerStats call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.serverStats();
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#statsJob(long)
+	 */
+	public HashMap<String, String> statsJob(long jobId) throws IOException, BeanstemcException {
+		return jobStats(jobId).toMap();
+	}
+
+	/**
+	 * @see Beanstemc#jobStats(long)
+	 */
+	public JobStats jobStats(final long jobId) throws IOException, BeanstemcException {
+
+		return retry(new Call<JobStats>() {
+			JobStats call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.jobStats(jobId);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#statsTube(String)
+	 */
+	public HashMap<String, String> statsTube(String tube) throws IOException, BeanstemcException {
+		return tubeStats(tube).toMap();
+	}
+
+	/**
+	 * @see Beanstemc#tubeStats(String)
+	 */
+	public TubeStats tubeStats(final String tube) throws IOException, BeanstemcException {
+
+		return retry(new Call<TubeStats>() {
+			TubeStats call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.tubeStats(tube);
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#listTubes()
+	 */
+	public List<String> listTubes() throws IOException, BeanstemcException {
+
+		return retry(new Call<List<String>>() {
+			List<String> call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.listTubes();
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#listTubeUsed()
+	 */
+	public String listTubeUsed() throws IOException, BeanstemcException {
+
+		return retry(new Call<String>() {
+			String call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.listTubeUsed();
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#listTubesWatched()
+	 */
+	public List<String> listTubesWatched() throws IOException, BeanstemcException {
+
+		return retry(new Call<List<String>>() {
+			List<String> call(Beanstemc beanstemc) throws IOException, BeanstemcException {
+				return beanstemc.listTubesWatched();
+			}
+		});
+
+	}
+
+	/**
+	 * Close the connection, no new one is opened afterwards.
+	 */
+	public void close() throws IOException {
+
+		closed = true;
+		if (beanstemc != null) {
+			beanstemc.close();
+			beanstemc = null;
+		}
+
+	}
+
+}
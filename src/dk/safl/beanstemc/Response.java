@@ -0,0 +1,99 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+/**
+ * The first word of every response line the server can send.
+ *
+ * Each constant carries its ASCII encoding so a response line can be
+ * matched against it without decoding the line into a String.
+ */
+enum Response {
+
+	INSERTED,
+	BURIED,
+	EXPECTED_CRLF,
+	JOB_TOO_BIG,
+	DRAINING,
+	USING,
+	RESERVED,
+	DEADLINE_SOON,
+	TIMED_OUT,
+	DELETED,
+	NOT_FOUND,
+	RELEASED,
+	TOUCHED,
+	WATCHING,
+	NOT_IGNORED,
+	FOUND,
+	KICKED,
+	OK,
+	PAUSED,
+	OUT_OF_MEMORY,
+	INTERNAL_ERROR,
+	BAD_FORMAT,
+	UNKNOWN_COMMAND,
+
+	/** Anything the client does not know about. */
+	UNKNOWN;
+
+	private static final Response[] VALUES = values();
+
+	private final byte[] token;
+
+	private Response() {
+
+		String name = name();
+		token = new byte[name.length()];
+		for (int i = 0; i < token.length; i++) {
+			token[i] = (byte)name.charAt(i);
+		}
+
+	}
+
+	/**
+	 * @return The response whose token equals buf[offset, offset+length), UNKNOWN if none does.
+	 */
+	static Response match(byte[] buf, int offset, int length) {
+
+		for (int i = 0; i < VALUES.length - 1; i++) {
+
+			byte[] token = VALUES[i].token;
+			if (token.length != length || token[0] != buf[offset]) {
+				continue;
+			}
+
+			int j = 1;
+			while (j < length && token[j] == buf[offset + j]) {
+				j++;
+			}
+			if (j == length) {
+				return VALUES[i];
+			}
+
+		}
+
+		return UNKNOWN;
+
+	}
+
+}
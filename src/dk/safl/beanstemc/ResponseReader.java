@@ -0,0 +1,467 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Decodes response lines and job bodies from a connection.
+ *
+ * Input is read in bulk into a buffer which is reused for the lifetime of
+ * the connection. A response line is located by scanning the buffer for CRLF,
+ * its first word is matched as bytes against the known {@link Response} tokens
+ * and numeric arguments, such as job ids and byte counts, are parsed directly
+ * into longs. Decoding a line therefore allocates nothing; Strings are only
+ * created on request, e.g. for the message of an exception.
+ *
+ * A reader created without a stream is fed from a non-blocking channel with
+ * {@link #fill(ReadableByteChannel)} and polled with {@link #nextLine()},
+ * which only looks at what has already been received.
+ */
+class ResponseReader {
+
+	public static int DEFAULT_BUFFER_SIZE = 8192;
+
+	private static final int MAX_ARGS = 2;
+
+	private InputStream in;
+
+	private byte[]		buf;
+	private int			pos;
+	private int			limit;
+	private ByteBuffer	window;
+
+	// The current line is buf[lineStart, lineEnd), without CRLF.
+	private int		lineStart;
+	private int		lineEnd;
+	private int		tokenEnd;
+
+	private Response	response;
+	private int			argCount;
+	private long[]		args = new long[MAX_ARGS];
+
+	ResponseReader(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	ResponseReader(InputStream in, int bufferSize) {
+		this.in		= in;
+		this.buf	= new byte[bufferSize];
+	}
+
+	/**
+	 * A reader fed by {@link #fill(ReadableByteChannel)} instead of a stream.
+	 */
+	ResponseReader() {
+		this(null, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Read the next response line.
+	 *
+	 * @return The response token, arguments are available through {@link #arg(int)}.
+	 * @throws IOException On end-of-stream or when the line does not fit in the buffer.
+	 */
+	Response readLine() throws IOException {
+
+		int scan = pos;
+		int end;
+
+		while ((end = indexOfCrlf(scan)) < 0) {
+
+			scan = Math.max(pos, limit - 1);
+			if (pos > 0) {
+				scan -= pos;
+				compact();
+			}
+			if (limit == buf.length) {
+				throw new IOException("Response line exceeds the read buffer.");
+			}
+			if (fill() < 0) {
+				throw new IOException("Premature end-of-stream when reading response line.");
+			}
+
+		}
+
+		lineStart	= pos;
+		lineEnd		= end;
+		pos			= end + 2;
+
+		parse();
+
+		return response;
+
+	}
+
+	/**
+	 * Parse the next response line if it has been received completely.
+	 *
+	 * @return false if no complete line is buffered, nothing is consumed then.
+	 */
+	boolean nextLine() {
+
+		int end = indexOfCrlf(pos);
+		if (end < 0) {
+			return false;
+		}
+
+		lineStart	= pos;
+		lineEnd		= end;
+		pos			= end + 2;
+
+		parse();
+
+		return true;
+
+	}
+
+	/**
+	 * @return Number of bytes received but not consumed yet.
+	 */
+	int buffered() {
+		return limit - pos;
+	}
+
+	/**
+	 * Make sure the buffer can hold a body of the given size and its CRLF,
+	 * so it can be taken with {@link #takeData(int)} once received.
+	 */
+	void require(int bytes) {
+
+		compact();
+		if (bytes + 2 > buf.length) {
+
+			byte[] grown = new byte[bytes + 2];
+			System.arraycopy(buf, 0, grown, 0, limit);
+			buf		= grown;
+			window	= null;
+
+		}
+
+	}
+
+	/**
+	 * Consume a body and its trailing CRLF, which must already be buffered.
+	 *
+	 * @throws IOException When the body is not followed by CRLF.
+	 */
+	byte[] takeData(int bytes) throws IOException {
+
+		byte[] data = new byte[bytes];
+		System.arraycopy(buf, pos, data, 0, bytes);
+		pos += bytes;
+		skipCrlf();
+
+		return data;
+
+	}
+
+	/**
+	 * Read whatever the channel has available into the buffer.
+	 *
+	 * @return Number of bytes read, -1 on end-of-stream.
+	 * @throws IOException
+	 */
+	int fill(ReadableByteChannel channel) throws IOException {
+
+		if (limit == buf.length) {
+			compact();
+			if (limit == buf.length) {
+				require(buf.length * 2);
+			}
+		}
+
+		if (window == null) {
+			window = ByteBuffer.wrap(buf);
+		}
+		window.limit(buf.length).position(limit);
+
+		int n = channel.read(window);
+		if (n > 0) {
+			limit += n;
+		}
+		return n;
+
+	}
+
+	/**
+	 * @return The token of the current line.
+	 */
+	Response response() {
+		return response;
+	}
+
+	/**
+	 * @return Number of numeric arguments on the current line.
+	 */
+	int argCount() {
+		return argCount;
+	}
+
+	/**
+	 * @param i Zero-based index of the argument following the token.
+	 * @return The argument as a long.
+	 */
+	long arg(int i) {
+		return args[i];
+	}
+
+	/**
+	 * @return Size of the current line, without CRLF.
+	 */
+	int lineLength() {
+		return lineEnd - lineStart;
+	}
+
+	/**
+	 * @return The first word of the current line as a String, used for error messages.
+	 */
+	String token() {
+		return ascii(lineStart, tokenEnd);
+	}
+
+	/**
+	 * @return Everything after the first word of the current line, e.g. the tube name of "USING".
+	 */
+	String text() {
+		return tokenEnd < lineEnd ? ascii(tokenEnd + 1, lineEnd) : "";
+	}
+
+	/**
+	 * Read a blob of the given size followed by CRLF.
+	 *
+	 * @param bytes Size of the blob.
+	 * @return The blob.
+	 * @throws IOException
+	 */
+	byte[] readData(int bytes) throws IOException {
+
+		byte[] data = new byte[bytes];
+		readFully(data, 0, bytes);
+		skipCrlf();
+
+		return data;
+
+	}
+
+	/**
+	 * Read a blob into the given array, followed by CRLF which is skipped.
+	 */
+	void readData(byte[] data, int offset, int length) throws IOException {
+
+		readFully(data, offset, length);
+		skipCrlf();
+
+	}
+
+	/**
+	 * Make a whole blob and its CRLF available in the buffer, so it can be parsed in place.
+	 *
+	 * @return Offset of the blob in {@link #buffer()}, consume it with {@link #skipData(int)}.
+	 * @throws IOException
+	 */
+	int fillData(int bytes) throws IOException {
+
+		require(bytes);
+		while (limit - pos < bytes + 2) {
+			if (fill() < 0) {
+				throw new IOException("Premature end-of-stream when reading job data.");
+			}
+		}
+		return pos;
+
+	}
+
+	/**
+	 * @return The read buffer, valid until the next read.
+	 */
+	byte[] buffer() {
+		return buf;
+	}
+
+	/**
+	 * Consume a blob made available with {@link #fillData(int)}, and its CRLF.
+	 */
+	void skipData(int bytes) throws IOException {
+
+		pos += bytes;
+		skipCrlf();
+
+	}
+
+	/**
+	 * Write a blob of the given size to a channel, followed by CRLF which is skipped.
+	 *
+	 * The blob passes through the read buffer piece by piece, so it never has to fit in memory.
+	 */
+	void readData(WritableByteChannel target, long length) throws IOException {
+
+		long remaining = length;
+		while (remaining > 0) {
+
+			if (pos == limit) {
+				pos		= 0;
+				limit	= 0;
+				if (fill() < 0) {
+					throw new IOException("Premature end-of-stream when reading job data.");
+				}
+			}
+
+			int n = (int)Math.min(remaining, limit - pos);
+			if (window == null) {
+				window = ByteBuffer.wrap(buf);
+			}
+			window.limit(pos + n).position(pos);
+			while (window.hasRemaining()) {
+				target.write(window);
+			}
+			pos			+= n;
+			remaining	-= n;
+
+		}
+		skipCrlf();
+
+	}
+
+	/**
+	 * Copy exactly length bytes into data, first from the buffer, then from the stream.
+	 */
+	void readFully(byte[] data, int offset, int length) throws IOException {
+
+		int buffered = Math.min(length, limit - pos);
+		System.arraycopy(buf, pos, data, offset, buffered);
+		pos += buffered;
+
+		int read = buffered;
+		while (read < length) {
+
+			int n = in.read(data, offset + read, length - read);
+			if (n < 0) {
+				throw new IOException("Premature end-of-stream when reading job data.");
+			}
+			read += n;
+
+		}
+
+	}
+
+	/**
+	 * Consume the CRLF which terminates a body.
+	 *
+	 * A body of the wrong size would otherwise go unnoticed, and everything
+	 * read after it would be taken from the wrong place in the stream.
+	 *
+	 * @throws IOException When the next two bytes are not CRLF.
+	 */
+	private void skipCrlf() throws IOException {
+
+		while (limit - pos < 2) {
+			compact();
+			if (fill() < 0) {
+				throw new IOException("Premature end-of-stream when reading job data.");
+			}
+		}
+		if (buf[pos] != '\r' || buf[pos + 1] != '\n') {
+			throw new IOException("Job data is not followed by CRLF.");
+		}
+		pos += 2;
+
+	}
+
+	/**
+	 * Tokenize the current line into a Response and up to MAX_ARGS numbers.
+	 */
+	private void parse() {
+
+		int i = lineStart;
+		while (i < lineEnd && buf[i] != ' ') {
+			i++;
+		}
+		tokenEnd	= i;
+		response	= Response.match(buf, lineStart, tokenEnd - lineStart);
+		argCount	= 0;
+
+		while (i < lineEnd && argCount < MAX_ARGS) {
+
+			i++;	// Skip the space
+			long value = 0;
+			int start = i;
+			while (i < lineEnd && buf[i] >= '0' && buf[i] <= '9') {
+				value = value * 10 + (buf[i] - '0');
+				i++;
+			}
+			if (i == start || (i < lineEnd && buf[i] != ' ')) {
+				break;		// Not a number, e.g. a tube name
+			}
+			args[argCount++] = value;
+
+		}
+
+	}
+
+	private int indexOfCrlf(int from) {
+
+		for (int i = from; i < limit - 1; i++) {
+			if (buf[i] == '\r' && buf[i + 1] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+
+	}
+
+	private void compact() {
+
+		int remaining = limit - pos;
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, remaining);
+			pos		= 0;
+			limit	= remaining;
+		}
+
+	}
+
+	private int fill() throws IOException {
+
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n > 0) {
+			limit += n;
+		}
+		return n;
+
+	}
+
+	private String ascii(int from, int to) {
+
+		char[] chars = new char[to - from];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char)(buf[from + i] & 0xff);
+		}
+		return new String(chars);
+
+	}
+
+}
@@ -0,0 +1,370 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+/**
+ * The answer to "stats", statistics of the server as a whole.
+ *
+ * @see Beanstemc#serverStats()
+ */
+public class ServerStats extends Stats {
+
+	/**
+	 * The numeric values, in the order the server sends them.
+	 */
+	public enum Field {
+
+		CURRENT_JOBS_URGENT("current-jobs-urgent", NUMBER),
+		CURRENT_JOBS_READY("current-jobs-ready", NUMBER),
+		CURRENT_JOBS_RESERVED("current-jobs-reserved", NUMBER),
+		CURRENT_JOBS_DELAYED("current-jobs-delayed", NUMBER),
+		CURRENT_JOBS_BURIED("current-jobs-buried", NUMBER),
+		CMD_PUT("cmd-put", NUMBER),
+		CMD_PEEK("cmd-peek", NUMBER),
+		CMD_PEEK_READY("cmd-peek-ready", NUMBER),
+		CMD_PEEK_DELAYED("cmd-peek-delayed", NUMBER),
+		CMD_PEEK_BURIED("cmd-peek-buried", NUMBER),
+		CMD_RESERVE("cmd-reserve", NUMBER),
+		CMD_RESERVE_WITH_TIMEOUT("cmd-reserve-with-timeout", NUMBER),
+		CMD_TOUCH("cmd-touch", NUMBER),
+		CMD_USE("cmd-use", NUMBER),
+		CMD_WATCH("cmd-watch", NUMBER),
+		CMD_IGNORE("cmd-ignore", NUMBER),
+		CMD_DELETE("cmd-delete", NUMBER),
+		CMD_RELEASE("cmd-release", NUMBER),
+		CMD_BURY("cmd-bury", NUMBER),
+		CMD_KICK("cmd-kick", NUMBER),
+		CMD_STATS("cmd-stats", NUMBER),
+		CMD_STATS_JOB("cmd-stats-job", NUMBER),
+		CMD_STATS_TUBE("cmd-stats-tube", NUMBER),
+		CMD_LIST_TUBES("cmd-list-tubes", NUMBER),
+		CMD_LIST_TUBE_USED("cmd-list-tube-used", NUMBER),
+		CMD_LIST_TUBES_WATCHED("cmd-list-tubes-watched", NUMBER),
+		CMD_PAUSE_TUBE("cmd-pause-tube", NUMBER),
+		JOB_TIMEOUTS("job-timeouts", NUMBER),
+		TOTAL_JOBS("total-jobs", NUMBER),
+		MAX_JOB_SIZE("max-job-size", NUMBER),
+		CURRENT_TUBES("current-tubes", NUMBER),
+		CURRENT_CONNECTIONS("current-connections", NUMBER),
+		CURRENT_PRODUCERS("current-producers", NUMBER),
+		CURRENT_WORKERS("current-workers", NUMBER),
+		CURRENT_WAITING("current-waiting", NUMBER),
+		TOTAL_CONNECTIONS("total-connections", NUMBER),
+		PID("pid", NUMBER),
+		RUSAGE_UTIME("rusage-utime", DECIMAL),
+		RUSAGE_STIME("rusage-stime", DECIMAL),
+		UPTIME("uptime", NUMBER),
+		BINLOG_OLDEST_INDEX("binlog-oldest-index", NUMBER),
+		BINLOG_CURRENT_INDEX("binlog-current-index", NUMBER),
+		BINLOG_RECORDS_MIGRATED("binlog-records-migrated", NUMBER),
+		BINLOG_RECORDS_WRITTEN("binlog-records-written", NUMBER),
+		BINLOG_MAX_SIZE("binlog-max-size", NUMBER),
+		DRAINING("draining", BOOLEAN);
+
+		private final String	key;
+		private final int		kind;
+
+		private Field(String key, int kind) {
+			this.key	= key;
+			this.kind	= kind;
+		}
+
+		/**
+		 * @return The name of the value in the YAML dictionary.
+		 */
+		public String getKey() {
+			return key;
+		}
+
+	}
+
+	// Indexes of the text values
+	private static final int VERSION = 0;
+	private static final int ID = 1;
+	private static final int HOSTNAME = 2;
+	private static final int OS = 3;
+	private static final int PLATFORM = 4;
+
+	private static final Layout LAYOUT = layout();
+
+	private static Layout layout() {
+
+		Field[] fields	= Field.values();
+		String[] keys	= new String[fields.length];
+		int[] kinds		= new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			keys[i]		= fields[i].key;
+			kinds[i]	= fields[i].kind;
+		}
+
+		return new Layout(keys, kinds, new String[] {"version", "id", "hostname", "os", "platform"});
+
+	}
+
+	public ServerStats() {
+		super(LAYOUT);
+	}
+
+	/**
+	 * @return The value, 0 if the server did not send it.
+	 * 			The rusage values are in microseconds, "draining" is 1 when true.
+	 */
+	public long get(Field field) {
+		return number(field.ordinal());
+	}
+
+	/**
+	 * @return false if the server did not send the value, e.g. because it predates it.
+	 */
+	public boolean has(Field field) {
+		return has(field.ordinal());
+	}
+
+	/**
+	 * @return The version of the server, e.g. "1.12".
+	 */
+	public String getVersion() {
+		return text(VERSION);
+	}
+
+	/**
+	 * @return A random id of the server process, null before 1.10.
+	 */
+	public String getId() {
+		return text(ID);
+	}
+
+	/**
+	 * @return The host name of the server, null before 1.10.
+	 */
+	public String getHostname() {
+		return text(HOSTNAME);
+	}
+
+	/**
+	 * @return The operating system of the server, null before 1.12.
+	 */
+	public String getOs() {
+		return text(OS);
+	}
+
+	/**
+	 * @return The machine architecture of the server, null before 1.12.
+	 */
+	public String getPlatform() {
+		return text(PLATFORM);
+	}
+
+	public long getCurrentJobsUrgent() {
+		return get(Field.CURRENT_JOBS_URGENT);
+	}
+
+	public long getCurrentJobsReady() {
+		return get(Field.CURRENT_JOBS_READY);
+	}
+
+	public long getCurrentJobsReserved() {
+		return get(Field.CURRENT_JOBS_RESERVED);
+	}
+
+	public long getCurrentJobsDelayed() {
+		return get(Field.CURRENT_JOBS_DELAYED);
+	}
+
+	public long getCurrentJobsBuried() {
+		return get(Field.CURRENT_JOBS_BURIED);
+	}
+
+	public long getCmdPut() {
+		return get(Field.CMD_PUT);
+	}
+
+	public long getCmdPeek() {
+		return get(Field.CMD_PEEK);
+	}
+
+	public long getCmdPeekReady() {
+		return get(Field.CMD_PEEK_READY);
+	}
+
+	public long getCmdPeekDelayed() {
+		return get(Field.CMD_PEEK_DELAYED);
+	}
+
+	public long getCmdPeekBuried() {
+		return get(Field.CMD_PEEK_BURIED);
+	}
+
+	public long getCmdReserve() {
+		return get(Field.CMD_RESERVE);
+	}
+
+	public long getCmdReserveWithTimeout() {
+		return get(Field.CMD_RESERVE_WITH_TIMEOUT);
+	}
+
+	public long getCmdTouch() {
+		return get(Field.CMD_TOUCH);
+	}
+
+	public long getCmdUse() {
+		return get(Field.CMD_USE);
+	}
+
+	public long getCmdWatch() {
+		return get(Field.CMD_WATCH);
+	}
+
+	public long getCmdIgnore() {
+		return get(Field.CMD_IGNORE);
+	}
+
+	public long getCmdDelete() {
+		return get(Field.CMD_DELETE);
+	}
+
+	public long getCmdRelease() {
+		return get(Field.CMD_RELEASE);
+	}
+
+	public long getCmdBury() {
+		return get(Field.CMD_BURY);
+	}
+
+	public long getCmdKick() {
+		return get(Field.CMD_KICK);
+	}
+
+	public long getCmdStats() {
+		return get(Field.CMD_STATS);
+	}
+
+	public long getCmdStatsJob() {
+		return get(Field.CMD_STATS_JOB);
+	}
+
+	public long getCmdStatsTube() {
+		return get(Field.CMD_STATS_TUBE);
+	}
+
+	public long getCmdListTubes() {
+		return get(Field.CMD_LIST_TUBES);
+	}
+
+	public long getCmdListTubeUsed() {
+		return get(Field.CMD_LIST_TUBE_USED);
+	}
+
+	public long getCmdListTubesWatched() {
+		return get(Field.CMD_LIST_TUBES_WATCHED);
+	}
+
+	public long getCmdPauseTube() {
+		return get(Field.CMD_PAUSE_TUBE);
+	}
+
+	public long getJobTimeouts() {
+		return get(Field.JOB_TIMEOUTS);
+	}
+
+	public long getTotalJobs() {
+		return get(Field.TOTAL_JOBS);
+	}
+
+	public long getMaxJobSize() {
+		return get(Field.MAX_JOB_SIZE);
+	}
+
+	public long getCurrentTubes() {
+		return get(Field.CURRENT_TUBES);
+	}
+
+	public long getCurrentConnections() {
+		return get(Field.CURRENT_CONNECTIONS);
+	}
+
+	public long getCurrentProducers() {
+		return get(Field.CURRENT_PRODUCERS);
+	}
+
+	public long getCurrentWorkers() {
+		return get(Field.CURRENT_WORKERS);
+	}
+
+	public long getCurrentWaiting() {
+		return get(Field.CURRENT_WAITING);
+	}
+
+	public long getTotalConnections() {
+		return get(Field.TOTAL_CONNECTIONS);
+	}
+
+	public long getPid() {
+		return get(Field.PID);
+	}
+
+	/**
+	 * @return User CPU time of the server in microseconds.
+	 */
+	public long getRusageUtime() {
+		return get(Field.RUSAGE_UTIME);
+	}
+
+	/**
+	 * @return System CPU time of the server in microseconds.
+	 */
+	public long getRusageStime() {
+		return get(Field.RUSAGE_STIME);
+	}
+
+	/**
+	 * @return Seconds since the server started.
+	 */
+	public long getUptime() {
+		return get(Field.UPTIME);
+	}
+
+	public long getBinlogOldestIndex() {
+		return get(Field.BINLOG_OLDEST_INDEX);
+	}
+
+	public long getBinlogCurrentIndex() {
+		return get(Field.BINLOG_CURRENT_INDEX);
+	}
+
+	public long getBinlogRecordsMigrated() {
+		return get(Field.BINLOG_RECORDS_MIGRATED);
+	}
+
+	public long getBinlogRecordsWritten() {
+		return get(Field.BINLOG_RECORDS_WRITTEN);
+	}
+
+	public long getBinlogMaxSize() {
+		return get(Field.BINLOG_MAX_SIZE);
+	}
+
+	public boolean isDraining() {
+		return get(Field.DRAINING) != 0;
+	}
+
+}
@@ -0,0 +1,512 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single connection shared by many producer threads.
+ *
+ * <pre>
+ * SharedBeanstemc shared = new SharedBeanstemc("localhost", 11300);
+ * // From any number of threads:
+ * long jobId = shared.put("emails", data, priority, delay, ttr);
+ * </pre>
+ *
+ * Calling threads add their commands to a lock-free queue and block until
+ * the response arrives. A writer thread takes everything queued, encodes it
+ * into one buffer and sends it with a single write, so under load many
+ * commands share each system call and TCP segment. A reader thread matches
+ * responses to commands by position, as beanstalkd answers the commands of
+ * a connection in order, and wakes the caller.
+ *
+ * Only commands which do not depend on per-connection state are offered.
+ * The tube of a put is given with the put; the writer remembers the tube in
+ * use and sends a "use" only when it changes. Commands tied to reservations,
+ * such as "reserve", "release", "bury" and "touch", need a connection of
+ * their own: "touch", for instance, only applies to jobs reserved on the
+ * same connection.
+ *
+ * A handful of shared connections is usually enough for dozens of producer
+ * threads.
+ */
+public class SharedBeanstemc {
+
+	private final Socket			c;
+	private final ResponseReader	in;
+	private final CommandWriter		out;
+
+	private final ConcurrentLinkedQueue<Call<?>>	submitted	= new ConcurrentLinkedQueue<Call<?>>();
+	private final ConcurrentLinkedQueue<Call<?>>	inflight	= new ConcurrentLinkedQueue<Call<?>>();
+	private final AtomicBoolean						parked		= new AtomicBoolean();
+	private volatile IOException					failure;
+	private volatile boolean						quit;
+
+	private final Thread writer;
+	private final Thread reader;
+
+	// Owned by the writer thread
+	private String used = "default";
+
+	public SharedBeanstemc(String host, int port) throws IOException {
+		this(new Socket(host, port));
+	}
+
+	/**
+	 * Take over a connection and start its writer and reader threads.
+	 *
+	 * @throws IOException
+	 */
+	public SharedBeanstemc(Socket connection) throws IOException {
+
+		c	= connection;
+		c.setTcpNoDelay(true);
+		in	= new ResponseReader(c.getInputStream());
+		out	= new CommandWriter(c.getOutputStream());
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "beanstemc-writer");
+		reader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, "beanstemc-reader");
+
+		writer.setDaemon(true);
+		reader.setDaemon(true);
+		writer.start();
+		reader.start();
+
+	}
+
+	/**
+	 * Put a job into the given tube.
+	 *
+	 * @see Beanstemc#put(byte[], long, int, int)
+	 * @return The id of the inserted job.
+	 * @throws IOException
+	 * @throws BeanstemcException
+	 */
+	public long put(String tube, final byte[] data, final long priority, final int delay, final int ttr) throws IOException, BeanstemcException {
+
+		Beanstemc.checkTube(tube);
+
+		Call<Long> call = new Call<Long>() {
+			void encode(CommandWriter out) throws IOException {
+				out.put(priority, delay, ttr, data, 0, data.length);
+			}
+			Long decode(ResponseReader in) throws BeanstemcException {
+				return Beanstemc.checkPut(in);
+			}
+		};
+		call.destination = tube;
+
+		return await(call);
+
+	}
+
+	/**
+	 * @see #put(String, byte[], long, int, int)
+	 */
+	public long put(String tube, byte[] data) throws IOException, BeanstemcException {
+		return put(tube, data, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * Put a job into the tube named "default".
+	 *
+	 * @see #put(String, byte[], long, int, int)
+	 */
+	public long put(byte[] data) throws IOException, BeanstemcException {
+		return put("default", data);
+	}
+
+	/**
+	 * @see Beanstemc#delete(long)
+	 */
+	public void delete(final long jobId) throws IOException, BeanstemcException {
+
+		await(new Call<Void>() {
+			void encode(CommandWriter out) throws IOException {
+				out.delete(jobId);
+			}
+			Void decode(ResponseReader in) throws BeanstemcException {
+				Beanstemc.checkDelete(in, jobId);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#delete(Job)
+	 */
+	public void delete(Job job) throws IOException, BeanstemcException {
+		delete(job.getId());
+	}
+
+	/**
+	 * @see Beanstemc#peek(long)
+	 */
+	public Job peek(final long jobId) throws IOException, BeanstemcException {
+
+		return await(new Call<Job>() {
+			void encode(CommandWriter out) throws IOException {
+				out.peek(jobId);
+			}
+			Job decode(ResponseReader in) throws IOException, BeanstemcException {
+				int bytes = Beanstemc.checkJob(in);
+				return new Job(in.arg(0), in.readData(bytes));
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#stats()
+	 */
+	public HashMap<String, String> stats() throws IOException, BeanstemcException {
+
+		return await(new Call<HashMap<String, String>>() {
+			void encode(CommandWriter out) throws IOException {
+				out.stats();
+			}
+			HashMap<String, String> decode(ResponseReader in) throws IOException, BeanstemcException {
+				return Beanstemc.parseYamlMap(yaml(in));
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#statsJob(long)
+	 */
+	public HashMap<String, String> statsJob(final long jobId) throws IOException, BeanstemcException {
+
+		return await(new Call<HashMap<String, String>>() {
+			void encode(CommandWriter out) throws IOException {
+				out.statsJob(jobId);
+			}
+			HashMap<String, String> decode(ResponseReader in) throws IOException, BeanstemcException {
+				return Beanstemc.parseYamlMap(yaml(in));
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#statsTube(String)
+	 */
+	public HashMap<String, String> statsTube(final String tube) throws IOException, BeanstemcException {
+
+		return await(new Call<HashMap<String, String>>() {
+			void encode(CommandWriter out) throws IOException {
+				out.statsTube(tube);
+			}
+			HashMap<String, String> decode(ResponseReader in) throws IOException, BeanstemcException {
+				return Beanstemc.parseYamlMap(yaml(in));
+			}
+		});
+
+	}
+
+	/**
+	 * @see Beanstemc#listTubes()
+	 */
+	public List<String> listTubes() throws IOException, BeanstemcException {
+
+		return await(new Call<List<String>>() {
+			void encode(CommandWriter out) throws IOException {
+				out.listTubes();
+			}
+			List<String> decode(ResponseReader in) throws IOException, BeanstemcException {
+				return Beanstemc.parseYamlList(yaml(in));
+			}
+		});
+
+	}
+
+	/**
+	 * @return Number of commands queued or sent which have not been answered yet.
+	 */
+	public int pending() {
+		return submitted.size() + inflight.size();
+	}
+
+	/**
+	 * Close the connection after the commands already queued have been answered.
+	 *
+	 * Commands submitted after close fail with an IOException.
+	 */
+	public void close() {
+
+		quit = true;
+		wakeWriter();
+
+	}
+
+	private static String yaml(ResponseReader in) throws IOException, BeanstemcException {
+		return new String(in.readData(Beanstemc.checkYaml(in)));
+	}
+
+	/**
+	 * Submit a call and block until it is answered.
+	 */
+	private <T> T await(Call<T> call) throws IOException, BeanstemcException {
+
+		submit(call);
+
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return call.future.get();
+				} catch (InterruptedException e) {
+					// The command is on the wire, its response must still be consumed
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+
+			Throwable cause = e.getCause();
+			if (cause instanceof BeanstemcException) {
+				throw (BeanstemcException)cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new IOException(cause);
+
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+	private void submit(Call<?> call) {
+
+		if (quit || failure != null) {
+			call.future.completeExceptionally(failure != null ? failure : new IOException("Connection closed."));
+			return;
+		}
+
+		submitted.add(call);
+		if (failure != null) {
+			failSubmitted();	// Raced with a failure which has already drained the queue
+		}
+		wakeWriter();
+
+	}
+
+	private void wakeWriter() {
+
+		if (parked.compareAndSet(true, false)) {
+			LockSupport.unpark(writer);
+		}
+
+	}
+
+	/**
+	 * Encode everything submitted and send it in one write, then sleep until more is submitted.
+	 */
+	private void write() {
+
+		try {
+
+			while (failure == null) {
+
+				Call<?> call;
+				while ((call = submitted.poll()) != null) {
+
+					if (call.destination != null && !call.destination.equals(used)) {
+						Use use = new Use(call.destination);
+						inflight.add(use);
+						use.encode(out);
+						used = call.destination;
+					}
+
+					// Queued before it is encoded, its response cannot arrive earlier
+					inflight.add(call);
+					call.encode(out);
+
+				}
+
+				if (out.buffered() > 0) {
+					out.flush();
+					continue;
+				}
+
+				if (quit) {
+					out.quit();
+					out.flush();
+					c.shutdownOutput();
+					return;
+				}
+
+				parked.set(true);
+				if (submitted.isEmpty() && !quit) {
+					LockSupport.park(this);
+				}
+				parked.set(false);
+
+			}
+
+		} catch (IOException e) {
+			fail(e);
+		} catch (RuntimeException e) {
+			fail(new IOException(e));
+		}
+
+	}
+
+	/**
+	 * Complete calls, in order, as their responses arrive.
+	 */
+	private void read() {
+
+		try {
+
+			while (true) {
+
+				in.readLine();
+				Call<?> call = inflight.poll();
+				if (call == null) {
+					throw new IOException(String.format("Unexpected response [%s]", in.token()));
+				}
+				call.complete(in);
+
+			}
+
+		} catch (IOException e) {
+			fail(quit && inflight.isEmpty() ? new IOException("Connection closed.") : e);
+		}
+
+	}
+
+	private void fail(IOException e) {
+
+		if (failure == null) {
+			failure = e;
+		}
+
+		try {
+			c.close();
+		} catch (IOException ignored) {
+			// Closing anyway
+		}
+
+		Call<?> call;
+		while ((call = inflight.poll()) != null) {
+			call.future.completeExceptionally(failure);
+		}
+		failSubmitted();
+		LockSupport.unpark(writer);
+
+	}
+
+	private void failSubmitted() {
+
+		Call<?> call;
+		while ((call = submitted.poll()) != null) {
+			call.future.completeExceptionally(failure);
+		}
+
+	}
+
+	/**
+	 * A submitted command and the future its caller waits on.
+	 */
+	private abstract static class Call<T> {
+
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		/**
+		 * The tube a put must go to, null for commands which do not depend on it.
+		 */
+		String destination;
+
+		abstract void encode(CommandWriter out) throws IOException;
+
+		/**
+		 * Interpret the current response line, reading its body if it has one.
+		 */
+		abstract T decode(ResponseReader in) throws IOException, BeanstemcException;
+
+		void complete(ResponseReader in) throws IOException {
+
+			try {
+				future.complete(decode(in));
+			} catch (BeanstemcException e) {
+				future.completeExceptionally(e);
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+
+		}
+
+	}
+
+	/**
+	 * A "use" inserted by the writer. It cannot fail for a valid tube name
+	 * unless the server is in trouble, and the puts following it would go to
+	 * the wrong tube, so a failure closes the connection.
+	 */
+	private static class Use extends Call<Void> {
+
+		private final String tube;
+
+		Use(String tube) {
+			this.tube = tube;
+		}
+
+		void encode(CommandWriter out) throws IOException {
+			out.use(tube);
+		}
+
+		Void decode(ResponseReader in) throws IOException {
+
+			try {
+				Beanstemc.checkUse(in);
+			} catch (BeanstemcException e) {
+				throw new IOException(String.format("Could not change tube [%s]", e.getMessage()));
+			}
+			return null;
+
+		}
+
+	}
+
+}
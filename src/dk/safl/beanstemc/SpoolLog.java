@@ -0,0 +1,410 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * The append-only log of a {@link SpoolingProducer}, kept in memory-mapped
+ * segment files of a fixed size.
+ *
+ * Each record is laid out as:
+ *
+ * <pre>
+ * int length     bytes following this field, -1 marks the end of a segment
+ * int crc        CRC-32 of the bytes following this field
+ * int priority
+ * int delay
+ * int ttr
+ * short tube     length of the tube name, followed by the name
+ * byte[] data    the rest of the record
+ * </pre>
+ *
+ * Positions in the log are offsets from the start of the first segment
+ * ever written, segment n holding [n*segmentSize, (n+1)*segmentSize).
+ * A record is written before its length, and only then published to the
+ * reader through a volatile end offset, so the reader never sees half a
+ * record. The offset up to which the records were confirmed by the server
+ * is kept in a checkpoint file, segments wholly below it are deleted.
+ *
+ * On opening, the records following the checkpoint are walked and checked
+ * against their CRC; the first which is missing or damaged, e.g. by a crash
+ * of the operating system while it was written, ends the log.
+ */
+class SpoolLog {
+
+	static final int HEADER = 22;
+
+	private static final String	SUFFIX		= ".spool";
+	private static final String	CHECKPOINT	= "checkpoint";
+
+	/**
+	 * A record read back from the log, reused from one record to the next.
+	 */
+	static class Record {
+
+		long		next;			// Offset of the following record
+		long		priority;
+		int			delay;
+		int			ttr;
+		String		tube;
+		ByteBuffer	data;			// View of the segment, position and limit around the payload
+
+		private long		index	= -1;
+		private ByteBuffer	segment;
+
+	}
+
+	private final File	directory;
+	private final int	segmentSize;
+	private final int	maxSegments;
+
+	private final TreeMap<Long, MappedByteBuffer>	segments	= new TreeMap<Long, MappedByteBuffer>();
+	private final MappedByteBuffer					checkpoint;
+	private final CRC32								crc			= new CRC32();		// Guarded by this
+
+	// Owned by the writer, guarded by this
+	private MappedByteBuffer	tail;
+	private long				tailIndex;
+	private int					position;
+
+	private volatile long	written;		// End of the published records
+	private volatile long	confirmed;
+
+	/**
+	 * Open the log in a directory, recovering the records not yet confirmed.
+	 *
+	 * @throws IOException
+	 */
+	SpoolLog(File directory, int segmentSize, int maxSegments) throws IOException {
+
+		if (segmentSize < HEADER + 4) {
+			throw new IllegalArgumentException("Segments are too small for a record.");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create the spool directory " + directory);
+		}
+
+		this.directory		= directory;
+		this.segmentSize	= segmentSize;
+		this.maxSegments	= maxSegments;
+
+		checkpoint	= map(new File(directory, CHECKPOINT), 8);
+		confirmed	= checkpoint.getLong(0);
+
+		File[] files = directory.listFiles();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(SUFFIX)) {
+				long index = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+				if ((index + 1) * segmentSize <= confirmed) {
+					file.delete();
+				} else {
+					segments.put(index, map(file, segmentSize));
+				}
+			}
+		}
+
+		recover();
+
+	}
+
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+
+	}
+
+	private File file(long index) {
+		return new File(directory, String.format("%020d%s", index, SUFFIX));
+	}
+
+	/**
+	 * Find the end of the log, walking the records after the checkpoint.
+	 */
+	private void recover() throws IOException {
+
+		long offset = confirmed;
+		if (!segments.isEmpty() && segments.firstKey() * segmentSize > offset) {
+			offset = segments.firstKey() * segmentSize;	// The checkpoint lags behind a deleted segment
+		}
+
+		while (true) {
+
+			long index			= offset / segmentSize;
+			int at				= (int)(offset % segmentSize);
+			MappedByteBuffer segment = segments.get(index);
+			if (segment == null) {
+				break;
+			}
+
+			int length = segmentSize - at < 4 ? -1 : segment.getInt(at);
+			if (length == -1) {
+				if (!segments.containsKey(index + 1)) {
+					break;
+				}
+				offset = (index + 1) * segmentSize;
+				continue;
+			}
+			if (length < HEADER - 4 || length > segmentSize - at - 4 || !valid(segment, at, length)) {
+				break;
+			}
+
+			offset += 4 + length;
+
+		}
+
+		// Segments after the end only held damaged or unpublished records
+		long index = offset / segmentSize;
+		while (!segments.isEmpty() && segments.lastKey() > index) {
+			file(segments.pollLastEntry().getKey()).delete();
+		}
+
+		tailIndex	= index;
+		position	= (int)(offset % segmentSize);
+		tail		= segments.get(index);
+		if (tail == null) {
+			tail = map(file(index), segmentSize);
+			segments.put(index, tail);
+		}
+		written = offset;
+
+	}
+
+	private boolean valid(MappedByteBuffer segment, int at, int length) {
+
+		int expected = segment.getInt(at + 4);
+
+		crc.reset();
+		for (int i = at + 8; i < at + 4 + length; i++) {
+			crc.update(segment.get(i));
+		}
+		return (int)crc.getValue() == expected;
+
+	}
+
+	/**
+	 * Append a record and publish it to the reader.
+	 *
+	 * @return Offset of the end of the record.
+	 * @throws IOException "SPOOL_FULL" when the log holds {@link #maxSegments} segments.
+	 */
+	synchronized long append(byte[] tube, byte[] data, int offset, int length, long priority, int delay, int ttr) throws IOException {
+
+		int size = HEADER + tube.length + length;
+		if (size > segmentSize) {
+			throw new IllegalArgumentException(String.format("Job does not fit in a spool segment [SIZE=%d]", length));
+		}
+
+		if (position + size > segmentSize) {
+			roll();
+		}
+
+		crc.reset();
+		update(crc, (int)priority);
+		update(crc, delay);
+		update(crc, ttr);
+		crc.update(tube.length >>> 8);
+		crc.update(tube.length);
+		crc.update(tube, 0, tube.length);
+		crc.update(data, offset, length);
+
+		ByteBuffer record = tail.duplicate();
+		record.position(position + 4);
+		record.putInt((int)crc.getValue());
+		record.putInt((int)priority);
+		record.putInt(delay);
+		record.putInt(ttr);
+		record.putShort((short)tube.length);
+		record.put(tube);
+		record.put(data, offset, length);
+
+		// The length last, so a record is never seen half written
+		tail.putInt(position, size - 4);
+		position += size;
+
+		long end	= tailIndex * segmentSize + position;
+		written		= end;
+
+		return end;
+
+	}
+
+	private static void update(CRC32 crc, int value) {
+
+		crc.update(value >>> 24);
+		crc.update(value >>> 16);
+		crc.update(value >>> 8);
+		crc.update(value);
+
+	}
+
+	/**
+	 * Continue in a new segment, marking the end of the current one.
+	 */
+	private void roll() throws IOException {
+
+		if (segments.size() >= maxSegments) {
+			throw new IOException("SPOOL_FULL");
+		}
+
+		if (segmentSize - position >= 4) {
+			tail.putInt(position, -1);
+		}
+		tail.force();
+
+		tailIndex++;
+		tail		= map(file(tailIndex), segmentSize);
+		position	= 0;
+		segments.put(tailIndex, tail);
+
+	}
+
+	/**
+	 * Read the record at an offset below {@link #getWritten()}.
+	 *
+	 * @return false if no record has been published at the offset yet.
+	 */
+	boolean read(long offset, Record record) {
+
+		if (offset >= written) {
+			return false;
+		}
+
+		long index			= offset / segmentSize;
+		int at				= (int)(offset % segmentSize);
+		ByteBuffer segment	= segment(index, record);
+		int length			= segmentSize - at < 4 ? -1 : segment.getInt(at);
+		if (length == -1) {
+			return read((index + 1) * segmentSize, record);
+		}
+
+		int tubeLength = segment.getShort(at + 20);
+
+		record.priority	= segment.getInt(at + 8) & 0xffffffffL;
+		record.delay	= segment.getInt(at + 12);
+		record.ttr		= segment.getInt(at + 16);
+		record.tube		= tube(segment, at + HEADER, tubeLength, record.tube);
+		record.next		= offset + 4 + length;
+
+		record.data.limit(at + 4 + length);
+		record.data.position(at + HEADER + tubeLength);
+
+		return true;
+
+	}
+
+	/**
+	 * @return The segment of an index, the record's view of its data is reset to the whole segment.
+	 */
+	private ByteBuffer segment(long index, Record record) {
+
+		// Looked up only when the reader moves on to the next segment
+		if (record.index != index || record.segment == null) {
+			record.index	= index;
+			record.segment	= segmentOf(index);
+			record.data		= record.segment.duplicate();
+		}
+		record.data.clear();
+		return record.segment;
+
+	}
+
+	private synchronized MappedByteBuffer segmentOf(long index) {
+		return segments.get(index);
+	}
+
+	/**
+	 * @return The tube name, the previous String when it is the same.
+	 */
+	private static String tube(ByteBuffer segment, int at, int length, String previous) {
+
+		if (previous != null && previous.length() == length) {
+			int i = 0;
+			while (i < length && previous.charAt(i) == (char)(segment.get(at + i) & 0xff)) {
+				i++;
+			}
+			if (i == length) {
+				return previous;
+			}
+		}
+
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char)(segment.get(at + i) & 0xff);
+		}
+		return new String(chars);
+
+	}
+
+	/**
+	 * Record that the server has every job below an offset, deleting segments no longer needed.
+	 */
+	void confirm(long offset) {
+
+		confirmed = offset;
+		checkpoint.putLong(0, offset);
+
+		synchronized (this) {
+			while (!segments.isEmpty() && segments.firstKey() < tailIndex
+					&& (segments.firstKey() + 1) * segmentSize <= offset) {
+				file(segments.firstKey()).delete();
+				segments.remove(segments.firstKey());
+			}
+		}
+
+	}
+
+	long getWritten() {
+		return written;
+	}
+
+	long getConfirmed() {
+		return confirmed;
+	}
+
+	/**
+	 * Write the mapped segments and the checkpoint to disk.
+	 */
+	synchronized void force() {
+
+		for (Map.Entry<Long, MappedByteBuffer> segment : segments.entrySet()) {
+			segment.getValue().force();
+		}
+		checkpoint.force();
+
+	}
+
+}
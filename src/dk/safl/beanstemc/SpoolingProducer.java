@@ -0,0 +1,396 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A producer which appends jobs to a local log on disk and returns at once,
+ * while a background thread sends them on to the server.
+ *
+ * <pre>
+ * SpoolingProducer spool = new SpoolingProducer(new File("/var/spool/beanstemc"), "host", 11300);
+ * spool.start();
+ * // From any number of threads:
+ * spool.put("emails", data);
+ * </pre>
+ *
+ * Puts never wait for the server, so the latency of producers stays flat
+ * while the server is slow, restarting or unreachable, and bursts beyond
+ * what the server takes in are held on disk. The log is kept in
+ * memory-mapped segment files, a put copies the job into the mapping and
+ * costs no system call; the jobs survive a crash of the process, those not
+ * yet forced to disk by the operating system may be lost with it.
+ *
+ * The drainer sends the jobs in pipelines of {@link #getBatchSize()}, with a
+ * "use" only where the tube changes, and checkpoints the offset up to which
+ * the server has confirmed them. After a crash or a broken connection, the
+ * jobs after the checkpoint are sent again, so a job may be put twice but
+ * is never lost. Jobs the server refuses for good, e.g. JOB_TOO_BIG, are
+ * dropped and counted; on other errors, such as DRAINING, the drainer
+ * waits and retries.
+ */
+public class SpoolingProducer {
+
+	public static int	DEFAULT_SEGMENT_SIZE	= 64 << 20;
+	public static int	DEFAULT_MAX_SEGMENTS	= 64;
+	public static int	DEFAULT_BATCH_SIZE		= 256;
+	public static long	RETRY_DELAY				= 1000;
+
+	private final String	host;
+	private final int		port;
+	private final SpoolLog	log;
+
+	private int					batchSize	= DEFAULT_BATCH_SIZE;
+	private final AtomicBoolean	parked		= new AtomicBoolean();
+	private final AtomicLong	dropped		= new AtomicLong();
+	private final Errors		errors		= new Errors();
+	private volatile boolean	running;
+	private Thread				drainer;
+
+	// Owned by the drainer thread
+	private Beanstemc				beanstemc;
+	private final SpoolLog.Record	record = new SpoolLog.Record();
+
+	/**
+	 * Open or create the spool in a directory, jobs left from a previous run are sent once started.
+	 *
+	 * @throws IOException
+	 */
+	public SpoolingProducer(File directory, String host, int port) throws IOException {
+		this(directory, host, port, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+	/**
+	 * @param segmentSize Size of each segment file, the largest job which can be spooled.
+	 * 					It must stay the same for as long as the directory holds segments.
+	 * @param maxSegments Number of segments after which puts fail, bounding the spool to
+	 * 					segmentSize * maxSegments bytes.
+	 */
+	public SpoolingProducer(File directory, String host, int port, int segmentSize, int maxSegments) throws IOException {
+
+		this.host	= host;
+		this.port	= port;
+		this.log	= new SpoolLog(directory, segmentSize, maxSegments);
+
+	}
+
+	/**
+	 * @param batchSize Number of jobs sent before their responses are read.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param listener Told about lost connections and failed sends, after which the spool is sent again.
+	 */
+	public void setErrorListener(ErrorListener listener) {
+		errors.setListener(listener);
+	}
+
+	/**
+	 * Start sending the spooled jobs to the server.
+	 */
+	public synchronized void start() {
+
+		if (drainer != null) {
+			throw new IllegalStateException("Spool is already started.");
+		}
+
+		running	= true;
+		drainer	= new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "beanstemc-spool");
+		drainer.setDaemon(true);
+		drainer.start();
+
+	}
+
+	/**
+	 * Append a job to the spool.
+	 *
+	 * @param tube Tube the job is put into.
+	 * @return Offset in the spool after the job, see {@link #getConfirmedOffset()}.
+	 * @throws IOException "SPOOL_FULL" when the spool has reached its size.
+	 * @throws IllegalArgumentException The tube name is invalid or the job is larger than a segment.
+	 */
+	public long put(String tube, byte[] data, long priority, int delay, int ttr) throws IOException {
+
+		Beanstemc.checkTube(tube);
+		long end = log.append(CommandWriter.ascii(tube), data, 0, data.length, priority, delay, ttr);
+
+		if (parked.get()) {
+			LockSupport.unpark(drainer);
+		}
+		return end;
+
+	}
+
+	/**
+	 * @see #put(String, byte[], long, int, int)
+	 */
+	public long put(String tube, byte[] data) throws IOException {
+		return put(tube, data, Beanstemc.DEFAULT_PRIORITY, Beanstemc.DEFAULT_DELAY, Beanstemc.DEFAULT_TTR);
+	}
+
+	/**
+	 * @return Offset in the spool up to which jobs have been appended.
+	 */
+	public long getSpooledOffset() {
+		return log.getWritten();
+	}
+
+	/**
+	 * @return Offset in the spool up to which the server has confirmed the jobs.
+	 */
+	public long getConfirmedOffset() {
+		return log.getConfirmed();
+	}
+
+	/**
+	 * @return Bytes of the spool not yet confirmed by the server.
+	 */
+	public long getBacklog() {
+		return log.getWritten() - log.getConfirmed();
+	}
+
+	/**
+	 * @return Number of jobs the server refused for good.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of lost connections and failed sends.
+	 */
+	public long getErrorCount() {
+		return errors.getCount();
+	}
+
+	/**
+	 * @return The last connection error, null if none.
+	 */
+	public Exception getLastError() {
+		return errors.getLast();
+	}
+
+	/**
+	 * Wait until the server has confirmed every job put so far.
+	 *
+	 * @return false if the timeout elapsed first.
+	 */
+	public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+
+		long end		= log.getWritten();
+		long deadline	= System.nanoTime() + unit.toNanos(timeout);
+
+		while (log.getConfirmed() < end) {
+			if (System.nanoTime() >= deadline) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+
+	}
+
+	/**
+	 * Stop the drainer and write the spool to disk, jobs not yet sent are sent by the next start.
+	 */
+	public void close() throws IOException {
+
+		Thread thread;
+		synchronized (this) {
+			running	= false;
+			thread	= drainer;
+		}
+
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		log.force();
+
+	}
+
+	private void drain() {
+
+		try {
+			while (running) {
+
+				try {
+
+					if (beanstemc == null) {
+						beanstemc = new Beanstemc(host, port);
+					}
+					if (!send()) {
+						idle();
+					}
+
+				} catch (IOException e) {
+					errors.report(e);
+					disconnect();
+					pause();
+				} catch (BeanstemcException e) {
+					errors.report(e);
+					disconnect();
+					pause();
+				}
+
+			}
+		} finally {
+			disconnect();
+		}
+
+	}
+
+	/**
+	 * Send the next batch of jobs and confirm what the server accepted.
+	 *
+	 * @return false if there was nothing to send.
+	 */
+	private boolean send() throws IOException, BeanstemcException {
+
+		long offset = log.getConfirmed();
+		if (!log.read(offset, record)) {
+			return false;
+		}
+
+		// Offset confirmed by the response to each command, a failed "use" confirms nothing
+		long[] ends		= new long[2 * batchSize];
+		int commands	= 0;
+		int jobs		= 0;
+
+		Pipeline pipeline	= beanstemc.pipeline();
+		String tube			= beanstemc.listTubeUsed();		// Answered by the client
+
+		pipeline.setMaxPending(ends.length);
+		do {
+
+			if (!record.tube.equals(tube)) {
+				tube = record.tube;
+				pipeline.use(tube);
+				ends[commands++] = -1;
+			}
+			pipeline.put(record.data, record.priority, record.delay, record.ttr);
+			ends[commands++] = record.next;
+			jobs++;
+
+		} while (jobs < batchSize && log.read(record.next, record));
+
+		List<Pipeline.Result> results = pipeline.execute();
+		long confirmed = offset;
+
+		for (int i = 0; i < commands; i++) {
+
+			Pipeline.Result result = results.get(i);
+			if (ends[i] < 0) {
+				if (!result.isSuccess()) {
+					break;
+				}
+				continue;
+			}
+			if (!result.isSuccess() && !refused(result.getException())) {
+				break;
+			}
+			confirmed = ends[i];
+
+		}
+
+		log.confirm(confirmed);
+		if (confirmed == offset) {
+			pause();		// Nothing accepted, e.g. DRAINING
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * @return true if the server refused the job for good, or took it after all.
+	 */
+	private boolean refused(BeanstemcException e) {
+
+		String token = e.getMessage();
+		if (token.startsWith("BURIED")) {
+			return true;		// Stored, though buried for lack of memory
+		}
+		if (token.equals("JOB_TOO_BIG") || token.equals("BAD_FORMAT") || token.equals("EXPECTED_CRLF")) {
+			dropped.incrementAndGet();
+			return true;
+		}
+		return false;
+
+	}
+
+	private void idle() {
+
+		parked.set(true);
+		if (log.getWritten() == log.getConfirmed() && running) {
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+		}
+		parked.set(false);
+
+	}
+
+	private void pause() {
+
+		long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY);
+		while (running && System.nanoTime() < until) {
+			LockSupport.parkNanos(this, until - System.nanoTime());
+		}
+
+	}
+
+	private void disconnect() {
+
+		if (beanstemc != null) {
+			try {
+				beanstemc.close();
+			} catch (IOException e) {
+				// Already broken
+			}
+			beanstemc = null;
+		}
+
+	}
+
+}
@@ -0,0 +1,343 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The YAML dictionary answering a stats command, parsed into primitive longs.
+ *
+ * Numbers are parsed straight from the response bytes in one pass, no
+ * String is created for them. Each subclass lists the keys it knows as an
+ * enum of fields, in the order the server sends them, so matching a line
+ * to its field is mostly a single comparison. The few values which are
+ * text, such as the name of a tube, are kept as Strings, and keys the
+ * client does not know are kept as text as well, so that {@link #toMap()}
+ * still has everything the server sent.
+ *
+ * A Stats object can be refilled with new responses, e.g. by a poller, and
+ * then allocates nothing once its text values stop changing.
+ */
+public abstract class Stats {
+
+	static final int NUMBER		= 0;
+	static final int DECIMAL	= 1;		// Seconds with a fraction, kept in microseconds
+	static final int BOOLEAN	= 2;		// "true" or "false", kept as 1 or 0
+
+	private static final int MICROS_DIGITS = 6;
+
+	/**
+	 * The keys of one kind of stats.
+	 */
+	static class Layout {
+
+		final byte[][]	keys;
+		final int[]		kinds;
+		final byte[][]	textKeys;
+
+		Layout(String[] keys, int[] kinds, String[] textKeys) {
+
+			if (keys.length > 64) {
+				throw new IllegalArgumentException("Presence of at most 64 keys is tracked.");
+			}
+			this.keys		= encode(keys);
+			this.kinds		= kinds;
+			this.textKeys	= encode(textKeys);
+
+		}
+
+		private static byte[][] encode(String[] values) {
+
+			byte[][] encoded = new byte[values.length][];
+			for (int i = 0; i < values.length; i++) {
+				encoded[i] = CommandWriter.ascii(values[i]);
+			}
+			return encoded;
+
+		}
+
+	}
+
+	private final Layout layout;
+
+	private final long[]		values;
+	private final String[]		texts;
+	private long				present;		// Bit per value sent by the server
+	private long				textPresent;
+	private Map<String, String>	other;
+
+	Stats(Layout layout) {
+
+		this.layout	= layout;
+		this.values	= new long[layout.keys.length];
+		this.texts	= new String[layout.textKeys.length];
+
+	}
+
+	/**
+	 * Replace the values with those of a YAML dictionary.
+	 *
+	 * @param yaml Holds the dictionary in yaml[offset, offset+length).
+	 */
+	void parse(byte[] yaml, int offset, int length) {
+
+		for (int i = 0; i < values.length; i++) {
+			values[i] = 0;
+		}
+		present		= 0;
+		textPresent	= 0;
+		if (other != null) {
+			other.clear();
+		}
+
+		int end		= offset + length;
+		int next	= 0;		// Field expected on the next line
+
+		int line = offset;
+		while (line < end) {
+
+			int eol = line;
+			while (eol < end && yaml[eol] != '\n') {
+				eol++;
+			}
+
+			int colon = line;
+			while (colon < eol && yaml[colon] != ':') {
+				colon++;
+			}
+
+			// "key: value", anything else such as "---" is skipped
+			if (colon + 1 < eol && yaml[colon + 1] == ' ') {
+
+				int keyLength	= colon - line;
+				int valueStart	= colon + 2;
+				int field		= find(layout.keys, yaml, line, keyLength, next);
+
+				if (field >= 0) {
+					values[field]	= value(layout.kinds[field], yaml, valueStart, eol);
+					present			|= 1L << field;
+					next			= field + 1;
+				} else {
+					store(yaml, line, keyLength, valueStart, eol);
+				}
+
+			}
+
+			line = eol + 1;
+
+		}
+
+	}
+
+	/**
+	 * Keep a text value, reusing the previous String when the value has not changed.
+	 */
+	private void store(byte[] yaml, int keyStart, int keyLength, int valueStart, int valueEnd) {
+
+		int text = find(layout.textKeys, yaml, keyStart, keyLength, 0);
+		if (text >= 0) {
+			if (!equals(texts[text], yaml, valueStart, valueEnd)) {
+				texts[text] = ascii(yaml, valueStart, valueEnd);
+			}
+			textPresent |= 1L << text;
+			return;
+		}
+
+		if (other == null) {
+			other = new HashMap<String, String>();
+		}
+		other.put(ascii(yaml, keyStart, keyStart + keyLength), ascii(yaml, valueStart, valueEnd));
+
+	}
+
+	/**
+	 * @return Index of the key equal to yaml[offset, offset+length), trying the expected one first; -1 if none is.
+	 */
+	private static int find(byte[][] keys, byte[] yaml, int offset, int length, int expected) {
+
+		for (int n = 0; n < keys.length; n++) {
+
+			int i = (expected + n) % keys.length;
+			byte[] key = keys[i];
+			if (key.length != length) {
+				continue;
+			}
+
+			int j = 0;
+			while (j < length && key[j] == yaml[offset + j]) {
+				j++;
+			}
+			if (j == length) {
+				return i;
+			}
+
+		}
+
+		return -1;
+
+	}
+
+	private static long value(int kind, byte[] yaml, int from, int to) {
+
+		if (kind == BOOLEAN) {
+			return to - from == 4 && yaml[from] == 't' ? 1 : 0;
+		}
+
+		long value		= 0;
+		int fraction	= -1;		// Digits after the point, -1 before it
+		boolean negative = from < to && yaml[from] == '-';
+
+		for (int i = negative ? from + 1 : from; i < to; i++) {
+
+			byte b = yaml[i];
+			if (b >= '0' && b <= '9') {
+				if (fraction < MICROS_DIGITS) {
+					value = value * 10 + (b - '0');
+					if (fraction >= 0) {
+						fraction++;
+					}
+				}
+			} else if (b == '.' && fraction < 0) {
+				fraction = 0;
+			} else {
+				break;
+			}
+
+		}
+
+		if (kind == DECIMAL) {
+			for (int i = Math.max(0, fraction); i < MICROS_DIGITS; i++) {
+				value *= 10;
+			}
+		}
+
+		return negative ? -value : value;
+
+	}
+
+	private static boolean equals(String text, byte[] yaml, int from, int to) {
+
+		if (text == null || text.length() != to - from) {
+			return false;
+		}
+		for (int i = 0; i < to - from; i++) {
+			if (text.charAt(i) != (char)(yaml[from + i] & 0xff)) {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+	private static String ascii(byte[] yaml, int from, int to) {
+
+		char[] chars = new char[to - from];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char)(yaml[from + i] & 0xff);
+		}
+		return new String(chars);
+
+	}
+
+	/**
+	 * Copy the numeric values, in the order of the layout's keys, e.g. to keep a previous sample.
+	 */
+	void copyValues(long[] into) {
+		System.arraycopy(values, 0, into, 0, values.length);
+	}
+
+	/**
+	 * @return Number of numeric values.
+	 */
+	int size() {
+		return values.length;
+	}
+
+	/**
+	 * @return The value at the given index of the layout's keys, 0 if the server did not send it.
+	 */
+	long number(int index) {
+		return values[index];
+	}
+
+	/**
+	 * @return The value of a text key, e.g. "version"; null if the server did not send it.
+	 */
+	String text(int index) {
+		return (textPresent & (1L << index)) != 0 ? texts[index] : null;
+	}
+
+	/**
+	 * @return false if the server did not send the value, e.g. because it is older than the key.
+	 */
+	boolean has(int index) {
+		return (present & (1L << index)) != 0;
+	}
+
+	/**
+	 * @return The stats as the server sent them, keyed by their YAML names.
+	 */
+	public HashMap<String, String> toMap() {
+
+		HashMap<String, String> map = new HashMap<String, String>();
+
+		for (int i = 0; i < values.length; i++) {
+
+			if (!has(i)) {
+				continue;
+			}
+
+			String key = ascii(layout.keys[i], 0, layout.keys[i].length);
+			switch (layout.kinds[i]) {
+			case DECIMAL:
+				long value = Math.abs(values[i]);
+				map.put(key, String.format("%s%d.%06d", values[i] < 0 ? "-" : "", value / 1000000, value % 1000000));
+				break;
+			case BOOLEAN:
+				map.put(key, values[i] != 0 ? "true" : "false");
+				break;
+			default:
+				map.put(key, Long.toString(values[i]));
+				break;
+			}
+
+		}
+		for (int i = 0; i < texts.length; i++) {
+			if (text(i) != null) {
+				map.put(ascii(layout.textKeys[i], 0, layout.textKeys[i].length), texts[i]);
+			}
+		}
+		if (other != null) {
+			map.putAll(other);
+		}
+
+		return map;
+
+	}
+
+	@Override
+	public String toString() {
+		return toMap().toString();
+	}
+
+}
@@ -0,0 +1,568 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Polls the stats of a server and its tubes on a schedule and reports how
+ * they changed since the previous poll.
+ *
+ * <pre>
+ * StatsMonitor monitor = new StatsMonitor("host", 11300, "emails", "thumbnails");
+ * monitor.addListener(new StatsMonitor.Listener() {
+ *     public void sampled(StatsMonitor.ServerSample server, List&lt;StatsMonitor.TubeSample&gt; tubes) {
+ *         server.getPutRate();
+ *         for (StatsMonitor.TubeSample tube : tubes) {
+ *             tube.getBacklogGrowth();
+ *         }
+ *     }
+ * });
+ * monitor.start();
+ * </pre>
+ *
+ * The monitor has a connection of its own, so polling never queues behind
+ * the commands of producers and workers. Without tubes given, every tube
+ * the server lists is monitored. All stats of a poll are sent as one
+ * pipeline, read back every {@link #getBatchSize()} commands, so watching
+ * hundreds of tubes takes a few round trips rather than hundreds.
+ *
+ * Each sample refills the same stats object and keeps the previous values
+ * in a primitive array, which is swapped with the current one on every
+ * poll, so deltas and rates cost no allocation. The first sample of the
+ * server or of a tube, and the first one after the server restarted or
+ * the tube was recreated, has no previous values; it reports no rates.
+ */
+public class StatsMonitor {
+
+	public static long	DEFAULT_INTERVAL	= 1000;
+	public static int	DEFAULT_BATCH_SIZE	= 128;
+	public static long	RECONNECT_DELAY		= 1000;
+
+	/**
+	 * Receives the samples of every poll.
+	 */
+	public interface Listener {
+
+		/**
+		 * Invoked on the thread which polls, after every poll.
+		 *
+		 * @param server
+		 * @param tubes The tubes which could be polled, a tube which does not exist is left out.
+		 * 				The samples and the list are reused by the next poll.
+		 */
+		void sampled(ServerSample server, List<TubeSample> tubes);
+
+	}
+
+	/**
+	 * The values of one poll, with those of the previous poll.
+	 */
+	public static abstract class Sample {
+
+		private long[]	previous;
+		private long[]	current;
+		private long	time;			// System.nanoTime() of the current values
+		private long	elapsed;		// Nanoseconds since the previous values, 0 if there are none
+
+		Sample(int size) {
+			previous	= new long[size];
+			current		= new long[size];
+		}
+
+		void update(Stats stats, long now) {
+
+			long[] swap	= previous;
+			previous	= current;
+			current		= swap;
+			stats.copyValues(current);
+
+			elapsed	= time == 0 || reset() ? 0 : now - time;
+			time	= now;
+
+		}
+
+		/**
+		 * Forget the previous values, e.g. after the connection broke.
+		 */
+		void clear() {
+			time	= 0;
+			elapsed	= 0;
+		}
+
+		/**
+		 * @return true if the counters started over since the previous values.
+		 */
+		abstract boolean reset();
+
+		long current(int index) {
+			return current[index];
+		}
+
+		long previous(int index) {
+			return previous[index];
+		}
+
+		long delta(int index) {
+			return elapsed == 0 ? 0 : current[index] - previous[index];
+		}
+
+		double rate(int index) {
+			return elapsed == 0 ? 0 : (current[index] - previous[index]) * 1e9 / elapsed;
+		}
+
+		/**
+		 * @return false for a first sample, its deltas and rates are 0.
+		 */
+		public boolean hasPrevious() {
+			return elapsed != 0;
+		}
+
+		/**
+		 * @return Nanoseconds between the previous and the current values.
+		 */
+		public long getElapsedNanos() {
+			return elapsed;
+		}
+
+	}
+
+	/**
+	 * A sample of the server's stats.
+	 */
+	public static class ServerSample extends Sample {
+
+		private static final int UPTIME = ServerStats.Field.UPTIME.ordinal();
+
+		private final ServerStats stats = new ServerStats();
+
+		ServerSample() {
+			super(ServerStats.Field.values().length);
+		}
+
+		@Override
+		boolean reset() {
+			return current(UPTIME) < previous(UPTIME);
+		}
+
+		/**
+		 * @return The current values.
+		 */
+		public ServerStats getStats() {
+			return stats;
+		}
+
+		/**
+		 * @return Change of the value since the previous poll.
+		 */
+		public long getDelta(ServerStats.Field field) {
+			return delta(field.ordinal());
+		}
+
+		/**
+		 * @return Change of the value per second since the previous poll.
+		 */
+		public double getRate(ServerStats.Field field) {
+			return rate(field.ordinal());
+		}
+
+		/**
+		 * @return Ready jobs added per second, negative while the backlog shrinks.
+		 */
+		public double getBacklogGrowth() {
+			return getRate(ServerStats.Field.CURRENT_JOBS_READY);
+		}
+
+		public double getPutRate() {
+			return getRate(ServerStats.Field.CMD_PUT);
+		}
+
+		/**
+		 * @return Reserves per second, with and without timeout.
+		 */
+		public double getReserveRate() {
+			return getRate(ServerStats.Field.CMD_RESERVE) + getRate(ServerStats.Field.CMD_RESERVE_WITH_TIMEOUT);
+		}
+
+		public double getDeleteRate() {
+			return getRate(ServerStats.Field.CMD_DELETE);
+		}
+
+		/**
+		 * @return Jobs per second whose TTR ran out.
+		 */
+		public double getTimeoutRate() {
+			return getRate(ServerStats.Field.JOB_TIMEOUTS);
+		}
+
+	}
+
+	/**
+	 * A sample of one tube's stats.
+	 */
+	public static class TubeSample extends Sample {
+
+		private static final int TOTAL_JOBS = TubeStats.Field.TOTAL_JOBS.ordinal();
+
+		private final String	name;
+		private final TubeStats	stats = new TubeStats();
+		private int				generation;		// Poll in which the tube was last listed
+
+		TubeSample(String name) {
+			super(TubeStats.Field.values().length);
+			this.name = name;
+		}
+
+		@Override
+		boolean reset() {
+			return current(TOTAL_JOBS) < previous(TOTAL_JOBS);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The current values.
+		 */
+		public TubeStats getStats() {
+			return stats;
+		}
+
+		/**
+		 * @return Change of the value since the previous poll.
+		 */
+		public long getDelta(TubeStats.Field field) {
+			return delta(field.ordinal());
+		}
+
+		/**
+		 * @return Change of the value per second since the previous poll.
+		 */
+		public double getRate(TubeStats.Field field) {
+			return rate(field.ordinal());
+		}
+
+		/**
+		 * @return Ready jobs added per second, negative while the backlog shrinks.
+		 */
+		public double getBacklogGrowth() {
+			return getRate(TubeStats.Field.CURRENT_JOBS_READY);
+		}
+
+		/**
+		 * @return Jobs put into the tube per second.
+		 */
+		public double getPutRate() {
+			return getRate(TubeStats.Field.TOTAL_JOBS);
+		}
+
+		public double getDeleteRate() {
+			return getRate(TubeStats.Field.CMD_DELETE);
+		}
+
+	}
+
+	private final String	host;
+	private final int		port;
+	private final List<String>	tubes;		// Empty to monitor all tubes
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final Errors errors = new Errors();
+
+	private long			interval	= DEFAULT_INTERVAL;
+	private int				batchSize	= DEFAULT_BATCH_SIZE;
+	private volatile boolean	running;
+	private Thread			thread;
+
+	// Owned by the polling thread
+	private Beanstemc							beanstemc;
+	private final ServerSample					server	= new ServerSample();
+	private final Map<String, TubeSample>		samples	= new LinkedHashMap<String, TubeSample>();
+	private final List<TubeSample>				polled	= new ArrayList<TubeSample>();
+	private int									generation;
+
+	/**
+	 * @param host
+	 * @param port
+	 * @param tubes The tubes to monitor, none to monitor every tube of the server.
+	 * @throws IOException
+	 */
+	public StatsMonitor(String host, int port, String... tubes) throws IOException {
+
+		this.host	= host;
+		this.port	= port;
+		this.tubes	= Arrays.asList(tubes.clone());
+
+		beanstemc = new Beanstemc(host, port);
+
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @param listener Told about failed polls, lost connections and listeners throwing.
+	 */
+	public void setErrorListener(ErrorListener listener) {
+		errors.setListener(listener);
+	}
+
+	/**
+	 * @return Number of failed polls, failed reconnects and listeners throwing.
+	 */
+	public long getErrorCount() {
+		return errors.getCount();
+	}
+
+	/**
+	 * @return The last error, null if none.
+	 */
+	public Exception getLastError() {
+		return errors.getLast();
+	}
+
+	/**
+	 * @param millis Time between the start of two polls.
+	 */
+	public void setInterval(long millis) {
+		this.interval = millis;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @param batchSize Number of stats commands sent before their responses are read.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Poll every {@link #getInterval()} milliseconds on a thread of the monitor.
+	 */
+	public synchronized void start() {
+
+		if (thread != null) {
+			throw new IllegalStateException("Monitor is already started.");
+		}
+
+		running	= true;
+		thread	= new Thread(new Runnable() {
+			public void run() {
+				loop();
+			}
+		}, "beanstemc-stats");
+		thread.setDaemon(true);
+		thread.start();
+
+	}
+
+	/**
+	 * Stop polling and close the connection.
+	 */
+	public void close() throws IOException {
+
+		Thread polling;
+		synchronized (this) {
+			running	= false;
+			polling	= thread;
+		}
+
+		if (polling != null) {
+			LockSupport.unpark(polling);
+			try {
+				polling.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		beanstemc.close();
+
+	}
+
+	/**
+	 * Poll once and invoke the listeners, for use without {@link #start()}.
+	 *
+	 * @throws IOException The previous values are forgotten, the next poll has no rates.
+	 * @throws BeanstemcException
+	 */
+	public void poll() throws IOException, BeanstemcException {
+
+		try {
+			sample();
+		} catch (IOException e) {
+			clear();
+			throw e;
+		}
+
+		for (Listener listener : listeners) {
+			try {
+				listener.sampled(server, polled);
+			} catch (RuntimeException e) {
+				errors.report(e);
+			}
+		}
+
+	}
+
+	private void sample() throws IOException, BeanstemcException {
+
+		List<String> names = tubes.isEmpty() ? beanstemc.listTubes() : tubes;
+		generation++;
+
+		Pipeline pipeline = beanstemc.pipeline();
+		pipeline.setMaxPending(batchSize);
+		pipeline.serverStats(server.stats);
+
+		polled.clear();
+		for (String name : names) {
+
+			TubeSample sample = samples.get(name);
+			if (sample == null) {
+				sample = new TubeSample(name);
+				samples.put(name, sample);
+			}
+			sample.generation = generation;
+			pipeline.tubeStats(name, sample.stats);
+			polled.add(sample);
+
+		}
+
+		List<Pipeline.Result> results = pipeline.execute();
+		long now = System.nanoTime();
+
+		Pipeline.Result result = results.get(0);
+		if (!result.isSuccess()) {
+			throw result.getException();
+		}
+		server.update(server.stats, now);
+
+		// A tube which does not exist any more is started over when it comes back
+		Iterator<TubeSample> sampled = polled.iterator();
+		for (int i = 1; i < results.size(); i++) {
+
+			TubeSample sample = sampled.next();
+			if (results.get(i).isSuccess()) {
+				sample.update(sample.stats, now);
+			} else {
+				sampled.remove();
+				samples.remove(sample.name);
+			}
+
+		}
+
+		Iterator<TubeSample> known = samples.values().iterator();
+		while (known.hasNext()) {
+			if (known.next().generation != generation) {
+				known.remove();
+			}
+		}
+
+	}
+
+	private void clear() {
+
+		server.clear();
+		for (TubeSample sample : samples.values()) {
+			sample.clear();
+		}
+		polled.clear();
+
+	}
+
+	private void loop() {
+
+		long next = System.nanoTime();
+
+		while (running) {
+
+			long now	= System.nanoTime();
+			long wait	= next - now;
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+
+			// Polls missed while reconnecting are skipped, not caught up with
+			next += TimeUnit.MILLISECONDS.toNanos(interval);
+			if (next < now) {
+				next = now + TimeUnit.MILLISECONDS.toNanos(interval);
+			}
+
+			try {
+				poll();
+			} catch (BeanstemcException e) {
+				errors.report(e);
+			} catch (IOException e) {
+				errors.report(e);
+				reconnect();
+			}
+
+		}
+
+	}
+
+	private void reconnect() {
+
+		try {
+			beanstemc.close();
+		} catch (IOException e) {
+			// Already broken
+		}
+
+		while (running) {
+
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(RECONNECT_DELAY));
+			try {
+				beanstemc = new Beanstemc(host, port);
+				return;
+			} catch (IOException e) {
+				errors.report(e);
+			}
+
+		}
+
+	}
+
+}
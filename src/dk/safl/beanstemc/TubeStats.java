@@ -0,0 +1,169 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc;
+
+/**
+ * The answer to "stats-tube", statistics of a single tube.
+ *
+ * @see Beanstemc#tubeStats(String)
+ */
+public class TubeStats extends Stats {
+
+	/**
+	 * The numeric values, in the order the server sends them.
+	 */
+	public enum Field {
+
+		CURRENT_JOBS_URGENT("current-jobs-urgent", NUMBER),
+		CURRENT_JOBS_READY("current-jobs-ready", NUMBER),
+		CURRENT_JOBS_RESERVED("current-jobs-reserved", NUMBER),
+		CURRENT_JOBS_DELAYED("current-jobs-delayed", NUMBER),
+		CURRENT_JOBS_BURIED("current-jobs-buried", NUMBER),
+		TOTAL_JOBS("total-jobs", NUMBER),
+		CURRENT_USING("current-using", NUMBER),
+		CURRENT_WATCHING("current-watching", NUMBER),
+		CURRENT_WAITING("current-waiting", NUMBER),
+		CMD_DELETE("cmd-delete", NUMBER),
+		CMD_PAUSE_TUBE("cmd-pause-tube", NUMBER),
+		PAUSE("pause", NUMBER),
+		PAUSE_TIME_LEFT("pause-time-left", NUMBER);
+
+		private final String	key;
+		private final int		kind;
+
+		private Field(String key, int kind) {
+			this.key	= key;
+			this.kind	= kind;
+		}
+
+		/**
+		 * @return The name of the value in the YAML dictionary.
+		 */
+		public String getKey() {
+			return key;
+		}
+
+	}
+
+	// Index of the text value
+	private static final int NAME = 0;
+
+	private static final Layout LAYOUT = layout();
+
+	private static Layout layout() {
+
+		Field[] fields	= Field.values();
+		String[] keys	= new String[fields.length];
+		int[] kinds		= new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			keys[i]		= fields[i].key;
+			kinds[i]	= fields[i].kind;
+		}
+
+		return new Layout(keys, kinds, new String[] {"name"});
+
+	}
+
+	public TubeStats() {
+		super(LAYOUT);
+	}
+
+	/**
+	 * @return The value, 0 if the server did not send it.
+	 */
+	public long get(Field field) {
+		return number(field.ordinal());
+	}
+
+	/**
+	 * @return false if the server did not send the value, e.g. because it predates it.
+	 */
+	public boolean has(Field field) {
+		return has(field.ordinal());
+	}
+
+	/**
+	 * @return The name of the tube.
+	 */
+	public String getName() {
+		return text(NAME);
+	}
+
+	public long getCurrentJobsUrgent() {
+		return get(Field.CURRENT_JOBS_URGENT);
+	}
+
+	public long getCurrentJobsReady() {
+		return get(Field.CURRENT_JOBS_READY);
+	}
+
+	public long getCurrentJobsReserved() {
+		return get(Field.CURRENT_JOBS_RESERVED);
+	}
+
+	public long getCurrentJobsDelayed() {
+		return get(Field.CURRENT_JOBS_DELAYED);
+	}
+
+	public long getCurrentJobsBuried() {
+		return get(Field.CURRENT_JOBS_BURIED);
+	}
+
+	public long getTotalJobs() {
+		return get(Field.TOTAL_JOBS);
+	}
+
+	public long getCurrentUsing() {
+		return get(Field.CURRENT_USING);
+	}
+
+	public long getCurrentWatching() {
+		return get(Field.CURRENT_WATCHING);
+	}
+
+	public long getCurrentWaiting() {
+		return get(Field.CURRENT_WAITING);
+	}
+
+	public long getCmdDelete() {
+		return get(Field.CMD_DELETE);
+	}
+
+	public long getCmdPauseTube() {
+		return get(Field.CMD_PAUSE_TUBE);
+	}
+
+	/**
+	 * @return Seconds the tube has been paused for.
+	 */
+	public long getPause() {
+		return get(Field.PAUSE);
+	}
+
+	/**
+	 * @return Seconds until the tube is unpaused.
+	 */
+	public long getPauseTimeLeft() {
+		return get(Field.PAUSE_TIME_LEFT);
+	}
+
+}
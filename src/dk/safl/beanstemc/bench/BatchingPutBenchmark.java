@@ -0,0 +1,87 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.bench;
+
+import java.util.concurrent.CompletableFuture;
+
+import dk.safl.beanstemc.BatchingProducer;
+import dk.safl.beanstemc.tests.EmbeddedBeanstalkd;
+
+/**
+ * Puts of many threads sent in batches by one {@link BatchingProducer}.
+ *
+ * An operation is one put, every thread waits for the job id of one put in
+ * {@link #WINDOW}, which the server answers after the puts before it, so
+ * the throughput is not bound by the linger; compare it with "put".
+ */
+public class BatchingPutBenchmark extends Benchmark {
+
+	public static int WINDOW = 256;
+
+	private final int threads;
+	private final byte[] payload;
+
+	private EmbeddedBeanstalkd server;
+	private BatchingProducer producer;
+	private int[] counts;
+
+	public BatchingPutBenchmark(int threads, int payloadSize) {
+
+		super("batched put " + payloadSize + "B x" + threads);
+		this.threads	= threads;
+		this.payload	= new byte[payloadSize];
+
+	}
+
+	@Override
+	public int getThreads() {
+		return threads;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+
+		server = new EmbeddedBeanstalkd();
+		server.setDiscardJobs(true);
+		server.start();
+		producer = new BatchingProducer(server.getHost(), server.getPort());
+		counts = new int[threads];
+
+	}
+
+	@Override
+	public void op(int thread) throws Exception {
+		CompletableFuture<Long> jobId = producer.put(payload);
+		if (++counts[thread] % WINDOW == 0) {
+			jobId.get();
+		}
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+
+		producer.close();
+		server.stop();
+
+	}
+
+}
@@ -0,0 +1,94 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.bench;
+
+/**
+ * A benchmark run by {@link BenchmarkRunner}.
+ *
+ * Each iteration runs a fixed number of operations, split evenly over
+ * {@link #getThreads()} threads. The runner times every operation and
+ * measures the memory allocated by the benchmark threads, so set-up work
+ * belongs in {@link #setUp()} and {@link #beforeIteration(int)}, which are
+ * not measured.
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return Number of threads running operations concurrently.
+	 */
+	public int getThreads() {
+		return 1;
+	}
+
+	/**
+	 * @param requested Operations per iteration asked for on the command line.
+	 * @return Operations per iteration to run, fewer for benchmarks whose operations are slow.
+	 */
+	public int getOperations(int requested) {
+		return requested;
+	}
+
+	/**
+	 * @return Payload bytes moved by one operation, to report throughput in MB/s; 0 if not meaningful.
+	 */
+	public long getBytesPerOperation() {
+		return 0;
+	}
+
+	/**
+	 * Invoked once before the warm-up.
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Invoked before every iteration, e.g. to fill a tube with the jobs the iteration will reserve.
+	 *
+	 * @param ops Number of operations the iteration runs, over all threads.
+	 */
+	public void beforeIteration(int ops) throws Exception {
+	}
+
+	/**
+	 * Run one operation.
+	 *
+	 * @param thread Index of the calling thread, from 0 to {@link #getThreads()} - 1.
+	 */
+	public abstract void op(int thread) throws Exception;
+
+	/**
+	 * Invoked once after the last iteration.
+	 */
+	public void tearDown() throws Exception {
+	}
+
+}
@@ -0,0 +1,271 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the client benchmarks and reports throughput, latency percentiles and allocation.
+ *
+ * Every benchmark is warmed up, so the measurements are of compiled code,
+ * and then run for a number of iterations. Throughput is reported per
+ * iteration and latency percentiles over the operations of all iterations.
+ * Allocation is the memory allocated by the benchmark threads per operation,
+ * the in-process server threads are not counted; it is the figure a GC
+ * profiler reports for the client alone.
+ *
+ * Usage: BenchmarkRunner [-w warmup-iterations] [-i iterations] [-n ops-per-iteration] [name-filter]
+ */
+public class BenchmarkRunner {
+
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+	private final int warmups;
+	private final int iterations;
+	private final int ops;
+
+	private final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	public BenchmarkRunner(int warmups, int iterations, int ops) {
+		this.warmups	= warmups;
+		this.iterations	= iterations;
+		this.ops		= ops;
+	}
+
+	/**
+	 * @return The benchmarks of the client hot paths.
+	 */
+	public static List<Benchmark> all() {
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new PutBenchmark(16));
+		benchmarks.add(new PutBenchmark(1024));
+		benchmarks.add(new PutBenchmark(32 * 1024));
+		benchmarks.add(new BatchingPutBenchmark(16, 16));
+		benchmarks.add(new ReserveDeleteBenchmark(64));
+		benchmarks.add(new ParseBenchmark(ParseBenchmark.JOB));
+		benchmarks.add(new ParseBenchmark(ParseBenchmark.STATS));
+		benchmarks.add(new ParseBenchmark(ParseBenchmark.SERVER_STATS));
+		benchmarks.add(new ParseBenchmark(ParseBenchmark.LIST_TUBES));
+		benchmarks.add(new ProducerConsumerBenchmark(4, 4));
+		benchmarks.add(new LargeBodyBenchmark(1024 * 1024));
+		benchmarks.add(new LargeBodyBenchmark(8 * 1024 * 1024));
+
+		return benchmarks;
+
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int warmups		= 3;
+		int iterations	= 5;
+		int ops			= 20000;
+		String filter	= null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-w")) {
+				warmups = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-i")) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-n")) {
+				ops = Integer.parseInt(args[++i]);
+			} else {
+				filter = args[i];
+			}
+		}
+
+		BenchmarkRunner runner = new BenchmarkRunner(warmups, iterations, ops);
+		for (Benchmark benchmark : all()) {
+			if (filter == null || benchmark.getName().contains(filter)) {
+				runner.run(benchmark);
+			}
+		}
+
+	}
+
+	/**
+	 * Warm up, measure and print the results of one benchmark.
+	 */
+	public void run(Benchmark benchmark) throws Exception {
+
+		benchmark.setUp();
+		try {
+
+			for (int i = 0; i < warmups; i++) {
+				iteration(benchmark, null, 0);
+			}
+
+			long[] latencies	= new long[iterations * perThread(benchmark) * benchmark.getThreads()];
+			double[] throughput	= new double[iterations];
+			long allocated		= 0;
+
+			for (int i = 0; i < iterations; i++) {
+
+				Measurement measurement = iteration(benchmark, latencies, i * perThread(benchmark) * benchmark.getThreads());
+				throughput[i]	= measurement.ops * 1e9 / measurement.elapsed;
+				allocated		+= measurement.allocated;
+
+			}
+
+			report(benchmark, throughput, latencies, (double)allocated / latencies.length);
+
+		} finally {
+			benchmark.tearDown();
+		}
+
+	}
+
+	private int perThread(Benchmark benchmark) {
+		return Math.max(1, benchmark.getOperations(ops) / benchmark.getThreads());
+	}
+
+	/**
+	 * The totals of one iteration.
+	 */
+	private static class Measurement {
+
+		long ops;
+		long elapsed;
+		long allocated;
+
+	}
+
+	/**
+	 * Run one iteration, recording the latencies at the offset of the array when it is given.
+	 */
+	private Measurement iteration(final Benchmark benchmark, final long[] latencies, int offset) throws Exception {
+
+		final int threads	= benchmark.getThreads();
+		final int perThread	= perThread(benchmark);
+
+		benchmark.beforeIteration(perThread * threads);
+
+		final CountDownLatch ready	= new CountDownLatch(threads);
+		final CountDownLatch start	= new CountDownLatch(1);
+		final CountDownLatch done	= new CountDownLatch(threads);
+
+		final AtomicLong allocated					= new AtomicLong();
+		final AtomicReference<Exception> failure	= new AtomicReference<Exception>();
+		final long[][] recorded						= new long[threads][perThread];
+
+		for (int t = 0; t < threads; t++) {
+
+			final int thread = t;
+			new Thread(new Runnable() {
+				public void run() {
+
+					long[] samples	= recorded[thread];
+					long id			= Thread.currentThread().getId();
+					try {
+
+						ready.countDown();
+						start.await();
+
+						long before = threadBean.getThreadAllocatedBytes(id);
+						for (int i = 0; i < perThread; i++) {
+							long began = System.nanoTime();
+							benchmark.op(thread);
+							samples[i] = System.nanoTime() - began;
+						}
+						allocated.addAndGet(threadBean.getThreadAllocatedBytes(id) - before);
+
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						done.countDown();
+					}
+
+				}
+			}, benchmark.getName() + "-" + thread).start();
+
+		}
+
+		ready.await();
+		long began = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - began;
+
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+
+		if (latencies != null) {
+			for (long[] samples : recorded) {
+				System.arraycopy(samples, 0, latencies, offset, samples.length);
+				offset += samples.length;
+			}
+		}
+
+		Measurement measurement	= new Measurement();
+		measurement.ops			= (long)perThread * threads;
+		measurement.elapsed		= elapsed;
+		measurement.allocated	= allocated.get();
+
+		return measurement;
+
+	}
+
+	private void report(Benchmark benchmark, double[] throughput, long[] latencies, double allocatedPerOp) {
+
+		Arrays.sort(latencies);
+		Arrays.sort(throughput);
+
+		double sum = 0;
+		for (double value : throughput) {
+			sum += value;
+		}
+
+		StringBuilder line = new StringBuilder();
+		line.append(String.format("%-28s %12.0f ops/s (min %.0f, max %.0f)",
+				benchmark.getName(), sum / throughput.length, throughput[0], throughput[throughput.length - 1]));
+		for (double percentile : PERCENTILES) {
+			line.append(String.format("  p%s %.1f us", format(percentile), percentile(latencies, percentile) / 1000.0));
+		}
+		line.append(String.format("  max %.1f us", latencies[latencies.length - 1] / 1000.0));
+		line.append(String.format("  %.1f B/op", allocatedPerOp));
+		if (benchmark.getBytesPerOperation() > 0) {
+			line.append(String.format("  %.1f MB/s", sum / throughput.length * benchmark.getBytesPerOperation() / (1024 * 1024)));
+		}
+
+		System.out.println(line);
+
+	}
+
+	private static String format(double percentile) {
+		return percentile == Math.rint(percentile) ? String.valueOf((int)percentile) : String.valueOf(percentile);
+	}
+
+	private static long percentile(long[] sorted, double percentile) {
+
+		int index = (int)Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+
+	}
+
+}
@@ -0,0 +1,87 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.bench;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.tests.EmbeddedBeanstalkd;
+
+/**
+ * Put, reserve and delete of multi-megabyte jobs over loopback.
+ *
+ * A large body arrives in many reads, this measures the path which reads
+ * it straight into the job's array past what the read buffer holds.
+ */
+public class LargeBodyBenchmark extends Benchmark {
+
+	private static final int MAX_OPERATIONS = 200;
+
+	private final byte[] payload;
+
+	private EmbeddedBeanstalkd server;
+	private Beanstemc beanstemc;
+
+	public LargeBodyBenchmark(int payloadSize) {
+
+		super("put+reserve+delete " + (payloadSize / (1024 * 1024)) + "MB");
+		payload = new byte[payloadSize];
+
+	}
+
+	@Override
+	public int getOperations(int requested) {
+		return Math.min(requested, MAX_OPERATIONS);
+	}
+
+	@Override
+	public long getBytesPerOperation() {
+		return payload.length;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+
+		server = new EmbeddedBeanstalkd();
+		server.setMaxJobSize(payload.length);
+		server.start();
+		beanstemc = new Beanstemc(server.getHost(), server.getPort());
+
+	}
+
+	@Override
+	public void op(int thread) throws Exception {
+
+		beanstemc.put(payload);
+		Job job = beanstemc.reserve();
+		beanstemc.delete(job);
+
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+
+		beanstemc.close();
+		server.stop();
+
+	}
+
+}
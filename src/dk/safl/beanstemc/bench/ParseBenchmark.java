@@ -0,0 +1,161 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.bench;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.ServerStats;
+
+/**
+ * Response parsing, without a network.
+ *
+ * The client reads from a {@link ReplaySocket} answering each command with
+ * the same canned response, so only the client's parsing is measured:
+ * the response line and body of "reserve", the YAML dictionary of "stats"
+ * as a beanstalkd 1.4 server sends it, both as a map of Strings and into a
+ * reused {@link ServerStats}, and the YAML list of "list-tubes".
+ */
+public class ParseBenchmark extends Benchmark {
+
+	public static final int JOB			= 0;
+	public static final int STATS		= 1;
+	public static final int LIST_TUBES	= 2;
+	public static final int SERVER_STATS	= 3;
+
+	private static final String[] NAMES = {"parse reserve", "parse stats", "parse list-tubes", "parse server-stats"};
+
+	private static final String[] STATS_LINES = {
+		"current-jobs-urgent: 0",
+		"current-jobs-ready: 1843",
+		"current-jobs-reserved: 12",
+		"current-jobs-delayed: 207",
+		"current-jobs-buried: 3",
+		"cmd-put: 48211934",
+		"cmd-peek: 112",
+		"cmd-peek-ready: 4",
+		"cmd-peek-delayed: 0",
+		"cmd-peek-buried: 19",
+		"cmd-reserve: 48209721",
+		"cmd-reserve-with-timeout: 1022",
+		"cmd-delete: 48198466",
+		"cmd-release: 10112",
+		"cmd-use: 3211",
+		"cmd-watch: 3310",
+		"cmd-ignore: 3208",
+		"cmd-bury: 41",
+		"cmd-kick: 38",
+		"cmd-touch: 7716",
+		"cmd-stats: 28810",
+		"cmd-stats-job: 511",
+		"cmd-stats-tube: 14402",
+		"cmd-list-tubes: 5",
+		"cmd-list-tube-used: 0",
+		"cmd-list-tubes-watched: 0",
+		"cmd-pause-tube: 2",
+		"job-timeouts: 291",
+		"total-jobs: 48211934",
+		"max-job-size: 65535",
+		"current-tubes: 14",
+		"current-connections: 87",
+		"current-producers: 41",
+		"current-workers: 44",
+		"current-waiting: 31",
+		"total-connections: 190233",
+		"pid: 2371",
+		"version: 1.4.6",
+		"rusage-utime: 8712.412331",
+		"rusage-stime: 20419.982211",
+		"uptime: 4318882",
+		"binlog-oldest-index: 2284",
+		"binlog-current-index: 2291",
+		"binlog-max-size: 10485760",
+		"binlog-records-written: 96431312",
+		"binlog-records-migrated: 118",
+	};
+
+	private final int kind;
+	private Beanstemc beanstemc;
+	private ServerStats serverStats;
+
+	public ParseBenchmark(int kind) {
+
+		super(NAMES[kind]);
+		this.kind = kind;
+
+	}
+
+	@Override
+	public void setUp() throws Exception {
+		beanstemc	= new Beanstemc(new ReplaySocket(script().getBytes("US-ASCII")));
+		serverStats	= new ServerStats();
+	}
+
+	private String script() {
+
+		StringBuilder body = new StringBuilder();
+		switch (kind) {
+
+			case JOB:
+				for (int i = 0; i < 64; i++) {
+					body.append('x');
+				}
+				return "RESERVED 4711 " + body.length() + "\r\n" + body + "\r\n";
+
+			case STATS:
+			case SERVER_STATS:
+				body.append("---\n");
+				for (String line : STATS_LINES) {
+					body.append(line).append('\n');
+				}
+				return "OK " + body.length() + "\r\n" + body + "\r\n";
+
+			default:
+				body.append("---\n- default\n");
+				for (int i = 0; i < 13; i++) {
+					body.append("- queue-").append(i).append('\n');
+				}
+				return "OK " + body.length() + "\r\n" + body + "\r\n";
+
+		}
+
+	}
+
+	@Override
+	public void op(int thread) throws Exception {
+
+		switch (kind) {
+			case JOB:
+				beanstemc.reserve();
+				break;
+			case STATS:
+				beanstemc.stats();
+				break;
+			case SERVER_STATS:
+				beanstemc.serverStats(serverStats);
+				break;
+			default:
+				beanstemc.listTubes();
+				break;
+		}
+
+	}
+
+}
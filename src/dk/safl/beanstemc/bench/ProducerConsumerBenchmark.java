@@ -0,0 +1,108 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.tests.EmbeddedBeanstalkd;
+
+/**
+ * Producer and consumer threads sharing one server over loopback.
+ *
+ * Every thread has its own connection. The first threads put jobs, the
+ * others reserve and delete them, an operation is one put or one cycle.
+ * Consumers reserve with a timeout, so an iteration in which the producers
+ * fall behind costs time instead of hanging.
+ */
+public class ProducerConsumerBenchmark extends Benchmark {
+
+	private static final String TUBE = "bench";
+
+	private final int producers;
+	private final int consumers;
+	private final byte[] payload = new byte[64];
+
+	private EmbeddedBeanstalkd server;
+	private List<Beanstemc> connections;
+
+	public ProducerConsumerBenchmark(int producers, int consumers) {
+
+		super("producer/consumer " + producers + "x" + consumers);
+		this.producers = producers;
+		this.consumers = consumers;
+
+	}
+
+	@Override
+	public int getThreads() {
+		return producers + consumers;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+
+		server = new EmbeddedBeanstalkd();
+		server.start();
+
+		connections = new ArrayList<Beanstemc>();
+		for (int i = 0; i < getThreads(); i++) {
+
+			Beanstemc beanstemc = new Beanstemc(server.getHost(), server.getPort());
+			if (i < producers) {
+				beanstemc.use(TUBE);
+			} else {
+				beanstemc.watch(TUBE);
+				beanstemc.ignore("default");
+			}
+			connections.add(beanstemc);
+
+		}
+
+	}
+
+	@Override
+	public void op(int thread) throws Exception {
+
+		Beanstemc beanstemc = connections.get(thread);
+		if (thread < producers) {
+			beanstemc.put(payload);
+		} else {
+			Job job = beanstemc.reserve(1);
+			beanstemc.delete(job);
+		}
+
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+
+		for (Beanstemc beanstemc : connections) {
+			beanstemc.close();
+		}
+		server.stop();
+
+	}
+
+}
@@ -0,0 +1,69 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.bench;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.tests.EmbeddedBeanstalkd;
+
+/**
+ * Put round trips of one payload size over loopback.
+ *
+ * The server discards the jobs, so any number of puts fits in its memory.
+ */
+public class PutBenchmark extends Benchmark {
+
+	private final byte[] payload;
+
+	private EmbeddedBeanstalkd server;
+	private Beanstemc beanstemc;
+
+	public PutBenchmark(int payloadSize) {
+
+		super("put " + payloadSize + "B");
+		payload = new byte[payloadSize];
+
+	}
+
+	@Override
+	public void setUp() throws Exception {
+
+		server = new EmbeddedBeanstalkd();
+		server.setDiscardJobs(true);
+		server.start();
+		beanstemc = new Beanstemc(server.getHost(), server.getPort());
+
+	}
+
+	@Override
+	public void op(int thread) throws Exception {
+		beanstemc.put(payload);
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+
+		beanstemc.close();
+		server.stop();
+
+	}
+
+}
@@ -0,0 +1,105 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A socket that never touches the network.
+ *
+ * Reading replays a canned server script over and over, everything written
+ * is discarded. It lets the client's encoding and decoding be measured
+ * without a server, the responses in the script must match the commands
+ * the benchmark issues.
+ */
+public class ReplaySocket extends Socket {
+
+	private final byte[] script;
+	private int position;
+	private long written;
+
+	public ReplaySocket(byte[] script) {
+		this.script = script;
+	}
+
+	/**
+	 * @return Number of bytes the client has written to the socket.
+	 */
+	public long getBytesWritten() {
+		return written;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+
+		return new InputStream() {
+
+			@Override
+			public int read() {
+
+				int b = script[position] & 0xff;
+				position = (position + 1) % script.length;
+				return b;
+
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+
+				int n = Math.min(len, script.length - position);
+				System.arraycopy(script, position, b, off, n);
+				position = (position + n) % script.length;
+				return n;
+
+			}
+
+		};
+
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+
+		return new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				written++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				written += len;
+			}
+
+		};
+
+	}
+
+	@Override
+	public synchronized void close() {
+		// Nothing to close
+	}
+
+}
@@ -0,0 +1,92 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.bench;
+
+import java.lang.management.ManagementFactory;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.Job;
+
+/**
+ * Measures heap allocation per reserve/delete cycle.
+ *
+ * The client runs against a {@link ReplaySocket} answering every cycle with
+ * "RESERVED" and "DELETED", so only the client's own work is measured. The
+ * job and its payload are the only allocations a cycle needs, anything
+ * above that is garbage produced by the protocol layer. The figure can
+ * drop below zero when the JIT scalar-replaces the Job itself.
+ *
+ * Usage: ReserveDeleteAllocation [payload-bytes] [cycles]
+ */
+public class ReserveDeleteAllocation {
+
+	public static void main(String[] args) throws Exception {
+
+		int payloadSize	= args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int cycles		= args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+		StringBuilder script = new StringBuilder();
+		script.append("RESERVED 4711 ").append(payloadSize).append("\r\n");
+		for (int i = 0; i < payloadSize; i++) {
+			script.append('x');
+		}
+		script.append("\r\nDELETED\r\n");
+
+		Beanstemc beanstemc = new Beanstemc(new ReplaySocket(script.toString().getBytes("US-ASCII")));
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		// Warm up, so the measurement is of compiled code
+		cycle(beanstemc, cycles);
+
+		long allocated	= threads.getThreadAllocatedBytes(thread);
+		long started	= System.nanoTime();
+		cycle(beanstemc, cycles);
+		long elapsed	= System.nanoTime() - started;
+		allocated		= threads.getThreadAllocatedBytes(thread) - allocated;
+
+		long expected = align(12 + 8 + 4) + align(16 + payloadSize);
+
+		System.out.println(String.format("payload:            %d bytes", payloadSize));
+		System.out.println(String.format("cycles:             %d", cycles));
+		System.out.println(String.format("time per cycle:     %.1f ns", (double)elapsed / cycles));
+		System.out.println(String.format("allocated / cycle:  %.1f bytes", (double)allocated / cycles));
+		System.out.println(String.format("job + payload:      %d bytes", expected));
+		System.out.println(String.format("garbage / cycle:    %.1f bytes", (double)allocated / cycles - expected));
+
+	}
+
+	private static void cycle(Beanstemc beanstemc, int cycles) throws Exception {
+
+		for (int i = 0; i < cycles; i++) {
+			Job job = beanstemc.reserve();
+			beanstemc.delete(job);
+		}
+
+	}
+
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+}
@@ -0,0 +1,84 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.bench;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.Pipeline;
+import dk.safl.beanstemc.tests.EmbeddedBeanstalkd;
+
+/**
+ * Reserve and delete cycles over loopback.
+ *
+ * The jobs an iteration consumes are put in one pipeline before it starts.
+ */
+public class ReserveDeleteBenchmark extends Benchmark {
+
+	private final byte[] payload;
+
+	private EmbeddedBeanstalkd server;
+	private Beanstemc beanstemc;
+
+	public ReserveDeleteBenchmark(int payloadSize) {
+
+		super("reserve+delete " + payloadSize + "B");
+		payload = new byte[payloadSize];
+
+	}
+
+	@Override
+	public void setUp() throws Exception {
+
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		beanstemc = new Beanstemc(server.getHost(), server.getPort());
+
+	}
+
+	@Override
+	public void beforeIteration(int ops) throws Exception {
+
+		Pipeline pipeline = beanstemc.pipeline();
+		for (int i = 0; i < ops; i++) {
+			pipeline.put(payload);
+		}
+		pipeline.execute();
+
+	}
+
+	@Override
+	public void op(int thread) throws Exception {
+
+		Job job = beanstemc.reserve();
+		beanstemc.delete(job);
+
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+
+		beanstemc.close();
+		server.stop();
+
+	}
+
+}
@@ -0,0 +1,200 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import dk.safl.beanstemc.AsyncBeanstemc;
+import dk.safl.beanstemc.BeanstemcException;
+import dk.safl.beanstemc.EventLoop;
+import dk.safl.beanstemc.Job;
+
+import junit.framework.TestCase;
+
+public class AsyncBeanstemcTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private EventLoop loop;
+	private AsyncBeanstemc beanstemc;
+
+	private byte[] testPayload = "beanie man, bo!".getBytes();
+
+	public AsyncBeanstemcTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		loop		= new EventLoop();
+		beanstemc	= new AsyncBeanstemc(loop, host, port);
+		beanstemc.use("async").get();
+		beanstemc.watch("async").get();
+		beanstemc.ignore("default").get();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		beanstemc.close();
+		loop.close();
+		server.stop();
+	}
+
+	public void testPutReserveDelete() throws Exception {
+
+		long jobId	= beanstemc.put(testPayload).get();
+		Job job		= beanstemc.reserve(1).get();
+
+		assertEquals(jobId, job.getId());
+		assertEquals(new String(testPayload), new String(job.getData()));
+
+		beanstemc.delete(job).get();
+		assertEquals(0, beanstemc.pending());
+
+	}
+
+	public void testOrderedResponses() throws Exception {
+
+		List<CompletableFuture<Long>> puts = new ArrayList<CompletableFuture<Long>>();
+		for (int i = 0; i < 1000; i++) {
+			puts.add(beanstemc.put(String.format("job %d", i).getBytes()));
+		}
+
+		long previous = 0;
+		for (CompletableFuture<Long> put : puts) {
+			long jobId = put.get();
+			assertTrue(jobId > previous);
+			previous = jobId;
+		}
+
+		List<CompletableFuture<Job>> reserves = new ArrayList<CompletableFuture<Job>>();
+		for (int i = 0; i < puts.size(); i++) {
+			reserves.add(beanstemc.reserve(1));
+		}
+		for (int i = 0; i < reserves.size(); i++) {
+			Job job = reserves.get(i).get();
+			assertEquals(String.format("job %d", i), new String(job.getData()));
+			beanstemc.delete(job);
+		}
+		beanstemc.listTubeUsed().get();
+		assertEquals(0, beanstemc.pending());
+
+	}
+
+	public void testErrorResponse() throws Exception {
+
+		CompletableFuture<Void> delete	= beanstemc.delete(Long.MAX_VALUE);
+		CompletableFuture<String> used	= beanstemc.listTubeUsed();
+
+		try {
+			delete.get();
+			fail("Deleting an unknown job must fail.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof BeanstemcException);
+		}
+		assertEquals("async", used.get());
+
+	}
+
+	public void testTimedOut() throws Exception {
+
+		try {
+			beanstemc.reserve(1).get();
+			fail("Reserving from an empty tube must time out.");
+		} catch (ExecutionException e) {
+			assertEquals("TIMED_OUT", e.getCause().getMessage());
+		}
+
+	}
+
+	public void testStats() throws Exception {
+
+		assertNotNull(beanstemc.stats().get().get("current-connections"));
+		assertEquals("async", beanstemc.statsTube("async").get().get("name"));
+		assertTrue(beanstemc.listTubes().get().contains("async"));
+		assertEquals(1, beanstemc.listTubesWatched().get().size());
+
+	}
+
+	public void testManyConnectionsOneLoop() throws Exception {
+
+		List<AsyncBeanstemc> connections = new ArrayList<AsyncBeanstemc>();
+		List<CompletableFuture<Long>> puts = new ArrayList<CompletableFuture<Long>>();
+		for (int i = 0; i < 50; i++) {
+			AsyncBeanstemc connection = new AsyncBeanstemc(loop, host, port);
+			connection.use("async");
+			puts.add(connection.put(testPayload));
+			connections.add(connection);
+		}
+
+		for (CompletableFuture<Long> put : puts) {
+			beanstemc.delete(put.get()).get();
+		}
+		for (AsyncBeanstemc connection : connections) {
+			connection.close();
+		}
+
+	}
+
+	public void testClosedConnection() throws Exception {
+
+		beanstemc.close();
+		try {
+			beanstemc.put(testPayload).get();
+			fail("A closed connection must fail commands.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof java.io.IOException);
+		}
+
+	}
+
+	public void testClosedLoop() throws Exception {
+
+		loop.close();
+		try {
+			beanstemc.put(testPayload).get(5, TimeUnit.SECONDS);
+			fail("A closed loop must fail commands.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+
+		try {
+			new AsyncBeanstemc(loop, host, port);
+			fail("A closed loop must not take new connections.");
+		} catch (IOException e) {
+			// Expected
+		}
+
+	}
+
+}
@@ -0,0 +1,207 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import dk.safl.beanstemc.BatchingProducer;
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.BeanstemcException;
+import dk.safl.beanstemc.Job;
+
+import junit.framework.TestCase;
+
+public class BatchingProducerTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private BatchingProducer producer;
+
+	private byte[] testPayload = "beanie man, bo!".getBytes();
+
+	public BatchingProducerTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		producer = new BatchingProducer(host, port);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		producer.close();
+		server.stop();
+	}
+
+	public void testFullBatch() throws Exception {
+
+		producer.setLinger(1, TimeUnit.HOURS);
+		producer.setBatchSize(10);
+
+		List<CompletableFuture<Long>> jobIds = new ArrayList<CompletableFuture<Long>>();
+		for (int i = 0; i < 10; i++) {
+			jobIds.add(producer.put(i % 2 == 0 ? "even" : "odd", ("job-" + i).getBytes()));
+		}
+		for (CompletableFuture<Long> jobId : jobIds) {
+			assertTrue(jobId.get(5, TimeUnit.SECONDS) > 0);
+		}
+		assertEquals(1, producer.getBatchCount());
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		assertEquals(5, beanstemc.tubeStats("even").getCurrentJobsReady());
+		assertEquals(5, beanstemc.tubeStats("odd").getCurrentJobsReady());
+		beanstemc.close();
+
+	}
+
+	public void testBatchBytes() throws Exception {
+
+		producer.setLinger(1, TimeUnit.HOURS);
+		producer.setBatchBytes(2 * testPayload.length);
+
+		CompletableFuture<Long> first = producer.put(testPayload);
+		assertFalse(first.isDone());
+		producer.put(testPayload).get(5, TimeUnit.SECONDS);
+		assertTrue(first.isDone());
+
+	}
+
+	public void testLinger() throws Exception {
+
+		producer.setLinger(20, TimeUnit.MILLISECONDS);
+
+		long started = System.nanoTime();
+		long jobId = producer.put(testPayload).get(5, TimeUnit.SECONDS);
+		assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(20));
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		Job job = beanstemc.reserve(0);
+		assertEquals(jobId, job.getId());
+		assertEquals("beanie man, bo!", new String(job.getData()));
+		beanstemc.close();
+
+	}
+
+	public void testErrors() throws Exception {
+
+		server.setMaxJobSize(100);
+		producer.setLinger(1, TimeUnit.HOURS);
+		producer.setBatchSize(3);
+
+		CompletableFuture<Long> before	= producer.put(testPayload);
+		CompletableFuture<Long> tooBig	= producer.put(new byte[200]);
+		CompletableFuture<Long> after	= producer.put(testPayload);
+
+		assertTrue(before.get(5, TimeUnit.SECONDS) > 0);
+		try {
+			tooBig.get(5, TimeUnit.SECONDS);
+			fail("The server refuses jobs larger than its maximum.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof BeanstemcException);
+			assertEquals("JOB_TOO_BIG", e.getCause().getMessage());
+		}
+		assertTrue(after.get(5, TimeUnit.SECONDS) > 0);
+
+	}
+
+	public void testConnectionLost() throws Exception {
+
+		producer.setLinger(0, TimeUnit.MILLISECONDS);
+		producer.put(testPayload).get(5, TimeUnit.SECONDS);
+
+		// The first batch on the broken connection fails, the next reconnects
+		server.disconnect();
+		try {
+			producer.put(testPayload).get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		producer.put(testPayload).get(5, TimeUnit.SECONDS);
+
+	}
+
+	public void testClose() throws Exception {
+
+		producer.setLinger(1, TimeUnit.HOURS);
+		CompletableFuture<Long> queued = producer.put(testPayload);
+
+		producer.close();
+		assertTrue(queued.get() > 0);
+		assertEquals(0, producer.pending());
+
+		try {
+			producer.put(testPayload).get();
+			fail("Puts after close must fail.");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+
+	}
+
+	public void testConcurrentProducers() throws Exception {
+
+		final List<CompletableFuture<Long>> jobIds = new ArrayList<CompletableFuture<Long>>();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			threads.add(new Thread() {
+				public void run() {
+					for (int j = 0; j < 100; j++) {
+						CompletableFuture<Long> jobId = producer.put("emails", testPayload);
+						synchronized (jobIds) {
+							jobIds.add(jobId);
+						}
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		for (CompletableFuture<Long> jobId : jobIds) {
+			jobId.get(5, TimeUnit.SECONDS);
+		}
+		assertTrue(producer.getBatchCount() < 800);
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		assertEquals(800, beanstemc.tubeStats("emails").getCurrentJobsReady());
+		beanstemc.close();
+
+	}
+
+}
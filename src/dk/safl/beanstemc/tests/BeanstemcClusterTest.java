@@ -0,0 +1,198 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.BeanstemcCluster;
+import dk.safl.beanstemc.BeanstemcException;
+import dk.safl.beanstemc.Job;
+
+import junit.framework.TestCase;
+
+public class BeanstemcClusterTest extends TestCase {
+
+	private List<EmbeddedBeanstalkd> servers = new ArrayList<EmbeddedBeanstalkd>();
+	private BeanstemcCluster cluster;
+
+	private byte[] testPayload = "beanie man, bo!".getBytes();
+
+	public BeanstemcClusterTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		for (int i = 0; i < 4; i++) {
+			EmbeddedBeanstalkd server = new EmbeddedBeanstalkd();
+			server.start();
+			servers.add(server);
+		}
+		cluster = new BeanstemcCluster(address(0), address(1), address(2));
+		cluster.setMaxPollDelay(5);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		cluster.close();
+		for (EmbeddedBeanstalkd server : servers) {
+			server.stop();
+		}
+	}
+
+	private String address(int server) {
+		return servers.get(server).getHost() + ":" + servers.get(server).getPort();
+	}
+
+	private long ready(int server) throws Exception {
+		return cluster.getConnection(server).serverStats().getCurrentJobsReady();
+	}
+
+	public void testNamespacedIds() throws Exception {
+
+		long first	= cluster.put(testPayload);
+		long second	= cluster.put(testPayload);
+		long third	= cluster.put(testPayload);
+
+		// Each server numbers its jobs from 1
+		assertEquals(0, BeanstemcCluster.getServerIndex(first));
+		assertEquals(1, BeanstemcCluster.getServerIndex(second));
+		assertEquals(2, BeanstemcCluster.getServerIndex(third));
+		assertEquals(1, BeanstemcCluster.getLocalId(first));
+		assertEquals(1, BeanstemcCluster.getLocalId(third));
+		assertEquals((2L << BeanstemcCluster.ID_BITS) | 1, third);
+
+		cluster.delete(second);
+		assertEquals(1, ready(0));
+		assertEquals(0, ready(1));
+		assertEquals(1, ready(2));
+
+		Job job = cluster.reserve(0);
+		assertEquals(first, job.getId());
+		cluster.bury(job);
+		assertEquals(0, ready(0));
+		assertEquals(1, cluster.getConnection(0).kick(1));
+
+		try {
+			cluster.delete(5L << BeanstemcCluster.ID_BITS);
+			fail("A job of an unknown server must not be found.");
+		} catch (BeanstemcException e) {
+			assertEquals("NOT_FOUND", e.getMessage());
+		}
+
+	}
+
+	public void testConsistentHashing() throws Exception {
+
+		int[] counts = new int[3];
+		int[] routes = new int[1000];
+		for (int i = 0; i < routes.length; i++) {
+			routes[i] = cluster.getServerIndex("customer-" + i);
+			counts[routes[i]]++;
+		}
+		for (int count : counts) {
+			assertTrue(count > 200);
+		}
+
+		long jobId = cluster.put("customer-7", testPayload);
+		assertEquals(routes[7], BeanstemcCluster.getServerIndex(jobId));
+		assertEquals(routes[7], cluster.getServerIndex("customer-7"));
+
+		// A fourth server only takes keys, none move between the others
+		BeanstemcCluster grown = new BeanstemcCluster(address(0), address(1), address(2), address(3));
+		try {
+			int moved = 0;
+			for (int i = 0; i < routes.length; i++) {
+				int route = grown.getServerIndex("customer-" + i);
+				if (route != routes[i]) {
+					assertEquals(3, route);
+					moved++;
+				}
+			}
+			assertTrue(moved > 150 && moved < 350);
+		} finally {
+			grown.close();
+		}
+
+	}
+
+	public void testLeastLoaded() throws Exception {
+
+		Beanstemc busy = cluster.getConnection(0);
+		for (int i = 0; i < 5; i++) {
+			busy.put(testPayload);
+		}
+
+		cluster.setRouting(BeanstemcCluster.Routing.LEAST_LOADED);
+		for (int i = 0; i < 6; i++) {
+			assertTrue(BeanstemcCluster.getServerIndex(cluster.put(testPayload)) != 0);
+		}
+		assertEquals(3, ready(1));
+		assertEquals(3, ready(2));
+
+	}
+
+	public void testReserve() throws Exception {
+
+		cluster.use("emails");
+		cluster.watch("emails");
+		cluster.getConnection(2).use("emails");
+		cluster.getConnection(2).put(testPayload);
+
+		Job job = cluster.reserve(1);
+		assertEquals(2, BeanstemcCluster.getServerIndex(job.getId()));
+		assertEquals("beanie man, bo!", new String(job.getData()));
+		assertEquals("reserved", cluster.jobStats(job.getId()).getState());
+
+		cluster.touch(job.getId());
+		cluster.release(job);
+		assertEquals(1, ready(2));
+
+		job = cluster.reserve();
+		cluster.delete(job);
+		assertEquals(0, ready(2));
+
+		long started = System.nanoTime();
+		try {
+			cluster.reserve(1);
+			fail("Reserving from empty servers must time out.");
+		} catch (BeanstemcException e) {
+			assertEquals("TIMED_OUT", e.getMessage());
+		}
+		assertTrue(System.nanoTime() - started >= 900000000L);
+
+		// Every server is asked in turn
+		for (int i = 0; i < 3; i++) {
+			cluster.put(testPayload);
+		}
+		for (int i = 0; i < 3; i++) {
+			cluster.delete(cluster.reserve(0));
+		}
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, ready(i));
+		}
+
+	}
+
+}
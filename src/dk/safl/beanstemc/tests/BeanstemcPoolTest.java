@@ -0,0 +1,197 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.BeanstemcException;
+import dk.safl.beanstemc.BeanstemcPool;
+import dk.safl.beanstemc.Job;
+
+import junit.framework.TestCase;
+
+public class BeanstemcPoolTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private BeanstemcPool pool;
+
+	private byte[] testPayload = "beanie man, bo!".getBytes();
+
+	public BeanstemcPoolTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		pool = new BeanstemcPool(host, port, 4);
+		pool.setTube("pooled");
+		pool.setWatch("pooled");
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		pool.close();
+		server.stop();
+	}
+
+	public void testReuse() throws Exception {
+
+		Beanstemc first = pool.borrow();
+		pool.release(first);
+		Beanstemc second = pool.borrow();
+		pool.release(second);
+
+		assertSame(first, second);
+		assertEquals(1, pool.getSize());
+		assertEquals(1, pool.getCreatedCount());
+		assertEquals(2, pool.getBorrowCount());
+
+	}
+
+	public void testRestoreState() throws Exception {
+
+		Beanstemc beanstemc = pool.borrow();
+		assertEquals("pooled", beanstemc.listTubeUsed());
+		assertEquals(1, beanstemc.listTubesWatched().size());
+
+		beanstemc.use("elsewhere");
+		beanstemc.watch("elsewhere");
+		pool.release(beanstemc);
+
+		beanstemc = pool.borrow();
+		assertEquals("pooled", beanstemc.listTubeUsed());
+		List<String> watched = beanstemc.listTubesWatched();
+		assertEquals(1, watched.size());
+		assertEquals("pooled", watched.get(0));
+		pool.release(beanstemc);
+
+	}
+
+	public void testExhausted() throws Exception {
+
+		List<Beanstemc> borrowed = new ArrayList<Beanstemc>();
+		for (int i = 0; i < pool.getMaxSize(); i++) {
+			borrowed.add(pool.borrow());
+		}
+
+		try {
+			pool.borrow(10, TimeUnit.MILLISECONDS);
+			fail("Borrowing from an exhausted pool must time out.");
+		} catch (BeanstemcException e) {
+			assertEquals("POOL_EXHAUSTED", e.getMessage());
+		}
+		assertEquals(1, pool.getTimeoutCount());
+
+		for (Beanstemc beanstemc : borrowed) {
+			pool.release(beanstemc);
+		}
+		assertEquals(pool.getMaxSize(), pool.getIdle());
+
+	}
+
+	public void testEvictBroken() throws Exception {
+
+		Beanstemc broken = pool.borrow();
+		broken.close();
+		pool.release(broken);
+
+		assertEquals(0, pool.getSize());
+		assertEquals(1, pool.getEvictedCount());
+
+		Beanstemc beanstemc = pool.borrow();
+		assertNotSame(broken, beanstemc);
+		beanstemc.listTubeUsed();
+		pool.invalidate(beanstemc);
+
+		assertEquals(0, pool.getSize());
+		assertEquals(2, pool.getEvictedCount());
+
+	}
+
+	public void testValidateIdle() throws Exception {
+
+		pool.setValidateIdle(0);
+
+		Beanstemc beanstemc = pool.borrow();
+		pool.release(beanstemc);
+		Thread.sleep(1);
+
+		assertSame(beanstemc, pool.borrow());
+		pool.release(beanstemc);
+
+	}
+
+	public void testConcurrentBorrowers() throws Exception {
+
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 16; i++) {
+			threads.add(new Thread() {
+				public void run() {
+
+					try {
+						for (int j = 0; j < 50; j++) {
+
+							Beanstemc beanstemc = pool.borrow();
+							try {
+								beanstemc.put(testPayload);
+								Job job = beanstemc.reserve(1);
+								beanstemc.delete(job);
+							} finally {
+								pool.release(beanstemc);
+							}
+
+						}
+					} catch (Exception e) {
+						error.compareAndSet(null, e);
+					}
+
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertNull(error.get());
+		assertTrue(pool.getSize() <= pool.getMaxSize());
+		assertEquals(16 * 50, pool.getBorrowCount());
+		assertTrue(pool.getMaxWaitTimeNanos() >= pool.getAverageWaitTimeNanos());
+
+	}
+
+}
@@ -21,20 +21,26 @@
  */
 package dk.safl.beanstemc.tests;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import dk.safl.beanstemc.Beanstemc;
 import dk.safl.beanstemc.BeanstemcException;
+import dk.safl.beanstemc.Command;
 import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.Metrics;
+import dk.safl.beanstemc.Pipeline;
 
 import junit.framework.TestCase;
 
 public class BeanstemcTest extends TestCase {
 	
-	private String host = "chroud.safl.dk";
-	private int port = 11300;
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
 	private Beanstemc beanstemc;
 	
 	// Test-job supplied to all tests
@@ -53,6 +59,10 @@ public class BeanstemcTest extends TestCase {
 
 	protected void setUp() throws Exception {
 		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
 		beanstemc = new Beanstemc(host, port);
 
 		// Put a job into the "default" tube
@@ -79,7 +89,7 @@ public class BeanstemcTest extends TestCase {
 		}
 		
 		beanstemc.close();
-		
+		server.stop();
 		
 	}
 
@@ -234,11 +244,151 @@ public class BeanstemcTest extends TestCase {
 	}
 
 	public void testListTubeUsed() throws IOException, BeanstemcException {
-		beanstemc.listTubesWatched();
+		assertEquals("default", beanstemc.listTubeUsed());
+		beanstemc.use("colgate");
+		assertEquals("colgate", beanstemc.listTubeUsed());
 	}
 
 	public void testListTubesWatched() throws IOException, BeanstemcException {
 		beanstemc.listTubesWatched();
 	}
 
+	public void testTubeCache() throws IOException, BeanstemcException {
+		
+		Metrics metrics = new Metrics();
+		beanstemc.setMetrics(metrics);
+		
+		beanstemc.use("colgate");
+		beanstemc.use("colgate");
+		assertEquals(2, beanstemc.watch("colgate"));
+		assertEquals(2, beanstemc.watch("colgate"));
+		assertEquals(2, beanstemc.watch("default"));
+		assertEquals(2, beanstemc.ignore("zendium"));
+		
+		assertEquals(1, metrics.get(Command.USE).getCalls());
+		assertEquals(1, metrics.get(Command.WATCH).getCalls());
+		assertEquals(0, metrics.get(Command.IGNORE).getCalls());
+		
+		// Answered locally
+		assertEquals("colgate", beanstemc.listTubeUsed());
+		assertEquals(Arrays.asList("default", "colgate"), beanstemc.listTubesWatched());
+		assertEquals(0, metrics.get(Command.LIST_TUBE_USED).getCalls());
+		assertEquals(0, metrics.get(Command.LIST_TUBES_WATCHED).getCalls());
+		
+		// The server agrees
+		Pipeline pipeline = beanstemc.pipeline();
+		pipeline.ignore("colgate");
+		assertEquals(1, pipeline.execute().get(0).longValue());
+		assertEquals(Arrays.asList("default"), beanstemc.listTubesWatched());
+		
+	}
+
+	public void testPutToTube() throws IOException, BeanstemcException {
+		
+		Metrics metrics = new Metrics();
+		beanstemc.setMetrics(metrics);
+		
+		long first	= beanstemc.put("colgate", testPayload);
+		long second	= beanstemc.put("colgate", testPayload);
+		long third	= beanstemc.put("default", testPayload);
+		trash.add(third);
+		
+		assertEquals(2, metrics.get(Command.USE).getCalls());
+		assertEquals("default", beanstemc.listTubeUsed());
+		assertEquals("colgate", beanstemc.jobStats(first).getTube());
+		assertEquals("colgate", beanstemc.jobStats(second).getTube());
+		assertEquals("default", beanstemc.jobStats(third).getTube());
+		
+		try {
+			beanstemc.put("-dash", testPayload);
+			fail("The server refuses tube names starting with a dash.");
+		} catch (IllegalArgumentException e) {
+			assertEquals(2, metrics.get(Command.USE).getCalls());
+		}
+		
+		beanstemc.delete(first);
+		beanstemc.delete(second);
+		
+	}
+
+	public void testPauseTube() throws IOException, BeanstemcException {
+		beanstemc.pauseTube("default", 1);
+		assertEquals("1", beanstemc.statsTube("default").get("pause"));
+	}
+	
+	public void testPipeline() throws IOException, BeanstemcException {
+		
+		Pipeline pipeline = beanstemc.pipeline();
+		pipeline.use("pipelined");
+		for(int i=0; i<100; i++) {
+			pipeline.put(String.format("job %d", i).getBytes());
+		}
+		
+		List<Pipeline.Result> results = pipeline.execute();
+		assertEquals(101, results.size());
+		assertTrue(results.get(0).isSuccess());
+		
+		for(int i=1; i<results.size(); i++) {
+			pipeline.delete(results.get(i).longValue());
+		}
+		for(Pipeline.Result result : pipeline.execute()) {
+			assertTrue(result.isSuccess());
+		}
+		assertEquals(0, pipeline.size());
+		
+	}
+	
+	public void testPipelineError() throws IOException, BeanstemcException {
+		
+		Pipeline pipeline = beanstemc.pipeline();
+		pipeline.setMaxPending(2);
+		pipeline.touch(testId);
+		pipeline.delete(testId);
+		pipeline.delete(testId);
+		
+		List<Pipeline.Result> results = pipeline.execute();
+		assertEquals(3, results.size());
+		assertFalse(results.get(0).isSuccess());
+		assertTrue(results.get(1).isSuccess());
+		assertFalse(results.get(2).isSuccess());
+		assertEquals(String.format("NOT_FOUND, JOBID=[%d]", testId), results.get(2).getException().getMessage());
+		
+		trash.remove(Long.valueOf(testId));
+		
+	}
+	
+	public void testFragmentedBody() throws Exception {
+		
+		byte[] body = new byte[100000];
+		for (int i = 0; i < body.length; i++) {
+			body[i] = (byte)(i % 251);
+		}
+		
+		ByteArrayOutputStream script = new ByteArrayOutputStream();
+		script.write(("RESERVED 7 " + body.length + "\r\n").getBytes());
+		script.write(body);
+		script.write("\r\nDELETED\r\n".getBytes());
+		
+		Beanstemc scripted = new Beanstemc(new ScriptedSocket(script.toByteArray(), 1460));
+		Job job = scripted.reserve();
+		assertEquals(7, job.getId());
+		assertTrue(Arrays.equals(body, job.getData()));
+		
+		// The response following the body is still found
+		scripted.delete(job);
+		
+	}
+	
+	public void testMissingCrlf() throws Exception {
+		
+		Beanstemc scripted = new Beanstemc(new ScriptedSocket("RESERVED 7 5\r\nbeanie\r\n".getBytes(), 3));
+		try {
+			scripted.reserve();
+			fail("A body longer than announced must be detected.");
+		} catch (IOException e) {
+			assertEquals("Job data is not followed by CRLF.", e.getMessage());
+		}
+		
+	}
+
 }
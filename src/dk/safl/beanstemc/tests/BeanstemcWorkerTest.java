@@ -0,0 +1,167 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.BeanstemcWorker;
+import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.JobHandler;
+import dk.safl.beanstemc.Pipeline;
+
+import junit.framework.TestCase;
+
+public class BeanstemcWorkerTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private Beanstemc beanstemc;
+	private BeanstemcWorker worker;
+
+	public BeanstemcWorkerTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		beanstemc = new Beanstemc(host, port);
+		beanstemc.use("work");
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		if (worker != null) {
+			worker.shutdown();
+			worker.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		beanstemc.close();
+		server.stop();
+	}
+
+	private void put(int jobs) throws Exception {
+
+		Pipeline pipeline = beanstemc.pipeline();
+		for (int i = 0; i < jobs; i++) {
+			pipeline.put(String.format("job %d", i).getBytes());
+		}
+		pipeline.execute();
+
+	}
+
+	public void testProcessAndDelete() throws Exception {
+
+		final int jobs = 200;
+		final CountDownLatch done = new CountDownLatch(jobs);
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+
+		put(jobs);
+
+		worker = new BeanstemcWorker(host, port, new JobHandler() {
+			public void handle(Job job) throws Exception {
+
+				int now = active.incrementAndGet();
+				int max;
+				while (now > (max = maxActive.get()) && !maxActive.compareAndSet(max, now)) {
+					// Retry
+				}
+				Thread.sleep(2);
+				active.decrementAndGet();
+				done.countDown();
+
+			}
+		}, "work");
+		worker.setConcurrency(8);
+		worker.start();
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		worker.shutdown();
+		assertTrue(worker.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertTrue(maxActive.get() <= 8);
+		assertEquals(jobs, worker.getCompletedCount());
+		assertEquals("0", beanstemc.statsTube("work").get("current-jobs-ready"));
+		assertEquals("0", beanstemc.statsTube("work").get("current-jobs-reserved"));
+
+	}
+
+	public void testFailureBuries() throws Exception {
+
+		final CountDownLatch attempts = new CountDownLatch(2);
+
+		put(1);
+
+		worker = new BeanstemcWorker(host, port, new JobHandler() {
+			public void handle(Job job) throws Exception {
+				attempts.countDown();
+				throw new Exception("Handler failure");
+			}
+		}, "work");
+		worker.setMaxReleases(1);
+		worker.setReleaseDelay(0);
+		worker.start();
+
+		assertTrue(attempts.await(10, TimeUnit.SECONDS));
+		worker.shutdown();
+		assertTrue(worker.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertEquals(2, worker.getFailedCount());
+		assertEquals("job 0", new String(beanstemc.peekBuried().getData()));
+
+	}
+
+	public void testErrorBuries() throws Exception {
+
+		final CountDownLatch attempts = new CountDownLatch(2);
+
+		put(1);
+
+		worker = new BeanstemcWorker(host, port, new JobHandler() {
+			public void handle(Job job) throws Exception {
+				attempts.countDown();
+				throw new Error("Handler error");
+			}
+		}, "work");
+		worker.setMaxReleases(1);
+		worker.setReleaseDelay(0);
+		worker.start();
+
+		assertTrue(attempts.await(10, TimeUnit.SECONDS));
+		worker.shutdown();
+		assertTrue(worker.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertEquals(0, worker.getCompletedCount());
+		assertEquals(2, worker.getFailedCount());
+		assertEquals("job 0", new String(beanstemc.peekBuried().getData()));
+
+	}
+
+}
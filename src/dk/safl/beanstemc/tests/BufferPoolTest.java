@@ -0,0 +1,175 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.BufferPool;
+import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.Pipeline;
+import dk.safl.beanstemc.PooledJob;
+
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private Beanstemc beanstemc;
+	private BufferPool pool;
+
+	private byte[] testPayload = "beanie man, bo!".getBytes();
+
+	public BufferPoolTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		pool = new BufferPool();
+		beanstemc = new Beanstemc(host, port);
+		beanstemc.setBufferPool(pool);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		beanstemc.close();
+		server.stop();
+	}
+
+	public void testPutByteBuffer() throws Exception {
+
+		ByteBuffer heap = ByteBuffer.wrap(testPayload);
+		ByteBuffer direct = ByteBuffer.allocateDirect(testPayload.length);
+		direct.put(testPayload).flip();
+
+		beanstemc.put(heap);
+		beanstemc.put(direct);
+		assertEquals(0, heap.position());
+		assertEquals(0, direct.position());
+
+		for (int i = 0; i < 2; i++) {
+			Job job = beanstemc.reserve();
+			assertTrue(Arrays.equals(testPayload, job.getData()));
+			beanstemc.delete(job);
+		}
+
+	}
+
+	public void testLargeDirectBuffer() throws Exception {
+
+		byte[] large = new byte[60000];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = (byte)i;
+		}
+		ByteBuffer direct = ByteBuffer.allocateDirect(large.length);
+		direct.put(large).flip();
+
+		beanstemc.put(direct);
+		Job job = beanstemc.reserve();
+		assertTrue(job.getBuffer().equals(ByteBuffer.wrap(large)));
+		beanstemc.delete(job);
+
+	}
+
+	public void testRecycle() throws Exception {
+
+		for (int i = 0; i < 10; i++) {
+
+			beanstemc.put(testPayload);
+			Job job = beanstemc.reserve();
+			assertTrue(job instanceof PooledJob);
+
+			ByteBuffer payload = job.getBuffer();
+			assertTrue(payload.isReadOnly());
+			assertTrue(payload.equals(ByteBuffer.wrap(testPayload)));
+
+			beanstemc.delete(job);
+			try {
+				job.getBuffer();
+				fail("The payload of a deleted job must not be reachable.");
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+
+		}
+
+		assertEquals(1, pool.getAllocatedCount());
+		assertEquals(9, pool.getReusedCount());
+
+	}
+
+	public void testPipelineRecycle() throws Exception {
+
+		beanstemc.put(testPayload);
+		beanstemc.put(testPayload);
+		Job first = beanstemc.reserve();
+		Job second = beanstemc.reserve();
+
+		Pipeline pipeline = beanstemc.pipeline();
+		pipeline.release(first).bury(second);
+		pipeline.execute();
+
+		assertEquals(2, pool.getAllocatedCount());
+		pool.acquire(testPayload.length);
+		pool.acquire(testPayload.length);
+		assertEquals(2, pool.getReusedCount());
+
+	}
+
+	public void testSizes() throws Exception {
+
+		ByteBuffer small = pool.acquire(1);
+		assertEquals(1, small.limit());
+		assertEquals(64, small.capacity());
+
+		ByteBuffer empty = pool.acquire(0);
+		assertEquals(0, empty.limit());
+		assertEquals(64, empty.capacity());
+
+		// An empty job is read into a pooled buffer too
+		beanstemc.put(new byte[0]);
+		Job job = beanstemc.reserve();
+		assertEquals(0, job.getBuffer().remaining());
+		beanstemc.delete(job);
+
+		ByteBuffer large = pool.acquire(65535);
+		assertEquals(65536, large.capacity());
+		pool.release(large);
+		assertSame(large, pool.acquire(40000));
+
+		ByteBuffer huge = pool.acquire(BufferPool.DEFAULT_MAX_BUFFER_SIZE + 1);
+		assertEquals(BufferPool.DEFAULT_MAX_BUFFER_SIZE + 1, huge.capacity());
+		pool.release(huge);
+		assertNotSame(huge, pool.acquire(BufferPool.DEFAULT_MAX_BUFFER_SIZE + 1));
+
+	}
+
+}
@@ -0,0 +1,189 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.BulkConsumer;
+import dk.safl.beanstemc.BulkLoader;
+
+import junit.framework.TestCase;
+
+public class BulkConsumerTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private File directory;
+	private BulkConsumer consumer;
+	private Beanstemc beanstemc;
+
+	public BulkConsumerTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+
+		directory = File.createTempFile("archive", "");
+		directory.delete();
+		consumer = new BulkConsumer(host, port, "emails", "sms");
+		consumer.setConcurrency(3);
+		consumer.setBatchSize(8);
+		consumer.setIdleTimeout(0);
+		beanstemc = new Beanstemc(host, port);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		beanstemc.close();
+		server.stop();
+		if (directory.isDirectory()) {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	private void put(String tube, int jobs) throws Exception {
+
+		beanstemc.use(tube);
+		for (int i = 0; i < jobs; i++) {
+			beanstemc.put((tube + "-" + i).getBytes());
+		}
+
+	}
+
+	private String read(File file) throws Exception {
+
+		byte[] data = new byte[(int)file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		in.readFully(data);
+		in.close();
+		return new String(data);
+
+	}
+
+	public void testFilePerJob() throws Exception {
+
+		put("emails", 50);
+		put("sms", 50);
+		put("default", 5);
+		long jobId = beanstemc.put("other".getBytes());
+
+		consumer.setSync(true);
+		assertEquals(100, consumer.consume(new File(directory, "job-").getPath()));
+		assertEquals(100, directory.listFiles().length);
+
+		// Deleted from the server, the tube not watched is left alone
+		assertEquals(6, beanstemc.serverStats().getCurrentJobsReady());
+		assertEquals(6, beanstemc.tubeStats("default").getCurrentJobsReady());
+
+		assertEquals("emails-0", read(new File(directory, "job-" + (jobId - 105))));
+
+	}
+
+	public void testDeleteNotFound() throws Exception {
+
+		put("emails", 20);
+
+		// As if the TTR of a job ran out while it was written
+		consumer.setConcurrency(1);
+		server.answerNext("delete", "NOT_FOUND");
+		assertEquals(19, consumer.consume(new File(directory, "job-").getPath()));
+		assertEquals(1, consumer.getDuplicates());
+		assertEquals(20, directory.listFiles().length);
+
+		// Still reserved by the consumer's connection until it closed, then ready again
+		assertEquals(1, beanstemc.serverStats().getCurrentJobsReady());
+
+	}
+
+	public void testMaxJobs() throws Exception {
+
+		put("emails", 100);
+
+		consumer.setMaxJobs(30);
+		assertEquals(30, consumer.consume(new File(directory, "job-").getPath()));
+		assertEquals(30, directory.listFiles().length);
+		assertEquals(70, beanstemc.tubeStats("emails").getCurrentJobsReady());
+
+	}
+
+	public void testIdleTimeout() throws Exception {
+
+		consumer.setIdleTimeout(1);
+
+		long started = System.nanoTime();
+		assertEquals(0, consumer.consume(new File(directory, "job-").getPath()));
+		assertTrue(System.nanoTime() - started >= 1000000000L);
+
+	}
+
+	public void testRollingOutput() throws Exception {
+
+		put("emails", 100);
+
+		// Reloaded from the archive into another tube
+		consumer.setRollSize(500);
+		assertEquals(100, consumer.consume(new File(directory, "archive-").getPath()));
+		assertTrue(directory.listFiles().length > 1);
+
+		BulkLoader loader = new BulkLoader(host, port, "restored");
+		for (File file : directory.listFiles()) {
+			loader.load(file, BulkLoader.Format.LENGTH_PREFIXED, 0);
+		}
+		assertEquals(100, beanstemc.tubeStats("restored").getCurrentJobsReady());
+
+	}
+
+	public void testWriteFailure() throws Exception {
+
+		put("emails", 10);
+
+		// The prefix names a directory which cannot be created
+		File blocker = new File(directory.getPath() + "-file");
+		blocker.createNewFile();
+		try {
+			consumer.consume(new File(blocker, "job-").getPath());
+			fail("Writing into a file must fail.");
+		} catch (java.io.IOException e) {
+			// Expected
+		} finally {
+			blocker.delete();
+		}
+
+		// Nothing was lost
+		assertEquals(10, beanstemc.tubeStats("emails").getCurrentJobsReady());
+
+	}
+
+}
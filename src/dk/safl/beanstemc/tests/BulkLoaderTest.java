@@ -0,0 +1,201 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.BulkLoader;
+
+import junit.framework.TestCase;
+
+public class BulkLoaderTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private BulkLoader loader;
+	private Beanstemc beanstemc;
+
+	public BulkLoaderTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		loader = new BulkLoader(host, port, "backfill");
+		loader.setConnections(3);
+		loader.setBatchSize(16);
+		beanstemc = new Beanstemc(host, port);
+		beanstemc.watch("backfill");
+		beanstemc.ignore("default");
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		beanstemc.close();
+		server.stop();
+	}
+
+	private long ready() throws Exception {
+		return beanstemc.tubeStats("backfill").getCurrentJobsReady();
+	}
+
+	public void testLines() throws Exception {
+
+		loader.setConnections(1);		// Jobs are in the order of the input
+
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			input.append("job-").append(i).append(i % 2 == 0 ? "\n" : "\r\n");
+		}
+		input.append("\n\nlast");
+		byte[] bytes = input.toString().getBytes();
+
+		assertEquals(bytes.length, loader.load(new ByteArrayInputStream(bytes), BulkLoader.Format.LINES, 0));
+		assertEquals(1001, loader.getLoaded());
+		assertEquals(bytes.length, loader.getOffset());
+		assertEquals(1001, ready());
+
+		beanstemc.use("backfill");
+		assertEquals("job-0", new String(beanstemc.peekReady().getData()));
+
+	}
+
+	public void testLongLine() throws Exception {
+
+		server.setMaxJobSize(1 << 20);
+
+		byte[] bytes = new byte[200 * 1024 + 1];
+		java.util.Arrays.fill(bytes, (byte)'x');
+		bytes[bytes.length - 1] = '\n';
+
+		loader.load(new ByteArrayInputStream(bytes), BulkLoader.Format.LINES, 0);
+		assertEquals(1, loader.getLoaded());
+		assertEquals(200 * 1024, beanstemc.reserve(0).getData().length);
+
+	}
+
+	public void testLengthPrefixed() throws Exception {
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		for (int i = 0; i < 100; i++) {
+			byte[] job = ("job\n" + i).getBytes();
+			out.writeInt(job.length);
+			out.write(job);
+		}
+		out.writeInt(0);
+
+		loader.load(new ByteArrayInputStream(buffer.toByteArray()), BulkLoader.Format.LENGTH_PREFIXED, 0);
+		assertEquals(101, loader.getLoaded());
+		assertEquals(101, ready());
+
+	}
+
+	public void testDirectory() throws Exception {
+
+		File directory = File.createTempFile("load", "");
+		directory.delete();
+		directory.mkdir();
+		try {
+
+			for (int i = 0; i < 40; i++) {
+				FileOutputStream out = new FileOutputStream(new File(directory, String.format("%03d.job", i)));
+				out.write(("job-" + i).getBytes());
+				out.close();
+			}
+
+			assertEquals(40, loader.load(directory, null, 0));
+			assertEquals(40, ready());
+
+			// Resumed after the first 30 files
+			assertEquals(40, loader.load(directory, null, 30));
+			assertEquals(10, loader.getLoaded() - 40);
+			assertEquals(50, ready());
+
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+
+	}
+
+	public void testResume() throws Exception {
+
+		byte[] bytes = "one\ntwo\nthree\nfour\n".getBytes();
+
+		loader.load(new ByteArrayInputStream(bytes), BulkLoader.Format.LINES, 8);
+		assertEquals(2, loader.getLoaded());
+		assertEquals(bytes.length, loader.getOffset());
+		assertEquals("three", new String(beanstemc.reserve(0).getData()));
+
+	}
+
+	public void testRefused() throws Exception {
+
+		server.setMaxJobSize(10);
+
+		loader.load(new ByteArrayInputStream("short\nmuch too long for the server\nshort\n".getBytes()), BulkLoader.Format.LINES, 0);
+		assertEquals(2, loader.getLoaded());
+		assertEquals(1, loader.getFailed());
+
+	}
+
+	public void testConnectionLost() throws Exception {
+
+		server.dropAfter("put");
+
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			input.append("job-").append(i).append('\n');
+		}
+		byte[] bytes = input.toString().getBytes();
+
+		try {
+			loader.load(new ByteArrayInputStream(bytes), BulkLoader.Format.LINES, 0);
+			fail("The load must stop when a connection fails.");
+		} catch (IOException e) {
+			// Expected
+		}
+
+		// Resuming from the offset loads every job, the batches in flight may be put twice
+		long offset = loader.getOffset();
+		assertTrue(offset < bytes.length);
+		loader.load(new ByteArrayInputStream(bytes), BulkLoader.Format.LINES, offset);
+		assertTrue(ready() >= 1000);
+
+	}
+
+}
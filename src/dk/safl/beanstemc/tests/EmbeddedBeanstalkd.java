@@ -0,0 +1,1471 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-process stand-in for beanstalkd.
+ *
+ * Speaks the subset of the protocol that Beanstemc uses, with the same
+ * priority, delay, TTR and DEADLINE_SOON semantics as the real server, but
+ * without a binlog. It is meant for tests and benchmarks which should not
+ * depend on a remote server:
+ *
+ * <pre>
+ * EmbeddedBeanstalkd server = new EmbeddedBeanstalkd();
+ * server.start();
+ * Beanstemc beanstemc = new Beanstemc(server.getHost(), server.getPort());
+ * ...
+ * server.stop();
+ * </pre>
+ *
+ * All server state is guarded by one lock. Every connection is served by its
+ * own thread and responses are only flushed once the connection has no more
+ * pipelined commands buffered, so the server keeps up with a pipelining client.
+ */
+public class EmbeddedBeanstalkd {
+
+	public static int		DEFAULT_MAX_JOB_SIZE	= 65535;
+	public static int		MAX_LINE				= 224;
+	public static String	DEFAULT_TUBE			= "default";
+
+	private static final int	READY		= 0;
+	private static final int	DELAYED		= 1;
+	private static final int	RESERVED	= 2;
+	private static final int	BURIED		= 3;
+
+	private static final String[] STATE_NAMES = {"ready", "delayed", "reserved", "buried"};
+
+	private static final byte[] CRLF = {'\r', '\n'};
+
+	private final ReentrantLock	lock	= new ReentrantLock();
+	private final Condition		changed	= lock.newCondition();
+
+	private final Map<Long, ServerJob>		jobs	= new HashMap<Long, ServerJob>();
+	private final Map<String, Tube>			tubes	= new LinkedHashMap<String, Tube>();
+	private final TreeSet<ServerJob>		delayed	= new TreeSet<ServerJob>(BY_READY_AT);
+	private final TreeSet<ServerJob>		reservations = new TreeSet<ServerJob>(BY_DEADLINE);
+	private final Map<String, Long>			counts	= new HashMap<String, Long>();
+	private final Set<Session>				sessions = new HashSet<Session>();
+
+	private long	nextId			= 1;
+	private long	jobTimeouts		= 0;
+	private long	totalJobs		= 0;
+	private long	totalConnections = 0;
+	private long	startedAt;
+
+	private int				port;
+	private int				maxJobSize	= DEFAULT_MAX_JOB_SIZE;
+	private volatile boolean discardJobs;
+	private final AtomicReference<String> dropAfter = new AtomicReference<String>();
+	private final AtomicReference<String[]> answerNext = new AtomicReference<String[]>();
+	private ServerSocket	listener;
+	private Thread			acceptor;
+	private volatile boolean running;
+
+	/**
+	 * A server listening on an ephemeral port on the loopback interface.
+	 */
+	public EmbeddedBeanstalkd() {
+		this(0);
+	}
+
+	/**
+	 * @param port Port to listen on, 0 picks an ephemeral port.
+	 */
+	public EmbeddedBeanstalkd(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * @param bytes Largest job body accepted by "put", larger bodies are answered with JOB_TOO_BIG.
+	 */
+	public void setMaxJobSize(int bytes) {
+		maxJobSize = bytes;
+	}
+
+	/**
+	 * @param discard When true "put" answers INSERTED without storing the job,
+	 * 				for benchmarks which put more than fits in memory.
+	 */
+	public void setDiscardJobs(boolean discard) {
+		discardJobs = discard;
+	}
+
+	public String getHost() {
+		return "localhost";
+	}
+
+	/**
+	 * @return The port the server is listening on, valid once {@link #start()} has returned.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Bind the listening socket and start accepting connections.
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+
+		listener	= new ServerSocket(port, 128, InetAddress.getByName(getHost()));
+		port		= listener.getLocalPort();
+		startedAt	= System.currentTimeMillis();
+		running		= true;
+
+		lock.lock();
+		try {
+			tube(DEFAULT_TUBE);
+		} finally {
+			lock.unlock();
+		}
+
+		acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "beanstalkd-accept-" + port);
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+	}
+
+	/**
+	 * Close the listening socket and every client connection.
+	 */
+	public void stop() {
+
+		running = false;
+		try {
+			listener.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+
+		List<Session> open;
+		lock.lock();
+		try {
+			open = new ArrayList<Session>(sessions);
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (Session session : open) {
+			session.close();
+		}
+
+	}
+
+	/**
+	 * Close every client connection, as a restart or a network failure
+	 * would, while still accepting new ones.
+	 */
+	public void disconnect() {
+
+		List<Session> open;
+		lock.lock();
+		try {
+			open = new ArrayList<Session>(sessions);
+		} finally {
+			lock.unlock();
+		}
+		for (Session session : open) {
+			session.close();
+		}
+
+	}
+
+	/**
+	 * Close the connection which next sends the given command, after the
+	 * command is carried out but before its response is sent.
+	 *
+	 * @param command E.g. "put".
+	 */
+	public void dropAfter(String command) {
+		dropAfter.set(command);
+	}
+
+	/**
+	 * Answer the next request of the given command, one without a body,
+	 * with the response instead of carrying it out.
+	 *
+	 * @param command E.g. "delete".
+	 * @param response E.g. "NOT_FOUND".
+	 */
+	public void answerNext(String command, String response) {
+		answerNext.set(new String[] {command, response});
+	}
+
+	private void accept() {
+
+		while (running) {
+			try {
+
+				Socket socket = listener.accept();
+				socket.setTcpNoDelay(true);
+
+				Session session = new Session(socket);
+				lock.lock();
+				try {
+					sessions.add(session);
+					totalConnections++;
+				} finally {
+					lock.unlock();
+				}
+
+				Thread thread = new Thread(session, "beanstalkd-conn-" + socket.getPort());
+				thread.setDaemon(true);
+				thread.start();
+
+			} catch (IOException e) {
+				if (running) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+	}
+
+	//
+	// Server state, every method below expects the lock to be held.
+	//
+
+	private Tube tube(String name) {
+
+		Tube tube = tubes.get(name);
+		if (tube == null) {
+			tube = new Tube(name);
+			tubes.put(name, tube);
+		}
+		return tube;
+
+	}
+
+	private void collect(Tube tube) {
+
+		if (!tube.name.equals(DEFAULT_TUBE) && tube.using == 0 && tube.watching == 0 &&
+			tube.ready.isEmpty() && tube.buried.isEmpty() && tube.delayedCount == 0 && tube.reservedCount == 0) {
+			tubes.remove(tube.name);
+		}
+
+	}
+
+	private void count(String command) {
+
+		Long n = counts.get(command);
+		counts.put(command, n == null ? 1L : n + 1);
+
+	}
+
+	/**
+	 * Move delayed jobs whose delay has passed into the ready queue and
+	 * time out reserved jobs whose TTR has passed.
+	 */
+	private void promote(long now) {
+
+		while (!delayed.isEmpty() && delayed.first().readyAt <= now) {
+			ServerJob job = delayed.pollFirst();
+			job.tube.delayedCount--;
+			makeReady(job);
+		}
+
+		while (!reservations.isEmpty() && reservations.first().deadline <= now) {
+			ServerJob job = reservations.pollFirst();
+			job.reserver.reserved.remove(job);
+			job.reserver		= null;
+			job.tube.reservedCount--;
+			job.timeouts++;
+			jobTimeouts++;
+			makeReady(job);
+		}
+
+	}
+
+	private void makeReady(ServerJob job) {
+
+		job.state = READY;
+		job.tube.ready.add(job);
+		changed.signalAll();
+
+	}
+
+	private void makeDelayed(ServerJob job, long now, long delay) {
+
+		job.state	= DELAYED;
+		job.delay	= delay;
+		job.readyAt	= now + delay * 1000;
+		job.tube.delayedCount++;
+		delayed.add(job);
+		changed.signalAll();
+
+	}
+
+	private void makeBuried(ServerJob job) {
+
+		job.state = BURIED;
+		job.buries++;
+		job.tube.buried.add(job);
+
+	}
+
+	/**
+	 * Detach a job from whatever queue holds it.
+	 */
+	private void unlink(ServerJob job) {
+
+		switch (job.state) {
+		case READY:
+			job.tube.ready.remove(job);
+			break;
+		case DELAYED:
+			delayed.remove(job);
+			job.tube.delayedCount--;
+			break;
+		case RESERVED:
+			reservations.remove(job);
+			job.reserver.reserved.remove(job);
+			job.reserver = null;
+			job.tube.reservedCount--;
+			break;
+		case BURIED:
+			job.tube.buried.remove(job);
+			break;
+		}
+
+	}
+
+	private ServerJob nextReady(Session session, long now) {
+
+		ServerJob best = null;
+		for (Tube tube : session.watched) {
+
+			if (tube.pausedUntil > now || tube.ready.isEmpty()) {
+				continue;
+			}
+
+			ServerJob candidate = tube.ready.first();
+			if (best == null || BY_PRIORITY.compare(candidate, best) < 0) {
+				best = candidate;
+			}
+
+		}
+		return best;
+
+	}
+
+	/**
+	 * Earliest point in time at which the outcome of a waiting reserve can change.
+	 */
+	private long nextEvent(Session session, long until) {
+
+		long next = until;
+		if (!delayed.isEmpty()) {
+			next = Math.min(next, delayed.first().readyAt);
+		}
+		if (!reservations.isEmpty()) {
+			next = Math.min(next, reservations.first().deadline);
+		}
+		for (ServerJob job : session.reserved) {
+			next = Math.min(next, job.deadline - 1000);
+		}
+		for (Tube tube : session.watched) {
+			if (tube.pausedUntil > 0) {
+				next = Math.min(next, tube.pausedUntil);
+			}
+		}
+		return next;
+
+	}
+
+	private boolean deadlineSoon(Session session, long now) {
+
+		for (ServerJob job : session.reserved) {
+			if (job.deadline - now <= 1000) {
+				return true;
+			}
+		}
+		return false;
+
+	}
+
+	private static final Comparator<ServerJob> BY_PRIORITY = new Comparator<ServerJob>() {
+		public int compare(ServerJob a, ServerJob b) {
+			if (a.priority != b.priority) {
+				return a.priority < b.priority ? -1 : 1;
+			}
+			return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+		}
+	};
+
+	private static final Comparator<ServerJob> BY_READY_AT = new Comparator<ServerJob>() {
+		public int compare(ServerJob a, ServerJob b) {
+			if (a.readyAt != b.readyAt) {
+				return a.readyAt < b.readyAt ? -1 : 1;
+			}
+			return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+		}
+	};
+
+	private static final Comparator<ServerJob> BY_DEADLINE = new Comparator<ServerJob>() {
+		public int compare(ServerJob a, ServerJob b) {
+			if (a.deadline != b.deadline) {
+				return a.deadline < b.deadline ? -1 : 1;
+			}
+			return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+		}
+	};
+
+	private static class ServerJob {
+
+		final long		id;
+		final byte[]	body;
+		final long		createdAt;
+		Tube			tube;
+		long			priority;
+		long			delay;
+		long			ttr;
+		int				state;
+		long			readyAt;
+		long			deadline;
+		Session			reserver;
+		long			reserves, timeouts, releases, buries, kicks;
+
+		ServerJob(long id, Tube tube, long priority, long delay, long ttr, byte[] body, long now) {
+			this.id			= id;
+			this.tube		= tube;
+			this.priority	= priority;
+			this.delay		= delay;
+			this.ttr		= ttr < 1 ? 1 : ttr;
+			this.body		= body;
+			this.createdAt	= now;
+		}
+
+	}
+
+	private static class Tube {
+
+		final String				name;
+		final TreeSet<ServerJob>	ready	= new TreeSet<ServerJob>(BY_PRIORITY);
+		final LinkedHashSet<ServerJob>	buried	= new LinkedHashSet<ServerJob>();
+		int		delayedCount;
+		int		reservedCount;
+		int		using;
+		int		watching;
+		int		waiting;
+		long	totalJobs;
+		long	deletes;
+		long	pauses;
+		long	pauseDelay;
+		long	pausedUntil;
+
+		Tube(String name) {
+			this.name = name;
+		}
+
+	}
+
+	/**
+	 * One client connection.
+	 */
+	private class Session implements Runnable {
+
+		private final Socket		socket;
+		private final InputStream	in;
+		private final OutputStream	out;
+		private final byte[]		line = new byte[MAX_LINE + 2];
+
+		private Tube					used;
+		private final LinkedHashSet<Tube>	watched		= new LinkedHashSet<Tube>();
+		private final Set<ServerJob>		reserved	= new HashSet<ServerJob>();
+		private volatile boolean			closed;
+
+		Session(Socket socket) throws IOException {
+
+			this.socket	= socket;
+			this.in		= new BufferedInputStream(socket.getInputStream(), 65536);
+			this.out	= new BufferedOutputStream(socket.getOutputStream(), 65536);
+
+			lock.lock();
+			try {
+				used = tube(DEFAULT_TUBE);
+				used.using++;
+				watched.add(used);
+				used.watching++;
+			} finally {
+				lock.unlock();
+			}
+
+		}
+
+		public void run() {
+
+			try {
+
+				int length;
+				while ((length = readLine()) >= 0 && !closed) {
+
+					String request = new String(line, 0, length, "US-ASCII");
+					String answer = answering(request);
+					if (answer != null) {
+						reply(answer);
+					} else if (!dispatch(request) || dropping(request)) {
+						break;
+					}
+					if (in.available() == 0) {
+						out.flush();
+					}
+
+				}
+
+			} catch (IOException e) {
+				// Client went away
+			} finally {
+				close();
+			}
+
+		}
+
+		void close() {
+
+			// The socket may still hand a line to the session thread once closed
+			closed = true;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+
+			lock.lock();
+			try {
+
+				if (!sessions.remove(this)) {
+					return;
+				}
+
+				for (ServerJob job : new ArrayList<ServerJob>(reserved)) {
+					unlink(job);
+					makeReady(job);
+				}
+				used.using--;
+				collect(used);
+				for (Tube tube : watched) {
+					tube.watching--;
+					collect(tube);
+				}
+
+			} finally {
+				lock.unlock();
+			}
+
+		}
+
+		/**
+		 * @return true if the connection is to be closed before the response to the request is sent.
+		 */
+		private boolean dropping(String request) {
+
+			String command = dropAfter.get();
+			if (command == null || !(request.equals(command) || request.startsWith(command + " "))) {
+				return false;
+			}
+			return dropAfter.compareAndSet(command, null);
+
+		}
+
+		/**
+		 * @return The response to send instead of carrying out the request, null to carry it out.
+		 */
+		private String answering(String request) {
+
+			String[] answer = answerNext.get();
+			if (answer == null || !(request.equals(answer[0]) || request.startsWith(answer[0] + " "))) {
+				return null;
+			}
+			return answerNext.compareAndSet(answer, null) ? answer[1] : null;
+
+		}
+
+		/**
+		 * @return Length of the line without CRLF, -1 on end-of-stream.
+		 */
+		private int readLine() throws IOException {
+
+			int length = 0;
+			int prev = -1;
+			int cur;
+
+			while ((cur = in.read()) >= 0) {
+
+				if (cur == '\n' && prev == '\r') {
+					return length > MAX_LINE ? MAX_LINE + 1 : length - 1;
+				}
+				if (length < line.length) {
+					line[length] = (byte)cur;
+				}
+				length++;
+				prev = cur;
+
+			}
+			return -1;
+
+		}
+
+		private void readFully(byte[] buf) throws IOException {
+
+			int read = 0;
+			while (read < buf.length) {
+				int n = in.read(buf, read, buf.length - read);
+				if (n < 0) {
+					throw new IOException("Connection closed while reading job body.");
+				}
+				read += n;
+			}
+
+		}
+
+		private void reply(String response) throws IOException {
+
+			out.write(response.getBytes("US-ASCII"));
+			out.write(CRLF);
+
+		}
+
+		private void replyBody(String response, byte[] body) throws IOException {
+
+			reply(response);
+			out.write(body);
+			out.write(CRLF);
+
+		}
+
+		private void replyYaml(StringBuilder yaml) throws IOException {
+
+			byte[] body = yaml.toString().getBytes("UTF-8");
+			replyBody("OK " + body.length, body);
+
+		}
+
+		/**
+		 * @return false when the connection should be closed.
+		 */
+		private boolean dispatch(String request) throws IOException {
+
+			if (request.length() > MAX_LINE) {
+				reply("BAD_FORMAT");
+				return true;
+			}
+
+			String[] args	= request.split(" ");
+			String command	= args[0];
+
+			try {
+
+				if (command.equals("put") && args.length == 5) {
+					put(Long.parseLong(args[1]), Long.parseLong(args[2]), Long.parseLong(args[3]), Integer.parseInt(args[4]));
+				} else if (command.equals("use") && args.length == 2) {
+					use(args[1]);
+				} else if (command.equals("reserve") && args.length == 1) {
+					reserve(command, -1);
+				} else if (command.equals("reserve-with-timeout") && args.length == 2) {
+					reserve(command, Long.parseLong(args[1]));
+				} else if (command.equals("delete") && args.length == 2) {
+					delete(Long.parseLong(args[1]));
+				} else if (command.equals("release") && args.length == 4) {
+					release(Long.parseLong(args[1]), Long.parseLong(args[2]), Long.parseLong(args[3]));
+				} else if (command.equals("bury") && args.length == 3) {
+					bury(Long.parseLong(args[1]), Long.parseLong(args[2]));
+				} else if (command.equals("touch") && args.length == 2) {
+					touch(Long.parseLong(args[1]));
+				} else if (command.equals("watch") && args.length == 2) {
+					watch(args[1]);
+				} else if (command.equals("ignore") && args.length == 2) {
+					ignore(args[1]);
+				} else if (command.equals("peek") && args.length == 2) {
+					peek(command, Long.parseLong(args[1]));
+				} else if ((command.equals("peek-ready") || command.equals("peek-delayed") || command.equals("peek-buried")) && args.length == 1) {
+					peek(command, -1);
+				} else if (command.equals("kick") && args.length == 2) {
+					kick(Long.parseLong(args[1]));
+				} else if (command.equals("kick-job") && args.length == 2) {
+					kickJob(Long.parseLong(args[1]));
+				} else if (command.equals("stats") && args.length == 1) {
+					stats();
+				} else if (command.equals("stats-job") && args.length == 2) {
+					statsJob(Long.parseLong(args[1]));
+				} else if (command.equals("stats-tube") && args.length == 2) {
+					statsTube(args[1]);
+				} else if (command.equals("list-tubes") && args.length == 1) {
+					listTubes();
+				} else if (command.equals("list-tube-used") && args.length == 1) {
+					listTubeUsed();
+				} else if (command.equals("list-tubes-watched") && args.length == 1) {
+					listTubesWatched();
+				} else if (command.equals("pause-tube") && args.length == 3) {
+					pauseTube(args[1], Long.parseLong(args[2]));
+				} else if (command.equals("quit") && args.length == 1) {
+					return false;
+				} else if (isCommand(command)) {
+					reply("BAD_FORMAT");
+				} else {
+					reply("UNKNOWN_COMMAND");
+				}
+
+			} catch (NumberFormatException e) {
+				reply("BAD_FORMAT");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+
+			return true;
+
+		}
+
+		private boolean isCommand(String command) {
+
+			String[] known = {"put", "use", "reserve", "reserve-with-timeout", "delete", "release", "bury", "touch",
+					"watch", "ignore", "peek", "peek-ready", "peek-delayed", "peek-buried", "kick", "kick-job",
+					"stats", "stats-job", "stats-tube", "list-tubes", "list-tube-used", "list-tubes-watched",
+					"pause-tube", "quit"};
+			for (String k : known) {
+				if (k.equals(command)) {
+					return true;
+				}
+			}
+			return false;
+
+		}
+
+		private boolean validTube(String name) {
+
+			if (name.length() == 0 || name.length() > 200 || name.charAt(0) == '-') {
+				return false;
+			}
+			for (int i = 0; i < name.length(); i++) {
+				char c = name.charAt(i);
+				if (!(Character.isLetterOrDigit(c) || "-+/;.$_()".indexOf(c) >= 0)) {
+					return false;
+				}
+			}
+			return true;
+
+		}
+
+		private void put(long priority, long delay, long ttr, int bytes) throws IOException {
+
+			if (bytes < 0) {
+				reply("BAD_FORMAT");
+				return;
+			}
+			if (bytes > maxJobSize) {
+
+				// Swallow the body, then complain
+				long skip = bytes + 2L;
+				while (skip > 0) {
+					long n = in.skip(skip);
+					if (n <= 0) {
+						if (in.read() < 0) {
+							throw new IOException("Connection closed while skipping job body.");
+						}
+						n = 1;
+					}
+					skip -= n;
+				}
+				reply("JOB_TOO_BIG");
+				return;
+
+			}
+
+			byte[] body = new byte[bytes];
+			readFully(body);
+			if (in.read() != '\r' || in.read() != '\n') {
+				reply("EXPECTED_CRLF");
+				return;
+			}
+
+			long id;
+			lock.lock();
+			try {
+
+				count("cmd-put");
+				if (discardJobs) {
+					id = nextId++;
+				} else {
+
+					long now = System.currentTimeMillis();
+					ServerJob job = new ServerJob(nextId++, used, priority, delay, ttr, body, now);
+					jobs.put(job.id, job);
+					used.totalJobs++;
+					totalJobs++;
+
+					if (delay > 0) {
+						makeDelayed(job, now, delay);
+					} else {
+						makeReady(job);
+					}
+					id = job.id;
+
+				}
+
+			} finally {
+				lock.unlock();
+			}
+			reply("INSERTED " + id);
+
+		}
+
+		private void use(String name) throws IOException {
+
+			if (!validTube(name)) {
+				reply("BAD_FORMAT");
+				return;
+			}
+
+			lock.lock();
+			try {
+				count("cmd-use");
+				Tube previous = used;
+				used = tube(name);
+				used.using++;
+				previous.using--;
+				collect(previous);
+			} finally {
+				lock.unlock();
+			}
+			reply("USING " + name);
+
+		}
+
+		private void reserve(String command, long timeout) throws IOException, InterruptedException {
+
+			ServerJob job = null;
+			String failure = null;
+
+			lock.lock();
+			try {
+
+				count("cmd-" + command);
+				long started	= System.currentTimeMillis();
+				long until		= timeout < 0 ? Long.MAX_VALUE : started + timeout * 1000;
+
+				for (Tube tube : watched) {
+					tube.waiting++;
+				}
+				try {
+
+					while (true) {
+
+						long now = System.currentTimeMillis();
+						promote(now);
+
+						if (deadlineSoon(this, now)) {
+							failure = "DEADLINE_SOON";
+							break;
+						}
+
+						job = nextReady(this, now);
+						if (job != null) {
+							break;
+						}
+
+						if (now >= until || !running || socket.isClosed()) {
+							failure = "TIMED_OUT";
+							break;
+						}
+
+						long wake = nextEvent(this, until);
+						if (wake > now) {
+							changed.await(Math.min(wake - now, 1000), TimeUnit.MILLISECONDS);
+						}
+
+					}
+
+				} finally {
+					for (Tube tube : watched) {
+						tube.waiting--;
+					}
+				}
+
+				if (job != null) {
+
+					job.tube.ready.remove(job);
+					job.state		= RESERVED;
+					job.reserver	= this;
+					job.deadline	= System.currentTimeMillis() + job.ttr * 1000;
+					job.reserves++;
+					job.tube.reservedCount++;
+					reserved.add(job);
+					reservations.add(job);
+
+				}
+
+			} finally {
+				lock.unlock();
+			}
+
+			if (job != null) {
+				replyBody("RESERVED " + job.id + " " + job.body.length, job.body);
+			} else {
+				reply(failure);
+			}
+
+		}
+
+		/**
+		 * @return The job if it is known and not reserved by another connection.
+		 */
+		private ServerJob owned(long id) {
+
+			promote(System.currentTimeMillis());
+			ServerJob job = jobs.get(id);
+			if (job == null || (job.state == RESERVED && job.reserver != this)) {
+				return null;
+			}
+			return job;
+
+		}
+
+		private void delete(long id) throws IOException {
+
+			boolean deleted = false;
+			lock.lock();
+			try {
+
+				count("cmd-delete");
+				ServerJob job = owned(id);
+				if (job != null) {
+					unlink(job);
+					jobs.remove(id);
+					job.tube.deletes++;
+					collect(job.tube);
+					deleted = true;
+				}
+
+			} finally {
+				lock.unlock();
+			}
+			reply(deleted ? "DELETED" : "NOT_FOUND");
+
+		}
+
+		private void release(long id, long priority, long delay) throws IOException {
+
+			boolean released = false;
+			lock.lock();
+			try {
+
+				count("cmd-release");
+				ServerJob job = owned(id);
+				if (job != null && job.state == RESERVED) {
+
+					unlink(job);
+					job.priority = priority;
+					job.releases++;
+					if (delay > 0) {
+						makeDelayed(job, System.currentTimeMillis(), delay);
+					} else {
+						makeReady(job);
+					}
+					released = true;
+
+				}
+
+			} finally {
+				lock.unlock();
+			}
+			reply(released ? "RELEASED" : "NOT_FOUND");
+
+		}
+
+		private void bury(long id, long priority) throws IOException {
+
+			boolean buried = false;
+			lock.lock();
+			try {
+
+				count("cmd-bury");
+				ServerJob job = owned(id);
+				if (job != null && job.state == RESERVED) {
+					unlink(job);
+					job.priority = priority;
+					makeBuried(job);
+					buried = true;
+				}
+
+			} finally {
+				lock.unlock();
+			}
+			reply(buried ? "BURIED" : "NOT_FOUND");
+
+		}
+
+		private void touch(long id) throws IOException {
+
+			boolean touched = false;
+			lock.lock();
+			try {
+
+				count("cmd-touch");
+				ServerJob job = owned(id);
+				if (job != null && job.state == RESERVED) {
+					reservations.remove(job);
+					job.deadline = System.currentTimeMillis() + job.ttr * 1000;
+					reservations.add(job);
+					touched = true;
+				}
+
+			} finally {
+				lock.unlock();
+			}
+			reply(touched ? "TOUCHED" : "NOT_FOUND");
+
+		}
+
+		private void watch(String name) throws IOException {
+
+			if (!validTube(name)) {
+				reply("BAD_FORMAT");
+				return;
+			}
+
+			int watching;
+			lock.lock();
+			try {
+
+				count("cmd-watch");
+				Tube tube = tube(name);
+				if (watched.add(tube)) {
+					tube.watching++;
+				}
+				watching = watched.size();
+
+			} finally {
+				lock.unlock();
+			}
+			reply("WATCHING " + watching);
+
+		}
+
+		private void ignore(String name) throws IOException {
+
+			int watching = -1;
+			lock.lock();
+			try {
+
+				count("cmd-ignore");
+				Tube tube = tubes.get(name);
+				if (tube != null && watched.contains(tube)) {
+					if (watched.size() > 1) {
+						watched.remove(tube);
+						tube.watching--;
+						collect(tube);
+						watching = watched.size();
+					}
+				} else {
+					watching = watched.size();
+				}
+
+			} finally {
+				lock.unlock();
+			}
+			reply(watching < 0 ? "NOT_IGNORED" : "WATCHING " + watching);
+
+		}
+
+		private void peek(String command, long id) throws IOException {
+
+			ServerJob job = null;
+			lock.lock();
+			try {
+
+				count("cmd-" + command);
+				promote(System.currentTimeMillis());
+
+				if (id >= 0) {
+					job = jobs.get(id);
+				} else if (command.equals("peek-ready")) {
+					job = used.ready.isEmpty() ? null : used.ready.first();
+				} else if (command.equals("peek-delayed")) {
+					for (ServerJob candidate : delayed) {
+						if (candidate.tube == used) {
+							job = candidate;
+							break;
+						}
+					}
+				} else if (!used.buried.isEmpty()) {
+					job = used.buried.iterator().next();
+				}
+
+			} finally {
+				lock.unlock();
+			}
+
+			if (job != null) {
+				replyBody("FOUND " + job.id + " " + job.body.length, job.body);
+			} else {
+				reply("NOT_FOUND");
+			}
+
+		}
+
+		private void kick(long bound) throws IOException {
+
+			int kicked = 0;
+			lock.lock();
+			try {
+
+				count("cmd-kick");
+				promote(System.currentTimeMillis());
+
+				if (!used.buried.isEmpty()) {
+
+					Iterator<ServerJob> it = used.buried.iterator();
+					while (it.hasNext() && kicked < bound) {
+						ServerJob job = it.next();
+						it.remove();
+						job.kicks++;
+						makeReady(job);
+						kicked++;
+					}
+
+				} else {
+
+					List<ServerJob> victims = new ArrayList<ServerJob>();
+					for (ServerJob job : delayed) {
+						if (victims.size() >= bound) {
+							break;
+						}
+						if (job.tube == used) {
+							victims.add(job);
+						}
+					}
+					for (ServerJob job : victims) {
+						unlink(job);
+						job.kicks++;
+						makeReady(job);
+						kicked++;
+					}
+
+				}
+
+			} finally {
+				lock.unlock();
+			}
+			reply("KICKED " + kicked);
+
+		}
+
+		private void kickJob(long id) throws IOException {
+
+			boolean kicked = false;
+			lock.lock();
+			try {
+
+				count("cmd-kick-job");
+				promote(System.currentTimeMillis());
+				ServerJob job = jobs.get(id);
+				if (job != null && (job.state == BURIED || job.state == DELAYED)) {
+					unlink(job);
+					job.kicks++;
+					makeReady(job);
+					kicked = true;
+				}
+
+			} finally {
+				lock.unlock();
+			}
+			reply(kicked ? "KICKED" : "NOT_FOUND");
+
+		}
+
+		private void stats() throws IOException {
+
+			StringBuilder yaml = new StringBuilder("---\n");
+			lock.lock();
+			try {
+
+				count("cmd-stats");
+				long now = System.currentTimeMillis();
+				promote(now);
+
+				long urgent = 0, ready = 0, reserved_ = 0, delayed_ = 0, buried = 0;
+				int producers = 0, workers = 0, waiting = 0;
+				for (Tube tube : tubes.values()) {
+					for (ServerJob job : tube.ready) {
+						if (job.priority < 1024) {
+							urgent++;
+						}
+					}
+					ready		+= tube.ready.size();
+					reserved_	+= tube.reservedCount;
+					delayed_	+= tube.delayedCount;
+					buried		+= tube.buried.size();
+					waiting		+= tube.waiting;
+				}
+				for (Session session : sessions) {
+					if (!session.reserved.isEmpty()) {
+						workers++;
+					} else {
+						producers++;
+					}
+				}
+
+				yaml.append("current-jobs-urgent: ").append(urgent).append('\n');
+				yaml.append("current-jobs-ready: ").append(ready).append('\n');
+				yaml.append("current-jobs-reserved: ").append(reserved_).append('\n');
+				yaml.append("current-jobs-delayed: ").append(delayed_).append('\n');
+				yaml.append("current-jobs-buried: ").append(buried).append('\n');
+
+				String[] commands = {"put", "peek", "peek-ready", "peek-delayed", "peek-buried", "reserve",
+						"reserve-with-timeout", "delete", "release", "use", "watch", "ignore", "bury", "kick",
+						"touch", "stats", "stats-job", "stats-tube", "list-tubes", "list-tube-used",
+						"list-tubes-watched", "pause-tube"};
+				for (String command : commands) {
+					Long n = counts.get("cmd-" + command);
+					yaml.append("cmd-").append(command).append(": ").append(n == null ? 0 : n).append('\n');
+				}
+
+				yaml.append("job-timeouts: ").append(jobTimeouts).append('\n');
+				yaml.append("total-jobs: ").append(totalJobs).append('\n');
+				yaml.append("max-job-size: ").append(maxJobSize).append('\n');
+				yaml.append("current-tubes: ").append(tubes.size()).append('\n');
+				yaml.append("current-connections: ").append(sessions.size()).append('\n');
+				yaml.append("current-producers: ").append(producers).append('\n');
+				yaml.append("current-workers: ").append(workers).append('\n');
+				yaml.append("current-waiting: ").append(waiting).append('\n');
+				yaml.append("total-connections: ").append(totalConnections).append('\n');
+				yaml.append("pid: 0\n");
+				yaml.append("version: embedded\n");
+				yaml.append("rusage-utime: 0.000000\n");
+				yaml.append("rusage-stime: 0.000000\n");
+				yaml.append("uptime: ").append((now - startedAt) / 1000).append('\n');
+				yaml.append("binlog-oldest-index: 0\n");
+				yaml.append("binlog-current-index: 0\n");
+				yaml.append("binlog-max-size: 10485760\n");
+				yaml.append("binlog-records-written: 0\n");
+				yaml.append("binlog-records-migrated: 0\n");
+				yaml.append("draining: false\n");
+				yaml.append("id: embedded\n");
+				yaml.append("hostname: ").append(getHost()).append('\n');
+
+			} finally {
+				lock.unlock();
+			}
+			replyYaml(yaml);
+
+		}
+
+		private void statsJob(long id) throws IOException {
+
+			StringBuilder yaml = null;
+			lock.lock();
+			try {
+
+				count("cmd-stats-job");
+				long now = System.currentTimeMillis();
+				promote(now);
+
+				ServerJob job = jobs.get(id);
+				if (job != null) {
+
+					long left = 0;
+					if (job.state == RESERVED) {
+						left = (job.deadline - now) / 1000;
+					} else if (job.state == DELAYED) {
+						left = (job.readyAt - now) / 1000;
+					}
+
+					yaml = new StringBuilder("---\n");
+					yaml.append("id: ").append(job.id).append('\n');
+					yaml.append("tube: ").append(job.tube.name).append('\n');
+					yaml.append("state: ").append(STATE_NAMES[job.state]).append('\n');
+					yaml.append("pri: ").append(job.priority).append('\n');
+					yaml.append("age: ").append((now - job.createdAt) / 1000).append('\n');
+					yaml.append("delay: ").append(job.delay).append('\n');
+					yaml.append("ttr: ").append(job.ttr).append('\n');
+					yaml.append("time-left: ").append(Math.max(0, left)).append('\n');
+					yaml.append("file: 0\n");
+					yaml.append("reserves: ").append(job.reserves).append('\n');
+					yaml.append("timeouts: ").append(job.timeouts).append('\n');
+					yaml.append("releases: ").append(job.releases).append('\n');
+					yaml.append("buries: ").append(job.buries).append('\n');
+					yaml.append("kicks: ").append(job.kicks).append('\n');
+
+				}
+
+			} finally {
+				lock.unlock();
+			}
+
+			if (yaml != null) {
+				replyYaml(yaml);
+			} else {
+				reply("NOT_FOUND");
+			}
+
+		}
+
+		private void statsTube(String name) throws IOException {
+
+			StringBuilder yaml = null;
+			lock.lock();
+			try {
+
+				count("cmd-stats-tube");
+				long now = System.currentTimeMillis();
+				promote(now);
+
+				Tube tube = tubes.get(name);
+				if (tube != null) {
+
+					long urgent = 0;
+					for (ServerJob job : tube.ready) {
+						if (job.priority < 1024) {
+							urgent++;
+						}
+					}
+
+					yaml = new StringBuilder("---\n");
+					yaml.append("name: ").append(tube.name).append('\n');
+					yaml.append("current-jobs-urgent: ").append(urgent).append('\n');
+					yaml.append("current-jobs-ready: ").append(tube.ready.size()).append('\n');
+					yaml.append("current-jobs-reserved: ").append(tube.reservedCount).append('\n');
+					yaml.append("current-jobs-delayed: ").append(tube.delayedCount).append('\n');
+					yaml.append("current-jobs-buried: ").append(tube.buried.size()).append('\n');
+					yaml.append("total-jobs: ").append(tube.totalJobs).append('\n');
+					yaml.append("current-using: ").append(tube.using).append('\n');
+					yaml.append("current-watching: ").append(tube.watching).append('\n');
+					yaml.append("current-waiting: ").append(tube.waiting).append('\n');
+					yaml.append("cmd-delete: ").append(tube.deletes).append('\n');
+					yaml.append("cmd-pause-tube: ").append(tube.pauses).append('\n');
+					yaml.append("pause: ").append(tube.pauseDelay).append('\n');
+					yaml.append("pause-time-left: ").append(Math.max(0, (tube.pausedUntil - now) / 1000)).append('\n');
+
+				}
+
+			} finally {
+				lock.unlock();
+			}
+
+			if (yaml != null) {
+				replyYaml(yaml);
+			} else {
+				reply("NOT_FOUND");
+			}
+
+		}
+
+		private void listTubes() throws IOException {
+
+			StringBuilder yaml = new StringBuilder("---\n");
+			lock.lock();
+			try {
+				count("cmd-list-tubes");
+				for (String name : tubes.keySet()) {
+					yaml.append("- ").append(name).append('\n');
+				}
+			} finally {
+				lock.unlock();
+			}
+			replyYaml(yaml);
+
+		}
+
+		private void listTubeUsed() throws IOException {
+
+			lock.lock();
+			try {
+				count("cmd-list-tube-used");
+			} finally {
+				lock.unlock();
+			}
+			reply("USING " + used.name);
+
+		}
+
+		private void listTubesWatched() throws IOException {
+
+			StringBuilder yaml = new StringBuilder("---\n");
+			lock.lock();
+			try {
+				count("cmd-list-tubes-watched");
+				for (Tube tube : watched) {
+					yaml.append("- ").append(tube.name).append('\n');
+				}
+			} finally {
+				lock.unlock();
+			}
+			replyYaml(yaml);
+
+		}
+
+		private void pauseTube(String name, long delay) throws IOException {
+
+			boolean paused = false;
+			lock.lock();
+			try {
+
+				count("cmd-pause-tube");
+				Tube tube = tubes.get(name);
+				if (tube != null) {
+					tube.pauses++;
+					tube.pauseDelay		= delay;
+					tube.pausedUntil	= delay > 0 ? System.currentTimeMillis() + delay * 1000 : 0;
+					changed.signalAll();
+					paused = true;
+				}
+
+			} finally {
+				lock.unlock();
+			}
+			reply(paused ? "PAUSED" : "NOT_FOUND");
+
+		}
+
+	}
+
+}
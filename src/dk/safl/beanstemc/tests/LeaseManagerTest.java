@@ -0,0 +1,125 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.BeanstemcWorker;
+import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.JobHandler;
+import dk.safl.beanstemc.LeaseManager;
+
+import junit.framework.TestCase;
+
+public class LeaseManagerTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private LeaseManager leases;
+
+	public LeaseManagerTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		leases = new LeaseManager(10);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		leases.close();
+		server.stop();
+	}
+
+	public void testTouchUntilCancelled() throws Exception {
+
+		final ConcurrentLinkedQueue<Long> touched = new ConcurrentLinkedQueue<Long>();
+		LeaseManager.Owner owner = new LeaseManager.Owner() {
+			public void touch(List<Long> jobIds) {
+				touched.addAll(jobIds);
+			}
+		};
+
+		LeaseManager.Lease first	= leases.track(owner, 1, 1);
+		LeaseManager.Lease second	= leases.track(owner, 2, 1);
+		assertEquals(2, leases.size());
+
+		Thread.sleep(1200);
+		assertTrue(touched.contains(1L));
+		assertTrue(touched.contains(2L));
+		assertTrue(touched.size() >= 4);
+
+		first.cancel();
+		second.cancel();
+		Thread.sleep(600);
+		touched.clear();
+		Thread.sleep(600);
+
+		assertTrue(touched.isEmpty());
+		assertEquals(0, leases.size());
+
+	}
+
+	public void testWorkerKeepsLongJob() throws Exception {
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		beanstemc.use("leased");
+		beanstemc.put("long job".getBytes(), Beanstemc.DEFAULT_PRIORITY, 0, 3);
+
+		final AtomicInteger handled = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(1);
+
+		BeanstemcWorker worker = new BeanstemcWorker(host, port, new JobHandler() {
+			public void handle(Job job) throws Exception {
+				handled.incrementAndGet();
+				Thread.sleep(5000);
+				done.countDown();
+			}
+		}, "leased");
+		worker.setConcurrency(2);
+		worker.setLeaseManager(leases);
+		worker.start();
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		worker.shutdown();
+		assertTrue(worker.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertEquals(1, handled.get());
+		assertEquals(1, worker.getCompletedCount());
+		assertEquals("0", beanstemc.statsTube("leased").get("current-jobs-ready"));
+		beanstemc.close();
+
+	}
+
+}
@@ -0,0 +1,126 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.util.concurrent.TimeUnit;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.LoadGenerator;
+
+import junit.framework.TestCase;
+
+public class LoadGeneratorTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private LoadGenerator load;
+
+	public LoadGeneratorTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		load = new LoadGenerator(host, port);
+		load.setProducers(2);
+		load.setConsumers(2);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		server.stop();
+	}
+
+	public void testRate() throws Exception {
+
+		load.setRate(1000);
+		load.setPriorities(0, 10);
+		load.run(1, TimeUnit.SECONDS);
+
+		// Scheduled, not as fast as possible
+		assertEquals(1000, load.getPutCount());
+		assertEquals(1000, load.getReservedCount());
+		assertEquals(1000, load.getPutLatency().getCount());
+		assertEquals(1000, load.getEndToEndLatency().getCount());
+		assertEquals(0, load.getPutErrorCount());
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		assertEquals(1000, beanstemc.serverStats().getCmdDelete());
+		beanstemc.close();
+
+	}
+
+	public void testWarmup() throws Exception {
+
+		load.setRate(1000);
+		load.setWarmup(500, TimeUnit.MILLISECONDS);
+		load.run(500, TimeUnit.MILLISECONDS);
+
+		assertEquals(500, load.getPutCount());
+		assertEquals(500, load.getEndToEndLatency().getCount());
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		assertEquals(1000, beanstemc.serverStats().getCmdPut());
+		beanstemc.close();
+
+	}
+
+	public void testDelayedJobs() throws Exception {
+
+		load.setRate(100);
+		load.addDelay(0.5, 1);
+		load.run(1, TimeUnit.SECONDS);
+
+		// Latency is counted from when a job is due to be ready, not from its put
+		assertEquals(100, load.getReservedCount());
+		assertTrue(load.getEndToEndLatency().getValueAtPercentile(50) < TimeUnit.MILLISECONDS.toNanos(500));
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		assertEquals(100, beanstemc.serverStats().getTotalJobs());
+		beanstemc.close();
+
+	}
+
+	public void testLeftovers() throws Exception {
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		beanstemc.use("bench");
+		for (int i = 0; i < 10; i++) {
+			beanstemc.put(new byte[64]);
+		}
+
+		load.setRate(100);
+		load.run(100, TimeUnit.MILLISECONDS);
+
+		assertEquals(10, load.getReservedCount());
+		assertEquals(0, beanstemc.serverStats().getCurrentJobsReady());
+		beanstemc.close();
+
+	}
+
+}
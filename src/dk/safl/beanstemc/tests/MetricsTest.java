@@ -0,0 +1,179 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.BeanstemcException;
+import dk.safl.beanstemc.Command;
+import dk.safl.beanstemc.CommandMetrics;
+import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.LatencyHistogram;
+import dk.safl.beanstemc.Metrics;
+import dk.safl.beanstemc.MetricsExporter;
+import dk.safl.beanstemc.Pipeline;
+
+import junit.framework.TestCase;
+
+public class MetricsTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private Beanstemc beanstemc;
+	private Metrics metrics;
+
+	private byte[] testPayload = "beanie man, bo!".getBytes();
+
+	public MetricsTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		metrics = new Metrics();
+		beanstemc = new Beanstemc(host, port);
+		beanstemc.setMetrics(metrics);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		beanstemc.close();
+		server.stop();
+	}
+
+	public void testCounts() throws Exception {
+
+		long jobId = beanstemc.put(testPayload);
+		Job job = beanstemc.reserve();
+		beanstemc.delete(job);
+
+		CommandMetrics put = metrics.get(Command.PUT);
+		assertEquals(1, put.getCalls());
+		assertEquals(0, put.getErrors());
+		assertEquals(("put 1024 0 120 " + testPayload.length + "\r\n").length() + testPayload.length + 2, put.getBytesOut());
+		assertEquals(("INSERTED " + jobId + "\r\n").length(), put.getBytesIn());
+
+		CommandMetrics reserve = metrics.get(Command.RESERVE);
+		assertEquals(1, reserve.getCalls());
+		assertEquals(("RESERVED " + jobId + " " + testPayload.length + "\r\n").length() + testPayload.length + 2, reserve.getBytesIn());
+
+		assertEquals(1, metrics.get(Command.DELETE).getCalls());
+		assertEquals(0, metrics.get(Command.TOUCH).getCalls());
+
+	}
+
+	public void testErrorsByToken() throws Exception {
+
+		Pipeline pipeline = beanstemc.pipeline();
+		pipeline.reserve(0).reserve(0);
+		for (Pipeline.Result result : pipeline.execute()) {
+			assertFalse(result.isSuccess());
+		}
+		try {
+			beanstemc.delete(4711);
+			fail("Deleting an unknown job must fail.");
+		} catch (BeanstemcException e) {
+			// Expected
+		}
+
+		assertEquals(2, metrics.get(Command.RESERVE).getErrors("TIMED_OUT"));
+		assertEquals(1, metrics.get(Command.DELETE).getErrors("NOT_FOUND"));
+		assertEquals(1, metrics.get(Command.DELETE).getErrors());
+
+		Map<String, Long> byToken = metrics.get(Command.RESERVE).getErrorsByToken();
+		assertEquals(1, byToken.size());
+		assertEquals(Long.valueOf(2), byToken.get("TIMED_OUT"));
+
+	}
+
+	public void testPipeline() throws Exception {
+
+		Pipeline pipeline = beanstemc.pipeline();
+		for (int i = 0; i < 10; i++) {
+			pipeline.put(testPayload);
+		}
+		pipeline.delete(4711);
+		pipeline.execute();
+
+		assertEquals(10, metrics.get(Command.PUT).getCalls());
+		assertEquals(10, metrics.get(Command.PUT).getLatency().getCount());
+		assertEquals(1, metrics.get(Command.DELETE).getErrors("NOT_FOUND"));
+
+		// The connection is still in step after the pipeline
+		beanstemc.stats();
+		assertEquals(1, metrics.get(Command.STATS).getCalls());
+		assertTrue(metrics.get(Command.STATS).getBytesIn() > 0);
+
+	}
+
+	public void testExport() throws Exception {
+
+		beanstemc.put(testPayload);
+		beanstemc.listTubes();
+
+		final List<Command> exported = new ArrayList<Command>();
+		metrics.export(new MetricsExporter() {
+			public void export(List<CommandMetrics> used) {
+				for (CommandMetrics command : used) {
+					exported.add(command.getCommand());
+				}
+			}
+		});
+
+		assertEquals(2, exported.size());
+		assertTrue(exported.contains(Command.PUT));
+		assertTrue(exported.contains(Command.LIST_TUBES));
+
+	}
+
+	public void testHistogram() throws Exception {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+
+		for (long value = 1; value <= 100000; value++) {
+			histogram.record(value * 1000);
+		}
+
+		assertEquals(100000, histogram.getCount());
+		assertEquals(100000000, histogram.getMax());
+		assertEquals(50000500.0, histogram.getMean(), 1.0);
+
+		long[][] expected = {{50, 50000000}, {99, 99000000}, {100, 100000000}};
+		for (long[] pair : expected) {
+			long value = histogram.getValueAtPercentile(pair[0]);
+			assertTrue(value >= pair[1]);
+			assertTrue(value <= pair[1] * 1.04);
+		}
+
+	}
+
+}
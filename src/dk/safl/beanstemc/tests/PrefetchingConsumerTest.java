@@ -0,0 +1,226 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.Pipeline;
+import dk.safl.beanstemc.PrefetchingConsumer;
+
+import junit.framework.TestCase;
+
+public class PrefetchingConsumerTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private Beanstemc beanstemc;
+	private PrefetchingConsumer consumer;
+
+	public PrefetchingConsumerTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		beanstemc = new Beanstemc(host, port);
+		beanstemc.use("prefetch");
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		if (consumer != null) {
+			consumer.close();
+		}
+		beanstemc.close();
+		server.stop();
+	}
+
+	private void put(int jobs, int ttr) throws Exception {
+
+		Pipeline pipeline = beanstemc.pipeline();
+		for (int i = 0; i < jobs; i++) {
+			pipeline.put(String.format("job %d", i).getBytes(), Beanstemc.DEFAULT_PRIORITY, 0, ttr);
+		}
+		pipeline.execute();
+
+	}
+
+	private void awaitBuffered(int jobs) throws Exception {
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (consumer.buffered() < jobs && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(jobs, consumer.buffered());
+
+	}
+
+	public void testTakeAndDelete() throws Exception {
+
+		put(100, Beanstemc.DEFAULT_TTR);
+
+		consumer = new PrefetchingConsumer(host, port, 16, "prefetch");
+		consumer.start();
+
+		for (int i = 0; i < 100; i++) {
+			Job job = consumer.poll(5, TimeUnit.SECONDS);
+			assertNotNull(job);
+			assertEquals(String.format("job %d", i), new String(job.getData()));
+			consumer.delete(job);
+		}
+		assertNull(consumer.poll(100, TimeUnit.MILLISECONDS));
+		consumer.close();
+		consumer = null;
+
+		HashMap<String, String> stats = beanstemc.statsTube("prefetch");
+		assertEquals("0", stats.get("current-jobs-ready"));
+		assertEquals("0", stats.get("current-jobs-reserved"));
+
+	}
+
+	public void testBufferBounded() throws Exception {
+
+		put(10, Beanstemc.DEFAULT_TTR);
+
+		consumer = new PrefetchingConsumer(host, port, 4, "prefetch");
+		consumer.start();
+		awaitBuffered(4);
+
+		Thread.sleep(200);
+		assertEquals(4, consumer.buffered());
+		assertEquals("4", beanstemc.statsTube("prefetch").get("current-jobs-reserved"));
+
+	}
+
+	public void testCloseReleasesBuffered() throws Exception {
+
+		put(5, Beanstemc.DEFAULT_TTR);
+
+		consumer = new PrefetchingConsumer(host, port, 10, "prefetch");
+		consumer.start();
+		awaitBuffered(5);
+
+		consumer.close();
+		consumer = null;
+
+		assertEquals("5", beanstemc.statsTube("prefetch").get("current-jobs-ready"));
+
+	}
+
+	public void testReconnect() throws Exception {
+
+		PrefetchingConsumer.RECONNECT_DELAY = 50;
+		try {
+
+			consumer = new PrefetchingConsumer(host, port, 4, "prefetch");
+			consumer.start();
+			Thread.sleep(100);		// Idle in a reserve
+
+			server.disconnect();
+			beanstemc = new Beanstemc(host, port);
+			beanstemc.use("prefetch");
+
+			// The whole room is available again on the new connection
+			put(4, Beanstemc.DEFAULT_TTR);
+			for (int i = 0; i < 4; i++) {
+				Job job = consumer.poll(5, TimeUnit.SECONDS);
+				assertNotNull(job);
+				consumer.delete(job);
+			}
+			assertTrue(consumer.getErrorCount() > 0);
+			assertNotNull(consumer.getLastError());
+
+		} finally {
+			PrefetchingConsumer.RECONNECT_DELAY = 1000;
+		}
+
+	}
+
+	public void testTakenJobLostWithConnection() throws Exception {
+
+		PrefetchingConsumer.RECONNECT_DELAY = 50;
+		try {
+
+			put(1, Beanstemc.DEFAULT_TTR);
+			consumer = new PrefetchingConsumer(host, port, 4, "prefetch");
+			consumer.start();
+			Job job = consumer.poll(5, TimeUnit.SECONDS);
+			assertNotNull(job);
+
+			server.disconnect();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (consumer.getErrorCount() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(consumer.getErrorCount() > 0);
+
+			// Released by the server, the acknowledgement is dropped
+			assertFalse(consumer.touch(job));
+			assertFalse(consumer.delete(job));
+
+			// Reserved again on the new connection
+			Job again = consumer.poll(5, TimeUnit.SECONDS);
+			assertNotNull(again);
+			assertEquals(job.getId(), again.getId());
+			assertTrue(consumer.delete(again));
+
+			try {
+				consumer.delete(again);
+				fail("A job is acknowledged once.");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+
+		} finally {
+			PrefetchingConsumer.RECONNECT_DELAY = 1000;
+		}
+
+	}
+
+	public void testExpiringJobReleased() throws Exception {
+
+		put(1, 2);
+		long jobId = beanstemc.peekReady().getId();
+
+		consumer = new PrefetchingConsumer(host, port, 1, "prefetch");
+		consumer.setExpiryMargin(1500);
+		consumer.start();
+		awaitBuffered(1);
+
+		Thread.sleep(3000);
+
+		HashMap<String, String> stats = beanstemc.statsJob(jobId);
+		assertEquals("0", stats.get("timeouts"));
+		assertTrue(Integer.parseInt(stats.get("releases")) >= 1);
+
+	}
+
+}
@@ -0,0 +1,151 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.io.IOException;
+
+import dk.safl.beanstemc.Command;
+import dk.safl.beanstemc.ConnectionLostException;
+import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.ResilientBeanstemc;
+import dk.safl.beanstemc.TubeStats;
+
+import junit.framework.TestCase;
+
+public class ResilientBeanstemcTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private ResilientBeanstemc beanstemc;
+
+	private byte[] testPayload = "beanie man, bo!".getBytes();
+
+	public ResilientBeanstemcTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		beanstemc = new ResilientBeanstemc(host, port);
+		beanstemc.setMinBackoff(10);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		beanstemc.close();
+		server.stop();
+	}
+
+	public void testRestoreSession() throws Exception {
+
+		beanstemc.use("emails");
+		beanstemc.watch("emails");
+		beanstemc.ignore("default");
+
+		server.disconnect();
+
+		// The server sees the restored session
+		TubeStats emails = beanstemc.tubeStats("emails");
+		assertEquals(1, emails.getCurrentUsing());
+		assertEquals(1, emails.getCurrentWatching());
+		assertEquals(0, beanstemc.tubeStats("default").getCurrentWatching());
+		assertEquals(1, beanstemc.getReconnectCount());
+
+		assertEquals("emails", beanstemc.listTubeUsed());
+		assertEquals(1, beanstemc.listTubesWatched().size());
+		assertEquals("emails", beanstemc.listTubesWatched().get(0));
+
+	}
+
+	public void testRetryReserve() throws Exception {
+
+		beanstemc.put(testPayload);
+		server.disconnect();
+
+		Job job = beanstemc.reserve(1);
+		assertEquals("beanie man, bo!", new String(job.getData()));
+		assertEquals(1, beanstemc.getReconnectCount());
+
+		// The reservation belongs to the new connection
+		beanstemc.delete(job);
+		assertEquals(0, beanstemc.serverStats().getCurrentJobsReady());
+
+	}
+
+	public void testLostResponse() throws Exception {
+
+		server.dropAfter("put");
+		try {
+			beanstemc.put(testPayload);
+			fail("A put whose response was lost must not be retried.");
+		} catch (ConnectionLostException e) {
+			assertEquals(Command.PUT, e.getCommand());
+		}
+
+		// It was inserted nonetheless, and the next command reconnects
+		assertEquals(1, beanstemc.serverStats().getCurrentJobsReady());
+		assertEquals(1, beanstemc.getReconnectCount());
+
+	}
+
+	public void testLostReservation() throws Exception {
+
+		beanstemc.put(testPayload);
+		Job job = beanstemc.reserve();
+
+		// The server released the job with the connection
+		server.disconnect();
+		try {
+			beanstemc.delete(job);
+			fail("The connection of the reservation is gone.");
+		} catch (ConnectionLostException e) {
+			assertEquals(Command.DELETE, e.getCommand());
+		}
+		assertEquals(1, beanstemc.serverStats().getCurrentJobsReady());
+
+	}
+
+	public void testGiveUp() throws Exception {
+
+		beanstemc.setMaxAttempts(3);
+		server.stop();
+
+		long started = System.nanoTime();
+		try {
+			beanstemc.serverStats();
+			fail("Connecting to a stopped server must fail.");
+		} catch (ConnectionLostException e) {
+			fail("Stats are retried.");
+		} catch (IOException e) {
+			// Backed off 10 and 20 ms between the attempts
+			assertTrue(System.nanoTime() - started >= 30000000L);
+		}
+
+	}
+
+}
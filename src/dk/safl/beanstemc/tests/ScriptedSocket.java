@@ -0,0 +1,92 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A socket which plays a canned server script once, handing it out in
+ * small pieces, the way a large response arrives in several TCP segments.
+ *
+ * What the client writes is kept, see {@link #getWritten()}.
+ */
+public class ScriptedSocket extends Socket {
+
+	private final byte[]	script;
+	private final int		chunk;
+	private int				position;
+
+	private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+	/**
+	 * @param chunk Largest number of bytes a single read returns.
+	 */
+	public ScriptedSocket(byte[] script, int chunk) {
+		this.script	= script;
+		this.chunk	= chunk;
+	}
+
+	public byte[] getWritten() {
+		return written.toByteArray();
+	}
+
+	@Override
+	public InputStream getInputStream() {
+
+		return new InputStream() {
+
+			@Override
+			public int read() {
+				return position < script.length ? script[position++] & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+
+				if (position == script.length) {
+					return -1;
+				}
+				int n = Math.min(Math.min(len, chunk), script.length - position);
+				System.arraycopy(script, position, b, off, n);
+				position += n;
+				return n;
+
+			}
+
+		};
+
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return written;
+	}
+
+	@Override
+	public synchronized void close() {
+		// Nothing to close
+	}
+
+}
@@ -0,0 +1,148 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import dk.safl.beanstemc.BeanstemcException;
+import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.SharedBeanstemc;
+
+import junit.framework.TestCase;
+
+public class SharedBeanstemcTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private SharedBeanstemc beanstemc;
+
+	private byte[] testPayload = "beanie man, bo!".getBytes();
+
+	public SharedBeanstemcTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		beanstemc = new SharedBeanstemc(host, port);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		beanstemc.close();
+		server.stop();
+	}
+
+	public void testPutPeekDelete() throws Exception {
+
+		long jobId = beanstemc.put("shared", testPayload);
+		Job job = beanstemc.peek(jobId);
+		assertEquals(new String(testPayload), new String(job.getData()));
+		assertEquals("shared", beanstemc.statsJob(jobId).get("tube"));
+
+		beanstemc.delete(job);
+		assertEquals(0, beanstemc.pending());
+
+	}
+
+	public void testErrorResponse() throws Exception {
+
+		try {
+			beanstemc.delete(Long.MAX_VALUE);
+			fail("Deleting an unknown job must fail.");
+		} catch (BeanstemcException e) {
+			assertTrue(e.getMessage().startsWith("NOT_FOUND"));
+		}
+		assertNotNull(beanstemc.stats().get("current-connections"));
+
+	}
+
+	public void testInvalidTube() throws Exception {
+
+		try {
+			beanstemc.put("-invalid", testPayload);
+			fail("Invalid tube names must be rejected.");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+
+	}
+
+	public void testManyProducers() throws Exception {
+
+		final String[] tubes = {"shared-a", "shared-b"};
+		final int threads = 64;
+		final int puts = 50;
+
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+		List<Thread> producers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final String tube = tubes[i % tubes.length];
+			producers.add(new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < puts; j++) {
+							beanstemc.put(tube, testPayload);
+						}
+					} catch (Exception e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			});
+		}
+		for (Thread producer : producers) {
+			producer.start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		assertNull(error.get());
+		for (String tube : tubes) {
+			assertEquals(String.valueOf(threads / tubes.length * puts), beanstemc.statsTube(tube).get("current-jobs-ready"));
+		}
+
+	}
+
+	public void testClosed() throws Exception {
+
+		beanstemc.close();
+		try {
+			beanstemc.put(testPayload);
+			fail("A closed connection must fail commands.");
+		} catch (IOException e) {
+			// Expected
+		}
+
+	}
+
+}
@@ -0,0 +1,205 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.SpoolingProducer;
+
+import junit.framework.TestCase;
+
+public class SpoolingProducerTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private File directory;
+	private SpoolingProducer spool;
+
+	private byte[] testPayload = "beanie man, bo!".getBytes();
+
+	public SpoolingProducerTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+
+		directory = File.createTempFile("spool", "");
+		directory.delete();
+		SpoolingProducer.RETRY_DELAY = 10;
+		spool = new SpoolingProducer(directory, host, port, 4096, 4);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		spool.close();
+		server.stop();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+		SpoolingProducer.RETRY_DELAY = 1000;
+	}
+
+	public void testDrain() throws Exception {
+
+		spool.start();
+		for (int i = 0; i < 10; i++) {
+			spool.put(i % 2 == 0 ? "even" : "odd", ("job-" + i).getBytes(), 10, 0, 60);
+		}
+		assertTrue(spool.awaitDrained(5, TimeUnit.SECONDS));
+		assertEquals(0, spool.getBacklog());
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		assertEquals(5, beanstemc.tubeStats("even").getCurrentJobsReady());
+		assertEquals(5, beanstemc.tubeStats("odd").getCurrentJobsReady());
+
+		beanstemc.watch("odd");
+		beanstemc.ignore("default");
+		Job job = beanstemc.reserve(0);
+		assertEquals("job-1", new String(job.getData()));
+		assertEquals(10, beanstemc.jobStats(job.getId()).getPriority());
+		beanstemc.close();
+
+	}
+
+	public void testServerDown() throws Exception {
+
+		server.stop();
+		spool.start();
+		for (int i = 0; i < 10; i++) {
+			spool.put("emails", testPayload);
+		}
+		assertFalse(spool.awaitDrained(50, TimeUnit.MILLISECONDS));
+		assertTrue(spool.getBacklog() > 0);
+
+		server = new EmbeddedBeanstalkd(port);
+		server.start();
+		assertTrue(spool.awaitDrained(5, TimeUnit.SECONDS));
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		assertEquals(10, beanstemc.tubeStats("emails").getCurrentJobsReady());
+		beanstemc.close();
+
+	}
+
+	public void testRollSegments() throws Exception {
+
+		byte[] data = new byte[1000];
+		spool.start();
+		for (int i = 0; i < 40; i++) {
+			spool.put("emails", data);
+			if (i % 8 == 7) {
+				assertTrue(spool.awaitDrained(5, TimeUnit.SECONDS));	// Four segments hold 15 jobs
+			}
+		}
+
+		// Only the tail segment and the checkpoint are left
+		assertEquals(2, directory.listFiles().length);
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		assertEquals(40, beanstemc.tubeStats("emails").getCurrentJobsReady());
+		beanstemc.close();
+
+	}
+
+	public void testSpoolFull() throws Exception {
+
+		byte[] data = new byte[1000];
+		try {
+			for (int i = 0; i < 40; i++) {
+				spool.put("emails", data);
+			}
+			fail("Four segments hold less than 40 jobs of 1000 bytes.");
+		} catch (IOException e) {
+			assertEquals("SPOOL_FULL", e.getMessage());
+		}
+
+		try {
+			spool.put("emails", new byte[4096]);
+			fail("A job larger than a segment cannot be spooled.");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+
+	}
+
+	public void testRecover() throws Exception {
+
+		spool.put("emails", "first".getBytes());
+		spool.put("emails", "second".getBytes());
+		long end = spool.put("emails", "third".getBytes());
+		spool.close();
+
+		// Damage the payload of the last job, as a crash halfway through the copy would
+		RandomAccessFile segment = new RandomAccessFile(new File(directory, String.format("%020d.spool", 0)), "rw");
+		segment.seek(end - 1);
+		segment.write('X');
+		segment.close();
+
+		spool = new SpoolingProducer(directory, host, port, 4096, 4);
+		assertEquals(0, spool.getConfirmedOffset());
+		spool.start();
+		assertTrue(spool.awaitDrained(5, TimeUnit.SECONDS));
+
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		beanstemc.watch("emails");
+		assertEquals("first", new String(beanstemc.reserve(0).getData()));
+		assertEquals("second", new String(beanstemc.reserve(0).getData()));
+		assertEquals(2, beanstemc.tubeStats("emails").getTotalJobs());
+		beanstemc.close();
+
+		// Nothing is sent again after a restart
+		spool.close();
+		spool = new SpoolingProducer(directory, host, port, 4096, 4);
+		assertEquals(0, spool.getBacklog());
+
+	}
+
+	public void testDropRefused() throws Exception {
+
+		server.setMaxJobSize(100);
+		spool.start();
+		spool.put("emails", testPayload);
+		spool.put("emails", new byte[200]);
+		spool.put("emails", testPayload);
+		assertTrue(spool.awaitDrained(5, TimeUnit.SECONDS));
+
+		assertEquals(1, spool.getDroppedCount());
+		Beanstemc beanstemc = new Beanstemc(host, port);
+		assertEquals(2, beanstemc.tubeStats("emails").getCurrentJobsReady());
+		beanstemc.close();
+
+	}
+
+}
@@ -0,0 +1,208 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.ServerStats;
+import dk.safl.beanstemc.StatsMonitor;
+import dk.safl.beanstemc.TubeStats;
+
+import junit.framework.TestCase;
+
+public class StatsMonitorTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private Beanstemc beanstemc;
+	private StatsMonitor monitor;
+
+	private byte[] testPayload = "beanie man, bo!".getBytes();
+
+	public StatsMonitorTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		beanstemc = new Beanstemc(host, port);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		if (monitor != null) {
+			monitor.close();
+		}
+		beanstemc.close();
+		server.stop();
+	}
+
+	/**
+	 * Keeps the tube names and server puts of the last sample.
+	 */
+	private static class Recorder implements StatsMonitor.Listener {
+
+		private List<String> tubes	= new ArrayList<String>();
+		private long puts			= -1;
+		private boolean previous;
+
+		public void sampled(StatsMonitor.ServerSample server, List<StatsMonitor.TubeSample> samples) {
+
+			tubes.clear();
+			for (StatsMonitor.TubeSample sample : samples) {
+				tubes.add(sample.getName());
+			}
+			puts		= server.getDelta(ServerStats.Field.CMD_PUT);
+			previous	= server.hasPrevious();
+
+		}
+
+	}
+
+	public void testDeltas() throws Exception {
+
+		final List<StatsMonitor.TubeSample> samples = new ArrayList<StatsMonitor.TubeSample>();
+		final StatsMonitor.ServerSample[] servers = new StatsMonitor.ServerSample[1];
+
+		monitor = new StatsMonitor(host, port, "emails", "default");
+		monitor.addListener(new StatsMonitor.Listener() {
+			public void sampled(StatsMonitor.ServerSample server, List<StatsMonitor.TubeSample> tubes) {
+				servers[0] = server;
+				samples.clear();
+				samples.addAll(tubes);
+			}
+		});
+
+		beanstemc.use("emails");
+		beanstemc.watch("emails");
+		beanstemc.put(testPayload);
+		monitor.poll();
+
+		assertFalse(servers[0].hasPrevious());
+		assertEquals(0, servers[0].getDelta(ServerStats.Field.CMD_PUT));
+		assertEquals(1, servers[0].getStats().getCmdPut());
+		assertEquals(2, samples.size());
+		assertEquals("emails", samples.get(0).getName());
+		assertEquals(0, samples.get(0).getPutRate(), 0);
+
+		Thread.sleep(5);
+		for (int i = 0; i < 3; i++) {
+			beanstemc.put(testPayload);
+		}
+		beanstemc.delete(beanstemc.reserve(1));
+		monitor.poll();
+
+		StatsMonitor.ServerSample sample = servers[0];
+		assertTrue(sample.hasPrevious());
+		assertTrue(sample.getElapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(5));
+		assertEquals(3, sample.getDelta(ServerStats.Field.CMD_PUT));
+		assertEquals(1, sample.getDelta(ServerStats.Field.CMD_STATS));
+		assertTrue(sample.getPutRate() > 0);
+		assertTrue(sample.getReserveRate() > 0);
+
+		StatsMonitor.TubeSample emails = samples.get(0);
+		assertEquals(3, emails.getDelta(TubeStats.Field.TOTAL_JOBS));
+		assertEquals(2, emails.getDelta(TubeStats.Field.CURRENT_JOBS_READY));
+		assertEquals(1, emails.getDelta(TubeStats.Field.CMD_DELETE));
+		assertEquals(3, emails.getStats().getCurrentJobsReady());
+		assertTrue(emails.getBacklogGrowth() > 0);
+
+		StatsMonitor.TubeSample idle = samples.get(1);
+		assertTrue(idle.hasPrevious());
+		assertEquals(0, idle.getDelta(TubeStats.Field.TOTAL_JOBS));
+		assertEquals(0, idle.getBacklogGrowth(), 0);
+
+	}
+
+	public void testMissingTube() throws Exception {
+
+		Recorder recorder = new Recorder();
+		monitor = new StatsMonitor(host, port, "ghost", "default");
+		monitor.addListener(recorder);
+
+		monitor.poll();
+		assertEquals(1, recorder.tubes.size());
+		assertEquals("default", recorder.tubes.get(0));
+
+		beanstemc.use("ghost");
+		beanstemc.put(testPayload);
+		monitor.poll();
+		assertEquals(2, recorder.tubes.size());
+		assertEquals("ghost", recorder.tubes.get(0));
+
+	}
+
+	public void testAllTubes() throws Exception {
+
+		for (int i = 0; i < 50; i++) {
+			beanstemc.use("tube-" + i);
+			beanstemc.put(testPayload);
+		}
+
+		Recorder recorder = new Recorder();
+		monitor = new StatsMonitor(host, port);
+		monitor.setBatchSize(8);
+		monitor.addListener(recorder);
+
+		monitor.poll();
+		assertEquals(51, recorder.tubes.size());
+		assertTrue(recorder.tubes.contains("tube-49"));
+
+		// One stats and 51 stats-tube per poll, the last stats is this one
+		monitor.poll();
+		assertEquals(0, recorder.puts);
+		ServerStats stats = beanstemc.serverStats();
+		assertEquals(3, stats.getCmdStats());
+		assertEquals(102, stats.getCmdStatsTube());
+
+	}
+
+	public void testStart() throws Exception {
+
+		final CountDownLatch sampled = new CountDownLatch(3);
+
+		monitor = new StatsMonitor(host, port, "default");
+		monitor.setInterval(10);
+		monitor.addListener(new StatsMonitor.Listener() {
+			public void sampled(StatsMonitor.ServerSample server, List<StatsMonitor.TubeSample> tubes) {
+				if (server.hasPrevious()) {
+					sampled.countDown();
+				}
+			}
+		});
+		monitor.start();
+
+		assertTrue(sampled.await(5, TimeUnit.SECONDS));
+
+	}
+
+}
@@ -0,0 +1,176 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.util.HashMap;
+
+import dk.safl.beanstemc.Beanstemc;
+import dk.safl.beanstemc.Job;
+import dk.safl.beanstemc.JobStats;
+import dk.safl.beanstemc.Pipeline;
+import dk.safl.beanstemc.ServerStats;
+import dk.safl.beanstemc.TubeStats;
+
+import junit.framework.TestCase;
+
+public class StatsTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private Beanstemc beanstemc;
+
+	private byte[] testPayload = "beanie man, bo!".getBytes();
+
+	public StatsTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		beanstemc = new Beanstemc(host, port);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		beanstemc.close();
+		server.stop();
+	}
+
+	private static Beanstemc scripted(String yaml) throws Exception {
+
+		String script = "OK " + yaml.length() + "\r\n" + yaml + "\r\n";
+		return new Beanstemc(new ScriptedSocket(script.getBytes("US-ASCII"), 7));
+
+	}
+
+	public void testServerStats() throws Exception {
+
+		beanstemc.put(testPayload);
+		beanstemc.put(testPayload);
+
+		ServerStats stats = beanstemc.serverStats();
+		assertEquals(2, stats.getCurrentJobsReady());
+		assertEquals(2, stats.getCmdPut());
+		assertEquals(2, stats.get(ServerStats.Field.TOTAL_JOBS));
+		assertEquals(1, stats.getCurrentConnections());
+		assertEquals("embedded", stats.getVersion());
+		assertFalse(stats.isDraining());
+
+		// Refilled in place
+		beanstemc.reserve();
+		assertSame(stats, beanstemc.serverStats(stats));
+		assertEquals(1, stats.getCurrentJobsReserved());
+		assertEquals(1, stats.getCmdReserve());
+
+	}
+
+	public void testTubeStats() throws Exception {
+
+		beanstemc.use("typed");
+		beanstemc.put(testPayload, 10, 60);
+
+		TubeStats stats = beanstemc.tubeStats("typed");
+		assertEquals("typed", stats.getName());
+		assertEquals(1, stats.getCurrentJobsDelayed());
+		assertEquals(1, stats.getTotalJobs());
+		assertEquals(1, stats.getCurrentUsing());
+
+	}
+
+	public void testJobStats() throws Exception {
+
+		long jobId = beanstemc.put(testPayload, 42, 0, 30);
+		Job job = beanstemc.reserve();
+
+		JobStats stats = beanstemc.jobStats(jobId);
+		assertEquals(jobId, stats.getId());
+		assertEquals("default", stats.getTube());
+		assertEquals("reserved", stats.getState());
+		assertEquals(42, stats.getPriority());
+		assertEquals(30, stats.getTtr());
+		assertTrue(stats.getTimeLeft() <= 30);
+		assertEquals(1, stats.getReserves());
+
+		Pipeline pipeline = beanstemc.pipeline();
+		pipeline.jobStats(jobId).statsJob(jobId);
+		Object typed = pipeline.execute().get(0).getValue();
+		assertEquals(jobId, ((JobStats)typed).getId());
+
+		beanstemc.delete(job);
+
+	}
+
+	public void testMapView() throws Exception {
+
+		long jobId = beanstemc.put(testPayload);
+
+		HashMap<String, String> map = beanstemc.statsJob(jobId);
+		assertEquals(Long.toString(jobId), map.get("id"));
+		assertEquals("ready", map.get("state"));
+		assertEquals("1024", map.get("pri"));
+
+		assertEquals("false", beanstemc.stats().get("draining"));
+		assertEquals("default", beanstemc.statsTube("default").get("name"));
+
+	}
+
+	public void testParse() throws Exception {
+
+		String yaml = "---\n"
+			+ "current-jobs-ready: 1843\n"
+			+ "cmd-put: 48211934\n"
+			+ "rusage-utime: 8712.4123\n"
+			+ "rusage-stime: 3.000001\n"
+			+ "version: 1.12\n"
+			+ "hostname: queue-7\n"
+			+ "future-key: 12\n"
+			+ "draining: true\n";
+
+		ServerStats stats = scripted(yaml).serverStats();
+		assertEquals(1843, stats.getCurrentJobsReady());
+		assertEquals(48211934, stats.getCmdPut());
+		assertEquals(8712412300L, stats.getRusageUtime());
+		assertEquals(3000001, stats.getRusageStime());
+		assertEquals("1.12", stats.getVersion());
+		assertEquals("queue-7", stats.getHostname());
+		assertNull(stats.getOs());
+		assertTrue(stats.isDraining());
+
+		// Keys which were not sent are not reported
+		assertTrue(stats.has(ServerStats.Field.CMD_PUT));
+		assertFalse(stats.has(ServerStats.Field.CMD_PEEK));
+
+		HashMap<String, String> map = stats.toMap();
+		assertEquals(8, map.size());
+		assertEquals("8712.412300", map.get("rusage-utime"));
+		assertEquals("12", map.get("future-key"));
+		assertEquals("true", map.get("draining"));
+
+	}
+
+}
@@ -0,0 +1,133 @@
+/**
+ *	This file is part of Beanstemc.
+ *
+ *	Copyright (C) 2011 Simon A. F. Lund
+ *
+ *	Beanstemc is free software: you can redistribute it and/or modify
+ *	it under the terms of the GNU Lesser General Public License as published by
+ *	the Free Software Foundation, either version 3 of the License, or
+ *	(at your option) any later version.
+ *
+ *	Beanstemc is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *	GNU Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public License
+ *	along with Beanstemc.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *	@author Simon A. F. Lund
+ *
+ */
+package dk.safl.beanstemc.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import dk.safl.beanstemc.Beanstemc;
+
+import junit.framework.TestCase;
+
+public class StreamingTest extends TestCase {
+
+	private EmbeddedBeanstalkd server;
+	private String host;
+	private int port;
+
+	private Beanstemc beanstemc;
+
+	private byte[] largePayload = new byte[60000];
+
+	public StreamingTest(String arg0) {
+		super(arg0);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EmbeddedBeanstalkd();
+		server.start();
+		host = server.getHost();
+		port = server.getPort();
+		beanstemc = new Beanstemc(host, port);
+		for (int i = 0; i < largePayload.length; i++) {
+			largePayload[i] = (byte)(i * 31);
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		beanstemc.close();
+		server.stop();
+	}
+
+	private byte[] reserveBody() throws Exception {
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		beanstemc.reserve(0, Channels.newChannel(body));
+		return body.toByteArray();
+
+	}
+
+	public void testInputStream() throws Exception {
+
+		beanstemc.put(new ByteArrayInputStream(largePayload), largePayload.length);
+		assertTrue(Arrays.equals(largePayload, reserveBody()));
+
+	}
+
+	public void testReadableChannel() throws Exception {
+
+		beanstemc.put(Channels.newChannel(new ByteArrayInputStream(largePayload)), 1000);
+		assertTrue(Arrays.equals(Arrays.copyOf(largePayload, 1000), reserveBody()));
+
+	}
+
+	public void testFileChannel() throws Exception {
+
+		File file = File.createTempFile("beanstemc", ".job");
+		file.deleteOnExit();
+		FileOutputStream writer = new FileOutputStream(file);
+		writer.write(largePayload);
+		writer.close();
+
+		RandomAccessFile random = new RandomAccessFile(file, "r");
+		try {
+
+			FileChannel channel = random.getChannel();
+			long first = beanstemc.put(channel, 100, 20000, Beanstemc.DEFAULT_PRIORITY, 0, 120);
+			assertEquals(0, channel.position());
+			long second = beanstemc.put(channel, largePayload.length);
+			assertEquals(largePayload.length, channel.position());
+			assertTrue(first != second);
+
+		} finally {
+			random.close();
+		}
+
+		assertTrue(Arrays.equals(Arrays.copyOfRange(largePayload, 100, 20100), reserveBody()));
+		assertTrue(Arrays.equals(largePayload, reserveBody()));
+
+		// Responses and bodies stay in step afterwards
+		assertEquals("default", beanstemc.listTubes().get(0));
+
+	}
+
+	public void testShortStream() throws Exception {
+
+		try {
+			beanstemc.put(new ByteArrayInputStream(new byte[10]), 20);
+			fail("A stream shorter than the announced body must fail.");
+		} catch (IOException e) {
+			// Expected
+		}
+
+	}
+
+}